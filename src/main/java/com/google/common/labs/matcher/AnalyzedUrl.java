@@ -33,7 +33,7 @@ import java.util.regex.Matcher;
  * includes the leading slash but {@code java.net.URL.getPath()} does not. TODO:
  * fix this.
  */
-class AnalyzedUrl {
+public class AnalyzedUrl {
   private final String completeUrl;
   private final String host;
   private final String path;
@@ -17,8 +17,8 @@ package com.google.common.labs.matcher;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -31,7 +31,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * At present, there is no control on the size of the cache: it grows without
  * bound.
  * <p>
- * This class is not thread-safe.
+ * Any number of threads may look up subjects at once, provided none is
+ * adding or removing patterns; cache entries are never changed once they are
+ * in the cache.
  */
 public class CachedPatternMatcher implements PatternMatcher {
   private final Map<String, CacheEntry> cache;
@@ -45,7 +47,7 @@ public class CachedPatternMatcher implements PatternMatcher {
   public CachedPatternMatcher(PatternMatcher patternMatcher, AtomicInteger i) {
     this.patternMatcher = Preconditions.checkNotNull(patternMatcher);
     // TODO: allow externally supplied caches
-    cache = new HashMap<String, CacheEntry>();
+    cache = new ConcurrentHashMap<String, CacheEntry>();
     comparisonCounter = i;
   }
 
@@ -87,8 +89,8 @@ public class CachedPatternMatcher implements PatternMatcher {
       return result;
     }
     cacheEntry = new CacheEntry(true);
-    cache.put(subject, cacheEntry);
     cacheEntry.setBestMatch(result);
+    cache.put(subject, cacheEntry);
     return result;
   }
 
@@ -109,11 +111,10 @@ public class CachedPatternMatcher implements PatternMatcher {
       cache.put(subject, cacheEntry);
       return result;
     }
-    if (cacheEntry == null) {
-      cacheEntry = new CacheEntry(true);
-    }
-    cache.put(subject, cacheEntry);
+    // Replace rather than update any entry, which other threads may be reading.
+    cacheEntry = new CacheEntry(true);
     cacheEntry.setMatches(result);
+    cache.put(subject, cacheEntry);
     return result;
   }
 
@@ -11,74 +11,199 @@
 // WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 // See the License for the specific language governing permissions and
 // limitations under the License.
+
 package com.google.enterprise.logmanager;
 
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
 import java.util.List;
 import javax.annotation.Nullable;
 
+/**
+ * A client for the GSA log manager.
+ *
+ * <p>Records are handed to a {@link LogPipeline}, which writes them from a
+ * background thread, so logging never blocks the calling request.  Nothing is
+ * recorded unless {@link LogClientParameters#enableLogManager} is set, or for
+ * the {@link LogClientParameters#DO_NOT_LOG} request ID.  The methods taking a
+ * format and arguments defer the formatting to the pipeline's thread, so
+ * callers should prefer them to building strings themselves.
+ */
 public class LogClient {
 
+  private final String sourceLogger;
+  @Nullable private final LogPipeline pipeline;
+
   public LogClient(String sourceLogger) {
+    this(sourceLogger, LogClientParameters.LOG_MANAGER_SERVER);
   }
 
+  /**
+   * @param sourceLogger The name recorded as the source of each record.
+   * @param server The log manager server.  Records are currently written by the
+   *     local pipeline, so this is unused.
+   */
   public LogClient(String sourceLogger, String server) {
+    this(sourceLogger, server, null);
+  }
+
+  @VisibleForTesting
+  LogClient(String sourceLogger, String server, @Nullable LogPipeline pipeline) {
+    this.sourceLogger = sourceLogger;
+    this.pipeline = pipeline;
+  }
+
+  private static boolean isLogged(String requestId) {
+    return LogClientParameters.enableLogManager
+        && !LogClientParameters.DO_NOT_LOG.equals(requestId);
+  }
+
+  private void enqueue(LogEntry entry) {
+    ((pipeline != null) ? pipeline : LogPipeline.getInstance()).enqueue(entry);
+  }
+
+  private void enqueue(LogEntry.Level level, String requestId, String message, Object... args) {
+    if (isLogged(requestId)) {
+      enqueue(LogEntry.make(level, sourceLogger, requestId, message, args));
+    }
+  }
+
+  private void enqueue(LogEntry.Level level, String requestId, List<String> multiLineMessage) {
+    if (isLogged(requestId)) {
+      enqueue(LogEntry.make(level, sourceLogger, requestId, multiLineMessage));
+    }
   }
 
   public void log(String requestId, String message) {
+    enqueue(LogEntry.Level.LOG, requestId, message);
+  }
+
+  /**
+   * Logs a message, formatted with {@link String#format} when it's written.
+   */
+  public void log(String requestId, String format, Object... args) {
+    enqueue(LogEntry.Level.LOG, requestId, format, args);
   }
 
   public void info(String requestId, String message) {
+    enqueue(LogEntry.Level.INFO, requestId, message);
+  }
+
+  /**
+   * Logs a message, formatted with {@link String#format} when it's written.
+   */
+  public void info(String requestId, String format, Object... args) {
+    enqueue(LogEntry.Level.INFO, requestId, format, args);
   }
 
   public void info(String requestId, List<String> multiLineMessage) {
+    enqueue(LogEntry.Level.INFO, requestId, multiLineMessage);
   }
 
   public void debug(String requestId, String message) {
+    enqueue(LogEntry.Level.DEBUG, requestId, message);
+  }
+
+  /**
+   * Logs a message, formatted with {@link String#format} when it's written.
+   */
+  public void debug(String requestId, String format, Object... args) {
+    enqueue(LogEntry.Level.DEBUG, requestId, format, args);
   }
 
   public void debug(String requestId, List<String> multiLineMessage) {
+    enqueue(LogEntry.Level.DEBUG, requestId, multiLineMessage);
   }
 
   public void critical(String requestId, String message) {
+    enqueue(LogEntry.Level.CRITICAL, requestId, message);
+  }
+
+  /**
+   * Logs a message, formatted with {@link String#format} when it's written.
+   */
+  public void critical(String requestId, String format, Object... args) {
+    enqueue(LogEntry.Level.CRITICAL, requestId, format, args);
   }
 
   public void critical(String requestId, List<String> multiLineMessage) {
+    enqueue(LogEntry.Level.CRITICAL, requestId, multiLineMessage);
   }
 
   public void logSessionId(String requestId, String sessionId) {
+    enqueue(LogEntry.Level.INFO, requestId, "Session ID: %s", sessionId);
   }
 
   /**
-   * Logs the username for this request.
+   * Logs the username for this request.  Unless
+   * {@link LogClientParameters#recordUsernames} is set, the username is
+   * replaced by {@link LogClientParameters#ID_NOT_LOGGED}.
    */
   public void logUsername(String requestId, String userId) {
+    enqueue(LogEntry.Level.INFO, requestId, "Username: %s",
+        LogClientParameters.recordUsernames ? userId : LogClientParameters.ID_NOT_LOGGED);
   }
 
   /**
    * Logs the query term for this request.
    */
   public void logQuery(String requestId, String queryString) {
+    enqueue(LogEntry.Level.INFO, requestId, "Query: %s", queryString);
   }
 
   public BatchLogger getBatchLogger() {
     return new BatchLogger();
   }
 
+  /**
+   * Collects records to be queued together by {@link #send}.  Not thread safe.
+   */
   public final class BatchLogger {
+    private final List<LogEntry> entries = new ArrayList<>();
+
+    private void add(LogEntry.Level level, String requestId, String message, Object... args) {
+      if (isLogged(requestId)) {
+        entries.add(LogEntry.make(level, sourceLogger, requestId, message, args));
+      }
+    }
 
     public void info(String requestId, String message) {
+      add(LogEntry.Level.INFO, requestId, message);
+    }
+
+    public void info(String requestId, String format, Object... args) {
+      add(LogEntry.Level.INFO, requestId, format, args);
     }
 
     public void debug(String requestId, String message) {
+      add(LogEntry.Level.DEBUG, requestId, message);
+    }
+
+    public void debug(String requestId, String format, Object... args) {
+      add(LogEntry.Level.DEBUG, requestId, format, args);
     }
 
     public void critical(String requestId, String message) {
+      add(LogEntry.Level.CRITICAL, requestId, message);
+    }
+
+    public void critical(String requestId, String format, Object... args) {
+      add(LogEntry.Level.CRITICAL, requestId, format, args);
     }
 
     public void log(String requestId, String message) {
+      add(LogEntry.Level.LOG, requestId, message);
+    }
+
+    public void log(String requestId, String format, Object... args) {
+      add(LogEntry.Level.LOG, requestId, format, args);
     }
 
     public void send() {
+      for (LogEntry entry : entries) {
+        enqueue(entry);
+      }
+      entries.clear();
     }
   }
 }
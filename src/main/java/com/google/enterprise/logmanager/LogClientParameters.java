@@ -23,6 +23,14 @@ public class LogClientParameters {
   public static boolean recordUsernames = true;
   public static final String LOG_MANAGER_SERVER = "localhost:7331";
 
+  // Where the log pipeline writes records, and when that file is rotated.  A
+  // relative path is resolved against the security manager's data directory
+  // when the flags are read; see SecurityManagerUtil.initLogClientFlags.
+  public static final String DEFAULT_LOG_FILE = "logs/secmgr-logmanager.log";
+  public static String logFile = DEFAULT_LOG_FILE;
+  public static long logFileMaxBytes = 64L * 1024 * 1024;
+  public static int logFileCount = 5;
+
   // Magic RequestID that can be used to disable logging; mostly for use by
   // any legacy interfaces that require a requestid but don't actually use
   // or know how to use it.
@@ -0,0 +1,73 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import com.google.common.base.Joiner;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A log record as enqueued by a request thread.  The message isn't formatted
+ * until the drainer thread writes the record.
+ */
+@Immutable
+final class LogEntry {
+  enum Level { LOG, DEBUG, INFO, CRITICAL }
+
+  private static final Joiner LINE_JOINER = Joiner.on(LogClientParameters.LINE_SEPARATOR);
+
+  final long timeMillis;
+  final Level level;
+  final String source;
+  final String requestId;
+  @Nullable private final String message;
+  @Nullable private final Object[] args;
+  @Nullable private final List<String> lines;
+
+  private LogEntry(Level level, String source, String requestId, @Nullable String message,
+      @Nullable Object[] args, @Nullable List<String> lines) {
+    this.timeMillis = System.currentTimeMillis();
+    this.level = level;
+    this.source = source;
+    this.requestId = requestId;
+    this.message = message;
+    this.args = args;
+    this.lines = lines;
+  }
+
+  /**
+   * Makes an entry whose message is a {@link String#format} pattern and
+   * arguments, or a plain message if there are no arguments.
+   */
+  static LogEntry make(Level level, String source, String requestId, String message,
+      @Nullable Object... args) {
+    return new LogEntry(level, source, requestId, message,
+        (args == null || args.length == 0) ? null : args, null);
+  }
+
+  /** Makes an entry with a multi-line message. */
+  static LogEntry make(Level level, String source, String requestId, List<String> lines) {
+    return new LogEntry(level, source, requestId, null, null, lines);
+  }
+
+  /** @return The message, formatted. */
+  String getMessage() {
+    if (lines != null) {
+      return LINE_JOINER.join(lines);
+    }
+    return (args == null) ? message : String.format(message, args);
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An asynchronous pipeline from {@link LogClient}s to a {@link LogSink}.
+ *
+ * <p>Request threads add records to a bounded lock-free ring and never block;
+ * when the ring is full the record is dropped and counted.  A single daemon
+ * drainer thread takes records off the ring in batches, formats them, and
+ * hands each batch to the sink.
+ */
+@ThreadSafe
+public final class LogPipeline {
+  private static final Logger logger = Logger.getLogger(LogPipeline.class.getName());
+
+  /** The default number of records the ring holds. */
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  /** The most records written to the sink at once. */
+  @VisibleForTesting
+  static final int BATCH_SIZE = 512;
+
+  /** How long the drainer sleeps when the ring is empty. */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private static volatile LogPipeline instance;
+
+  private final RecordRing<LogEntry> ring;
+  private final LogSink sink;
+  private final Thread drainer;
+  private final LongAdder dropped = new LongAdder();
+  private volatile long written;
+  private volatile long failed;
+  private volatile boolean running = true;
+
+  /**
+   * Makes a pipeline and starts its drainer thread.
+   *
+   * @param sink The sink to write records to.
+   * @param capacity The number of records the ring holds; must be a power of two.
+   */
+  public LogPipeline(LogSink sink, int capacity) {
+    this.sink = Preconditions.checkNotNull(sink);
+    ring = new RecordRing<LogEntry>(capacity);
+    drainer = new Thread(
+        new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        },
+        "LogPipeline-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Gets the pipeline shared by all log clients, making one that writes to
+   * {@link LogClientParameters#logFile} if none has been installed.
+   */
+  public static LogPipeline getInstance() {
+    LogPipeline pipeline = instance;
+    if (pipeline != null) {
+      return pipeline;
+    }
+    synchronized (LogPipeline.class) {
+      if (instance == null) {
+        instance = new LogPipeline(
+            new RotatingFileLogSink(new File(LogClientParameters.logFile),
+                LogClientParameters.logFileMaxBytes, LogClientParameters.logFileCount),
+            DEFAULT_CAPACITY);
+      }
+      return instance;
+    }
+  }
+
+  /**
+   * Installs the pipeline shared by all log clients, closing any previous one.
+   * This is how a different sink is plugged in.
+   */
+  public static void install(LogPipeline pipeline) {
+    LogPipeline previous;
+    synchronized (LogPipeline.class) {
+      previous = instance;
+      instance = Preconditions.checkNotNull(pipeline);
+    }
+    if (previous != null && previous != pipeline) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Adds a record without blocking.
+   *
+   * @return True if the record was queued, false if it was dropped.
+   */
+  boolean enqueue(LogEntry entry) {
+    if (running && ring.offer(entry)) {
+      return true;
+    }
+    dropped.increment();
+    return false;
+  }
+
+  /** @return The number of records dropped because the ring was full. */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /** @return The number of records written to the sink. */
+  public long getWrittenCount() {
+    return written;
+  }
+
+  /** @return The number of records lost because the sink failed. */
+  public long getFailedCount() {
+    return failed;
+  }
+
+  /**
+   * Waits until every record queued before this call has been written or
+   * has failed.
+   *
+   * @return True if the records were drained before the timeout.
+   */
+  public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+    long target = ring.getOfferedCount();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (written + failed < target) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      LockSupport.unpark(drainer);
+      Thread.sleep(1);
+    }
+    return true;
+  }
+
+  /**
+   * Stops taking records, writes out the ones already queued, and stops the
+   * drainer thread.
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(drainer);
+    try {
+      drainer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    List<String> batch = new ArrayList<>(BATCH_SIZE);
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    while (true) {
+      // Read the flag before polling, so that records queued before close()
+      // are still written.
+      boolean stopping = !running;
+      LogEntry entry;
+      while (batch.size() < BATCH_SIZE && (entry = ring.poll()) != null) {
+        batch.add(format(entry, dateFormat));
+      }
+      if (batch.isEmpty()) {
+        if (stopping) {
+          return;
+        }
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        continue;
+      }
+      try {
+        sink.write(batch);
+        written += batch.size();
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to write " + batch.size() + " log records", e);
+        failed += batch.size();
+      }
+      batch.clear();
+    }
+  }
+
+  private static String format(LogEntry entry, SimpleDateFormat dateFormat) {
+    String message;
+    try {
+      message = entry.getMessage();
+    } catch (RuntimeException e) {
+      message = "Unformattable log message: " + e;
+    }
+    return dateFormat.format(new Date(entry.timeMillis)) + " " + entry.level + " "
+        + entry.source + " [" + entry.requestId + "] " + message;
+  }
+}
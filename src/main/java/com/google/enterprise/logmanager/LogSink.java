@@ -0,0 +1,33 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A destination for formatted log records.  Sinks are only ever called from
+ * the {@link LogPipeline}'s drainer thread, so they needn't be thread safe.
+ */
+public interface LogSink {
+
+  /**
+   * Writes a batch of formatted records.
+   *
+   * @param lines The records, one per element, without line terminators.
+   * @throws IOException if the records can't be written.
+   */
+  void write(List<String> lines) throws IOException;
+}
@@ -0,0 +1,102 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded, lock-free, multiple-producer single-consumer ring buffer.
+ *
+ * <p>Each slot carries a sequence number saying whose turn it is: a producer
+ * may fill slot {@code i} at position {@code p} when its sequence is
+ * {@code p}, and the consumer may empty it when its sequence is {@code p + 1}.
+ * Producers claim positions with a CAS on the tail and never wait; if the
+ * ring is full, {@link #offer} fails at once.
+ */
+final class RecordRing<E> {
+  private final int mask;
+  private final AtomicReferenceArray<E> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  /** The next position to consume; only touched by the consumer. */
+  private long head;
+
+  /**
+   * @param capacity The number of slots; must be a power of two.
+   */
+  RecordRing(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "Capacity must be a power of two: %s", capacity);
+    mask = capacity - 1;
+    slots = new AtomicReferenceArray<E>(capacity);
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds an element, if there's room.  Safe to call from any thread.
+   *
+   * @return True if the element was added, false if the ring is full.
+   */
+  boolean offer(E element) {
+    Preconditions.checkNotNull(element);
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots.lazySet(index, element);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest element.  Must only be called from the consumer thread.
+   *
+   * @return The element, or null if the ring is empty.
+   */
+  @Nullable
+  E poll() {
+    int index = (int) (head & mask);
+    if (sequences.get(index) != head + 1) {
+      return null;
+    }
+    E element = slots.get(index);
+    slots.lazySet(index, null);
+    sequences.lazySet(index, head + mask + 1);
+    head++;
+    return element;
+  }
+
+  /** @return The number of elements ever added. */
+  long getOfferedCount() {
+    return tail.get();
+  }
+}
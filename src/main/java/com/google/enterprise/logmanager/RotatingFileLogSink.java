@@ -0,0 +1,160 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link LogSink} that appends to a local file, rotating it when it grows
+ * past a size limit.  The rotated files are named {@code <file>.1} (the
+ * newest) through {@code <file>.<n>}; older ones are deleted.
+ * <p>
+ * Records may name users, so the file and any directory made for it are only
+ * accessible to their owner.  The sink won't write through a symbolic link,
+ * or to a file it can't restrict, such as one another user made.
+ */
+public final class RotatingFileLogSink implements LogSink {
+  private static final Set<PosixFilePermission> FILE_PERMISSIONS =
+      PosixFilePermissions.fromString("rw-------");
+  private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS =
+      PosixFilePermissions.fromString("rwx------");
+  private static final boolean POSIX =
+      FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+  private final File file;
+  private final long maxBytes;
+  private final int maxFiles;
+  private Writer writer;
+  private long bytes;
+
+  /**
+   * @param file The file to write.
+   * @param maxBytes The size at which the file is rotated.
+   * @param maxFiles The number of rotated files to keep.
+   */
+  public RotatingFileLogSink(File file, long maxBytes, int maxFiles) {
+    Preconditions.checkArgument(maxBytes > 0);
+    Preconditions.checkArgument(maxFiles >= 0);
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  @Override
+  public void write(List<String> lines) throws IOException {
+    if (writer == null) {
+      open();
+    }
+    for (String line : lines) {
+      writer.write(line);
+      writer.write(LogClientParameters.LINE_SEPARATOR);
+      // Close enough for rotation; most records are ASCII.
+      bytes += line.length() + LogClientParameters.LINE_SEPARATOR.length();
+      if (bytes >= maxBytes) {
+        rotate();
+      }
+    }
+    writer.flush();
+  }
+
+  private void open() throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory()) {
+      try {
+        if (POSIX) {
+          Files.createDirectories(parent.toPath(),
+              PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+        } else {
+          Files.createDirectories(parent.toPath());
+        }
+      } catch (IOException e) {
+        throw new IOException("Unable to create log directory: " + parent, e);
+      }
+    }
+    Path path = file.toPath();
+    Set<OpenOption> options = new HashSet<OpenOption>();
+    options.add(StandardOpenOption.CREATE);
+    options.add(StandardOpenOption.APPEND);
+    options.add(LinkOption.NOFOLLOW_LINKS);
+    FileAttribute<?>[] attributes = POSIX
+        ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS)}
+        : new FileAttribute<?>[0];
+    Writer opened = new BufferedWriter(new OutputStreamWriter(
+        Channels.newOutputStream(Files.newByteChannel(path, options, attributes)), UTF_8));
+    if (POSIX) {
+      // Only the owner may change the permissions, so this also refuses a file
+      // that someone else created first.
+      try {
+        Files.setPosixFilePermissions(path, FILE_PERMISSIONS);
+      } catch (IOException e) {
+        opened.close();
+        throw new IOException("Unable to restrict access to log file: " + file, e);
+      }
+    }
+    writer = opened;
+    bytes = file.length();
+  }
+
+  private void rotate() throws IOException {
+    writer.close();
+    writer = null;
+    if (maxFiles == 0) {
+      delete(file);
+    } else {
+      delete(rotated(maxFiles));
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        rename(rotated(i), rotated(i + 1));
+      }
+      rename(file, rotated(1));
+    }
+    open();
+  }
+
+  private File rotated(int generation) {
+    return new File(file.getPath() + "." + generation);
+  }
+
+  private static void delete(File target) throws IOException {
+    if (target.exists() && !target.delete()) {
+      throw new IOException("Unable to delete log file: " + target);
+    }
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (from.exists() && !from.renameTo(to)) {
+      throw new IOException("Unable to rename log file " + from + " to " + to);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.enterprise.supergsa.security.GsaAcl;
 import com.google.enterprise.supergsa.security.GsaAclEntry;
 import com.google.enterprise.supergsa.security.GsaEntry;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.TreeSet;
@@ -38,6 +39,11 @@ import java.util.TreeSet;
  * an associative structure such as a HashMap, keyed on their signatures, so
  * that there will be no more than one instance of an Acl in an equivalence
  * class.
+ * <p>
+ * When an Acl is added to a policy, it is compiled to sorted arrays of the
+ * ids of the principals it permits and denies, in that policy's
+ * {@link AclPrincipalIds.Table}; these are used to check it against a user's
+ * principals resolved in the same table.
  */
 public class Acl implements Comparable<Acl> {
 
@@ -45,6 +51,13 @@ public class Acl implements Comparable<Acl> {
   private final TreeSet<Ace> aces;
   private final String signature;
 
+  // The groups for each right, which may have members added after the Acl
+  // is built.
+  private final ImmutableList<Group> readGroups;
+  private final ImmutableList<Group> noneGroups;
+  // The Aces compiled against the id table they were last compiled for.
+  private volatile Compiled compiled;
+
   private static final Acl EMPTY_ACL = new Acl(new TreeSet<Ace>());
 
   /**
@@ -150,9 +163,75 @@ public class Acl implements Comparable<Acl> {
     return sb.toString();
   }
 
+  /**
+   * The sorted principal ids for each right, in one id table.
+   */
+  private static final class Compiled {
+    final AclPrincipalIds.Table table;
+    final int[] readIds;
+    final int[] noneIds;
+    // The highest of the ids, or -1 if there are none.
+    final int maxId;
+
+    Compiled(AclPrincipalIds.Table table, int[] readIds, int[] noneIds) {
+      this.table = table;
+      this.readIds = readIds;
+      this.noneIds = noneIds;
+      this.maxId = Math.max(
+          (readIds.length == 0) ? -1 : readIds[readIds.length - 1],
+          (noneIds.length == 0) ? -1 : noneIds[noneIds.length - 1]);
+    }
+  }
+
   private Acl(final TreeSet<Ace> aces) {
     this.signature = createSignature(aces);
     this.aces = aces;
+    ImmutableList.Builder<Group> readGroupsBuilder = ImmutableList.builder();
+    ImmutableList.Builder<Group> noneGroupsBuilder = ImmutableList.builder();
+    for (Ace ace : aces) {
+      Principal principal = ace.getPrincipal();
+      if (principal instanceof Group) {
+        if (ace.getRight() == Right.READ) {
+          readGroupsBuilder.add((Group) principal);
+        } else {
+          noneGroupsBuilder.add((Group) principal);
+        }
+      }
+    }
+    this.readGroups = readGroupsBuilder.build();
+    this.noneGroups = noneGroupsBuilder.build();
+  }
+
+  /**
+   * Compiles this Acl's Aces to principal ids in a table, interning any
+   * principals the table doesn't have yet.  An Acl held by several tables
+   * only keeps the ids from the last one; checks against the others fall
+   * back to comparing Aces.
+   *
+   * @param table the id table of the policy that holds this Acl
+   */
+  void compile(AclPrincipalIds.Table table) {
+    Compiled current = compiled;
+    if (current != null && current.table == table) {
+      return;
+    }
+    int[] read = new int[aces.size()];
+    int[] none = new int[aces.size()];
+    int nRead = 0;
+    int nNone = 0;
+    for (Ace ace : aces) {
+      int id = table.intern(ace.getPrincipal().getAclPrincipal());
+      if (ace.getRight() == Right.READ) {
+        read[nRead++] = id;
+      } else {
+        none[nNone++] = id;
+      }
+    }
+    read = Arrays.copyOf(read, nRead);
+    none = Arrays.copyOf(none, nNone);
+    Arrays.sort(read);
+    Arrays.sort(none);
+    compiled = new Compiled(table, read, none);
   }
 
   /**
@@ -322,6 +401,54 @@ public class Acl implements Comparable<Acl> {
     return allowsRightToAnyAclPrincipal(aclPrincipals, Right.NONE);
   }
 
+  /**
+   * Test whether this Acl allows READ privilege to any of a user's resolved
+   * AclPrincipals.  This gives the same answer as
+   * {@link #allowsReadToAnyAclPrincipal} for the principals that were resolved.
+   *
+   * @param principalIds the resolved principals to test
+   * @return true if at least one principal has READ privilege
+   */
+  public boolean allowsReadToAny(AclPrincipalIds principalIds) {
+    return allowsRightToAny(principalIds, readGroups, Right.READ);
+  }
+
+  /**
+   * Test whether this Acl explicitly forbids READ privilege to any of a user's
+   * resolved AclPrincipals.  This gives the same answer as
+   * {@link #forbidsReadToAnyAclPrincipal} for the principals that were resolved.
+   *
+   * @param principalIds the resolved principals to test
+   * @return true if at least one principal is forbidden READ privilege
+   */
+  public boolean forbidsReadToAny(AclPrincipalIds principalIds) {
+    return allowsRightToAny(principalIds, noneGroups, Right.NONE);
+  }
+
+  private boolean allowsRightToAny(AclPrincipalIds principalIds,
+      ImmutableList<Group> groups, Right right) {
+    Compiled current = compiled;
+    if (current == null || !principalIds.isResolvedIn(current.table, current.maxId)) {
+      // The ids aren't comparable.
+      return allowsRightToAnyAclPrincipal(principalIds.getPrincipals(), right);
+    }
+    if (principalIds.containsAny((right == Right.READ) ? current.readIds : current.noneIds)) {
+      return true;
+    }
+    // A group also grants its right to its members.
+    for (Group group : groups) {
+      if (group.getDirectUserCount() == 0 && group.getDirectGroupCount() == 0) {
+        continue;
+      }
+      for (AclPrincipal principal : principalIds.getPrincipals()) {
+        if (group.contains(principal)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   private boolean allowsRight(AclPrincipal principal, Right right) {
     if (principal == null) {
       throw new IllegalArgumentException();
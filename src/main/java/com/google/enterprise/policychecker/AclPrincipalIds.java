@@ -0,0 +1,189 @@
+// Copyright 2007 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * AclPrincipalIds is a user's principals, resolved once per request to the
+ * integer ids that {@link Acl}s are compiled to, so that checking an Acl
+ * against them is an intersection of two sorted arrays rather than a
+ * comparison of every Ace with every principal.
+ * <p>
+ * Ids come from a {@link Table} that belongs to one generation of policy,
+ * such as a {@link UrlAclMap}, and is dropped with it.  Only Acls compiled
+ * against the table that the principals were resolved in, and only to ids
+ * that the table had assigned by then, use the ids; any other Acl is checked
+ * Ace by Ace.
+ */
+@Immutable
+public final class AclPrincipalIds {
+
+  // Once one array is this many times longer than the other, binary search
+  // the longer one rather than merging.
+  private static final int SEARCH_RATIO = 8;
+
+  /**
+   * The ids of the principals named by one generation of policy.  Ids are
+   * assigned in order, by one writer at a time, and never change or go away,
+   * so an Acl compiled against the table stays valid while it is changed.
+   * Principals can be resolved in a table while ids are being assigned.
+   */
+  @ThreadSafe
+  public static final class Table {
+    private final Map<AclPrincipal, Integer> ids = new ConcurrentHashMap<AclPrincipal, Integer>();
+    // The number of ids assigned; each is in ids before it is counted here.
+    private volatile int size;
+
+    /**
+     * Returns the id of a principal, assigning it a new one if need be.  The
+     * caller must keep other threads from assigning ids at the same time.
+     */
+    int intern(AclPrincipal principal) {
+      Integer id = ids.get(principal);
+      if (id == null) {
+        id = size;
+        ids.put(principal, id);
+        size = id + 1;
+      }
+      return id;
+    }
+
+    /**
+     * Returns the number of principals that have ids.
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Resolves a list of principals to their ids in this table.  Principals
+     * that no Acl in this table's generation names get no id.
+     *
+     * @param principals the principals of the user being authorized
+     * @return the resolved principals
+     */
+    public AclPrincipalIds resolve(List<AclPrincipal> principals) {
+      Preconditions.checkNotNull(principals);
+      // Ids assigned after this may belong to these principals, so Acls
+      // compiled to them can't be checked against the result.
+      int assigned = size;
+      int[] resolved = new int[principals.size()];
+      int n = 0;
+      for (AclPrincipal principal : principals) {
+        Integer id = ids.get(principal);
+        if (id != null && id < assigned) {
+          resolved[n++] = id;
+        }
+      }
+      resolved = Arrays.copyOf(resolved, n);
+      Arrays.sort(resolved);
+      return new AclPrincipalIds(this, assigned, ImmutableList.copyOf(principals), resolved);
+    }
+  }
+
+  @Nullable private final Table table;
+  // The number of ids the table had assigned when these were resolved.
+  private final int assigned;
+  private final ImmutableList<AclPrincipal> principals;
+  private final int[] ids;
+
+  private AclPrincipalIds(@Nullable Table table, int assigned,
+      ImmutableList<AclPrincipal> principals, int[] ids) {
+    this.table = table;
+    this.assigned = assigned;
+    this.principals = principals;
+    this.ids = ids;
+  }
+
+  /**
+   * Wraps a list of principals without resolving them in any table, so that
+   * every Acl is checked against them Ace by Ace.
+   *
+   * @param principals the principals of the user being authorized
+   * @return the unresolved principals
+   */
+  public static AclPrincipalIds resolve(List<AclPrincipal> principals) {
+    Preconditions.checkNotNull(principals);
+    return new AclPrincipalIds(null, 0, ImmutableList.copyOf(principals), new int[0]);
+  }
+
+  /**
+   * Returns the principals that were resolved.
+   */
+  public ImmutableList<AclPrincipal> getPrincipals() {
+    return principals;
+  }
+
+  /**
+   * Returns true if these principals were resolved in the given table once
+   * it had assigned the given id, so that any of them with that id or a lower
+   * one is in this set.
+   */
+  boolean isResolvedIn(Table table, int id) {
+    return this.table != null && this.table == table && id < assigned;
+  }
+
+  /**
+   * Returns true if any of the given sorted ids is one of these principals.
+   */
+  boolean containsAny(int[] sortedIds) {
+    int[] small = sortedIds;
+    int[] large = ids;
+    if (small.length > large.length) {
+      small = ids;
+      large = sortedIds;
+    }
+    if (small.length == 0) {
+      return false;
+    }
+    if (small.length * SEARCH_RATIO < large.length) {
+      for (int id : small) {
+        if (Arrays.binarySearch(large, id) >= 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+    int i = 0;
+    int j = 0;
+    while (i < small.length && j < large.length) {
+      if (small[i] < large[j]) {
+        i++;
+      } else if (small[i] > large[j]) {
+        j++;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return principals.toString();
+  }
+}
@@ -57,20 +57,23 @@ public class AclUtil {
     if (acl == null  || aclPrincipals == null) {
       return AuthzStatus.INDETERMINATE;
     }
+    return authorize(acl, AclPrincipalIds.resolve(aclPrincipals));
+  }
+
+  /**
+   * Authorizes a user's principals, resolved once for all the Acls they are
+   * checked against.
+   */
+  public static AuthzStatus authorize(Acl acl, AclPrincipalIds principalIds) {
+    if (acl == null  || principalIds == null) {
+      return AuthzStatus.INDETERMINATE;
+    }
     // N.B.: DENY trumps PERMIT.
-    return (allowsRead(acl, aclPrincipals) && !forbidsRead(acl, aclPrincipals))
+    return (!acl.forbidsReadToAny(principalIds) && acl.allowsReadToAny(principalIds))
         ? AuthzStatus.PERMIT
         : AuthzStatus.DENY;
   }
 
-  private static boolean forbidsRead(Acl acl, List<AclPrincipal> principals) {
-    return acl.forbidsReadToAnyAclPrincipal(principals);
-  }
-
-  private static boolean allowsRead(Acl acl, List<AclPrincipal> principals) {
-    return acl.allowsReadToAnyAclPrincipal(principals);
-  }
-
   public static AclPrincipal authnPrincipalToAclPrincipal(AuthnPrincipal authnPrincipal) {
     return buildAclPrincipal(AclPrincipal.SCOPE.USER, authnPrincipal.getName(),
         authnPrincipal.getNamespace(), authnPrincipal.getDomain(),
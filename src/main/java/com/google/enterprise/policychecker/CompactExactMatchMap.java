@@ -23,7 +23,9 @@ import java.util.Map.Entry;
 
 public class CompactExactMatchMap<V> implements Map<String, Entry<String, V>> {
 
-  private final Map<String, V> internalMap = new MDUrlMap<V>();
+  // Keeps only the MD5 hash of each path, which is what makes this map
+  // compact; the default key hash would also keep every path.
+  private final Map<String, V> internalMap = new MDUrlMap<V>(MDUrlMap.KeyHash.DIGEST);
 
   private V clobberEntry(Entry<String, V> e) {
     return e.getValue();
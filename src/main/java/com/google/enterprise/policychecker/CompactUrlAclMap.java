@@ -15,28 +15,17 @@
 package com.google.enterprise.policychecker;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.labs.matcher.UrlMapping;
 import com.google.enterprise.supergsa.security.PolicyAcl;
 
 public class CompactUrlAclMap extends UrlAclMap {
 
   public CompactUrlAclMap() {
-    super(new Group("everyone"),
-        new UrlMapping<Acl>(new CompactUrlMapperCollectionFactory<Acl>()), null);
+    super(new Group("everyone"), false);
   }
 
   @Override
   public void put(String patternString, Acl acl) {
-    Acl oldAcl = mapping.getByPattern(patternString);
-    if (oldAcl == acl) {
-      return;
-    }
-    mapping.put(patternString, acl);
-  }
-
-  @Override
-  public Acl getAclForPattern(String pattern) {
-    return mapping.getByPattern(pattern);
+    putMapping(patternString, acl);
   }
 
   @Override
@@ -46,7 +35,7 @@ public class CompactUrlAclMap extends UrlAclMap {
 
   @Override
   public boolean removePattern(String pattern) {
-    mapping.remove(pattern);
+    super.removePattern(pattern);
     return true;
   }
 }
@@ -0,0 +1,322 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable hash map which is changed by making a new map that shares all
+ * but the changed path with the old one (a hash array mapped trie).  Adding or
+ * removing a key copies at most one small node per level, so a change costs
+ * O(log n) time and space however large the map is.
+ * <p>
+ * Keys and values may not be null.
+ */
+@Immutable
+final class HashTrie<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private static final HashTrie<Object, Object> EMPTY = new HashTrie<Object, Object>(null, 0);
+
+  /**
+   * A node of the trie.  Below 32 bits of hash, a node holds a key and value
+   * for each bit of dataMap, in order, followed by a child node for each bit
+   * of nodeMap, in reverse order.  At 32 bits the keys' hashes are all the
+   * same, and a node just holds their keys and values.
+   */
+  private static final class Node {
+    final int dataMap;
+    final int nodeMap;
+    final Object[] slots;
+
+    Node(int dataMap, int nodeMap, Object[] slots) {
+      this.dataMap = dataMap;
+      this.nodeMap = nodeMap;
+      this.slots = slots;
+    }
+
+    int dataIndex(int bit) {
+      return 2 * Integer.bitCount(dataMap & (bit - 1));
+    }
+
+    int nodeIndex(int bit) {
+      return slots.length - 1 - Integer.bitCount(nodeMap & (bit - 1));
+    }
+
+    boolean isSingleEntry() {
+      return nodeMap == 0 && slots.length == 2;
+    }
+  }
+
+  private final Node root;
+  private final int size;
+
+  private HashTrie(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns the empty map.
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> HashTrie<K, V> of() {
+    return (HashTrie<K, V>) EMPTY;
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the value of a key, or null if it has none.
+   */
+  @SuppressWarnings("unchecked")
+  V get(Object key) {
+    Node node = root;
+    int hash = hash(key);
+    int shift = 0;
+    while (node != null) {
+      if (shift >= Integer.SIZE) {
+        for (int i = 0; i < node.slots.length; i += 2) {
+          if (key.equals(node.slots[i])) {
+            return (V) node.slots[i + 1];
+          }
+        }
+        return null;
+      }
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((node.dataMap & bit) != 0) {
+        int i = node.dataIndex(bit);
+        return key.equals(node.slots[i]) ? (V) node.slots[i + 1] : null;
+      }
+      if ((node.nodeMap & bit) == 0) {
+        return null;
+      }
+      node = (Node) node.slots[node.nodeIndex(bit)];
+      shift += BITS;
+    }
+    return null;
+  }
+
+  /**
+   * Returns a map with a key mapped to a value, which is this map if the key
+   * is already mapped to that value.
+   */
+  HashTrie<K, V> plus(K key, V value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    int[] added = new int[1];
+    Node newRoot = (root == null)
+        ? new Node(1 << (hash(key) & MASK), 0, new Object[] {key, value})
+        : put(root, key, value, hash(key), 0, added);
+    if (root == null) {
+      added[0] = 1;
+    }
+    return (newRoot == root) ? this : new HashTrie<K, V>(newRoot, size + added[0]);
+  }
+
+  private static Node put(Node node, Object key, Object value, int hash, int shift,
+      int[] added) {
+    if (shift >= Integer.SIZE) {
+      for (int i = 0; i < node.slots.length; i += 2) {
+        if (key.equals(node.slots[i])) {
+          return (node.slots[i + 1] == value) ? node : withSlot(node, i + 1, value);
+        }
+      }
+      added[0] = 1;
+      Object[] slots = new Object[node.slots.length + 2];
+      System.arraycopy(node.slots, 0, slots, 0, node.slots.length);
+      slots[node.slots.length] = key;
+      slots[node.slots.length + 1] = value;
+      return new Node(0, 0, slots);
+    }
+    int bit = 1 << ((hash >>> shift) & MASK);
+    if ((node.dataMap & bit) != 0) {
+      int i = node.dataIndex(bit);
+      Object oldKey = node.slots[i];
+      if (key.equals(oldKey)) {
+        return (node.slots[i + 1] == value) ? node : withSlot(node, i + 1, value);
+      }
+      // Push both entries down to a new child.
+      added[0] = 1;
+      Node child = merge(oldKey, node.slots[i + 1], hash(oldKey), key, value, hash,
+          shift + BITS);
+      Object[] slots = new Object[node.slots.length - 1];
+      int j = node.nodeIndex(bit) - 1;
+      System.arraycopy(node.slots, 0, slots, 0, i);
+      System.arraycopy(node.slots, i + 2, slots, i, j - i);
+      slots[j] = child;
+      System.arraycopy(node.slots, j + 2, slots, j + 1, node.slots.length - j - 2);
+      return new Node(node.dataMap ^ bit, node.nodeMap | bit, slots);
+    }
+    if ((node.nodeMap & bit) != 0) {
+      int i = node.nodeIndex(bit);
+      Node child = (Node) node.slots[i];
+      Node newChild = put(child, key, value, hash, shift + BITS, added);
+      return (newChild == child) ? node : withSlot(node, i, newChild);
+    }
+    added[0] = 1;
+    int i = node.dataIndex(bit);
+    Object[] slots = new Object[node.slots.length + 2];
+    System.arraycopy(node.slots, 0, slots, 0, i);
+    slots[i] = key;
+    slots[i + 1] = value;
+    System.arraycopy(node.slots, i, slots, i + 2, node.slots.length - i);
+    return new Node(node.dataMap | bit, node.nodeMap, slots);
+  }
+
+  private static Node merge(Object key0, Object value0, int hash0, Object key1, Object value1,
+      int hash1, int shift) {
+    if (shift >= Integer.SIZE) {
+      return new Node(0, 0, new Object[] {key0, value0, key1, value1});
+    }
+    int bit0 = 1 << ((hash0 >>> shift) & MASK);
+    int bit1 = 1 << ((hash1 >>> shift) & MASK);
+    if (bit0 == bit1) {
+      return new Node(0, bit0,
+          new Object[] {merge(key0, value0, hash0, key1, value1, hash1, shift + BITS)});
+    }
+    return new Node(bit0 | bit1, 0, (Integer.compareUnsigned(bit0, bit1) < 0)
+        ? new Object[] {key0, value0, key1, value1}
+        : new Object[] {key1, value1, key0, value0});
+  }
+
+  private static Node withSlot(Node node, int i, Object value) {
+    Object[] slots = node.slots.clone();
+    slots[i] = value;
+    return new Node(node.dataMap, node.nodeMap, slots);
+  }
+
+  /**
+   * Returns a map without a key, which is this map if the key isn't mapped.
+   */
+  HashTrie<K, V> minus(Object key) {
+    if (root == null) {
+      return this;
+    }
+    Node newRoot = remove(root, key, hash(key), 0);
+    if (newRoot == root) {
+      return this;
+    }
+    return (newRoot == null) ? HashTrie.<K, V>of() : new HashTrie<K, V>(newRoot, size - 1);
+  }
+
+  /**
+   * Returns a node without a key, the node itself if it doesn't have the key,
+   * or null if the key was its only entry.
+   */
+  private static Node remove(Node node, Object key, int hash, int shift) {
+    if (shift >= Integer.SIZE) {
+      for (int i = 0; i < node.slots.length; i += 2) {
+        if (key.equals(node.slots[i])) {
+          if (node.slots.length == 2) {
+            return null;
+          }
+          Object[] slots = new Object[node.slots.length - 2];
+          System.arraycopy(node.slots, 0, slots, 0, i);
+          System.arraycopy(node.slots, i + 2, slots, i, node.slots.length - i - 2);
+          return new Node(0, 0, slots);
+        }
+      }
+      return node;
+    }
+    int bit = 1 << ((hash >>> shift) & MASK);
+    if ((node.dataMap & bit) != 0) {
+      int i = node.dataIndex(bit);
+      if (!key.equals(node.slots[i])) {
+        return node;
+      }
+      if (node.isSingleEntry()) {
+        return null;
+      }
+      Object[] slots = new Object[node.slots.length - 2];
+      System.arraycopy(node.slots, 0, slots, 0, i);
+      System.arraycopy(node.slots, i + 2, slots, i, node.slots.length - i - 2);
+      return new Node(node.dataMap ^ bit, node.nodeMap, slots);
+    }
+    if ((node.nodeMap & bit) == 0) {
+      return node;
+    }
+    int i = node.nodeIndex(bit);
+    Node child = (Node) node.slots[i];
+    Node newChild = remove(child, key, hash, shift + BITS);
+    if (newChild == child) {
+      return node;
+    }
+    if (newChild == null) {
+      if (node.dataMap == 0 && node.slots.length == 1) {
+        return null;
+      }
+      Object[] slots = new Object[node.slots.length - 1];
+      System.arraycopy(node.slots, 0, slots, 0, i);
+      System.arraycopy(node.slots, i + 1, slots, i, node.slots.length - i - 1);
+      return new Node(node.dataMap, node.nodeMap ^ bit, slots);
+    }
+    if (newChild.isSingleEntry()) {
+      // Pull the child's last entry up into this node.
+      if (node.dataMap == 0 && node.slots.length == 1) {
+        return new Node(bit, 0, newChild.slots);
+      }
+      int j = node.dataIndex(bit);
+      Object[] slots = new Object[node.slots.length + 1];
+      System.arraycopy(node.slots, 0, slots, 0, j);
+      slots[j] = newChild.slots[0];
+      slots[j + 1] = newChild.slots[1];
+      System.arraycopy(node.slots, j, slots, j + 2, i - j);
+      System.arraycopy(node.slots, i + 1, slots, i + 2, node.slots.length - i - 1);
+      return new Node(node.dataMap | bit, node.nodeMap ^ bit, slots);
+    }
+    return withSlot(node, i, newChild);
+  }
+
+  /**
+   * Returns the entries of this map, in no particular order.
+   */
+  List<Map.Entry<K, V>> entries() {
+    List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(size);
+    if (root != null) {
+      addEntries(root, entries);
+    }
+    return entries;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void addEntries(Node node, List<Map.Entry<K, V>> entries) {
+    int nData = 2 * Integer.bitCount(node.dataMap);
+    if (node.dataMap == 0 && node.nodeMap == 0) {
+      nData = node.slots.length;
+    }
+    for (int i = 0; i < nData; i += 2) {
+      entries.add(Maps.immutableEntry((K) node.slots[i], (V) node.slots[i + 1]));
+    }
+    for (int i = nData; i < node.slots.length; i++) {
+      addEntries((Node) node.slots[i], entries);
+    }
+  }
+}
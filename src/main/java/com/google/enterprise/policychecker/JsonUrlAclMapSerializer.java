@@ -30,6 +30,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * UrlAclMap file json based serializer.
@@ -78,10 +80,13 @@ public class JsonUrlAclMapSerializer extends AbstractUrlAclMapSerializer {
     try (Reader reader = new BufferedReader(new InputStreamReader(stream, UTF_8))) {
       JsonFormat.parser().merge(reader, builder);
       PolicyAcls policyAcls = builder.build();
-      UrlAclMap aclMap = new UrlAclMap();
+      // Loaded with one putAll, which builds the map's lookup structures once.
+      Map<String, Acl> patterns = new LinkedHashMap<String, Acl>();
       for (PolicyAcl acl : policyAcls.getAclsList()) {
-        aclMap.addPattern(acl.getPattern(), Acl.fromGsaAcl(acl.getAcl(), group));
+        patterns.put(acl.getPattern(), Acl.fromGsaAcl(acl.getAcl(), group));
       }
+      UrlAclMap aclMap = new UrlAclMap();
+      aclMap.putAll(patterns);
       return aclMap;
     }
   }
@@ -14,117 +14,448 @@
 
 package com.google.enterprise.policychecker;
 
-import java.io.UnsupportedEncodingException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
- * An implementation of {@code Map} that uses MD5.
+ * An implementation of {@code Map} that keys its values by a 128-bit hash
+ * of each URL rather than by the URL itself.
+ * <p>
+ * The hashes are kept in an open-addressing table of primitive longs, so an
+ * entry that keeps only its hash costs a few dozen bytes, and a lookup
+ * allocates nothing (except with {@link KeyHash#DIGEST}).  With
+ * {@link KeyHash#MURMUR3_VERIFIED} each entry also keeps its URL, which
+ * usually costs several times as much as the rest of the entry.  Lookups take no locks and may run at the same
+ * time as each other and as changes; changes are serialized.
  */
+@ThreadSafe
 public class MDUrlMap<V> implements Map<String, V> {
-  private final String algorithmName;
-  private final Map<MD5Key, V> internalMap;
+  private static final Logger logger = Logger.getLogger(MDUrlMap.class.getName());
 
-  public MDUrlMap() {
-    this("MD5");
+  /** How URLs are hashed to keys. */
+  public enum KeyHash {
+    /**
+     * 128-bit Murmur3 (x64) of the URL's UTF-16 code units, with nothing
+     * else kept.  Murmur3 is not a cryptographic hash: URLs can be crafted
+     * whose hashes collide, and a lookup of one then finds the other's
+     * value.  Use only where the URLs are trusted.
+     */
+    MURMUR3,
+    /**
+     * As {@link #MURMUR3}, but each URL is also kept and compared, so that
+     * URLs whose hashes collide are still told apart.  The default.  Keeping
+     * the URLs costs their full size: in {@code MDUrlMapBenchmark}, whose
+     * URLs are about 50 characters long, a map retains 178 bytes per URL,
+     * against 33 bytes for the modes that keep only hashes.
+     */
+    MURMUR3_VERIFIED,
+    /**
+     * The first 128 bits of a message digest (MD5 unless another algorithm is
+     * named) of the URL's UTF-8 bytes, from a digest kept for each thread.
+     */
+    DIGEST
   }
 
-  public MDUrlMap(String algorithmName) {
-    this.algorithmName = algorithmName;
-    this.internalMap = new ConcurrentHashMap<MD5Key, V>();
-    try {
-      // validate for fail fast
-      MessageDigest md = MessageDigest.getInstance(algorithmName);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException(e);
+  private static final KeyHash DEFAULT_KEY_HASH = getDefaultKeyHash();
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAX_CAPACITY = 1 << 29;
+  // The most slots, in tenths of the table, that may be in use.
+  private static final int MAX_LOAD_TENTHS = 7;
+  // Marks a slot whose entry was removed; lookups probe past it.
+  private static final Object REMOVED = new Object();
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final KeyHash keyHash;
+  private final ThreadLocal<MessageDigest> digests;
+
+  private volatile Table table;
+  private volatile int size;
+  // Slots holding entries or REMOVED.
+  @GuardedBy("this") private int used;
+
+  /**
+   * Slots of key hashes, URLs and values.  A slot is empty until its value is
+   * set; its hash and URL are written first, and the value is read first, so
+   * a lookup that sees a value sees the key it belongs to.
+   */
+  private static final class Table {
+    // Two longs per slot, the high and the low halves of the hash.
+    final long[] hashes;
+    // The URL in each slot, or null if they aren't kept.
+    final String[] urls;
+    final AtomicReferenceArray<Object> values;
+    final int mask;
+
+    Table(int capacity, boolean keepUrls) {
+      hashes = new long[2 * capacity];
+      urls = keepUrls ? new String[capacity] : null;
+      values = new AtomicReferenceArray<Object>(capacity);
+      mask = capacity - 1;
+    }
+
+    int capacity() {
+      return mask + 1;
     }
   }
 
+  /** A URL's hash. */
+  static final class Key {
+    final long hi;
+    final long lo;
+
+    Key(long hi, long lo) {
+      this.hi = hi;
+      this.lo = lo;
+    }
 
-  private static class MD5Key {
+    @Override
+    public int hashCode() {
+      return (int) lo;
+    }
 
-    private final byte[] digest;
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hi == other.hi && lo == other.lo;
+    }
+  }
 
-    public MD5Key(String s, String algorithmName) {
-      MessageDigest md;
+  /**
+   * Makes a map whose keys are hashed as set by the system property
+   * {@code gsa.urlMapKeyHash} ({@code murmur3_verified}, the default,
+   * {@code digest} or {@code murmur3}, which doesn't tell apart URLs whose
+   * hashes collide).
+   */
+  public MDUrlMap() {
+    this(DEFAULT_KEY_HASH, "MD5");
+  }
+
+  /**
+   * Makes a map whose keys are digests.
+   *
+   * @param algorithmName the name of the digest algorithm
+   */
+  public MDUrlMap(String algorithmName) {
+    this(KeyHash.DIGEST, algorithmName);
+  }
+
+  /**
+   * Makes a map whose keys are hashed the given way.
+   */
+  public MDUrlMap(KeyHash keyHash) {
+    this(keyHash, "MD5");
+  }
+
+  private MDUrlMap(KeyHash keyHash, final String algorithmName) {
+    this.keyHash = Preconditions.checkNotNull(keyHash);
+    if (keyHash == KeyHash.DIGEST) {
       try {
-        md = MessageDigest.getInstance(algorithmName);
+        // validate for fail fast
+        MessageDigest.getInstance(algorithmName);
       } catch (NoSuchAlgorithmException e) {
         throw new IllegalStateException(e);
       }
-      byte[] bytes;
+      digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+          try {
+            return MessageDigest.getInstance(algorithmName);
+          } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+    } else {
+      digests = null;
+    }
+    table = newTable(INITIAL_CAPACITY);
+  }
+
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
       try {
-        bytes = s.getBytes("UTF-8");
-      } catch (UnsupportedEncodingException e) {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
         throw new IllegalStateException(e);
       }
-      md.update(bytes);
-      digest = md.digest();
     }
+  };
 
-    @Override
-    public int hashCode() {
-      final int prime = 31;
-      int result = 1;
-      result = prime * result + Arrays.hashCode(digest);
-      return result;
+  private static KeyHash getDefaultKeyHash() {
+    String name = System.getProperty("gsa.urlMapKeyHash", KeyHash.MURMUR3_VERIFIED.name());
+    try {
+      return KeyHash.valueOf(name.toUpperCase(Locale.US));
+    } catch (IllegalArgumentException e) {
+      logger.warning("Unknown URL key hash " + name + "; using " + KeyHash.MURMUR3_VERIFIED);
+      return KeyHash.MURMUR3_VERIFIED;
     }
+  }
 
-    @Override
-    public boolean equals(Object obj) {
-      if (this == obj) return true;
-      if (obj == null) return false;
-      if (getClass() != obj.getClass()) return false;
-      MD5Key other = (MD5Key) obj;
-      if (!Arrays.equals(digest, other.digest)) return false;
-      return true;
+  /** @return How this map hashes URLs. */
+  public KeyHash getKeyHash() {
+    return keyHash;
+  }
+
+  private Table newTable(int capacity) {
+    return new Table(capacity, keyHash == KeyHash.MURMUR3_VERIFIED);
+  }
+
+  Key toHashedKey(String s) {
+    if (keyHash == KeyHash.DIGEST) {
+      MessageDigest md = digests.get();
+      byte[] digest = md.digest(s.getBytes(UTF_8));
+      return new Key(getLong(digest, 0), getLong(digest, 8));
     }
+    return murmur3(s);
   }
 
-  MD5Key toHashedKey(String s) {
-    return new MD5Key(s, algorithmName);
+  /**
+   * Returns the first 128 bits of the MD5 digest of a string's UTF-8 bytes.
+   */
+  static Key md5(String s) {
+    byte[] digest = MD5.get().digest(s.getBytes(UTF_8));
+    return new Key(getLong(digest, 0), getLong(digest, 8));
   }
 
-  public void clear() {
-    internalMap.clear();
+  private static long getLong(byte[] bytes, int offset) {
+    long result = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      result = (result << 8) | (bytes[i] & 0xff);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the 128-bit Murmur3 hash of the UTF-16LE encoding of a string,
+   * reading its chars directly.
+   */
+  static Key murmur3(String s) {
+    int length = s.length();
+    long h1 = 0;
+    long h2 = 0;
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      h1 ^= mixK1(getChars(s, i, 4));
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(getChars(s, i + 4, 4));
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+    int rest = length - i;
+    if (rest > 4) {
+      h2 ^= mixK2(getChars(s, i + 4, rest - 4));
+      h1 ^= mixK1(getChars(s, i, 4));
+    } else if (rest > 0) {
+      h1 ^= mixK1(getChars(s, i, rest));
+    }
+    long bytes = 2L * length;
+    h1 ^= bytes;
+    h2 ^= bytes;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+    return new Key(h1, h2);
+  }
+
+  // Packs n (at most 4) chars, starting at i, little-endian.
+  private static long getChars(String s, int i, int n) {
+    long result = 0;
+    for (int j = n - 1; j >= 0; j--) {
+      result = (result << 16) | s.charAt(i + j);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    return Long.rotateLeft(k1 * C1, 31) * C2;
+  }
+
+  private static long mixK2(long k2) {
+    return Long.rotateLeft(k2 * C2, 33) * C1;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static int firstSlot(Key key, Table t) {
+    return (int) key.lo & t.mask;
+  }
+
+  private static boolean matches(Table t, int slot, Key key, String s) {
+    return t.hashes[2 * slot] == key.hi
+        && t.hashes[2 * slot + 1] == key.lo
+        && (t.urls == null || s.equals(t.urls[slot]));
+  }
+
+  /**
+   * Returns the slot holding a URL's entry, or -1.
+   */
+  private static int find(Table t, Key key, String s) {
+    int slot = firstSlot(key, t);
+    while (true) {
+      Object value = t.values.get(slot);
+      if (value == null) {
+        return -1;
+      }
+      if (value != REMOVED && matches(t, slot, key, s)) {
+        return slot;
+      }
+      slot = (slot + 1) & t.mask;
+    }
+  }
+
+  public synchronized void clear() {
+    table = newTable(INITIAL_CAPACITY);
+    size = 0;
+    used = 0;
   }
 
   public boolean containsKey(Object key) {
-    String s = String.class.cast(key);
-    MD5Key hashedKey = toHashedKey(s);
-    return internalMap.containsKey(hashedKey);
+    return get(key) != null;
   }
 
   public boolean containsValue(Object value) {
-    return internalMap.containsValue(value);
+    return values().contains(value);
   }
 
   public Set<Entry<String, V>> entrySet() {
     throw new UnsupportedOperationException();
   }
 
+  @SuppressWarnings("unchecked")
   public V get(Object key) {
     String s = String.class.cast(key);
-    MD5Key hashedKey = toHashedKey(s);
-    return internalMap.get(hashedKey);
+    Key hashedKey = toHashedKey(s);
+    Table t = table;
+    int slot = find(t, hashedKey, s);
+    if (slot < 0) {
+      return null;
+    }
+    Object value = t.values.get(slot);
+    return (value == REMOVED) ? null : (V) value;
   }
 
   public boolean isEmpty() {
-    return internalMap.isEmpty();
+    return size == 0;
   }
 
   public Set<String> keySet() {
     throw new UnsupportedOperationException();
   }
 
-  public V put(String s, V value) {
-    MD5Key hashedKey = toHashedKey(s);
-    return internalMap.put(hashedKey, value);
+  @SuppressWarnings("unchecked")
+  public synchronized V put(String s, V value) {
+    Preconditions.checkNotNull(value);
+    Key hashedKey = toHashedKey(s);
+    Table t = table;
+    int slot = firstSlot(hashedKey, t);
+    int removedSlot = -1;
+    while (true) {
+      Object old = t.values.get(slot);
+      if (old == null) {
+        break;
+      }
+      if (old == REMOVED) {
+        if (removedSlot < 0) {
+          removedSlot = slot;
+        }
+      } else if (matches(t, slot, hashedKey, s)) {
+        t.values.set(slot, value);
+        return (V) old;
+      }
+      slot = (slot + 1) & t.mask;
+    }
+    if (removedSlot >= 0) {
+      slot = removedSlot;
+    } else {
+      if ((long) (used + 1) * 10 > (long) t.capacity() * MAX_LOAD_TENTHS) {
+        t = rehash();
+        slot = firstSlot(hashedKey, t);
+        while (t.values.get(slot) != null) {
+          slot = (slot + 1) & t.mask;
+        }
+      }
+      used++;
+    }
+    store(t, slot, hashedKey, s, value);
+    size++;
+    return null;
+  }
+
+  private static void store(Table t, int slot, Key key, String s, Object value) {
+    t.hashes[2 * slot] = key.hi;
+    t.hashes[2 * slot + 1] = key.lo;
+    if (t.urls != null) {
+      t.urls[slot] = s;
+    }
+    t.values.set(slot, value);
+  }
+
+  /**
+   * Copies the entries to a new table, twice the size unless most of the
+   * used slots are removed entries, and publishes it.
+   */
+  @GuardedBy("this")
+  private Table rehash() {
+    Table old = table;
+    int capacity = old.capacity();
+    if (size * 2 >= used) {
+      if (capacity >= MAX_CAPACITY) {
+        throw new IllegalStateException("Too many URLs: " + size);
+      }
+      capacity *= 2;
+    }
+    Table t = newTable(capacity);
+    for (int i = 0; i < old.capacity(); i++) {
+      Object value = old.values.get(i);
+      if (value == null || value == REMOVED) {
+        continue;
+      }
+      Key key = new Key(old.hashes[2 * i], old.hashes[2 * i + 1]);
+      int slot = firstSlot(key, t);
+      while (t.values.get(slot) != null) {
+        slot = (slot + 1) & t.mask;
+      }
+      store(t, slot, key, (old.urls == null) ? null : old.urls[i], value);
+    }
+    table = t;
+    used = size;
+    return t;
   }
 
   public void putAll(Map<? extends String, ? extends V> t) {
@@ -135,18 +466,38 @@ public class MDUrlMap<V> implements Map<String, V> {
     }
   }
 
-  public V remove(Object key) {
+  @SuppressWarnings("unchecked")
+  public synchronized V remove(Object key) {
     String s = String.class.cast(key);
-    MD5Key hashedKey = toHashedKey(s);
-    return internalMap.remove(hashedKey);
+    Table t = table;
+    int slot = find(t, toHashedKey(s), s);
+    if (slot < 0) {
+      return null;
+    }
+    Object old = t.values.get(slot);
+    t.values.set(slot, REMOVED);
+    if (t.urls != null) {
+      t.urls[slot] = null;
+    }
+    size--;
+    return (V) old;
   }
 
   public int size() {
-    return internalMap.size();
+    return size;
   }
 
+  @SuppressWarnings("unchecked")
   public Collection<V> values() {
-    return internalMap.values();
+    Table t = table;
+    List<V> values = Lists.newArrayListWithCapacity(size);
+    for (int i = 0; i < t.capacity(); i++) {
+      Object value = t.values.get(i);
+      if (value != null && value != REMOVED) {
+        values.add((V) value);
+      }
+    }
+    return Collections.unmodifiableList(values);
   }
 
 }
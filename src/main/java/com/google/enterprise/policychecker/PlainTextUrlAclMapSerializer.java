@@ -24,7 +24,9 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.logging.Logger;
 
@@ -79,13 +81,16 @@ public class PlainTextUrlAclMapSerializer extends AbstractFileSerializer<UrlAclM
 
   private void addUrlMappingsFromPlainText(UrlAclMap urlAclMap,
       BufferedReader bufferedReader) {
+    // Loaded with one putAll, which builds the map's lookup structures once.
+    Map<String, Acl> patterns = new LinkedHashMap<String, Acl>();
     String line = null;
     while ((line = Utils.readLine(bufferedReader)) != null) {
-      addSingleUrlMappingFromPlainText(urlAclMap, line);
+      addSingleUrlMappingFromPlainText(patterns, line);
     }
+    urlAclMap.putAll(patterns);
   }
 
-  private void addSingleUrlMappingFromPlainText(UrlAclMap urlAclMap, String s) {
+  private void addSingleUrlMappingFromPlainText(Map<String, Acl> patterns, String s) {
     Stack<String> tokens = Utils.splitOffUrl(s);
     if (tokens.isEmpty()) {
       throw new IllegalArgumentException("No URL in tokens");
@@ -96,6 +101,6 @@ public class PlainTextUrlAclMapSerializer extends AbstractFileSerializer<UrlAclM
     }
     String aclString = tokens.pop();
     Acl acl = aclSerializer.fromString(aclString);
-    urlAclMap.put(url, acl);
+    patterns.put(url, acl);
   }
 }
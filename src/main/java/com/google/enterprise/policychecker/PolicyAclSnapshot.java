@@ -0,0 +1,736 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.labs.matcher.AnalyzedUrl;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * PolicyAclSnapshot is a read-only set of policy ACLs served in place from a
+ * memory-mapped binary file, as written by {@link PolicyAclSnapshotWriter}.
+ * <p>
+ * Opening a snapshot maps the file, validates its header, and checks that
+ * every offset, index and count in its tables stays within the file, so that
+ * no lookup reads past a section; principals, ACLs and regexes are decoded
+ * only when a lookup needs them.  The file holds:
+ * <ul>
+ * <li> a table of the principals that the ACLs name, as serialized
+ * AclPrincipals, and a hash index from principal to id; </li>
+ * <li> the ACLs, each compiled to sorted arrays of the ids of the principals
+ * it permits and denies; </li>
+ * <li> an index of the URL patterns which gives the same best match as
+ * {@link UrlAclMap}.  Exact and prefix path patterns are found in a hash
+ * table keyed by a 128-bit hash of their domain, kind and path (see
+ * {@link MDUrlMap}), which also holds each path to compare on a match;
+ * domain, path regex and full-URL patterns are kept as strings and compiled
+ * when first used. </li>
+ * </ul>
+ * A snapshot holds no group memberships, so a group in an ACL only matches a
+ * principal naming that group, as in an ACL built without a groups database.
+ * <p>
+ * A mapped file must not change while it is in use: replace a snapshot by
+ * writing a new file and renaming it over the old one.
+ */
+@ThreadSafe
+public final class PolicyAclSnapshot implements Authorizer {
+
+  // The file starts with a fixed-size header, followed by the sections in
+  // order.  All numbers are little-endian.
+  static final byte[] MAGIC = {(byte) 0x89, 'P', 'A', 'C', 'L', '\r', '\n', 0x1a};
+  static final int VERSION = 2;
+  static final int HEADER_LENGTH = 256;
+
+  // Offsets of the header fields.
+  static final int VERSION_OFFSET = 8;
+  static final int HEADER_LENGTH_OFFSET = 12;
+  static final int FILE_LENGTH_OFFSET = 16;
+  static final int PRINCIPAL_COUNT_OFFSET = 24;
+  static final int ACL_COUNT_OFFSET = 28;
+  static final int DOMAIN_COUNT_OFFSET = 32;
+  static final int REGEX_COUNT_OFFSET = 36;
+  static final int FULL_URL_START_OFFSET = 40;
+  static final int PATTERN_COUNT_OFFSET = 44;
+  // The offset and length of each section, as two longs.
+  static final int SECTIONS_OFFSET = 48;
+  // The CRC32 of everything after the header.
+  static final int BODY_CRC_OFFSET = 240;
+  // The CRC32 of the header before this field.
+  static final int HEADER_CRC_OFFSET = 252;
+
+  /**
+   * The sections of a snapshot, in the order they appear in the file.
+   */
+  enum Section {
+    // UTF-8 strings and serialized AclPrincipals, referred to by offset.
+    STRINGS(1),
+    // For each principal: the offset and length of its serialized form.
+    PRINCIPALS(8),
+    // An open-addressing table of principal id + 1, or 0 for an empty slot,
+    // indexed by the murmur3_32 hash of the serialized principal.
+    PRINCIPAL_INDEX(4),
+    // For each ACL: the index of its first id in ACL_IDS, the number of
+    // principals it permits and the number it denies.
+    ACLS(12),
+    // The sorted ids an ACL permits, followed by the sorted ids it denies.
+    ACL_IDS(4),
+    // For each domain: the offset and length of its host regex, the index
+    // and number of its prefix lengths, and the index and number of its path
+    // regexes.
+    DOMAINS(24),
+    // For each domain, the distinct lengths of its prefix patterns, longest
+    // first.
+    PREFIX_LENGTHS(4),
+    // An open-addressing table of exact and prefix path patterns: the two
+    // longs of the path key, the offset and length of the path, and the ACL
+    // index + 1, or 0 for an empty slot.
+    PATHS(28),
+    // For each regex: the offset and length of the regex and its ACL index.
+    // Each domain's path regexes come first, in order, then the full-URL
+    // regexes, in order.
+    REGEXES(12);
+
+    final int recordSize;
+
+    Section(int recordSize) {
+      this.recordSize = recordSize;
+    }
+  }
+
+  // The kinds of path pattern in the PATHS table.
+  static final int EXACT = 0;
+  static final int PREFIX = 1;
+
+  private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+  private final File file;
+  private final int principalCount;
+  private final int aclCount;
+  private final int domainCount;
+  private final int regexCount;
+  private final int fullUrlStart;
+  private final int patternCount;
+  private final long bodyCrc;
+  private final ByteBuffer[] sections;
+
+  // Compiled and decoded on first use.
+  private final AtomicReferenceArray<Pattern> domainPatterns;
+  private final AtomicReferenceArray<Pattern> regexPatterns;
+  private final AtomicReferenceArray<Acl> acls;
+  // The domains whose host regexes match each host seen, in order.  As in
+  // CachedPatternMatcher, this grows without bound.
+  private final Map<String, int[]> domainsByHost = new ConcurrentHashMap<String, int[]>();
+
+  private PolicyAclSnapshot(File file, ByteBuffer header, ByteBuffer[] sections) {
+    this.file = file;
+    this.principalCount = header.getInt(PRINCIPAL_COUNT_OFFSET);
+    this.aclCount = header.getInt(ACL_COUNT_OFFSET);
+    this.domainCount = header.getInt(DOMAIN_COUNT_OFFSET);
+    this.regexCount = header.getInt(REGEX_COUNT_OFFSET);
+    this.fullUrlStart = header.getInt(FULL_URL_START_OFFSET);
+    this.patternCount = header.getInt(PATTERN_COUNT_OFFSET);
+    this.bodyCrc = header.getLong(BODY_CRC_OFFSET);
+    this.sections = sections;
+    this.domainPatterns = new AtomicReferenceArray<Pattern>(domainCount);
+    this.regexPatterns = new AtomicReferenceArray<Pattern>(regexCount);
+    this.acls = new AtomicReferenceArray<Acl>(aclCount);
+  }
+
+  /**
+   * Checks whether a file starts like a policy ACL snapshot.
+   *
+   * @param file the file to check
+   * @return true if the file starts with the snapshot magic number
+   */
+  public static boolean isSnapshot(File file) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < magic.length) {
+        int count = in.read(magic, n, magic.length - n);
+        if (count < 0) {
+          return false;
+        }
+        n += count;
+      }
+    } finally {
+      in.close();
+    }
+    return Arrays.equals(magic, MAGIC);
+  }
+
+  /**
+   * Maps a snapshot file and validates its header and the references in its
+   * tables.  This doesn't check the contents against their checksum; see
+   * {@link #verify}.
+   *
+   * @param file the snapshot file
+   * @return the snapshot
+   * @throws IOException if the file can't be read or is not a valid snapshot
+   */
+  public static PolicyAclSnapshot open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size < HEADER_LENGTH) {
+        throw new IOException("Not a policy ACL snapshot: " + file);
+      }
+      ByteBuffer header = map(channel, 0, HEADER_LENGTH);
+      ByteBuffer[] sections = new ByteBuffer[Section.values().length];
+      long end = checkHeader(file, header, size);
+      long offset = HEADER_LENGTH;
+      for (Section section : Section.values()) {
+        long length = header.getLong(SECTIONS_OFFSET + section.ordinal() * 16 + 8);
+        sections[section.ordinal()] = map(channel, offset, length);
+        offset += length;
+      }
+      if (offset != end) {
+        throw new IOException("Inconsistent policy ACL snapshot header: " + file);
+      }
+      // The mappings stay valid after the channel is closed.
+      PolicyAclSnapshot snapshot = new PolicyAclSnapshot(file, header, sections);
+      snapshot.checkReferences();
+      return snapshot;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length)
+      throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Checks that a header is for this version, matches the file, and lays out
+   * sections of the sizes its counts call for.
+   *
+   * @return the end of the last section
+   */
+  private static long checkHeader(File file, ByteBuffer header, long size) throws IOException {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header.get(i) != MAGIC[i]) {
+        throw new IOException("Not a policy ACL snapshot: " + file);
+      }
+    }
+    int version = header.getInt(VERSION_OFFSET);
+    if (version != VERSION) {
+      throw new IOException("Unsupported policy ACL snapshot version " + version + ": " + file);
+    }
+    if (header.getInt(HEADER_CRC_OFFSET) != (int) headerCrc(header)) {
+      throw new IOException("Corrupt policy ACL snapshot header: " + file);
+    }
+    if (header.getInt(HEADER_LENGTH_OFFSET) != HEADER_LENGTH
+        || header.getLong(FILE_LENGTH_OFFSET) != size) {
+      throw new IOException("Truncated or padded policy ACL snapshot: " + file);
+    }
+    int principalCount = header.getInt(PRINCIPAL_COUNT_OFFSET);
+    int aclCount = header.getInt(ACL_COUNT_OFFSET);
+    int domainCount = header.getInt(DOMAIN_COUNT_OFFSET);
+    int regexCount = header.getInt(REGEX_COUNT_OFFSET);
+    int fullUrlStart = header.getInt(FULL_URL_START_OFFSET);
+    long offset = HEADER_LENGTH;
+    for (Section section : Section.values()) {
+      int at = SECTIONS_OFFSET + section.ordinal() * 16;
+      long length = header.getLong(at + 8);
+      if (header.getLong(at) != offset || length < 0 || length > Integer.MAX_VALUE
+          || length % section.recordSize != 0) {
+        throw new IOException("Bad " + section + " section in policy ACL snapshot: " + file);
+      }
+      offset += length;
+    }
+    if (offset != size
+        || principalCount < 0 || aclCount < 0 || domainCount < 0
+        || fullUrlStart < 0 || fullUrlStart > regexCount
+        || sectionLength(header, Section.PRINCIPALS) != principalCount * 8L
+        || sectionLength(header, Section.ACLS) != aclCount * 12L
+        || sectionLength(header, Section.DOMAINS) != domainCount * 24L
+        || sectionLength(header, Section.REGEXES) != regexCount * 12L
+        || !isTableLength(sectionLength(header, Section.PRINCIPAL_INDEX) / 4)
+        || !isTableLength(sectionLength(header, Section.PATHS) / 28)) {
+      throw new IOException("Inconsistent policy ACL snapshot header: " + file);
+    }
+    return offset;
+  }
+
+  private static long sectionLength(ByteBuffer header, Section section) {
+    return header.getLong(SECTIONS_OFFSET + section.ordinal() * 16 + 8);
+  }
+
+  private static boolean isTableLength(long slots) {
+    return slots > 0 && (slots & (slots - 1)) == 0;
+  }
+
+  /**
+   * Checks that every record refers only to what the snapshot holds: strings
+   * within STRINGS, ids of its principals, runs within ACL_IDS and
+   * PREFIX_LENGTHS, and indexes of its ACLs and regexes.
+   */
+  private void checkReferences() throws IOException {
+    int stringsLength = section(Section.STRINGS).capacity();
+    int idCount = section(Section.ACL_IDS).capacity() / 4;
+    int prefixLengthCount = section(Section.PREFIX_LENGTHS).capacity() / 4;
+
+    ByteBuffer principals = section(Section.PRINCIPALS);
+    for (int i = 0; i < principalCount; i++) {
+      checkReference(isRange(principals.getInt(i * 8), principals.getInt(i * 8 + 4),
+          stringsLength), Section.PRINCIPALS);
+    }
+    ByteBuffer principalIndex = section(Section.PRINCIPAL_INDEX);
+    for (int i = 0; i < principalIndex.capacity() / 4; i++) {
+      checkReference(isIndex(principalIndex.getInt(i * 4), principalCount + 1),
+          Section.PRINCIPAL_INDEX);
+    }
+    ByteBuffer aclTable = section(Section.ACLS);
+    for (int i = 0; i < aclCount; i++) {
+      int nRead = aclTable.getInt(i * 12 + 4);
+      int nNone = aclTable.getInt(i * 12 + 8);
+      checkReference(nRead >= 0 && nNone >= 0
+          && isRange(aclTable.getInt(i * 12), (long) nRead + nNone, idCount), Section.ACLS);
+    }
+    ByteBuffer aclIds = section(Section.ACL_IDS);
+    for (int i = 0; i < idCount; i++) {
+      checkReference(isIndex(aclIds.getInt(i * 4), principalCount), Section.ACL_IDS);
+    }
+    ByteBuffer domainTable = section(Section.DOMAINS);
+    for (int i = 0; i < domainCount; i++) {
+      checkReference(isRange(domainTable.getInt(i * 24), domainTable.getInt(i * 24 + 4),
+              stringsLength)
+          && isRange(domainTable.getInt(i * 24 + 8), domainTable.getInt(i * 24 + 12),
+              prefixLengthCount)
+          && isRange(domainTable.getInt(i * 24 + 16), domainTable.getInt(i * 24 + 20),
+              fullUrlStart),
+          Section.DOMAINS);
+    }
+    ByteBuffer prefixLengths = section(Section.PREFIX_LENGTHS);
+    for (int i = 0; i < prefixLengthCount; i++) {
+      checkReference(prefixLengths.getInt(i * 4) >= 0, Section.PREFIX_LENGTHS);
+    }
+    ByteBuffer paths = section(Section.PATHS);
+    for (int i = 0; i < paths.capacity() / 28; i++) {
+      int value = paths.getInt(i * 28 + 24);
+      checkReference(isIndex(value, aclCount + 1)
+          && (value == 0 || isRange(paths.getInt(i * 28 + 16), paths.getInt(i * 28 + 20),
+              stringsLength)),
+          Section.PATHS);
+    }
+    ByteBuffer regexes = section(Section.REGEXES);
+    for (int i = 0; i < regexCount; i++) {
+      checkReference(isRange(regexes.getInt(i * 12), regexes.getInt(i * 12 + 4), stringsLength)
+          && isIndex(regexes.getInt(i * 12 + 8), aclCount), Section.REGEXES);
+    }
+  }
+
+  private void checkReference(boolean valid, Section section) throws IOException {
+    if (!valid) {
+      throw new IOException("Bad reference in " + section + " section of policy ACL snapshot: "
+          + file);
+    }
+  }
+
+  private static boolean isIndex(int index, int count) {
+    return index >= 0 && index < count;
+  }
+
+  private static boolean isRange(int start, long count, int limit) {
+    return start >= 0 && count >= 0 && start + count <= limit;
+  }
+
+  static long headerCrc(ByteBuffer header) {
+    CRC32 crc = new CRC32();
+    ByteBuffer b = header.duplicate();
+    b.position(0);
+    b.limit(HEADER_CRC_OFFSET);
+    crc.update(b);
+    return crc.getValue();
+  }
+
+  /**
+   * Reads the whole snapshot and checks it against the checksum in its
+   * header.  Opening a snapshot does not do this.
+   *
+   * @return true if the snapshot's contents match its checksum
+   */
+  public boolean verify() {
+    CRC32 crc = new CRC32();
+    for (ByteBuffer section : sections) {
+      crc.update(section.duplicate());
+    }
+    return crc.getValue() == bodyCrc;
+  }
+
+  /**
+   * Returns the number of URL patterns the snapshot was written from.
+   */
+  public int getPatternCount() {
+    return patternCount;
+  }
+
+  private ByteBuffer section(Section section) {
+    return sections[section.ordinal()];
+  }
+
+  /**
+   * Returns the first long of the key of a path pattern in the PATHS table.
+   */
+  static long pathKeyHi(MDUrlMap.Key key, int domain, int kind) {
+    return key.hi ^ ((domain * 2L + kind + 1) * GOLDEN);
+  }
+
+  /**
+   * Returns the slot at which to start looking for a key in a table.
+   */
+  static int firstSlot(long hi, int mask) {
+    return (int) (hi ^ (hi >>> 32)) & mask;
+  }
+
+  static int principalHash(byte[] bytes) {
+    return Hashing.murmur3_32().hashBytes(bytes).asInt();
+  }
+
+  /**
+   * A user's principals, resolved to the ids of one snapshot.
+   */
+  @Immutable
+  public static final class ResolvedPrincipals {
+    private final PolicyAclSnapshot snapshot;
+    private final int[] ids;
+
+    private ResolvedPrincipals(PolicyAclSnapshot snapshot, int[] ids) {
+      this.snapshot = snapshot;
+      this.ids = ids;
+    }
+  }
+
+  /**
+   * Resolves a list of principals to their ids in this snapshot.  Principals
+   * that no ACL names have no id.
+   *
+   * @param principals the principals of the user being authorized
+   * @return the resolved principals
+   */
+  public ResolvedPrincipals resolve(List<AclPrincipal> principals) {
+    Preconditions.checkNotNull(principals);
+    int[] ids = new int[principals.size()];
+    int n = 0;
+    for (AclPrincipal principal : principals) {
+      int id = getPrincipalId(principal.toByteArray());
+      if (id >= 0) {
+        ids[n++] = id;
+      }
+    }
+    ids = Arrays.copyOf(ids, n);
+    Arrays.sort(ids);
+    return new ResolvedPrincipals(this, ids);
+  }
+
+  private int getPrincipalId(byte[] bytes) {
+    ByteBuffer index = section(Section.PRINCIPAL_INDEX);
+    ByteBuffer principals = section(Section.PRINCIPALS);
+    ByteBuffer strings = section(Section.STRINGS);
+    int mask = index.capacity() / 4 - 1;
+    int i = principalHash(bytes) & mask;
+    // A valid table always has an empty slot; don't loop on a corrupt one.
+    for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+      int value = index.getInt(i * 4);
+      if (value == 0) {
+        break;
+      }
+      int id = value - 1;
+      int offset = principals.getInt(id * 8);
+      int length = principals.getInt(id * 8 + 4);
+      if (length == bytes.length && equalBytes(strings, offset, bytes)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean equalBytes(ByteBuffer buffer, int offset, byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (buffer.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Authorizes a user for a URL against the best matching ACL.
+   *
+   * @param url the URL to authorize
+   * @param principals the user's principals, resolved by this snapshot
+   * @return PERMIT or DENY, or INDETERMINATE if no pattern matches the URL
+   */
+  public AuthzStatus authorize(String url, ResolvedPrincipals principals) {
+    Preconditions.checkArgument(principals.snapshot == this,
+        "Principals were resolved by another snapshot");
+    int acl = findAcl(url);
+    if (acl < 0) {
+      return AuthzStatus.INDETERMINATE;
+    }
+    ByteBuffer aclTable = section(Section.ACLS);
+    int start = aclTable.getInt(acl * 12);
+    int nRead = aclTable.getInt(acl * 12 + 4);
+    int nNone = aclTable.getInt(acl * 12 + 8);
+    // N.B.: DENY trumps PERMIT.
+    return (!containsAny(start + nRead, nNone, principals.ids)
+        && containsAny(start, nRead, principals.ids))
+        ? AuthzStatus.PERMIT
+        : AuthzStatus.DENY;
+  }
+
+  /**
+   * Returns true if any of the given sorted ids is in a sorted run of
+   * ACL_IDS.
+   */
+  private boolean containsAny(int start, int count, int[] ids) {
+    ByteBuffer aclIds = section(Section.ACL_IDS);
+    for (int id : ids) {
+      int low = start;
+      int high = start + count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midId = aclIds.getInt(mid * 4);
+        if (midId < id) {
+          low = mid + 1;
+        } else if (midId > id) {
+          high = mid - 1;
+        } else {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the ACL best associated with the specified URL.  The ACL is decoded
+   * from the snapshot the first time it is asked for.
+   *
+   * @param url The URL for which you want ACLs.
+   * @return The ACL best associated with the specified URL
+   */
+  @Override
+  public Acl get(String url) {
+    int acl = findAcl(url);
+    return (acl < 0) ? null : getAcl(acl);
+  }
+
+  private Acl getAcl(int index) {
+    Acl acl = acls.get(index);
+    if (acl == null) {
+      acl = readAcl(index);
+      if (!acls.compareAndSet(index, null, acl)) {
+        acl = acls.get(index);
+      }
+    }
+    return acl;
+  }
+
+  private Acl readAcl(int index) {
+    ByteBuffer aclTable = section(Section.ACLS);
+    ByteBuffer aclIds = section(Section.ACL_IDS);
+    int start = aclTable.getInt(index * 12);
+    int nRead = aclTable.getInt(index * 12 + 4);
+    int nNone = aclTable.getInt(index * 12 + 8);
+    List<Ace> aces = new ArrayList<Ace>(nRead + nNone);
+    for (int i = 0; i < nRead + nNone; i++) {
+      AclPrincipal principal = getPrincipal(aclIds.getInt((start + i) * 4));
+      Principal p = (principal.getScope() == AclPrincipal.SCOPE.USER)
+          ? new User(principal)
+          : new Group(principal);
+      aces.add(new Ace(p, (i < nRead) ? Right.READ : Right.NONE));
+    }
+    return new Acl(aces);
+  }
+
+  private AclPrincipal getPrincipal(int id) {
+    ByteBuffer principals = section(Section.PRINCIPALS);
+    try {
+      return AclPrincipal.parseFrom(
+          getBytes(principals.getInt(id * 8), principals.getInt(id * 8 + 4)));
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Corrupt policy ACL snapshot: " + file, e);
+    }
+  }
+
+  private byte[] getBytes(int offset, int length) {
+    ByteBuffer b = section(Section.STRINGS).duplicate();
+    b.position(offset);
+    byte[] bytes = new byte[length];
+    b.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Finds the best matching pattern for a URL, in the same way as
+   * {@link com.google.common.labs.matcher.UrlMapping#getBestEntry}.
+   *
+   * @return the index of the pattern's ACL, or -1 if no pattern matches
+   */
+  private int findAcl(String url) {
+    AnalyzedUrl analyzed = new AnalyzedUrl(url);
+    String host = analyzed.getHostPart();
+    String path = analyzed.getPathPart();
+    if (host != null) {
+      for (int domain : getMatchingDomains(host)) {
+        int acl = findPathAcl(domain, path);
+        if (acl >= 0) {
+          return acl;
+        }
+      }
+    }
+    for (int i = fullUrlStart; i < regexCount; i++) {
+      if (getRegex(i).matcher(url).find()) {
+        return section(Section.REGEXES).getInt(i * 12 + 8);
+      }
+    }
+    return -1;
+  }
+
+  private int[] getMatchingDomains(String host) {
+    int[] domains = domainsByHost.get(host);
+    if (domains == null) {
+      ByteBuffer domainTable = section(Section.DOMAINS);
+      int[] matches = new int[domainCount];
+      int n = 0;
+      for (int domain = 0; domain < domainCount; domain++) {
+        Pattern pattern = domainPatterns.get(domain);
+        if (pattern == null) {
+          pattern = Pattern.compile(
+              getString(domainTable.getInt(domain * 24), domainTable.getInt(domain * 24 + 4)));
+          domainPatterns.set(domain, pattern);
+        }
+        if (pattern.matcher(host).find()) {
+          matches[n++] = domain;
+        }
+      }
+      domains = Arrays.copyOf(matches, n);
+      domainsByHost.put(host, domains);
+    }
+    return domains;
+  }
+
+  /**
+   * Finds the best matching path pattern of a domain: an exact match, then
+   * the longest prefix, then the first path regex.
+   */
+  private int findPathAcl(int domain, String path) {
+    if (path == null) {
+      return -1;
+    }
+    int acl = getPathAcl(domain, EXACT, path);
+    if (acl >= 0) {
+      return acl;
+    }
+    ByteBuffer domainTable = section(Section.DOMAINS);
+    ByteBuffer prefixLengths = section(Section.PREFIX_LENGTHS);
+    int start = domainTable.getInt(domain * 24 + 8);
+    int count = domainTable.getInt(domain * 24 + 12);
+    for (int i = start; i < start + count; i++) {
+      int length = prefixLengths.getInt(i * 4);
+      if (length <= path.length()) {
+        acl = getPathAcl(domain, PREFIX, path.substring(0, length));
+        if (acl >= 0) {
+          return acl;
+        }
+      }
+    }
+    start = domainTable.getInt(domain * 24 + 16);
+    count = domainTable.getInt(domain * 24 + 20);
+    for (int i = start; i < start + count; i++) {
+      if (getRegex(i).matcher(path).find()) {
+        return section(Section.REGEXES).getInt(i * 12 + 8);
+      }
+    }
+    return -1;
+  }
+
+  private int getPathAcl(int domain, int kind, String path) {
+    ByteBuffer paths = section(Section.PATHS);
+    MDUrlMap.Key key = MDUrlMap.murmur3(path);
+    long hi = pathKeyHi(key, domain, kind);
+    int mask = paths.capacity() / 28 - 1;
+    int i = firstSlot(hi, mask);
+    byte[] bytes = null;
+    for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+      int value = paths.getInt(i * 28 + 24);
+      if (value == 0) {
+        break;
+      }
+      if (paths.getLong(i * 28) == hi && paths.getLong(i * 28 + 8) == key.lo) {
+        // Murmur3 can be made to collide, so only the path itself is trusted.
+        if (bytes == null) {
+          bytes = path.getBytes(UTF_8);
+        }
+        if (paths.getInt(i * 28 + 20) == bytes.length
+            && equalBytes(section(Section.STRINGS), paths.getInt(i * 28 + 16), bytes)) {
+          return value - 1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private Pattern getRegex(int index) {
+    Pattern pattern = regexPatterns.get(index);
+    if (pattern == null) {
+      ByteBuffer regexes = section(Section.REGEXES);
+      pattern = Pattern.compile(
+          getString(regexes.getInt(index * 12), regexes.getInt(index * 12 + 4)));
+      regexPatterns.set(index, pattern);
+    }
+    return pattern;
+  }
+
+  private String getString(int offset, int length) {
+    return new String(getBytes(offset, length), UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return "PolicyAclSnapshot(" + file + ", " + patternCount + " patterns, " + aclCount
+        + " ACLs, " + principalCount + " principals)";
+  }
+}
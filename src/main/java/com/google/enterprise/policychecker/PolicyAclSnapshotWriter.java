@@ -0,0 +1,392 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.labs.matcher.ParsedUrlPattern;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.policychecker.PolicyAclSnapshot.Section;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a {@link UrlAclMap} as a {@link PolicyAclSnapshot}, and converts
+ * policy ACL files in the JSON or plain text formats to snapshots:
+ * <pre>
+ *   PolicyAclSnapshotWriter acl_urls.enterprise acl_urls.snapshot
+ * </pre>
+ * The snapshot is written to a temporary file which is then renamed, so a
+ * snapshot that is in use is never changed.
+ */
+public final class PolicyAclSnapshotWriter {
+  private static final Logger logger = Logger.getLogger(PolicyAclSnapshotWriter.class.getName());
+
+  private static final String TEMP_EXTENSION = ".temp";
+
+  private PolicyAclSnapshotWriter() {}  // non-instantiable.
+
+  /**
+   * The path patterns of one domain, as a {@code UrlMapping.PathMapper} holds
+   * them.
+   */
+  private static final class Domain {
+    final int index;
+    final Map<String, Integer> exact = new LinkedHashMap<String, Integer>();
+    final Map<String, Integer> prefix = new LinkedHashMap<String, Integer>();
+    final Map<String, Integer> regex = new LinkedHashMap<String, Integer>();
+
+    Domain(int index) {
+      this.index = index;
+    }
+  }
+
+  /**
+   * Writes the patterns of a UrlAclMap to a snapshot file.
+   *
+   * @param urlAclMap the ACLs to write
+   * @param file the snapshot file, which is replaced
+   * @throws IllegalArgumentException if an ACL names a group with members,
+   *     which a snapshot can't hold
+   */
+  public static void write(UrlAclMap urlAclMap, File file) throws IOException {
+    Map<String, Acl> patterns = urlAclMap.getPatterns();
+    Map<AclPrincipal, Integer> principals = new LinkedHashMap<AclPrincipal, Integer>();
+    Map<Acl, Integer> acls = new LinkedHashMap<Acl, Integer>();
+    // Mirror the structure of UrlMapping, so that the same patterns win.
+    Map<String, Domain> domains = new LinkedHashMap<String, Domain>();
+    Map<String, Integer> fullUrls = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<String, Acl> e : patterns.entrySet()) {
+      ParsedUrlPattern p;
+      try {
+        p = new ParsedUrlPattern(e.getKey());
+        if (!p.isHostPathType()) {
+          Pattern.compile(p.getUrlRegex());
+        }
+      } catch (IllegalArgumentException ex) {
+        logger.log(Level.WARNING, "Unusable URL pattern: " + e.getKey(), ex);
+        continue;
+      }
+      Integer acl = acls.get(e.getValue());
+      if (acl == null) {
+        acl = acls.size();
+        acls.put(e.getValue(), acl);
+      }
+      if (!p.isHostPathType()) {
+        fullUrls.put(p.getUrlRegex(), acl);
+        continue;
+      }
+      Domain domain = domains.get(p.getHostRegex());
+      if (domain == null) {
+        domain = new Domain(domains.size());
+        domains.put(p.getHostRegex(), domain);
+      }
+      if (p.isPathExactMatch()) {
+        domain.exact.put(p.getPathExactString(), acl);
+      } else if (p.isPathPrefixMatch()) {
+        domain.prefix.put(p.getPathPrefixString(), acl);
+      } else {
+        domain.regex.put(p.getPathRegex(), acl);
+      }
+    }
+
+    ByteArrayOutputStream strings = new ByteArrayOutputStream();
+    ByteBuffer[] sections = new ByteBuffer[Section.values().length];
+
+    // The ACLs, compiled to sorted principal ids.
+    List<int[]> aclIds = new ArrayList<int[]>(acls.size());
+    int nIds = 0;
+    for (Acl acl : acls.keySet()) {
+      TreeSet<Integer> read = new TreeSet<Integer>();
+      TreeSet<Integer> none = new TreeSet<Integer>();
+      for (Ace ace : acl.getAces()) {
+        Principal principal = ace.getPrincipal();
+        if (principal instanceof Group && (((Group) principal).getDirectUserCount() > 0
+            || ((Group) principal).getDirectGroupCount() > 0)) {
+          throw new IllegalArgumentException(
+              "Snapshots can't hold group memberships: " + principal);
+        }
+        Integer id = principals.get(principal.getAclPrincipal());
+        if (id == null) {
+          id = principals.size();
+          principals.put(principal.getAclPrincipal(), id);
+        }
+        ((ace.getRight() == Right.READ) ? read : none).add(id);
+      }
+      int[] ids = new int[read.size() + none.size() + 2];
+      ids[0] = read.size();
+      ids[1] = none.size();
+      int i = 2;
+      for (int id : read) {
+        ids[i++] = id;
+      }
+      for (int id : none) {
+        ids[i++] = id;
+      }
+      aclIds.add(ids);
+      nIds += ids.length - 2;
+    }
+    ByteBuffer aclTable = allocate(acls.size(), Section.ACLS);
+    ByteBuffer aclIdTable = allocate(nIds, Section.ACL_IDS);
+    for (int[] ids : aclIds) {
+      aclTable.putInt(aclIdTable.position() / 4).putInt(ids[0]).putInt(ids[1]);
+      for (int i = 2; i < ids.length; i++) {
+        aclIdTable.putInt(ids[i]);
+      }
+    }
+    sections[Section.ACLS.ordinal()] = aclTable;
+    sections[Section.ACL_IDS.ordinal()] = aclIdTable;
+
+    // The principals, and the index to them.
+    ByteBuffer principalTable = allocate(principals.size(), Section.PRINCIPALS);
+    ByteBuffer principalIndex = allocate(tableSize(principals.size()), Section.PRINCIPAL_INDEX);
+    int principalMask = principalIndex.capacity() / 4 - 1;
+    for (Map.Entry<AclPrincipal, Integer> e : principals.entrySet()) {
+      byte[] bytes = e.getKey().toByteArray();
+      principalTable.putInt(strings.size()).putInt(bytes.length);
+      strings.write(bytes);
+      int i = PolicyAclSnapshot.principalHash(bytes) & principalMask;
+      while (principalIndex.getInt(i * 4) != 0) {
+        i = (i + 1) & principalMask;
+      }
+      principalIndex.putInt(i * 4, e.getValue() + 1);
+    }
+    sections[Section.PRINCIPALS.ordinal()] = principalTable;
+    sections[Section.PRINCIPAL_INDEX.ordinal()] = principalIndex;
+
+    // The URL index.
+    int nPaths = 0;
+    int nPrefixLengths = 0;
+    int nRegexes = fullUrls.size();
+    List<int[]> domainPrefixLengths = new ArrayList<int[]>(domains.size());
+    for (Domain domain : domains.values()) {
+      nPaths += domain.exact.size() + domain.prefix.size();
+      nRegexes += domain.regex.size();
+      TreeSet<Integer> lengths = new TreeSet<Integer>();
+      for (String prefix : domain.prefix.keySet()) {
+        lengths.add(prefix.length());
+      }
+      int[] longestFirst = new int[lengths.size()];
+      int i = 0;
+      for (int length : lengths.descendingSet()) {
+        longestFirst[i++] = length;
+      }
+      domainPrefixLengths.add(longestFirst);
+      nPrefixLengths += longestFirst.length;
+    }
+    ByteBuffer domainTable = allocate(domains.size(), Section.DOMAINS);
+    ByteBuffer prefixLengthTable = allocate(nPrefixLengths, Section.PREFIX_LENGTHS);
+    ByteBuffer pathTable = allocate(tableSize(nPaths), Section.PATHS);
+    ByteBuffer regexTable = allocate(nRegexes, Section.REGEXES);
+    int pathMask = pathTable.capacity() / 28 - 1;
+    for (Map.Entry<String, Domain> e : domains.entrySet()) {
+      Domain domain = e.getValue();
+      putString(domainTable, strings, e.getKey());
+      int[] lengths = domainPrefixLengths.get(domain.index);
+      domainTable.putInt(prefixLengthTable.position() / 4).putInt(lengths.length);
+      for (int length : lengths) {
+        prefixLengthTable.putInt(length);
+      }
+      domainTable.putInt(regexTable.position() / 12).putInt(domain.regex.size());
+      for (Map.Entry<String, Integer> regex : domain.regex.entrySet()) {
+        putString(regexTable, strings, regex.getKey());
+        regexTable.putInt(regex.getValue());
+      }
+      for (Map.Entry<String, Integer> path : domain.exact.entrySet()) {
+        putPath(pathTable, strings, pathMask, domain.index, PolicyAclSnapshot.EXACT, path);
+      }
+      for (Map.Entry<String, Integer> path : domain.prefix.entrySet()) {
+        putPath(pathTable, strings, pathMask, domain.index, PolicyAclSnapshot.PREFIX, path);
+      }
+    }
+    int fullUrlStart = regexTable.position() / 12;
+    for (Map.Entry<String, Integer> regex : fullUrls.entrySet()) {
+      putString(regexTable, strings, regex.getKey());
+      regexTable.putInt(regex.getValue());
+    }
+    sections[Section.DOMAINS.ordinal()] = domainTable;
+    sections[Section.PREFIX_LENGTHS.ordinal()] = prefixLengthTable;
+    sections[Section.PATHS.ordinal()] = pathTable;
+    sections[Section.REGEXES.ordinal()] = regexTable;
+    sections[Section.STRINGS.ordinal()] = ByteBuffer.wrap(strings.toByteArray());
+
+    // The header.
+    ByteBuffer header = ByteBuffer.allocate(PolicyAclSnapshot.HEADER_LENGTH)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    header.put(PolicyAclSnapshot.MAGIC);
+    header.putInt(PolicyAclSnapshot.VERSION_OFFSET, PolicyAclSnapshot.VERSION);
+    header.putInt(PolicyAclSnapshot.HEADER_LENGTH_OFFSET, PolicyAclSnapshot.HEADER_LENGTH);
+    header.putInt(PolicyAclSnapshot.PRINCIPAL_COUNT_OFFSET, principals.size());
+    header.putInt(PolicyAclSnapshot.ACL_COUNT_OFFSET, acls.size());
+    header.putInt(PolicyAclSnapshot.DOMAIN_COUNT_OFFSET, domains.size());
+    header.putInt(PolicyAclSnapshot.REGEX_COUNT_OFFSET, nRegexes);
+    header.putInt(PolicyAclSnapshot.FULL_URL_START_OFFSET, fullUrlStart);
+    header.putInt(PolicyAclSnapshot.PATTERN_COUNT_OFFSET, patterns.size());
+    CRC32 bodyCrc = new CRC32();
+    long offset = PolicyAclSnapshot.HEADER_LENGTH;
+    for (Section section : Section.values()) {
+      ByteBuffer buffer = sections[section.ordinal()];
+      buffer.clear();
+      bodyCrc.update(buffer.duplicate());
+      header.putLong(PolicyAclSnapshot.SECTIONS_OFFSET + section.ordinal() * 16, offset);
+      header.putLong(PolicyAclSnapshot.SECTIONS_OFFSET + section.ordinal() * 16 + 8,
+          buffer.capacity());
+      offset += buffer.capacity();
+    }
+    header.putLong(PolicyAclSnapshot.FILE_LENGTH_OFFSET, offset);
+    header.putLong(PolicyAclSnapshot.BODY_CRC_OFFSET, bodyCrc.getValue());
+    header.putInt(PolicyAclSnapshot.HEADER_CRC_OFFSET,
+        (int) PolicyAclSnapshot.headerCrc(header));
+    header.clear();
+
+    File tempFile = new File(file.getPath() + TEMP_EXTENSION);
+    RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      writeFully(channel, header);
+      for (ByteBuffer buffer : sections) {
+        writeFully(channel, buffer);
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static ByteBuffer allocate(int records, Section section) {
+    long length = (long) records * section.recordSize;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many entries for a snapshot's " + section
+          + " section: " + records);
+    }
+    return ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the number of slots for an open-addressing table of n entries: a
+   * power of two at least twice n.
+   */
+  private static int tableSize(int n) {
+    int size = 2;
+    while (size < n * 2L) {
+      size *= 2;
+    }
+    return size;
+  }
+
+  private static void putString(ByteBuffer table, ByteArrayOutputStream strings, String s)
+      throws IOException {
+    byte[] bytes = s.getBytes(UTF_8);
+    table.putInt(strings.size()).putInt(bytes.length);
+    strings.write(bytes);
+  }
+
+  private static void putPath(ByteBuffer table, ByteArrayOutputStream strings, int mask,
+      int domain, int kind, Map.Entry<String, Integer> path) throws IOException {
+    MDUrlMap.Key key = MDUrlMap.murmur3(path.getKey());
+    long hi = PolicyAclSnapshot.pathKeyHi(key, domain, kind);
+    int i = PolicyAclSnapshot.firstSlot(hi, mask);
+    // The paths are distinct, and are compared on lookup, so colliding keys
+    // just take later slots.
+    while (table.getInt(i * 28 + 24) != 0) {
+      i = (i + 1) & mask;
+    }
+    byte[] bytes = path.getKey().getBytes(UTF_8);
+    table.putLong(i * 28, hi).putLong(i * 28 + 8, key.lo)
+        .putInt(i * 28 + 16, strings.size()).putInt(i * 28 + 20, bytes.length)
+        .putInt(i * 28 + 24, path.getValue() + 1);
+    strings.write(bytes);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads a policy ACL file in the JSON format, if it starts with a brace, or
+   * the plain text format otherwise.
+   *
+   * @param file the policy ACL file
+   * @return the ACLs, in the order of the file
+   */
+  public static UrlAclMap readAcls(File file) throws IOException {
+    int first;
+    InputStream in = new FileInputStream(file);
+    try {
+      do {
+        first = in.read();
+      } while (first >= 0 && Character.isWhitespace(first));
+    } finally {
+      in.close();
+    }
+    AbstractFileSerializer<UrlAclMap> serializer = (first == '{')
+        ? new JsonUrlAclMapSerializer()
+        : new PlainTextUrlAclMapSerializer();
+    return serializer.parseFromFile(file.getPath());
+  }
+
+  /**
+   * Converts a policy ACL file to a snapshot.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: PolicyAclSnapshotWriter aclfile snapshotfile");
+      System.exit(1);
+    }
+    Stopwatch watch = Stopwatch.createStarted();
+    UrlAclMap urlAclMap = readAcls(new File(args[0]));
+    System.out.println("Read " + urlAclMap.getPatterns().size() + " patterns in "
+        + watch.elapsed(MILLISECONDS) + " ms");
+    watch.reset().start();
+    File file = new File(args[1]);
+    write(urlAclMap, file);
+    System.out.println("Wrote " + file.length() + " bytes in " + watch.elapsed(MILLISECONDS)
+        + " ms");
+    PolicyAclSnapshot snapshot = PolicyAclSnapshot.open(file);
+    if (!snapshot.verify()) {
+      System.err.println("Snapshot does not match its checksum: " + file);
+      System.exit(1);
+    }
+    System.out.println(snapshot);
+    System.exit(0);
+  }
+}
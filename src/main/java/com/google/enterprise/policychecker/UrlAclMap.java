@@ -16,26 +16,54 @@ package com.google.enterprise.policychecker;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.labs.matcher.UrlMapping;
+import com.google.common.labs.matcher.ParsedUrlPattern;
 import com.google.enterprise.supergsa.security.AclPrincipal;
 import com.google.enterprise.supergsa.security.PolicyAcl;
 
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TreeMap;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+
 /**
  * Base class for a mapping from Urls to Acls.
+ * <p>
+ * Lookups take no locks and never wait for writers: they read an immutable
+ * snapshot of the mappings, published through a volatile reference.  Each
+ * change is made under a write lock, to a new snapshot which shares all but
+ * the changed parts with the previous one (see {@link UrlPatternIndex}), and
+ * which is then published, while lookups keep using the previous one.  A
+ * {@link #putAll} publishes all of its changes at once.
+ * <p>
+ * Acls are compiled against the map's {@link AclPrincipalIds.Table} when they
+ * are added; see {@link #resolvePrincipals}.  Ids are never reused, so the
+ * table keeps the principals of Acls that have since been removed, for as
+ * long as the map is kept.
  */
 public class UrlAclMap implements Authorizer {
 
   protected Group userGroupStore;
-  protected final UrlMapping<Acl> mapping;
-  protected final Map<String, Acl> patternMap;
+  // False for a compact map, which keeps only the index.
+  private final boolean keepPatterns;
+  private final AclPrincipalIds.Table principalIds = new AclPrincipalIds.Table();
+
+  private final Object writeLock = new Object();
+  // The changes made so far by a putAll, which publishes them when it's done;
+  // null outside of a putAll.
+  @GuardedBy("writeLock") private Snapshot pending;
+  // The order of the next pattern to be added.
+  @GuardedBy("writeLock") private long nextOrder;
+  // The published mappings.
+  private volatile Snapshot snapshot;
 
   // Should be 'true' whenever the underlying userGroupStore, mapping, or patternMap have changed
   // state since the last time resetHasChanged() has been called.
@@ -75,19 +103,95 @@ public class UrlAclMap implements Authorizer {
     }
   }
 
+  private static final Comparator<Entry<String, PatternAcl>> BY_ORDER =
+      new Comparator<Entry<String, PatternAcl>>() {
+        @Override
+        public int compare(Entry<String, PatternAcl> a, Entry<String, PatternAcl> b) {
+          return Long.compare(a.getValue().order, b.getValue().order);
+        }
+      };
+
+  /**
+   * A pattern's ACL, and the order in which the pattern was added.
+   */
+  @Immutable
+  private static final class PatternAcl {
+    final Acl acl;
+    final long order;
+
+    PatternAcl(Acl acl, long order) {
+      this.acl = acl;
+      this.order = order;
+    }
+  }
+
+  /**
+   * An immutable set of mappings.
+   */
+  @Immutable
+  private static final class Snapshot {
+    // The patterns as given, or null if they aren't kept.
+    @Nullable final HashTrie<String, PatternAcl> patterns;
+    final UrlPatternIndex<Acl> index;
+
+    Snapshot(@Nullable HashTrie<String, PatternAcl> patterns, UrlPatternIndex<Acl> index) {
+      this.patterns = patterns;
+      this.index = index;
+    }
+
+    @Nullable
+    Acl getAcl(String pattern) {
+      if (patterns == null) {
+        return index.getByPattern(new ParsedUrlPattern(pattern));
+      }
+      PatternAcl patternAcl = patterns.get(pattern);
+      return (patternAcl == null) ? null : patternAcl.acl;
+    }
+  }
+
   public UrlAclMap() {
-    this(new Group("everyone"),
-         new UrlMapping<Acl>(), new TreeMap<String, Acl>());
+    this(new Group("everyone"), true);
   }
 
-  public UrlAclMap(Group userGroupStore, UrlMapping<Acl> mapping, Map<String, Acl> patternMap) {
+  /**
+   * @param userGroupStore the group definitions
+   * @param keepPatterns whether to keep the patterns as given, as well as the
+   *     index to them; if not, exact paths are only kept as hashes, and the
+   *     patterns can't be listed
+   */
+  protected UrlAclMap(Group userGroupStore, boolean keepPatterns) {
     this.userGroupStore = userGroupStore;
-    this.mapping = mapping;
-    if (patternMap == null) {
-      this.patternMap = new TreeMap<String, Acl>();
+    this.keepPatterns = keepPatterns;
+    this.snapshot = new Snapshot(
+        keepPatterns ? HashTrie.<String, PatternAcl>of() : null,
+        new UrlPatternIndex<Acl>(!keepPatterns));
+  }
+
+  private Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Returns the mappings to change, including changes not yet published; the
+   * caller must hold the write lock.
+   */
+  @GuardedBy("writeLock")
+  private Snapshot getCurrent() {
+    return (pending != null) ? pending : snapshot;
+  }
+
+  /**
+   * Publishes changed mappings, unless they are part of a putAll, which
+   * publishes them when it's done; the caller must hold the write lock.
+   */
+  @GuardedBy("writeLock")
+  private void commit(Snapshot changed) {
+    if (pending != null) {
+      pending = changed;
     } else {
-      this.patternMap = patternMap;
+      snapshot = changed;
     }
+    hasChanged = true;
   }
 
   /**
@@ -100,7 +204,7 @@ public class UrlAclMap implements Authorizer {
   @Override
   public String toString() {
     return "groups: " + getUserGroupStore() +
-        "patterns: " + patternMap;
+        "patterns: " + ImmutableSortedMap.copyOf(getKeptPatterns());
   }
 
   @Override
@@ -113,7 +217,8 @@ public class UrlAclMap implements Authorizer {
     // is ever need, the following questions will need to be answered.
     // Need to compare mapping as well?
     // Synchronization?
-    return getUserGroupStore().equals(m.groups()) && patternMap.equals(m.patternMap);
+    return getUserGroupStore().equals(m.groups())
+        && getKeptPatterns().equals(m.getKeptPatterns());
   }
 
   @Override
@@ -195,9 +300,7 @@ public class UrlAclMap implements Authorizer {
    * @return Map of all (Pattern,ACL) mappings whose pattern matches the specified URL
    */
   public ImmutableMap<String, Acl> getAllMatches(String url) {
-    synchronized (mapping) {
-      return mapping.getMappings(url);
-    }
+    return getSnapshot().index.getMappings(url);
   }
 
   /**
@@ -208,9 +311,7 @@ public class UrlAclMap implements Authorizer {
    */
   @Override
   public Acl get(String url) {
-    synchronized (mapping) {
-      return mapping.getBestValue(url);
-    }
+    return getSnapshot().index.getBestValue(url);
   }
 
   /**
@@ -232,9 +333,58 @@ public class UrlAclMap implements Authorizer {
    * is not mapped
    */
   public Acl getAclForPattern(String pattern) {
-    synchronized (patternMap) {
-      return patternMap.get(pattern);
+    if (pattern == null) {
+      return null;
+    }
+    return getSnapshot().getAcl(pattern);
+  }
+
+  /**
+   * Resolves a user's principals to ids in this map's id table, so that the
+   * Acls it maps to are checked against them without comparing Aces.  Acls
+   * added after the principals were resolved still give the right answer,
+   * just more slowly.
+   *
+   * @param principals the principals of the user being authorized
+   * @return the resolved principals
+   */
+  public AclPrincipalIds resolvePrincipals(List<AclPrincipal> principals) {
+    return principalIds.resolve(principals);
+  }
+
+  /**
+   * Returns this map's id table.
+   */
+  AclPrincipalIds.Table getPrincipalIdTable() {
+    return principalIds;
+  }
+
+  /**
+   * Returns all the pattern mappings, in the order in which the patterns were
+   * added, which determines the best match.
+   *
+   * @throws UnsupportedOperationException if the patterns aren't kept
+   */
+  ImmutableMap<String, Acl> getPatterns() {
+    List<Entry<String, PatternAcl>> entries = getPatternEntries();
+    Collections.sort(entries, BY_ORDER);
+    ImmutableMap.Builder<String, Acl> builder = ImmutableMap.builder();
+    for (Entry<String, PatternAcl> e : entries) {
+      builder.put(e.getKey(), e.getValue().acl);
     }
+    return builder.build();
+  }
+
+  private List<Entry<String, PatternAcl>> getPatternEntries() {
+    HashTrie<String, PatternAcl> patterns = getSnapshot().patterns;
+    if (patterns == null) {
+      throw new UnsupportedOperationException("This map doesn't keep its patterns");
+    }
+    return patterns.entries();
+  }
+
+  private ImmutableMap<String, Acl> getKeptPatterns() {
+    return keepPatterns ? getPatterns() : ImmutableMap.<String, Acl>of();
   }
 
   /**
@@ -256,15 +406,13 @@ public class UrlAclMap implements Authorizer {
       }
     }
 
-    synchronized (patternMap) {
-      for (Entry<String, Acl> e : patternMap.entrySet()) {
-        if (p == null || p.matcher(e.getKey()).matches()) {
-          PolicyAcl acl = PolicyAcl.newBuilder()
-              .setPattern(e.getKey())
-              .setAcl(e.getValue().toGsaAcl())
-              .build();
-          b.add(acl);
-        }
+    for (Entry<String, PatternAcl> e : getPatternEntries()) {
+      if (p == null || p.matcher(e.getKey()).matches()) {
+        PolicyAcl acl = PolicyAcl.newBuilder()
+            .setPattern(e.getKey())
+            .setAcl(e.getValue().acl.toGsaAcl())
+            .build();
+        b.add(acl);
       }
     }
     return b.build().asList();
@@ -279,23 +427,63 @@ public class UrlAclMap implements Authorizer {
    */
   public void put(String patternString, Acl acl) {
     getUserGroupStore().addPrincipals(acl.getPrincipals());
-    synchronized (patternMap) {
-      patternMap.put(patternString, acl);
-    }
-    synchronized (mapping) {
-      mapping.put(patternString, acl);
+    putMapping(patternString, acl);
+  }
+
+  /**
+   * Maps a pattern to an ACL, without adding the ACL's principals to the
+   * groups.  Does nothing if the pattern is already mapped to that ACL.
+   *
+   * @param patternString The pattern to associate.
+   * @param acl The ACL to associate it with.
+   * @throws IllegalArgumentException if the pattern is unsupported
+   */
+  protected void putMapping(String patternString, Acl acl) {
+    ParsedUrlPattern parsed = new ParsedUrlPattern(patternString);
+    synchronized (writeLock) {
+      Snapshot current = getCurrent();
+      if (current.getAcl(patternString) == acl) {
+        return;
+      }
+      // Rejects an unusable pattern before anything changes.
+      UrlPatternIndex<Acl> index = current.index.plus(parsed, patternString, acl);
+      acl.compile(principalIds);
+      HashTrie<String, PatternAcl> patterns = current.patterns;
+      if (patterns != null) {
+        // A pattern that is already mapped keeps its place in the order.
+        PatternAcl old = patterns.get(patternString);
+        patterns = patterns.plus(patternString,
+            new PatternAcl(acl, (old != null) ? old.order : nextOrder++));
+      }
+      commit(new Snapshot(patterns, index));
     }
-    hasChanged = true;
   }
 
   /**
-   * Add a set of Mappings from patterns to ACLs.
+   * Add a set of Mappings from patterns to ACLs, publishing them all at once.
+   * Lookups see either none of the mappings or all of them.
    *
    * @param patternMap a Map<Sring, String> giving pattern to ACL mappings.
    */
   public void putAll(Map<String, Acl> patternMap) {
-    for (Map.Entry<String, Acl> e : patternMap.entrySet()) {
-      put(e.getKey(), e.getValue());
+    synchronized (writeLock) {
+      if (pending != null) {
+        // Nested in another putAll, which publishes.
+        for (Map.Entry<String, Acl> e : patternMap.entrySet()) {
+          put(e.getKey(), e.getValue());
+        }
+        return;
+      }
+      pending = snapshot;
+      try {
+        for (Map.Entry<String, Acl> e : patternMap.entrySet()) {
+          put(e.getKey(), e.getValue());
+        }
+      } finally {
+        // Publish the mappings put before any failure, as put would have.
+        snapshot = pending;
+        pending = null;
+      }
     }
   }
 
@@ -306,19 +494,18 @@ public class UrlAclMap implements Authorizer {
    * @return true if the removal succeeded; false if the pattern did not exist
    */
   public boolean removePattern(String pattern) {
-    if (!containsMapping(pattern)) {
-      return false;
-    }
     if (pattern == null) {
       return false;
     }
-    synchronized (mapping) {
-      mapping.remove(pattern);
-    }
-    synchronized (patternMap) {
-      patternMap.remove(pattern);
+    synchronized (writeLock) {
+      Snapshot current = getCurrent();
+      if (current.getAcl(pattern) == null) {
+        return false;
+      }
+      HashTrie<String, PatternAcl> patterns =
+          (current.patterns == null) ? null : current.patterns.minus(pattern);
+      commit(new Snapshot(patterns, current.index.minus(new ParsedUrlPattern(pattern))));
     }
-    hasChanged = true;
     return true;
   }
 
@@ -410,12 +597,12 @@ public class UrlAclMap implements Authorizer {
    * @param acl an Acl
    */
   public void addPattern(String pattern, Acl acl) {
-    synchronized (patternMap) {
-      if (acl.equals(patternMap.get(pattern))) {
+    synchronized (writeLock) {
+      if (acl.equals(getCurrent().getAcl(pattern))) {
         return;
       }
+      put(pattern, acl);
     }
-    put(pattern, acl);
   }
 
   /**
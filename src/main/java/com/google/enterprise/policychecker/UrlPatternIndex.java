@@ -0,0 +1,452 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.labs.matcher.AnalyzedUrl;
+import com.google.common.labs.matcher.ParsedUrlPattern;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable index of URL patterns, which finds the same best match for a
+ * URL as {@link com.google.common.labs.matcher.UrlMapping}: the domains whose
+ * host regex matches, in the order they were added, and in each an exact path,
+ * then the longest path prefix, then the first path regex; then the first
+ * full-URL regex.
+ * <p>
+ * A change makes a new index which shares everything but the changed part
+ * with the old one.  Exact paths and path prefixes are kept in
+ * {@link HashTrie}s, so changing one takes O(log n) time; regexes are kept in
+ * lists in the order they were added, so changing one copies the list of its
+ * domain, or of the full-URL regexes.
+ * <p>
+ * An index that hashes its exact paths keeps only the MD5 hash of each path
+ * (see {@link MDUrlMap#md5}), and reports matches of them under the pattern
+ * "", as {@link CompactExactMatchMap} does.
+ */
+@Immutable
+final class UrlPatternIndex<V> {
+  private static final int[] NO_INTS = new int[0];
+
+  private final boolean hashExactPaths;
+  private final HashTrie<String, Integer> domainIds;
+  private final HashTrie<Integer, Domain<V>> domains;
+  private final ImmutableList<Regex<V>> fullUrlRegexes;
+  // The domains matching each host looked up, shared by the indexes made from
+  // this one until a domain is added.
+  private final ConcurrentHashMap<String, int[]> domainsByHost;
+
+  /**
+   * A regex pattern, and its entry.
+   */
+  @Immutable
+  private static final class Regex<V> {
+    final String regex;
+    final Pattern pattern;
+    final Entry<String, V> entry;
+
+    Regex(String regex, Pattern pattern, Entry<String, V> entry) {
+      this.regex = regex;
+      this.pattern = pattern;
+      this.entry = entry;
+    }
+  }
+
+  /**
+   * The path patterns of one domain.
+   */
+  @Immutable
+  private static final class Domain<V> {
+    final Pattern host;
+    // Path, or the hash of the path, to entry, or to value when hashed.
+    final HashTrie<Object, Object> exact;
+    final HashTrie<String, Entry<String, V>> prefixes;
+    // The distinct lengths of the prefixes, longest first, and the number of
+    // prefixes of each length.
+    final int[] prefixLengths;
+    final int[] prefixCounts;
+    final ImmutableList<Regex<V>> regexes;
+
+    Domain(Pattern host, HashTrie<Object, Object> exact,
+        HashTrie<String, Entry<String, V>> prefixes, int[] prefixLengths, int[] prefixCounts,
+        ImmutableList<Regex<V>> regexes) {
+      this.host = host;
+      this.exact = exact;
+      this.prefixes = prefixes;
+      this.prefixLengths = prefixLengths;
+      this.prefixCounts = prefixCounts;
+      this.regexes = regexes;
+    }
+
+    Domain<V> withExact(HashTrie<Object, Object> exact) {
+      return (exact == this.exact)
+          ? this
+          : new Domain<V>(host, exact, prefixes, prefixLengths, prefixCounts, regexes);
+    }
+
+    Domain<V> withPrefix(String prefix, Entry<String, V> entry) {
+      HashTrie<String, Entry<String, V>> newPrefixes = prefixes.plus(prefix, entry);
+      if (newPrefixes.size() == prefixes.size()) {
+        return new Domain<V>(host, exact, newPrefixes, prefixLengths, prefixCounts, regexes);
+      }
+      int length = prefix.length();
+      int i = 0;
+      while (i < prefixLengths.length && prefixLengths[i] > length) {
+        i++;
+      }
+      int[] lengths = prefixLengths;
+      int[] counts = prefixCounts.clone();
+      if (i < lengths.length && lengths[i] == length) {
+        counts[i]++;
+      } else {
+        lengths = insert(lengths, i, length);
+        counts = insert(prefixCounts, i, 1);
+      }
+      return new Domain<V>(host, exact, newPrefixes, lengths, counts, regexes);
+    }
+
+    Domain<V> withoutPrefix(String prefix) {
+      HashTrie<String, Entry<String, V>> newPrefixes = prefixes.minus(prefix);
+      if (newPrefixes == prefixes) {
+        return this;
+      }
+      int i = 0;
+      while (prefixLengths[i] != prefix.length()) {
+        i++;
+      }
+      int[] lengths = prefixLengths;
+      int[] counts = prefixCounts.clone();
+      if (--counts[i] == 0) {
+        lengths = delete(lengths, i);
+        counts = delete(counts, i);
+      }
+      return new Domain<V>(host, exact, newPrefixes, lengths, counts, regexes);
+    }
+
+    Domain<V> withRegexes(ImmutableList<Regex<V>> regexes) {
+      return (regexes == this.regexes)
+          ? this
+          : new Domain<V>(host, exact, prefixes, prefixLengths, prefixCounts, regexes);
+    }
+  }
+
+  /**
+   * Makes an empty index.
+   *
+   * @param hashExactPaths whether to keep only a hash of each exact path
+   */
+  UrlPatternIndex(boolean hashExactPaths) {
+    this(hashExactPaths, HashTrie.<String, Integer>of(), HashTrie.<Integer, Domain<V>>of(),
+        ImmutableList.<Regex<V>>of(), new ConcurrentHashMap<String, int[]>());
+  }
+
+  private UrlPatternIndex(boolean hashExactPaths, HashTrie<String, Integer> domainIds,
+      HashTrie<Integer, Domain<V>> domains, ImmutableList<Regex<V>> fullUrlRegexes,
+      ConcurrentHashMap<String, int[]> domainsByHost) {
+    this.hashExactPaths = hashExactPaths;
+    this.domainIds = domainIds;
+    this.domains = domains;
+    this.fullUrlRegexes = fullUrlRegexes;
+    this.domainsByHost = domainsByHost;
+  }
+
+  private Object exactKey(String path) {
+    return hashExactPaths ? MDUrlMap.md5(path) : path;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Entry<String, V> exactEntry(Object value) {
+    if (value == null) {
+      return null;
+    }
+    return hashExactPaths ? Maps.immutableEntry("", (V) value) : (Entry<String, V>) value;
+  }
+
+  /**
+   * Returns an index with a pattern mapped to a value.
+   *
+   * @param p the parsed pattern
+   * @param pattern the pattern as given, which full-URL matches are reported
+   *     under
+   * @param value the value
+   * @throws java.util.regex.PatternSyntaxException if the pattern's regex is
+   *     invalid
+   */
+  UrlPatternIndex<V> plus(ParsedUrlPattern p, String pattern, V value) {
+    if (!p.isHostPathType()) {
+      Entry<String, V> entry = Maps.immutableEntry(pattern, value);
+      return withFullUrlRegexes(plusRegex(fullUrlRegexes, p.getUrlRegex(), entry));
+    }
+    Entry<String, V> entry = Maps.immutableEntry(p.getUrlPattern(), value);
+    Integer id = domainIds.get(p.getHostRegex());
+    HashTrie<String, Integer> newDomainIds = domainIds;
+    ConcurrentHashMap<String, int[]> newDomainsByHost = domainsByHost;
+    Domain<V> domain;
+    if (id == null) {
+      id = domainIds.size();
+      newDomainIds = domainIds.plus(p.getHostRegex(), id);
+      newDomainsByHost = new ConcurrentHashMap<String, int[]>();
+      domain = new Domain<V>(Pattern.compile(p.getHostRegex()), HashTrie.<Object, Object>of(),
+          HashTrie.<String, Entry<String, V>>of(), NO_INTS, NO_INTS,
+          ImmutableList.<Regex<V>>of());
+    } else {
+      domain = domains.get(id);
+    }
+    Domain<V> newDomain;
+    if (p.isPathExactMatch()) {
+      newDomain = domain.withExact(
+          domain.exact.plus(exactKey(p.getPathExactString()), hashExactPaths ? value : entry));
+    } else if (p.isPathPrefixMatch()) {
+      newDomain = domain.withPrefix(p.getPathPrefixString(), entry);
+    } else {
+      newDomain = domain.withRegexes(plusRegex(domain.regexes, p.getPathRegex(), entry));
+    }
+    return new UrlPatternIndex<V>(hashExactPaths, newDomainIds, domains.plus(id, newDomain),
+        fullUrlRegexes, newDomainsByHost);
+  }
+
+  /**
+   * Returns an index without a pattern, which is this index if it doesn't
+   * have the pattern.  Domains are kept once added, even if they no longer
+   * have any patterns, so that they keep their order.
+   *
+   * @param p the parsed pattern
+   */
+  UrlPatternIndex<V> minus(ParsedUrlPattern p) {
+    if (!p.isHostPathType()) {
+      return withFullUrlRegexes(minusRegex(fullUrlRegexes, p.getUrlRegex()));
+    }
+    Integer id = domainIds.get(p.getHostRegex());
+    if (id == null) {
+      return this;
+    }
+    Domain<V> domain = domains.get(id);
+    Domain<V> newDomain;
+    if (p.isPathExactMatch()) {
+      newDomain = domain.withExact(domain.exact.minus(exactKey(p.getPathExactString())));
+    } else if (p.isPathPrefixMatch()) {
+      newDomain = domain.withoutPrefix(p.getPathPrefixString());
+    } else {
+      newDomain = domain.withRegexes(minusRegex(domain.regexes, p.getPathRegex()));
+    }
+    if (newDomain == domain) {
+      return this;
+    }
+    return new UrlPatternIndex<V>(hashExactPaths, domainIds, domains.plus(id, newDomain),
+        fullUrlRegexes, domainsByHost);
+  }
+
+  private UrlPatternIndex<V> withFullUrlRegexes(ImmutableList<Regex<V>> regexes) {
+    return (regexes == fullUrlRegexes)
+        ? this
+        : new UrlPatternIndex<V>(hashExactPaths, domainIds, domains, regexes, domainsByHost);
+  }
+
+  /**
+   * Returns the value of a pattern, or null if it has none.
+   */
+  V getByPattern(ParsedUrlPattern p) {
+    Entry<String, V> entry;
+    if (!p.isHostPathType()) {
+      entry = getRegexEntry(fullUrlRegexes, p.getUrlRegex());
+    } else {
+      Integer id = domainIds.get(p.getHostRegex());
+      if (id == null) {
+        return null;
+      }
+      Domain<V> domain = domains.get(id);
+      if (p.isPathExactMatch()) {
+        entry = exactEntry(domain.exact.get(exactKey(p.getPathExactString())));
+      } else if (p.isPathPrefixMatch()) {
+        entry = domain.prefixes.get(p.getPathPrefixString());
+      } else {
+        entry = getRegexEntry(domain.regexes, p.getPathRegex());
+      }
+    }
+    return (entry == null) ? null : entry.getValue();
+  }
+
+  /**
+   * Returns the value of the pattern that best matches a URL, or null if no
+   * pattern matches it.
+   */
+  V getBestValue(String url) {
+    AnalyzedUrl analyzed = new AnalyzedUrl(url);
+    String host = analyzed.getHostPart();
+    String path = analyzed.getPathPart();
+    if (host != null && path != null) {
+      for (int id : getMatchingDomains(host)) {
+        Entry<String, V> entry = getBestPathEntry(domains.get(id), path);
+        if (entry != null) {
+          return entry.getValue();
+        }
+      }
+    }
+    for (Regex<V> regex : fullUrlRegexes) {
+      if (regex.pattern.matcher(url).find()) {
+        return regex.entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  private Entry<String, V> getBestPathEntry(Domain<V> domain, String path) {
+    Entry<String, V> entry = exactEntry(domain.exact.get(exactKey(path)));
+    if (entry != null) {
+      return entry;
+    }
+    for (int length : domain.prefixLengths) {
+      if (length <= path.length()) {
+        entry = domain.prefixes.get(path.substring(0, length));
+        if (entry != null) {
+          return entry;
+        }
+      }
+    }
+    for (Regex<V> regex : domain.regexes) {
+      if (regex.pattern.matcher(path).find()) {
+        return regex.entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns all the patterns that match a URL, and their values, best first
+   * within each domain.
+   */
+  ImmutableMap<String, V> getMappings(String url) {
+    AnalyzedUrl analyzed = new AnalyzedUrl(url);
+    String host = analyzed.getHostPart();
+    String path = analyzed.getPathPart();
+    Map<String, V> result = new LinkedHashMap<String, V>();
+    if (host != null && path != null) {
+      for (int id : getMatchingDomains(host)) {
+        Domain<V> domain = domains.get(id);
+        put(result, exactEntry(domain.exact.get(exactKey(path))));
+        for (int length : domain.prefixLengths) {
+          if (length <= path.length()) {
+            put(result, domain.prefixes.get(path.substring(0, length)));
+          }
+        }
+        for (Regex<V> regex : domain.regexes) {
+          if (regex.pattern.matcher(path).find()) {
+            put(result, regex.entry);
+          }
+        }
+      }
+    }
+    for (Regex<V> regex : fullUrlRegexes) {
+      if (regex.pattern.matcher(url).find()) {
+        put(result, regex.entry);
+      }
+    }
+    return ImmutableMap.copyOf(result);
+  }
+
+  private static <V> void put(Map<String, V> map, Entry<String, V> entry) {
+    if (entry != null) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private int[] getMatchingDomains(String host) {
+    int[] ids = domainsByHost.get(host);
+    if (ids == null) {
+      int count = domainIds.size();
+      int[] matches = new int[count];
+      int n = 0;
+      for (int id = 0; id < count; id++) {
+        if (domains.get(id).host.matcher(host).find()) {
+          matches[n++] = id;
+        }
+      }
+      ids = Arrays.copyOf(matches, n);
+      domainsByHost.put(host, ids);
+    }
+    return ids;
+  }
+
+  private static <V> Entry<String, V> getRegexEntry(ImmutableList<Regex<V>> regexes,
+      String regex) {
+    for (Regex<V> r : regexes) {
+      if (r.regex.equals(regex)) {
+        return r.entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a list of regexes with one mapped to an entry, in its old place
+   * if it was already in the list, or at the end.
+   */
+  private static <V> ImmutableList<Regex<V>> plusRegex(ImmutableList<Regex<V>> regexes,
+      String regex, Entry<String, V> entry) {
+    ImmutableList.Builder<Regex<V>> builder = ImmutableList.builder();
+    Regex<V> added = null;
+    for (Regex<V> r : regexes) {
+      if (r.regex.equals(regex)) {
+        added = new Regex<V>(regex, r.pattern, entry);
+        builder.add(added);
+      } else {
+        builder.add(r);
+      }
+    }
+    if (added == null) {
+      builder.add(new Regex<V>(regex, Pattern.compile(regex), entry));
+    }
+    return builder.build();
+  }
+
+  private static <V> ImmutableList<Regex<V>> minusRegex(ImmutableList<Regex<V>> regexes,
+      String regex) {
+    if (getRegexEntry(regexes, regex) == null) {
+      return regexes;
+    }
+    ImmutableList.Builder<Regex<V>> builder = ImmutableList.builder();
+    for (Regex<V> r : regexes) {
+      if (!r.regex.equals(regex)) {
+        builder.add(r);
+      }
+    }
+    return builder.build();
+  }
+
+  private static int[] insert(int[] array, int i, int value) {
+    int[] result = new int[array.length + 1];
+    System.arraycopy(array, 0, result, 0, i);
+    result[i] = value;
+    System.arraycopy(array, i, result, i + 1, array.length - i);
+    return result;
+  }
+
+  private static int[] delete(int[] array, int i) {
+    int[] result = new int[array.length - 1];
+    System.arraycopy(array, 0, result, 0, i);
+    System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+    return result;
+  }
+}
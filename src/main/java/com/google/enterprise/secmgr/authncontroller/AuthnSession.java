@@ -69,6 +69,14 @@ public class AuthnSession {
   private static final Logger logger = Logger.getLogger(AuthnSession.class.getName());
   private static final LogClient GSA_LOGGER = new LogClient("Security Manager");
 
+  /**
+   * The session state is compacted once it has this many instructions, and
+   * again whenever it doubles in size since the last compaction.
+   */
+  @VisibleForTesting
+  static final int COMPACT_SESSION_STATE_SIZE =
+      Integer.getInteger("gsa.compactSessionStateSize", 256);
+
   @Inject private static AuthnSessionManager sessionManager;
   private static boolean secureSearchApiMode = false;
 
@@ -149,6 +157,8 @@ public class AuthnSession {
   private AuthnState forceControllerFailure = null;
   @GuardedBy("this")
   private AuthnSessionState sessionState;
+  @GuardedBy("this")
+  private int compactedSize = 0;
 
   private AuthnSession(SecurityManagerConfig config, String sessionId) {
     incomingCookies = GCookie.makeStore();
@@ -372,6 +382,10 @@ public class AuthnSession {
     logger.info(logMessage("Modify session state:\n" + delta));
     synchronized (this) {
       sessionState = sessionState.add(delta);
+      if (sessionState.size() >= Math.max(COMPACT_SESSION_STATE_SIZE, 2 * compactedSize)) {
+        sessionState = sessionState.compact(getCredentialGroups());
+        compactedSize = sessionState.size();
+      }
     }
   }
 
@@ -380,6 +394,7 @@ public class AuthnSession {
     logger.info(logMessage("Import session state:\n" + delta));
     synchronized (this) {
       sessionState = AuthnSessionState.empty().add(delta);
+      compactedSize = 0;
     }
   }
 
@@ -0,0 +1,31 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.authncontroller;
+
+/**
+ * A listener that's told when an authentication session ends, so that any
+ * per-session state kept elsewhere can be discarded.
+ */
+public interface AuthnSessionListener {
+  /**
+   * Called when a session is removed from the session manager, either because
+   * it has been idle too long or because it was explicitly removed.  May be
+   * called while the session manager holds its lock, so implementations must
+   * not call back into the session manager.
+   *
+   * @param sessionId The ID of the session that was removed.
+   */
+  public void sessionRemoved(String sessionId);
+}
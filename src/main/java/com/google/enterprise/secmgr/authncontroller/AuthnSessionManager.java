@@ -36,6 +36,22 @@ public interface AuthnSessionManager {
    */
   public AuthnSession getSession(String sessionId);
 
+  /**
+   * Remove a session, for example when the user logs out.  Does nothing if
+   * there's no such session.
+   *
+   * @param sessionId The ID of the session to remove.
+   */
+  public void removeSession(String sessionId);
+
+  /**
+   * Add a listener that's told whenever a session is removed, whether
+   * explicitly or because it expired.
+   *
+   * @param listener The listener to add.
+   */
+  public void addSessionListener(AuthnSessionListener listener);
+
   /**
    * Associates a user to a session id.
    * @param user The user
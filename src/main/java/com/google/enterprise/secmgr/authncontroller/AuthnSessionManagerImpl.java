@@ -15,16 +15,28 @@
 package com.google.enterprise.secmgr.authncontroller;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.secmgr.common.SecurityManagerUtil;
 import com.google.enterprise.secmgr.identity.AuthnPrincipal;
 import com.google.inject.Singleton;
 
 import org.joda.time.DateTimeUtils;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -33,54 +45,151 @@ import javax.inject.Inject;
 
 /**
  * An implementation of an authentication session manager.
+ * <p>
+ * Sessions are kept in a concurrent map, so registering and looking up a
+ * session are lock-free and don't depend on the number of live sessions.  A
+ * lookup checks the session's own idle time, so an expired session is never
+ * returned.  Expired sessions that are no longer looked up are reclaimed by a
+ * background sweeper, which keeps the sessions in a timer wheel of one-second
+ * buckets keyed by expiry time.  A lookup only records the access time; the
+ * sweeper moves a session that was used since it was bucketed to its new
+ * bucket when the old one comes due.
+ * <p>
+ * All managers share one daemon sweeper thread, whose task only holds a weak
+ * reference to its manager, so a manager that is no longer used stops being
+ * swept once it is garbage-collected.
  */
 @ThreadSafe
 @Singleton
 public final class AuthnSessionManagerImpl implements AuthnSessionManager {
   private static final Logger logger = Logger.getLogger(AuthnSessionManagerImpl.class.getName());
 
+  @VisibleForTesting
+  static final long TICK_MILLIS = 1000;
+
+  private static final ScheduledExecutorService sweeper =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("AuthnSessionSweeper-%d")
+          .setDaemon(true)
+          .build());
+
   // User to session id map.
-  @GuardedBy("this") private final Map<AuthnPrincipal, String> userSessionMap;
-  @GuardedBy("this") private final Map<String, AuthnSession> sessionMap;
-  @GuardedBy("this") private final Map<AuthnSession, Long> refTimeMap;
-  @GuardedBy("this") private long sessionIdleMillis;
+  private final ConcurrentMap<AuthnPrincipal, String> userSessionMap;
+  private final ConcurrentMap<String, Entry> sessionMap;
+  // Expiry tick to the entries scheduled for that tick.
+  private final ConcurrentNavigableMap<Long, Queue<Entry>> timerWheel;
+  private final List<AuthnSessionListener> listeners;
+  private volatile long sessionIdleMillis;
 
   @Inject
   @VisibleForTesting
   AuthnSessionManagerImpl() {
-    sessionMap = Maps.newHashMap();
-    userSessionMap = Maps.newHashMap();
-    refTimeMap = Maps.newHashMap();
+    sessionMap = new ConcurrentHashMap<>();
+    userSessionMap = new ConcurrentHashMap<>();
+    timerWheel = new ConcurrentSkipListMap<>();
+    listeners = new CopyOnWriteArrayList<>();
     sessionIdleMillis = SecurityManagerUtil.getGsaSessionIdleMillis();
+    SweepTask task = new SweepTask(this);
+    task.future = sweeper.scheduleWithFixedDelay(task, TICK_MILLIS, TICK_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private static final class SweepTask implements Runnable {
+    final WeakReference<AuthnSessionManagerImpl> manager;
+    volatile ScheduledFuture<?> future;
+
+    SweepTask(AuthnSessionManagerImpl manager) {
+      this.manager = new WeakReference<AuthnSessionManagerImpl>(manager);
+    }
+
+    @Override
+    public void run() {
+      AuthnSessionManagerImpl target = manager.get();
+      if (target == null) {
+        future.cancel(false);
+        return;
+      }
+      try {
+        target.sweep(DateTimeUtils.currentTimeMillis());
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Error while sweeping expired sessions: ", e);
+      }
+    }
+  }
+
+  /**
+   * A registered session and the last time it was referenced.
+   */
+  @ThreadSafe
+  private static final class Entry {
+    final AuthnSession session;
+    volatile long lastAccess;
+    // The timer-wheel tick this entry is currently filed under; a copy of the
+    // entry found under any other tick is stale.
+    volatile long scheduledTick;
+    @GuardedBy("this") boolean removed;
+
+    Entry(AuthnSession session, long lastAccess) {
+      this.session = session;
+      this.lastAccess = lastAccess;
+    }
   }
 
   @Override
-  public synchronized void registerSession(AuthnSession session) {
+  public void registerSession(AuthnSession session) {
     long now = DateTimeUtils.currentTimeMillis();
-    deleteExpiredSessions(now);
-    sessionMap.put(session.getSessionId(), session);
-    refTimeMap.put(session, now);
+    Entry entry = new Entry(session, now);
+    Entry previous = sessionMap.put(session.getSessionId(), entry);
+    if (previous != null) {
+      synchronized (previous) {
+        previous.removed = true;
+      }
+    }
+    schedule(entry, now + sessionIdleMillis);
     logger.info("Register session " + session.getSessionId());
   }
 
   @Override
-  public synchronized AuthnSession getSession(String sessionId) {
+  public AuthnSession getSession(String sessionId) {
+    Entry entry = sessionMap.get(sessionId);
+    if (entry == null) {
+      return null;
+    }
     long now = DateTimeUtils.currentTimeMillis();
-    deleteExpiredSessions(now);
-    AuthnSession session = sessionMap.get(sessionId);
-    if (session != null) {
-      refTimeMap.put(session, now);
+    if (isExpired(entry, now)) {
+      logger.fine("Deleting expired session " + sessionId);
+      deleteSession(entry);
+      return null;
+    }
+    // Avoid writing a shared cache line when nothing changes.
+    if (entry.lastAccess < now) {
+      entry.lastAccess = now;
+    }
+    return entry.session;
+  }
+
+  @Override
+  public void removeSession(String sessionId) {
+    Entry entry = sessionMap.get(sessionId);
+    if (entry != null) {
+      logger.info("Remove session " + sessionId);
+      deleteSession(entry);
     }
-    return session;
   }
 
   @Override
-  public synchronized void addUserSession(AuthnPrincipal user, String sessionId) {
+  public void addSessionListener(AuthnSessionListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void addUserSession(AuthnPrincipal user, String sessionId) {
     userSessionMap.put(user, sessionId);
   }
 
   @Override
-  public synchronized AuthnSession getUserSession(AuthnPrincipal user) {
+  public AuthnSession getUserSession(AuthnPrincipal user) {
     String sessionId = userSessionMap.get(user);
     if (sessionId != null) {
       return getSession(sessionId);
@@ -89,26 +198,87 @@ public final class AuthnSessionManagerImpl implements AuthnSessionManager {
   }
 
   @Override
-  public synchronized void setSessionIdleMillis(long sessionIdleMillis) {
+  public void setSessionIdleMillis(long sessionIdleMillis) {
     this.sessionIdleMillis = sessionIdleMillis;
+    // Refile every session, since the new idle time may be shorter.
+    for (Entry entry : sessionMap.values()) {
+      schedule(entry, entry.lastAccess + sessionIdleMillis);
+    }
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return now - entry.lastAccess > sessionIdleMillis;
+  }
+
+  private void schedule(Entry entry, long expiryMillis) {
+    scheduleTick(entry, expiryMillis / TICK_MILLIS);
+  }
+
+  private void scheduleTick(Entry entry, long tick) {
+    entry.scheduledTick = tick;
+    Queue<Entry> bucket = timerWheel.get(tick);
+    if (bucket == null) {
+      Queue<Entry> newBucket = new ConcurrentLinkedQueue<>();
+      bucket = timerWheel.putIfAbsent(tick, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    bucket.add(entry);
   }
 
-  @GuardedBy("this")
-  private void deleteExpiredSessions(long now) {
-    long minRefTime = (now - sessionIdleMillis);
-    List<AuthnSession> toDelete = Lists.newArrayList();
-    for (Map.Entry<AuthnSession, Long> entry : refTimeMap.entrySet()) {
-      if (entry.getValue() < minRefTime) {
-        toDelete.add(entry.getKey());
+  /**
+   * Deletes the expired sessions in all the timer-wheel buckets that are due,
+   * and refiles the sessions in those buckets that were referenced since they
+   * were filed.  A session that isn't expired yet but is due again in this
+   * tick is refiled under the next one, so every bucket swept here is gone
+   * when the sweep returns.
+   *
+   * @param now The current time in milliseconds.
+   */
+  @VisibleForTesting
+  void sweep(long now) {
+    long currentTick = now / TICK_MILLIS;
+    while (true) {
+      Map.Entry<Long, Queue<Entry>> due = timerWheel.firstEntry();
+      if (due == null || due.getKey() > currentTick) {
+        return;
+      }
+      // Entries filed under this tick after the removal land in a new bucket
+      // and are picked up on the next iteration.
+      timerWheel.remove(due.getKey(), due.getValue());
+      for (Entry entry : due.getValue()) {
+        if (entry.scheduledTick != due.getKey()) {
+          continue;
+        }
+        if (isExpired(entry, now)) {
+          logger.fine("Deleting expired session " + entry.session.getSessionId());
+          deleteSession(entry);
+        } else {
+          long tick = (entry.lastAccess + sessionIdleMillis) / TICK_MILLIS;
+          scheduleTick(entry, Math.max(tick, currentTick + 1));
+        }
       }
     }
-    for (AuthnSession session : toDelete) {
-      logger.fine("Deleting expired session " + session.getSessionId());
-      sessionMap.remove(session.getSessionId());
-      refTimeMap.remove(session);
-      AuthnPrincipal user = getUser(session);
+  }
+
+  // Listeners are notified before the session leaves the map, and under the
+  // entry's lock, so a caller that no longer finds the session knows that the
+  // listeners have already seen its removal.
+  private void deleteSession(Entry entry) {
+    synchronized (entry) {
+      if (entry.removed) {
+        return;
+      }
+      entry.removed = true;
+      String sessionId = entry.session.getSessionId();
+      for (AuthnSessionListener listener : listeners) {
+        listener.sessionRemoved(sessionId);
+      }
+      sessionMap.remove(sessionId, entry);
+      AuthnPrincipal user = getUser(entry.session);
       if (user != null) {
-        userSessionMap.remove(user);
+        userSessionMap.remove(user, sessionId);
       }
     }
   }
@@ -129,13 +299,20 @@ public final class AuthnSessionManagerImpl implements AuthnSessionManager {
 
   @VisibleForTesting
   Long getSessionRef(AuthnSession session) {
-    return refTimeMap.get(session);
+    Entry entry = sessionMap.get(session.getSessionId());
+    return (entry != null && entry.session == session) ? entry.lastAccess : null;
+  }
+
+  @VisibleForTesting
+  int getScheduledTickCount() {
+    return timerWheel.size();
   }
 
   @VisibleForTesting
-  public synchronized void reset() {
+  public void reset() {
     sessionMap.clear();
-    refTimeMap.clear();
+    userSessionMap.clear();
+    timerWheel.clear();
     sessionIdleMillis = SecurityManagerUtil.getGsaSessionIdleMillis();
   }
 }
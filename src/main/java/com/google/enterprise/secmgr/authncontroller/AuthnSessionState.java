@@ -49,6 +49,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.NotThreadSafe;
@@ -86,13 +87,23 @@ public final class AuthnSessionState {
     }
   }
 
-  private static final AuthnSessionState EMPTY = new AuthnSessionState(Chain.<Instruction>empty());
+  private static final AuthnSessionState EMPTY =
+      new AuthnSessionState(Chain.<Instruction>empty(), null);
 
   @Nonnull private final Chain<Instruction> instructions;
-
-  private AuthnSessionState(Chain<Instruction> instructions) {
+  // The last summary computed for this state.  This is a cache, so it's
+  // written without locking, like String's hash: racing threads compute equal
+  // summaries.
+  @Nullable private volatile Memo memo;
+  // The state this one was made from, so that its summary can be extended
+  // rather than recomputed.  Dropped once this state has its own summary, so
+  // that old summaries aren't kept alive.
+  @Nullable private volatile AuthnSessionState parent;
+
+  private AuthnSessionState(Chain<Instruction> instructions, @Nullable AuthnSessionState parent) {
     Preconditions.checkNotNull(instructions);
     this.instructions = instructions;
+    this.parent = parent;
   }
 
   /**
@@ -117,7 +128,7 @@ public final class AuthnSessionState {
 
   @VisibleForTesting
   static AuthnSessionState of(Iterable<Instruction> instructions) {
-    return new AuthnSessionState(Chain.copyOf(instructions));
+    return new AuthnSessionState(Chain.copyOf(instructions), null);
   }
 
   @VisibleForTesting
@@ -125,6 +136,13 @@ public final class AuthnSessionState {
     return instructions.toList();
   }
 
+  /**
+   * Gets the number of instructions in this state.
+   */
+  public int size() {
+    return instructions.size();
+  }
+
   /**
    * Is this state object empty?
    *
@@ -175,7 +193,7 @@ public final class AuthnSessionState {
    */
   @Nonnull
   public AuthnSessionState add(AuthnSessionState delta) {
-    return new AuthnSessionState(instructions.addAll(delta.getInstructions()));
+    return new AuthnSessionState(instructions.addAll(delta.getInstructions()), this);
   }
 
   /**
@@ -194,7 +212,7 @@ public final class AuthnSessionState {
 
   private AuthnSessionState addInstruction(Instruction instruction) {
     Preconditions.checkNotNull(instruction);
-    return new AuthnSessionState(instructions.add(instruction));
+    return new AuthnSessionState(instructions.add(instruction), this);
   }
 
   /**
@@ -349,12 +367,74 @@ public final class AuthnSessionState {
   /**
    * Computes a summary of this state's contents.
    *
+   * <p>The summary is remembered, so asking again with the same credential
+   * groups is cheap.  A state made by adding to another state extends that
+   * state's summary, if it has one, rather than replaying every instruction.
+   *
    * @param credentialGroups The credential groups associated with this session.
    * @return An immutable summary of the state's contents.
    */
   @Nonnull
   public Summary computeSummary(Iterable<CredentialGroup> credentialGroups) {
-    return evolveSummary(new Evolver(credentialGroups));
+    ImmutableList<CredentialGroup> groups = ImmutableList.copyOf(credentialGroups);
+    Memo current = memo;
+    if (current != null && current.isFor(groups)) {
+      return current.summary;
+    }
+    // Find the nearest ancestor with a summary for these groups.
+    AuthnSessionState ancestor = parent;
+    Summary base = null;
+    while (ancestor != null) {
+      Memo ancestorMemo = ancestor.memo;
+      if (ancestorMemo != null && ancestorMemo.isFor(groups)) {
+        base = ancestorMemo.summary;
+        break;
+      }
+      ancestor = ancestor.parent;
+    }
+    Summary summary = (base == null)
+        ? evolveSummary(new Evolver(groups), instructions.toList())
+        : evolveSummary(base.evolve(), instructions.toList(ancestor.instructions));
+    memo = new Memo(groups, summary);
+    parent = null;
+    return summary;
+  }
+
+  /**
+   * Gets a state that's equivalent to this one, but made of as few
+   * instructions as possible: the cookies, credentials, and verifications in
+   * this state's summary.  The history of additions and removals is dropped,
+   * so the result isn't a descendant of this state for {@link #getDelta}.
+   *
+   * @param credentialGroups The credential groups associated with this session.
+   * @return The compacted state, or this state if it can't be compacted
+   *     without changing its summary.
+   */
+  @Nonnull
+  AuthnSessionState compact(Iterable<CredentialGroup> credentialGroups) {
+    Summary summary = computeSummary(credentialGroups);
+    ImmutableList.Builder<Instruction> builder = ImmutableList.builder();
+    for (Map.Entry<AuthnAuthority, ImmutableSet<GCookie>> entry
+             : summary.getCookiesMap().entrySet()) {
+      for (GCookie cookie : entry.getValue()) {
+        builder.add(Instruction.make(Operation.ADD_COOKIE, entry.getKey(), cookie));
+      }
+    }
+    // Verifications go first, since adding one also adds its credentials,
+    // which may replace newer ones; the credentials then put those back.
+    for (Map.Entry<AuthnAuthority, Verification> entry
+             : summary.getVerificationsMap().entrySet()) {
+      builder.add(Instruction.make(Operation.ADD_VERIFICATION, entry.getKey(), entry.getValue()));
+    }
+    for (Map.Entry<AuthnAuthority, Credential> entry : summary.getCredentialsMap().entries()) {
+      builder.add(Instruction.make(Operation.ADD_CREDENTIAL, entry.getKey(), entry.getValue()));
+    }
+    AuthnSessionState compacted = of(builder.build());
+    if (compacted.size() >= size()
+        || !summary.isEquivalent(compacted.computeSummary(summary.getCredentialGroups()))) {
+      return this;
+    }
+    return compacted;
   }
 
   /**
@@ -365,11 +445,11 @@ public final class AuthnSessionState {
    */
   @Nonnull
   public Summary evolveSummary(Summary summary) {
-    return evolveSummary(summary.evolve());
+    return evolveSummary(summary.evolve(), instructions.toList());
   }
 
-  private Summary evolveSummary(Evolver evolver) {
-    for (Instruction instruction : getInstructions()) {
+  private static Summary evolveSummary(Evolver evolver, Iterable<Instruction> instructions) {
+    for (Instruction instruction : instructions) {
       AuthnAuthority authority = instruction.getAuthority();
       Object operand = instruction.getOperand();
       switch (instruction.getOperation()) {
@@ -574,6 +654,27 @@ public final class AuthnSessionState {
       return new Evolver(credentialGroups, cookiesMap, credentialsMap, verificationsMap);
     }
 
+    /**
+     * Does this summary have the same contents as another?  Authorities whose
+     * cookies have all been removed are ignored.
+     */
+    private boolean isEquivalent(Summary other) {
+      return nonEmptyCookies(cookiesMap).equals(nonEmptyCookies(other.cookiesMap))
+          && credentialsMap.equals(other.credentialsMap)
+          && verificationsMap.equals(other.verificationsMap);
+    }
+
+    private static Map<AuthnAuthority, ImmutableSet<GCookie>> nonEmptyCookies(
+        ImmutableMap<AuthnAuthority, ImmutableSet<GCookie>> cookiesMap) {
+      Map<AuthnAuthority, ImmutableSet<GCookie>> result = Maps.newHashMap();
+      for (Map.Entry<AuthnAuthority, ImmutableSet<GCookie>> entry : cookiesMap.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          result.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return result;
+    }
+
     /**
      * Gets the credential groups that were used to generate this summary.
      */
@@ -707,6 +808,25 @@ public final class AuthnSessionState {
     }
   }
 
+  /** A summary, and the credential groups it was computed for. */
+  @Immutable
+  private static final class Memo {
+    @Nonnull final ImmutableList<CredentialGroup> credentialGroups;
+    @Nonnull final Summary summary;
+
+    Memo(ImmutableList<CredentialGroup> credentialGroups, Summary summary) {
+      this.credentialGroups = credentialGroups;
+      this.summary = summary;
+    }
+
+    boolean isFor(ImmutableList<CredentialGroup> credentialGroups) {
+      // The groups usually come straight from the configuration, so the
+      // identity test almost always settles it.
+      return this.credentialGroups == credentialGroups
+          || this.credentialGroups.equals(credentialGroups);
+    }
+  }
+
   static void registerTypeAdapters(GsonBuilder builder) {
     builder.registerTypeAdapter(AuthnSessionState.class,
         ProxyTypeAdapter.make(AuthnSessionState.class, LocalProxy.class));
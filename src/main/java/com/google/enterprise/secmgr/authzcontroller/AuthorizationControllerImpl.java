@@ -39,6 +39,10 @@ public final class AuthorizationControllerImpl implements AuthorizationControlle
   private static final Logger logger
       = Logger.getLogger(AuthorizationControllerImpl.class.getName());
 
+  // Runs the authorization rounds one after another, as before the dispatcher
+  // learned to pipeline them.
+  private static final boolean ROUND_BASED = Boolean.getBoolean("gsa.authzRoundBased");
+
   private final AuthorizationMapManager mapManager;
   private final AuthorizationDispatcher dispatcher;
   private final AuthzCacheModule cacheModule;
@@ -60,8 +64,15 @@ public final class AuthorizationControllerImpl implements AuthorizationControlle
         = AuthzControllerState.makeInitial(
             mapManager.getAuthorizationMap(enableFastAuthz).mapResources(resources));
     Collection<AuthzBatch> batches = state.getBatches();
+    AuthzResult results;
     if (batches.isEmpty()) {
       logger.info(snapshot.logMessage("No queries to process"));
+      results = state.getResult();
+    } else if (!ROUND_BASED) {
+      logger.info(snapshot.logMessage("Batches: %d; unfinished queries: %d",
+              batches.size(),
+              state.countPendingQueries()));
+      results = dispatcher.dispatchAll(state, snapshot);
     } else {
       int iterations = 0;
       while (true) {
@@ -80,27 +91,9 @@ public final class AuthorizationControllerImpl implements AuthorizationControlle
           "Authorization done after %d iterations; unfinished queries: %d",
           iterations,
           state.countPendingQueries()));
+      results = state.getResult();
     }
-    AuthzResult results = state.getResult();
-    populateUserCache(results, snapshot.getSessionId());
+    cacheModule.rememberAll(snapshot.getSessionId(), results);
     return results;
   }
-
-  private void populateUserCache(AuthzResult results, String sessionId) {
-    for (String resource : results.keySet()) {
-      if (!results.wasDeterminedByCache(resource)) {
-        switch (results.get(resource)) {
-          case PERMIT:
-            cacheModule.rememberPermit(resource, sessionId);
-            break;
-          case DENY:
-            cacheModule.rememberDeny(resource, sessionId);
-            break;
-          case INDETERMINATE:
-          default:
-            /* NOOP */
-        }
-      }
-    }
-  }
 }
@@ -25,4 +25,15 @@ import java.util.Collection;
  */
 public interface AuthorizationDispatcher {
   public AuthzResult dispatch(Collection<AuthzBatch> batches, SessionSnapshot snapshot);
+
+  /**
+   * Processes a controller state to completion: its batches are tried, and
+   * each query that's still indeterminate is tried with its next method,
+   * until every query is decided or has run out of methods.
+   *
+   * @param state The initial controller state.
+   * @param snapshot A session snapshot to get credentials from.
+   * @return The final result for all of the state's queries.
+   */
+  public AuthzResult dispatchAll(AuthzControllerState state, SessionSnapshot snapshot);
 }
@@ -14,11 +14,13 @@
 
 package com.google.enterprise.secmgr.authzcontroller;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.labs.matcher.ParsedUrlPattern;
 import com.google.enterprise.secmgr.common.Resource;
 
+import java.util.BitSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -38,15 +40,21 @@ import javax.annotation.concurrent.NotThreadSafe;
  * preferred matching order.  If a resource matches two or more patterns, then
  * the order in which those rules were added will determine the order in which
  * those methods will be tried.
+ * <p>
+ * When the map is built, the rules are compiled into an
+ * {@link AuthorizationRuleIndex}, so that mapping a resource doesn't require
+ * running every rule's regex against its URL.
  */
 @Immutable
 @ParametersAreNonnullByDefault
 public final class AuthorizationMap {
 
   @Nonnull private final ImmutableList<Rule> rules;
+  @Nonnull private final AuthorizationRuleIndex index;
 
-  private AuthorizationMap(ImmutableList<Rule> rules) {
+  private AuthorizationMap(ImmutableList<Rule> rules, AuthorizationRuleIndex index) {
     this.rules = rules;
+    this.index = index;
   }
 
   /**
@@ -64,9 +72,11 @@ public final class AuthorizationMap {
   @ParametersAreNonnullByDefault
   public static final class Builder {
     private ImmutableList.Builder<Rule> listBuilder;
+    private AuthorizationRuleIndex.Builder indexBuilder;
 
     private Builder() {
       listBuilder = ImmutableList.builder();
+      indexBuilder = AuthorizationRuleIndex.builder();
     }
 
     /**
@@ -81,8 +91,9 @@ public final class AuthorizationMap {
       Preconditions.checkNotNull(pattern);
       Preconditions.checkNotNull(method);
       ParsedUrlPattern p = new ParsedUrlPattern(pattern);
-      String urlRegex = p.getUrlRegex();
-      listBuilder.add(new Rule(Pattern.compile(urlRegex), method));
+      Pattern urlRegex = Pattern.compile(p.getUrlRegex());
+      listBuilder.add(new Rule(urlRegex, method));
+      indexBuilder.add(p, urlRegex);
       return this;
     }
 
@@ -91,7 +102,7 @@ public final class AuthorizationMap {
      */
     @Nonnull
     public AuthorizationMap build() {
-      return new AuthorizationMap(listBuilder.build());
+      return new AuthorizationMap(listBuilder.build(), indexBuilder.build());
     }
   }
 
@@ -116,8 +127,24 @@ public final class AuthorizationMap {
     return AuthorizationQuery.make(resource, getMatchingMethods(resource));
   }
 
+  @VisibleForTesting
+  @Nonnull
+  List<AuthorizationMethod> getMatchingMethods(Resource resource) {
+    BitSet matches = index.getMatchingRules(resource.getUrl());
+    ImmutableList.Builder<AuthorizationMethod> listBuilder = ImmutableList.builder();
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      listBuilder.add(rules.get(i).getMethod());
+    }
+    return listBuilder.build();
+  }
+
+  /**
+   * Gets the matching methods for a resource by trying every rule in turn.
+   * This is the behavior that the rule index must reproduce.
+   */
+  @VisibleForTesting
   @Nonnull
-  private List<AuthorizationMethod> getMatchingMethods(Resource resource) {
+  List<AuthorizationMethod> scanMatchingMethods(Resource resource) {
     ImmutableList.Builder<AuthorizationMethod> listBuilder = ImmutableList.builder();
     for (Rule rule : rules) {
       if (rule.getPattern().matcher(resource.getUrl()).find()) {
@@ -123,10 +123,10 @@ public final class AuthorizationMethodImpl implements AuthorizationMethod {
             rule.getAuthzMechType(),
             entry.getKey()));
 
-        batchLogger.log(snapshot.getRequestId(), String.format("%s by %s: %s",
+        batchLogger.log(snapshot.getRequestId(), "%s by %s: %s",
             entry.getValue().getDescription(),
             rule.getAuthzMechType(),
-            entry.getKey()));
+            entry.getKey());
       }
       i++;
     }
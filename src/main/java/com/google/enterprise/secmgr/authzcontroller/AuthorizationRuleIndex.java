@@ -0,0 +1,373 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.authzcontroller;
+
+import com.google.common.base.Preconditions;
+import com.google.common.labs.matcher.ParsedUrlPattern;
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A compiled index over the URL patterns of an {@link AuthorizationMap}.
+ * Given a URL, it computes the set of rules whose regex would {@code find()}
+ * a match in that URL, without running every rule's regex.
+ * <p>
+ * Each rule is placed into one of these buckets, based on the regex that
+ * {@link ParsedUrlPattern} generates for it:
+ * <ul>
+ * <li>exact: the regex is an anchored literal followed by an end anchor; the
+ *     URL is looked up in a hash table.</li>
+ * <li>prefix: the regex begins with an anchored literal; the literal is put
+ *     in a character trie that is walked once from the start of the URL.</li>
+ * <li>literal: the regex begins with an unanchored literal (typically the
+ *     host part of the pattern, or a {@code contains:} pattern); the literal
+ *     is put in a character trie that is walked from each position of the
+ *     URL.</li>
+ * <li>regex: everything else (e.g. {@code regexp:} patterns); these are
+ *     scanned sequentially, as before.</li>
+ * </ul>
+ * A prefix or literal hit that is followed by more regex (a port pattern or a
+ * path, say) is confirmed by running that rule's regex, so the result is
+ * always identical to a linear scan of all the rules.
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+final class AuthorizationRuleIndex {
+
+  private static final String ANCHOR_START = "\\A";
+  private static final String ANCHOR_END = "\\Z";
+  private static final String QUOTE_START = "\\Q";
+  private static final String QUOTE_END = "\\E";
+  private static final String CONTAINS_PREFIX = "contains:";
+
+  @Nonnull private final Pattern[] patterns;
+  @Nonnull private final boolean[] needsVerification;
+  @Nonnull private final Map<String, int[]> exactMatches;
+  @Nonnull private final TrieNode prefixTrie;
+  @Nonnull private final TrieNode literalTrie;
+  @Nonnull private final int[] alwaysMatches;
+  @Nonnull private final int[] regexRules;
+
+  private AuthorizationRuleIndex(Pattern[] patterns, boolean[] needsVerification,
+      Map<String, int[]> exactMatches, TrieNode prefixTrie, TrieNode literalTrie,
+      int[] alwaysMatches, int[] regexRules) {
+    this.patterns = patterns;
+    this.needsVerification = needsVerification;
+    this.exactMatches = exactMatches;
+    this.prefixTrie = prefixTrie;
+    this.literalTrie = literalTrie;
+    this.alwaysMatches = alwaysMatches;
+    this.regexRules = regexRules;
+  }
+
+  /**
+   * @return A new index builder.
+   */
+  @Nonnull
+  static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for the index.  Rules must be added in the same order as they
+   * appear in the authorization map, since a rule's position is its ID.
+   */
+  @NotThreadSafe
+  @ParametersAreNonnullByDefault
+  static final class Builder {
+    private final List<Pattern> patterns;
+    private final List<Boolean> needsVerification;
+    private final Map<String, List<Integer>> exactMatches;
+    private final TrieNodeBuilder prefixTrie;
+    private final TrieNodeBuilder literalTrie;
+    private final List<Integer> alwaysMatches;
+    private final List<Integer> regexRules;
+
+    private Builder() {
+      patterns = new ArrayList<>();
+      needsVerification = new ArrayList<>();
+      exactMatches = new HashMap<>();
+      prefixTrie = new TrieNodeBuilder();
+      literalTrie = new TrieNodeBuilder();
+      alwaysMatches = new ArrayList<>();
+      regexRules = new ArrayList<>();
+    }
+
+    /**
+     * Adds the next rule to the index.
+     *
+     * @param parsedPattern The parsed URL pattern of the rule.
+     * @param pattern The compiled regex for the rule.
+     * @return This builder, for convenience.
+     */
+    @Nonnull
+    Builder add(ParsedUrlPattern parsedPattern, Pattern pattern) {
+      int id = patterns.size();
+      patterns.add(pattern);
+      LeadingLiteral leading = isLiteralSafe(parsedPattern)
+          ? LeadingLiteral.parse(pattern.pattern())
+          : null;
+      if (leading == null) {
+        regexRules.add(id);
+        needsVerification.add(true);
+      } else if (leading.literal.isEmpty()) {
+        // An unanchored empty regex matches anything; anything else with no
+        // literal to key on must be scanned.
+        if (!leading.anchored && leading.tail.isEmpty()) {
+          alwaysMatches.add(id);
+          needsVerification.add(false);
+        } else {
+          regexRules.add(id);
+          needsVerification.add(true);
+        }
+      } else if (leading.anchored && ANCHOR_END.equals(leading.tail)) {
+        List<Integer> ids = exactMatches.get(leading.literal);
+        if (ids == null) {
+          ids = new ArrayList<>();
+          exactMatches.put(leading.literal, ids);
+        }
+        ids.add(id);
+        needsVerification.add(false);
+      } else if (leading.anchored) {
+        prefixTrie.add(leading.literal, id);
+        needsVerification.add(!leading.tail.isEmpty());
+      } else {
+        literalTrie.add(leading.literal, id);
+        needsVerification.add(!leading.tail.isEmpty());
+      }
+      return this;
+    }
+
+    /**
+     * @return The index for this builder.
+     */
+    @Nonnull
+    AuthorizationRuleIndex build() {
+      Map<String, int[]> exact = new HashMap<>();
+      for (Map.Entry<String, List<Integer>> entry : exactMatches.entrySet()) {
+        exact.put(entry.getKey(), Ints.toArray(entry.getValue()));
+      }
+      return new AuthorizationRuleIndex(
+          patterns.toArray(new Pattern[patterns.size()]),
+          toBooleanArray(needsVerification),
+          exact,
+          prefixTrie.build(),
+          literalTrie.build(),
+          Ints.toArray(alwaysMatches),
+          Ints.toArray(regexRules));
+    }
+  }
+
+  /**
+   * Gets the IDs of all the rules that match a given URL.
+   *
+   * @param url The URL to match.
+   * @return A bit set with one bit set for each matching rule ID.
+   */
+  @CheckReturnValue
+  @Nonnull
+  BitSet getMatchingRules(String url) {
+    Preconditions.checkNotNull(url);
+    BitSet result = new BitSet(patterns.length);
+    for (int id : alwaysMatches) {
+      result.set(id);
+    }
+    addExactMatches(url, result);
+    prefixTrie.addMatches(url, 0, result);
+    for (int start = 0; start < url.length(); start++) {
+      literalTrie.addMatches(url, start, result);
+    }
+    for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+      if (needsVerification[id] && !patterns[id].matcher(url).find()) {
+        result.clear(id);
+      }
+    }
+    for (int id : regexRules) {
+      if (patterns[id].matcher(url).find()) {
+        result.set(id);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of rules in this index.
+   */
+  int size() {
+    return patterns.length;
+  }
+
+  private void addExactMatches(String url, BitSet result) {
+    addAll(exactMatches.get(url), result);
+    // \Z also matches before a final line terminator.
+    int n = url.length();
+    if (n > 0 && isLineTerminator(url.charAt(n - 1))) {
+      int end = (n > 1 && url.charAt(n - 1) == '\n' && url.charAt(n - 2) == '\r')
+          ? n - 2
+          : n - 1;
+      addAll(exactMatches.get(url.substring(0, end)), result);
+    }
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  private static void addAll(int[] ids, BitSet result) {
+    if (ids != null) {
+      for (int id : ids) {
+        result.set(id);
+      }
+    }
+  }
+
+  private static boolean[] toBooleanArray(List<Boolean> list) {
+    boolean[] array = new boolean[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  // Only the regexes that ParsedUrlPattern builds for host-path and contains:
+  // patterns are plain concatenations, so their leading literal is required
+  // for a match.  User-supplied regexes may contain alternations and the like.
+  private static boolean isLiteralSafe(ParsedUrlPattern parsedPattern) {
+    return parsedPattern.isHostPathType()
+        || parsedPattern.getUrlPattern().startsWith(CONTAINS_PREFIX);
+  }
+
+  /**
+   * The literal text that a regex starts with, split from the rest of it.
+   */
+  @Immutable
+  @ParametersAreNonnullByDefault
+  private static final class LeadingLiteral {
+    final boolean anchored;
+    @Nonnull final String literal;
+    @Nonnull final String tail;
+
+    LeadingLiteral(boolean anchored, String literal, String tail) {
+      this.anchored = anchored;
+      this.literal = literal;
+      this.tail = tail;
+    }
+
+    static LeadingLiteral parse(String regex) {
+      int index = 0;
+      boolean anchored = regex.startsWith(ANCHOR_START);
+      if (anchored) {
+        index += ANCHOR_START.length();
+      }
+      StringBuilder literal = new StringBuilder();
+      while (index < regex.length()) {
+        if (regex.startsWith(QUOTE_START, index)) {
+          int end = regex.indexOf(QUOTE_END, index + QUOTE_START.length());
+          if (end < 0) {
+            return null;
+          }
+          literal.append(regex, index + QUOTE_START.length(), end);
+          index = end + QUOTE_END.length();
+        } else if (regex.charAt(index) == '/') {
+          literal.append('/');
+          index++;
+        } else {
+          break;
+        }
+      }
+      return new LeadingLiteral(anchored, literal.toString(), regex.substring(index));
+    }
+  }
+
+  /**
+   * A node in a compiled character trie.  The children are kept in a sorted
+   * array so that a lookup is a binary search with no boxing.
+   */
+  @Immutable
+  private static final class TrieNode {
+    private static final int[] NO_IDS = new int[0];
+
+    @Nonnull private final char[] keys;
+    @Nonnull private final TrieNode[] children;
+    @Nonnull private final int[] ids;
+
+    TrieNode(char[] keys, TrieNode[] children, int[] ids) {
+      this.keys = keys;
+      this.children = children;
+      this.ids = ids;
+    }
+
+    void addMatches(String subject, int start, BitSet result) {
+      TrieNode node = this;
+      int i = start;
+      while (true) {
+        addAll(node.ids, result);
+        if (i >= subject.length() || node.keys.length == 0) {
+          return;
+        }
+        int k = Arrays.binarySearch(node.keys, subject.charAt(i++));
+        if (k < 0) {
+          return;
+        }
+        node = node.children[k];
+      }
+    }
+  }
+
+  @NotThreadSafe
+  private static final class TrieNodeBuilder {
+    private final TreeMap<Character, TrieNodeBuilder> children = new TreeMap<>();
+    private final List<Integer> ids = new ArrayList<>();
+
+    void add(String literal, int id) {
+      TrieNodeBuilder node = this;
+      for (int i = 0; i < literal.length(); i++) {
+        TrieNodeBuilder child = node.children.get(literal.charAt(i));
+        if (child == null) {
+          child = new TrieNodeBuilder();
+          node.children.put(literal.charAt(i), child);
+        }
+        node = child;
+      }
+      node.ids.add(id);
+    }
+
+    TrieNode build() {
+      char[] keys = new char[children.size()];
+      TrieNode[] nodes = new TrieNode[children.size()];
+      int i = 0;
+      for (Map.Entry<Character, TrieNodeBuilder> entry : children.entrySet()) {
+        keys[i] = entry.getKey();
+        nodes[i] = entry.getValue().build();
+        i++;
+      }
+      return new TrieNode(keys, nodes, ids.isEmpty() ? TrieNode.NO_IDS : Ints.toArray(ids));
+    }
+  }
+}
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.secmgr.authzcontroller;
 
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
@@ -133,7 +132,10 @@ public class AuthzControllerState {
     return batches;
   }
 
-  @VisibleForTesting
+  /**
+   * @return The queries with more methods to try, with the methods of the
+   * current batches already removed.
+   */
   Collection<AuthorizationQuery> getUnfinishedQueries() {
     return unfinishedQueries;
   }
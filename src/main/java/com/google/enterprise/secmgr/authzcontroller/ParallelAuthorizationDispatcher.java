@@ -14,33 +14,70 @@
 
 package com.google.enterprise.secmgr.authzcontroller;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.secmgr.authncontroller.SessionSnapshot;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.secmgr.common.Resource;
 import com.google.enterprise.secmgr.common.SecurityManagerUtil;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
+import com.google.enterprise.secmgr.common.WorkerPool;
 import com.google.enterprise.secmgr.modules.AuthzResult;
 import com.google.inject.Singleton;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.Immutable;
 import javax.inject.Inject;
 
 /**
  * Parallel implementation of {@link AuthorizationDispatcher}.
+ *
+ * <p>{@link #dispatchAll} pipelines the controller's rounds: as soon as a
+ * batch finishes, its indeterminate queries are sent on to their next
+ * methods, without waiting for the other batches of the round.  Each batch
+ * has its own deadline, taken from its method's timeout, so a slow method
+ * only delays the queries that depend on it.
  */
 @Singleton
 @Immutable
 public class ParallelAuthorizationDispatcher implements AuthorizationDispatcher {
 
-  private static final Logger logger = 
+  private static final Logger logger =
       Logger.getLogger(ParallelAuthorizationDispatcher.class.getName());
   // default value is 5 seconds, will choose the max of individual authz method
   private static final long TIMEOUT = 5000;  // milliseconds
+  // extra time allowed for a batch beyond its method's timeout
+  private static final long GRACE = 1000;  // milliseconds
+
+  private static final ScheduledExecutorService deadlines =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("AuthzDeadlines-%d")
+          .setDaemon(true)
+          .build());
 
   @Inject
   private ParallelAuthorizationDispatcher() {
@@ -58,12 +95,13 @@ public class ParallelAuthorizationDispatcher implements AuthorizationDispatcher
         timeout = batchTimeout;
       }
     }
-    timeout += 1000;
+    timeout += GRACE;
 
     AuthzResult.Builder resultBuilder = AuthzResult.builder();
     try {
       List<AuthzResult> results
           = SecurityManagerUtil.runInParallel(
+              Workload.AUTHZ,
               makeCallables(batches, snapshot),
               timeout,
               snapshot.getLogDecorator());
@@ -71,12 +109,27 @@ public class ParallelAuthorizationDispatcher implements AuthorizationDispatcher
         resultBuilder.addAll(result);
       }
     } catch (ExecutionException e) {
-      logger.log(Level.WARNING, snapshot.getLogDecorator().apply("Exception in worker thread: "), 
+      logger.log(Level.WARNING, snapshot.getLogDecorator().apply("Exception in worker thread: "),
           e.getCause());
     }
     return resultBuilder.build();
   }
 
+  @Override
+  public AuthzResult dispatchAll(AuthzControllerState state, SessionSnapshot snapshot) {
+    return new Pipeline(state, snapshot, SecurityManagerUtil.getWorkerPool(Workload.AUTHZ)).run();
+  }
+
+  /**
+   * Gets the time allowed for a batch.
+   *
+   * @param method The batch's method.
+   * @return The deadline, in milliseconds after the batch is submitted.
+   */
+  private static long getDeadlineMillis(AuthorizationMethod method) {
+    return Math.max(TIMEOUT, method.getTimeout()) + GRACE;
+  }
+
   private static List<Callable<AuthzResult>> makeCallables(Collection<AuthzBatch> batches,
       SessionSnapshot snapshot) {
     ImmutableList.Builder<Callable<AuthzResult>> builder = ImmutableList.builder();
@@ -100,4 +153,249 @@ public class ParallelAuthorizationDispatcher implements AuthorizationDispatcher
       return batch.getMethod().authorize(batch.getResources(), snapshot);
     }
   }
+
+  /**
+   * The batches in flight for one {@link #dispatchAll} call.  A batch's
+   * round is the number of methods its queries have already tried.
+   */
+  private static final class Pipeline {
+    final SessionSnapshot snapshot;
+    final WorkerPool pool;
+    final long startNanos = System.nanoTime();
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    final List<AuthzBatch> initialBatches;
+    final long timeoutMillis;
+
+    // The remaining methods for each query, by URL.
+    @GuardedBy("this") final Map<String, AuthorizationQuery> pending = Maps.newHashMap();
+    @GuardedBy("this") final AuthzResult.Builder resultBuilder;
+    @GuardedBy("this") final List<RoundStats> rounds = Lists.newArrayList();
+    @GuardedBy("this") final Set<Future<?>> running = Sets.newHashSet();
+    @GuardedBy("this") int outstanding = 0;
+    @GuardedBy("this") boolean closed = false;
+
+    Pipeline(AuthzControllerState state, SessionSnapshot snapshot, WorkerPool pool) {
+      this.snapshot = snapshot;
+      this.pool = pool;
+      initialBatches = state.getBatches();
+      resultBuilder = AuthzResult.builder(state.getResult());
+      for (AuthorizationQuery query : state.getUnfinishedQueries()) {
+        pending.put(query.getResource().getUrl(), query);
+      }
+      // The longest chain of deadlines any query might go through; each batch
+      // is cut off at its own deadline, so this is only a safety net.
+      long longest = 0;
+      for (AuthzBatch batch : initialBatches) {
+        for (Resource resource : batch.getResources()) {
+          long total = getDeadlineMillis(batch.getMethod());
+          AuthorizationQuery query = pending.get(resource.getUrl());
+          if (query != null) {
+            for (AuthorizationMethod method : query.getMethods()) {
+              total += getDeadlineMillis(method);
+            }
+          }
+          longest = Math.max(longest, total);
+        }
+      }
+      timeoutMillis = longest + GRACE;
+    }
+
+    AuthzResult run() {
+      List<Launch> launches = Lists.newArrayList();
+      synchronized (this) {
+        // A batch that finishes quickly can complete before the others are
+        // handed to the pool, so hold off completion until all are in.
+        outstanding++;
+        for (AuthzBatch batch : initialBatches) {
+          launches.add(submit(batch, 0));
+        }
+      }
+      start(launches);
+      synchronized (this) {
+        release();
+      }
+      try {
+        done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        logger.warning(snapshot.logMessage("Authorization timed out after %d ms",
+            timeoutMillis));
+      } catch (InterruptedException e) {
+        logger.warning(snapshot.logMessage("Authorization interrupted"));
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // The future is only ever completed normally.
+        throw new IllegalStateException(e.getCause());
+      }
+      synchronized (this) {
+        closed = true;
+        for (Future<?> task : running) {
+          task.cancel(true);
+        }
+        for (int i = 0; i < rounds.size(); i++) {
+          RoundStats stats = rounds.get(i);
+          logger.info(snapshot.logMessage(
+              "Authorization round %d: %d batches; %d queries; done after %d ms",
+              i, stats.batches, stats.queries, stats.lastMillis));
+        }
+        logger.info(snapshot.logMessage("Authorization done after %d ms; rounds: %d",
+            elapsedMillis(), rounds.size()));
+        return resultBuilder.build();
+      }
+    }
+
+    /**
+     * Counts a batch in and arms its deadline.  The batch must then be
+     * handed to the pool with {@link #start}, outside this pipeline's lock,
+     * since the pool may run it in the calling thread.
+     */
+    @GuardedBy("this")
+    Launch submit(AuthzBatch batch, int round) {
+      if (rounds.size() == round) {
+        rounds.add(new RoundStats());
+      }
+      RoundStats stats = rounds.get(round);
+      stats.batches++;
+      stats.queries += batch.getResources().size();
+      outstanding++;
+
+      final Launch launch = new Launch(batch, round);
+      final ScheduledFuture<?> deadline = deadlines.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              // A null result marks the batch as timed out.
+              if (launch.future.complete(null)) {
+                Future<?> task = launch.task;
+                if (task != null) {
+                  task.cancel(true);
+                }
+                pool.recordTimedOut(1);
+              }
+            }
+          },
+          getDeadlineMillis(batch.getMethod()),
+          TimeUnit.MILLISECONDS);
+      launch.future.whenComplete(
+          new BiConsumer<AuthzResult, Throwable>() {
+            @Override
+            public void accept(AuthzResult result, Throwable failure) {
+              deadline.cancel(false);
+              finish(launch, result, failure);
+            }
+          });
+      return launch;
+    }
+
+    void start(List<Launch> launches) {
+      for (final Launch launch : launches) {
+        if (launch.future.isDone()) {
+          // Already past its deadline.
+          continue;
+        }
+        Future<?> task;
+        try {
+          task = pool.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    launch.future.complete(
+                        launch.batch.getMethod().authorize(launch.batch.getResources(), snapshot));
+                  } catch (RuntimeException e) {
+                    launch.future.completeExceptionally(e);
+                  }
+                }
+              });
+        } catch (RejectedExecutionException e) {
+          launch.future.completeExceptionally(e);
+          continue;
+        }
+        synchronized (this) {
+          launch.task = task;
+          if (closed || launch.future.isDone()) {
+            task.cancel(true);
+          } else {
+            running.add(task);
+          }
+        }
+      }
+    }
+
+    void finish(Launch launch, AuthzResult result, Throwable failure) {
+      List<Launch> launches = Lists.newArrayList();
+      synchronized (this) {
+        if (launch.task != null) {
+          running.remove(launch.task);
+        }
+        AuthzBatch batch = launch.batch;
+        rounds.get(launch.round).lastMillis = elapsedMillis();
+        if (failure != null) {
+          logger.log(Level.WARNING,
+              snapshot.getLogDecorator().apply("Exception in worker thread: "), failure);
+        } else if (result == null) {
+          logger.warning(snapshot.logMessage("Authorization method %s timed out",
+              batch.getMethod().getName()));
+        }
+        if (!closed) {
+          if (result != null) {
+            resultBuilder.addAll(result);
+          }
+          // As in AuthzControllerState.next, only queries that the method
+          // explicitly left indeterminate go on to their next method.
+          SetMultimap<AuthorizationMethod, Resource> next = HashMultimap.create();
+          for (Resource resource : batch.getResources()) {
+            AuthorizationQuery query = pending.remove(resource.getUrl());
+            if (query != null && result != null
+                && result.get(resource.getUrl()) == AuthzStatus.INDETERMINATE) {
+              List<? extends AuthorizationMethod> methods = query.getMethods();
+              next.put(methods.get(0), resource);
+              if (methods.size() > 1) {
+                pending.put(resource.getUrl(), query.popMethods());
+              }
+            }
+          }
+          for (Map.Entry<AuthorizationMethod, Collection<Resource>> entry
+                   : next.asMap().entrySet()) {
+            launches.add(submit(AuthzBatch.make(entry.getKey(), entry.getValue()),
+                launch.round + 1));
+          }
+        }
+        // The next round's batches are already counted, so this can't
+        // complete the pipeline while they're still to be started.
+        release();
+      }
+      start(launches);
+    }
+
+    @GuardedBy("this")
+    void release() {
+      if (--outstanding == 0) {
+        done.complete(null);
+      }
+    }
+
+    long elapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+  }
+
+  /** A batch of a pipeline, from when it's counted in until it finishes. */
+  private static final class Launch {
+    final AuthzBatch batch;
+    final int round;
+    final CompletableFuture<AuthzResult> future = new CompletableFuture<AuthzResult>();
+    // Set once the pool has accepted the batch.
+    volatile Future<?> task;
+
+    Launch(AuthzBatch batch, int round) {
+      this.batch = batch;
+      this.round = round;
+    }
+  }
+
+  private static final class RoundStats {
+    int batches;
+    int queries;
+    long lastMillis;
+  }
 }
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.secmgr.common;
 
+import java.net.URI;
 import java.util.Collection;
 
 import javax.annotation.Nonnegative;
@@ -78,4 +79,13 @@ public interface CookieStore extends Collection<GCookie> {
    */
   @Nullable
   public GCookie get(GCookie.Key key);
+
+  /**
+   * Gets the cookies in this store that are suitable to be sent to a given
+   * URI, as determined by {@link GCookie#isGoodFor}.
+   *
+   * @param uri The URI the cookies are to be sent to.
+   * @return The suitable cookies, in no particular order.
+   */
+  public Collection<GCookie> getCookiesFor(URI uri);
 }
@@ -16,15 +16,23 @@ package com.google.enterprise.secmgr.common;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.joda.time.DateTimeUtils;
 
+import java.net.URI;
 import java.util.AbstractCollection;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
@@ -35,6 +43,12 @@ import javax.annotation.concurrent.NotThreadSafe;
 /**
  * An implementation of a mutable cookie store that automatically expires
  * cookies whenever a cookie is added or the store is iterated.
+ * <p>
+ * Besides the cookies themselves, the store keeps two indexes of their keys:
+ * one by lower-cased name, for name lookups and for replacing cookies on
+ * {@link #add}, and one by lower-cased domain and then path, so that the
+ * cookies for a URI can be found by looking up each suffix of its host and
+ * each prefix of its path instead of testing every cookie.
  */
 @NotThreadSafe
 @ParametersAreNonnullByDefault
@@ -42,9 +56,13 @@ final class CookieStoreImpl extends AbstractCollection<GCookie>
     implements CookieStore {
 
   @Nonnull private final Map<GCookie.Key, GCookie> map;
+  @Nonnull private final Map<String, Set<GCookie.Key>> byName;
+  @Nonnull private final Map<String, Map<String, Set<GCookie.Key>>> byDomainAndPath;
 
   CookieStoreImpl() {
     map = Maps.newHashMap();
+    byName = Maps.newHashMap();
+    byDomainAndPath = Maps.newHashMap();
   }
 
   @Override
@@ -61,37 +79,119 @@ final class CookieStoreImpl extends AbstractCollection<GCookie>
     if (cookie.equals(oldCookie)) {
       return false;
     }
-    Iterables.removeIf(this, matchingKeyPredicate(key));
+    Set<GCookie.Key> sameName = byName.get(lowerCase(key.getName()));
+    if (sameName != null) {
+      Predicate<GCookie.Key> matching = matchingKeyPredicate(key);
+      for (GCookie.Key other : ImmutableList.copyOf(sameName)) {
+        if (matching.apply(other)) {
+          map.remove(other);
+          unindex(other);
+        }
+      }
+    }
     if (oldCookie != null) {
-      map.put(key, GCookie.builder(cookie).setCreationTime(oldCookie.getCreationTime()).build());
-    } else {
-      map.put(key, cookie);
+      cookie = GCookie.builder(cookie).setCreationTime(oldCookie.getCreationTime()).build();
     }
+    map.put(key, cookie);
+    index(key);
     return true;
   }
 
-  private static Predicate<GCookie> matchingKeyPredicate(final GCookie.Key key) {
+  private static Predicate<GCookie.Key> matchingKeyPredicate(final GCookie.Key key) {
     return key.isPartial()
-      ? new Predicate<GCookie>() {
+      ? new Predicate<GCookie.Key>() {
           @Override
-          public boolean apply(GCookie cookie) {
-            GCookie.Key other = cookie.getKey();
+          public boolean apply(GCookie.Key other) {
             return key.getName().equals(other.getName());
           }
         }
-      : new Predicate<GCookie>() {
+      : new Predicate<GCookie.Key>() {
           @Override
-          public boolean apply(GCookie cookie) {
-            GCookie.Key other = cookie.getKey();
+          public boolean apply(GCookie.Key other) {
             return key.getName().equals(other.getName())
                 && (other.isPartial() || key.equals(other));
           }
         };
   }
 
+  private void index(GCookie.Key key) {
+    String name = lowerCase(key.getName());
+    Set<GCookie.Key> keys = byName.get(name);
+    if (keys == null) {
+      keys = Sets.newHashSet();
+      byName.put(name, keys);
+    }
+    keys.add(key);
+
+    String domain = lowerCase(key.getDomain());
+    Map<String, Set<GCookie.Key>> byPath = byDomainAndPath.get(domain);
+    if (byPath == null) {
+      byPath = Maps.newHashMap();
+      byDomainAndPath.put(domain, byPath);
+    }
+    keys = byPath.get(key.getPath());
+    if (keys == null) {
+      keys = Sets.newHashSet();
+      byPath.put(key.getPath(), keys);
+    }
+    keys.add(key);
+  }
+
+  private void unindex(GCookie.Key key) {
+    String name = lowerCase(key.getName());
+    Set<GCookie.Key> keys = byName.get(name);
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      byName.remove(name);
+    }
+
+    String domain = lowerCase(key.getDomain());
+    Map<String, Set<GCookie.Key>> byPath = byDomainAndPath.get(domain);
+    if (byPath == null) {
+      return;
+    }
+    keys = byPath.get(key.getPath());
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      byPath.remove(key.getPath());
+      if (byPath.isEmpty()) {
+        byDomainAndPath.remove(domain);
+      }
+    }
+  }
+
+  private static String lowerCase(String string) {
+    return string.toLowerCase(Locale.US);
+  }
+
   @Override
   public Iterator<GCookie> iterator() {
-    return map.values().iterator();
+    final Iterator<GCookie> iterator = map.values().iterator();
+    return new Iterator<GCookie>() {
+      GCookie last;
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public GCookie next() {
+        last = iterator.next();
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        iterator.remove();
+        unindex(last.getKey());
+      }
+    };
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+    byName.clear();
+    byDomainAndPath.clear();
   }
 
   @Override
@@ -125,12 +225,8 @@ final class CookieStoreImpl extends AbstractCollection<GCookie>
   @Nullable
   public GCookie get(String name) {
     Preconditions.checkNotNull(name);
-    for (GCookie cookie : map.values()) {
-      if (name.equalsIgnoreCase(cookie.getName())) {
-        return cookie;
-      }
-    }
-    return null;
+    Set<GCookie.Key> keys = byName.get(lowerCase(name));
+    return (keys == null) ? null : map.get(Iterables.getFirst(keys, null));
   }
 
   @Override
@@ -144,4 +240,63 @@ final class CookieStoreImpl extends AbstractCollection<GCookie>
     Preconditions.checkNotNull(key);
     return map.get(key);
   }
+
+  @Override
+  public Collection<GCookie> getCookiesFor(URI uri) {
+    Preconditions.checkNotNull(uri);
+    String host = uri.getHost();
+    if (host == null) {
+      return Lists.newArrayList(Iterables.filter(this, GCookie.isGoodForPredicate(uri)));
+    }
+    List<GCookie> cookies = Lists.newArrayList();
+    String path = (uri.getPath() == null) ? "" : uri.getPath();
+    // Cookies with no domain match every host.
+    addCookiesFor(uri, "", path, cookies);
+    String domain = GCookie.computeRequestHost(uri).toLowerCase(Locale.US);
+    while (true) {
+      addCookiesFor(uri, domain, path, cookies);
+      int dot = domain.indexOf('.');
+      if (dot < 0) {
+        break;
+      }
+      domain = domain.substring(dot + 1);
+    }
+    return cookies;
+  }
+
+  // Adds the cookies for a domain whose paths match the request path.
+  private void addCookiesFor(URI uri, String domain, String path, List<GCookie> cookies) {
+    Map<String, Set<GCookie.Key>> byPath = byDomainAndPath.get(domain);
+    if (byPath == null) {
+      return;
+    }
+    // A cookie path matches if it's empty, if it's the request path, or if
+    // it's a prefix of the request path ending just before or just after a
+    // separator.
+    addCookiesFor(uri, byPath.get(""), cookies);
+    for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+      if (slash > 0) {
+        addCookiesFor(uri, byPath.get(path.substring(0, slash)), cookies);
+      }
+      if (slash + 1 < path.length()) {
+        addCookiesFor(uri, byPath.get(path.substring(0, slash + 1)), cookies);
+      }
+    }
+    if (!path.isEmpty()) {
+      addCookiesFor(uri, byPath.get(path), cookies);
+    }
+  }
+
+  private void addCookiesFor(URI uri, @Nullable Set<GCookie.Key> keys, List<GCookie> cookies) {
+    if (keys == null) {
+      return;
+    }
+    for (GCookie.Key key : keys) {
+      GCookie cookie = map.get(key);
+      // Checks host-only, secure-only and letter case, which the index doesn't.
+      if (cookie.isGoodFor(uri)) {
+        cookies.add(cookie);
+      }
+    }
+  }
 }
@@ -493,6 +493,39 @@ public final class GCookie {
         && secureOnlyMatch(getSecureOnly(), uri.getScheme());
   }
 
+  /**
+   * Gets a predicate that computes {@link #isGoodFor}.
+   *
+   * @param uri The URI object to test against.
+   * @return A predicate that's true if a given cookie is suitable to be sent
+   *     to the URI.
+   */
+  @Nonnull
+  public static Predicate<GCookie> isGoodForPredicate(final URI uri) {
+    Preconditions.checkNotNull(uri);
+    return new Predicate<GCookie>() {
+      @Override
+      public boolean apply(GCookie cookie) {
+        return cookie.isGoodFor(uri);
+      }
+    };
+  }
+
+  /**
+   * Selects the cookies suitable for a given target URI.  This is much faster
+   * for a {@link CookieStore}, which is indexed, than for other collections.
+   *
+   * @param cookies The cookies to select from.
+   * @param uri The URI object to test against.
+   * @return The cookies that are suitable to be sent to the URI.
+   */
+  @Nonnull
+  public static Iterable<GCookie> cookiesGoodFor(Iterable<GCookie> cookies, URI uri) {
+    return (cookies instanceof CookieStore)
+        ? ((CookieStore) cookies).getCookiesFor(uri)
+        : Iterables.filter(cookies, isGoodForPredicate(uri));
+  }
+
   private static boolean domainMatch(String cookieDomain, boolean hostOnly, String requestHost) {
     if (cookieDomain.isEmpty()) {
       return true;
@@ -543,12 +576,7 @@ public final class GCookie {
   }
 
   private static boolean anyCookieGoodFor(Iterable<GCookie> cookies, URI uri) {
-    for (GCookie cookie : cookies) {
-      if (cookie.isGoodFor(uri)) {
-        return true;
-      }
-    }
-    return false;
+    return !Iterables.isEmpty(cookiesGoodFor(cookies, uri));
   }
 
   /**
@@ -562,13 +590,11 @@ public final class GCookie {
    */
   public static void computeCookiesToSend(URI uri, Iterable<GCookie> userAgentCookies,
       Iterable<GCookie> authorityCookies, CookieStore store) {
-    for (GCookie cookie : authorityCookies) {
-      if (cookie.isGoodFor(uri)) {
-        store.add(cookie);
-      }
+    for (GCookie cookie : cookiesGoodFor(authorityCookies, uri)) {
+      store.add(cookie);
     }
-    for (GCookie cookie : userAgentCookies) {
-      if (cookie.isGoodFor(uri) && !store.contains(cookie.getName())) {
+    for (GCookie cookie : cookiesGoodFor(userAgentCookies, uri)) {
+      if (!store.contains(cookie.getName())) {
         store.add(cookie);
       }
     }
@@ -1164,7 +1190,7 @@ public final class GCookie {
     return true;
   }
 
-  private static String computeRequestHost(URI requestUri) {
+  static String computeRequestHost(URI requestUri) {
     String host = requestUri.getHost();
     try {
       return HttpUtil.canonicalizeDomainName(host);
@@ -0,0 +1,229 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.enterprise.secmgr.common;
+
+import com.google.common.base.Function;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The transitive closure of a member-to-groups map, computed once so that a
+ * lookup doesn't have to walk nested groups.
+ * <p>
+ * Groups are interned to int IDs.  Each member maps to the sorted IDs of every
+ * group it belongs to, directly or through nesting, so a lookup is one hash
+ * probe per principal plus a merge of sorted arrays.  A group's own members
+ * are found under both its case-sensitive and its case-insensitive form, as
+ * in {@link MemberToGroupsResolverMap}.
+ */
+@Immutable
+final class GroupClosureIndex {
+
+  private static final int[] NO_IDS = new int[0];
+
+  private final AclPrincipal[] groups;
+  private final Map<AclPrincipal, int[]> memberClosures;
+
+  private GroupClosureIndex(AclPrincipal[] groups, Map<AclPrincipal, int[]> memberClosures) {
+    this.groups = groups;
+    this.memberClosures = memberClosures;
+  }
+
+  /**
+   * Computes the closure index of a member-to-groups map.
+   *
+   * @param memberToGroups The direct groups of each member.
+   * @param caseInsensitive Normalizes a principal to its case-insensitive form.
+   * @return The index.
+   */
+  static GroupClosureIndex build(Map<AclPrincipal, Set<AclPrincipal>> memberToGroups,
+      Function<AclPrincipal, AclPrincipal> caseInsensitive) {
+    // Intern the groups and the direct memberships.
+    Map<AclPrincipal, Integer> groupIds = new HashMap<>();
+    Map<AclPrincipal, int[]> directGroups = new HashMap<>();
+    for (Map.Entry<AclPrincipal, Set<AclPrincipal>> entry : memberToGroups.entrySet()) {
+      int[] ids = new int[entry.getValue().size()];
+      int n = 0;
+      for (AclPrincipal group : entry.getValue()) {
+        Integer id = groupIds.get(group);
+        if (id == null) {
+          id = groupIds.size();
+          groupIds.put(group, id);
+        }
+        ids[n++] = id;
+      }
+      Arrays.sort(ids);
+      directGroups.put(entry.getKey(), ids);
+    }
+    AclPrincipal[] groups = new AclPrincipal[groupIds.size()];
+    for (Map.Entry<AclPrincipal, Integer> entry : groupIds.entrySet()) {
+      groups[entry.getValue()] = entry.getKey();
+    }
+
+    // The groups that each group is a direct member of.
+    int[][] parents = new int[groups.length][];
+    for (int id = 0; id < groups.length; id++) {
+      parents[id] = union(
+          directGroups.get(groups[id]),
+          directGroups.get(caseInsensitive.apply(groups[id])));
+    }
+
+    // Each group's closure includes the group itself.
+    int[][] closures = new int[groups.length][];
+    ClosureWalker walker = new ClosureWalker(parents, closures);
+    for (int id = 0; id < groups.length; id++) {
+      closures[id] = walker.walk(id);
+    }
+
+    Map<AclPrincipal, int[]> memberClosures = new HashMap<>();
+    for (Map.Entry<AclPrincipal, int[]> entry : directGroups.entrySet()) {
+      memberClosures.put(entry.getKey(), walker.walk(entry.getValue()));
+    }
+    return new GroupClosureIndex(groups, memberClosures);
+  }
+
+  /**
+   * Gets all the groups that any of the given principals belongs to.
+   *
+   * @param principals The principals to look up.
+   * @return The union of their groups, including nested groups.
+   */
+  Set<AclPrincipal> getGroups(AclPrincipal... principals) {
+    int[] ids = NO_IDS;
+    for (AclPrincipal principal : principals) {
+      ids = union(ids, memberClosures.get(principal));
+    }
+    Set<AclPrincipal> result = new HashSet<>(ids.length * 2);
+    for (int id : ids) {
+      result.add(groups[id]);
+    }
+    return result;
+  }
+
+  /**
+   * @return The number of distinct groups in the index.
+   */
+  int getGroupCount() {
+    return groups.length;
+  }
+
+  // Merges two sorted, duplicate-free arrays, either of which may be null.
+  private static int[] union(int[] a, int[] b) {
+    if (a == null || a.length == 0) {
+      return (b != null) ? b : NO_IDS;
+    }
+    if (b == null || b.length == 0) {
+      return a;
+    }
+    int[] merged = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        merged[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        merged[n++] = b[j++];
+      } else {
+        merged[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      merged[n++] = a[i++];
+    }
+    while (j < b.length) {
+      merged[n++] = b[j++];
+    }
+    return (n == merged.length) ? merged : Arrays.copyOf(merged, n);
+  }
+
+  /**
+   * Walks the group graph breadth-first.  A group whose closure is already
+   * known contributes that closure without being walked again, which is exact
+   * because a finished closure is everything reachable from that group.
+   */
+  private static final class ClosureWalker {
+    final int[][] parents;
+    final int[][] closures;
+    // Visit marks, reset by bumping the stamp rather than clearing.
+    final int[] marks;
+    int stamp;
+    int[] reached;
+    int reachedCount;
+    int[] queue;
+    int queueCount;
+
+    ClosureWalker(int[][] parents, int[][] closures) {
+      this.parents = parents;
+      this.closures = closures;
+      marks = new int[parents.length];
+      reached = new int[16];
+      queue = new int[16];
+    }
+
+    int[] walk(int group) {
+      return walk(new int[] { group });
+    }
+
+    int[] walk(int[] starts) {
+      stamp++;
+      reachedCount = 0;
+      queueCount = 0;
+      for (int id : starts) {
+        visit(id, true);
+      }
+      for (int head = 0; head < queueCount; head++) {
+        int id = queue[head];
+        if (closures[id] != null) {
+          // Everything in a finished closure is already closed.
+          for (int other : closures[id]) {
+            visit(other, false);
+          }
+        } else {
+          for (int parent : parents[id]) {
+            visit(parent, true);
+          }
+        }
+      }
+      int[] result = Arrays.copyOf(reached, reachedCount);
+      Arrays.sort(result);
+      return result;
+    }
+
+    private void visit(int id, boolean expand) {
+      if (marks[id] == stamp) {
+        return;
+      }
+      marks[id] = stamp;
+      if (reachedCount == reached.length) {
+        reached = Arrays.copyOf(reached, reachedCount * 2);
+      }
+      reached[reachedCount++] = id;
+      if (expand) {
+        if (queueCount == queue.length) {
+          queue = Arrays.copyOf(queue, queueCount * 2);
+        }
+        queue[queueCount++] = id;
+      }
+    }
+  }
+}
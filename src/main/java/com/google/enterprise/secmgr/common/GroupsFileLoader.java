@@ -0,0 +1,265 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.enterprise.secmgr.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.enterprise.supergsa.security.AclGroup;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Loads a JSON groups file (an {@code AclGroups} message, as written by
+ * {@code JsonPrincipalMapSerializer}) straight into an indexed
+ * {@link MemberToGroupsResolverMap}.
+ * <p>
+ * The file is read incrementally, one group definition at a time, so the
+ * whole {@code AclGroups} message is never held in memory.  Batches of group
+ * definitions are parsed and their members normalized in parallel on the
+ * common fork-join pool, while the reading thread moves on.  As with
+ * {@code GroupMembersMap}, a later definition of a group replaces an earlier
+ * one, and a group with no members is dropped.
+ */
+@ThreadSafe
+public final class GroupsFileLoader {
+  private static final Logger logger = Logger.getLogger(GroupsFileLoader.class.getName());
+
+  private static final String MEMBERSHIP_FIELD = "membership";
+  private static final int BATCH_SIZE = 1000;
+
+  private final ForkJoinPool pool;
+  private final int maxBatchesInFlight;
+
+  public GroupsFileLoader() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  @VisibleForTesting
+  GroupsFileLoader(ForkJoinPool pool) {
+    this.pool = pool;
+    // Enough to keep every worker busy, while bounding the parsed-but-unmerged definitions.
+    maxBatchesInFlight = 2 * pool.getParallelism();
+  }
+
+  /**
+   * Loads a groups file.
+   *
+   * @param filename The name of the JSON groups file.
+   * @return The resolver map for the groups in the file.
+   * @throws IOException if the file can't be read or parsed.
+   * @throws IllegalArgumentException if a group definition's principal isn't a group.
+   */
+  public MemberToGroupsResolverMap load(String filename)
+      throws IOException {
+    Preconditions.checkNotNull(filename);
+    List<MemoryPoolMXBean> heapPools = getHeapPools();
+    for (MemoryPoolMXBean heapPool : heapPools) {
+      heapPool.resetPeakUsage();
+    }
+    long start = System.currentTimeMillis();
+    MemberToGroupsResolverMap map;
+    try (Reader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(filename), UTF_8))) {
+      map = load(reader);
+    }
+    long peakBytes = 0;
+    for (MemoryPoolMXBean heapPool : heapPools) {
+      peakBytes += heapPool.getPeakUsage().getUsed();
+    }
+    logger.log(Level.INFO,
+        "Loaded {0} group members from {1} in {2} ms; peak heap {3} MB",
+        new Object[] { map.size(), filename, System.currentTimeMillis() - start,
+            peakBytes / (1024 * 1024) });
+    return map;
+  }
+
+  /**
+   * Loads groups from a reader.
+   *
+   * @param reader A reader for the JSON groups.
+   * @return The resolver map for the groups.
+   * @throws IOException if the groups can't be read or parsed.
+   */
+  @VisibleForTesting
+  MemberToGroupsResolverMap load(Reader reader)
+      throws IOException {
+    Interner<AclPrincipal> interner = Interners.newStrongInterner();
+    Map<AclPrincipal, AclPrincipal[]> definitions = new HashMap<>();
+    ArrayDeque<Future<List<Definition>>> inFlight = new ArrayDeque<>();
+    JsonParser parser = new JsonParser();
+    JsonReader json = new JsonReader(reader);
+    try {
+      json.beginObject();
+      while (json.hasNext()) {
+        if (!MEMBERSHIP_FIELD.equals(json.nextName())) {
+          json.skipValue();
+          continue;
+        }
+        json.beginArray();
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        while (json.hasNext()) {
+          batch.add(parser.parse(json).toString());
+          if (batch.size() == BATCH_SIZE) {
+            submit(batch, interner, inFlight, definitions);
+            batch = new ArrayList<>(BATCH_SIZE);
+          }
+        }
+        json.endArray();
+        if (!batch.isEmpty()) {
+          submit(batch, interner, inFlight, definitions);
+        }
+      }
+      json.endObject();
+      while (!inFlight.isEmpty()) {
+        merge(inFlight.removeFirst(), definitions);
+      }
+    } catch (RuntimeException | IOException e) {
+      for (Future<?> future : inFlight) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+
+    Map<AclPrincipal, Set<AclPrincipal>> memberToGroups = new HashMap<>();
+    for (Map.Entry<AclPrincipal, AclPrincipal[]> entry : definitions.entrySet()) {
+      for (AclPrincipal member : entry.getValue()) {
+        Set<AclPrincipal> groups = memberToGroups.get(member);
+        if (groups == null) {
+          groups = new HashSet<>();
+          memberToGroups.put(member, groups);
+        }
+        groups.add(entry.getKey());
+      }
+    }
+    return MemberToGroupsResolverMap.indexed(memberToGroups);
+  }
+
+  private void submit(final List<String> batch, final Interner<AclPrincipal> interner,
+      ArrayDeque<Future<List<Definition>>> inFlight, Map<AclPrincipal, AclPrincipal[]> definitions)
+      throws IOException {
+    // Merge in file order, so that the last definition of a group wins.
+    while (inFlight.size() >= maxBatchesInFlight) {
+      merge(inFlight.removeFirst(), definitions);
+    }
+    inFlight.addLast(pool.submit(
+        new Callable<List<Definition>>() {
+          @Override
+          public List<Definition> call() throws InvalidProtocolBufferException {
+            return parseBatch(batch, interner);
+          }
+        }));
+  }
+
+  private static void merge(Future<List<Definition>> future,
+      Map<AclPrincipal, AclPrincipal[]> definitions)
+      throws IOException {
+    List<Definition> batch;
+    try {
+      batch = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading groups", e);
+    } catch (ExecutionException e) {
+      // The pool wraps checked exceptions, so look for a parse failure along the whole chain.
+      for (Throwable cause : Throwables.getCausalChain(e.getCause())) {
+        if (cause instanceof IOException) {
+          throw new IOException(cause.getMessage(), cause);
+        }
+      }
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+    for (Definition definition : batch) {
+      if (definition.members.length == 0) {
+        definitions.remove(definition.group);
+      } else {
+        definitions.put(definition.group, definition.members);
+      }
+    }
+  }
+
+  private static List<Definition> parseBatch(List<String> batch, Interner<AclPrincipal> interner)
+      throws InvalidProtocolBufferException {
+    JsonFormat.Parser parser = JsonFormat.parser();
+    List<Definition> definitions = new ArrayList<>(batch.size());
+    for (String text : batch) {
+      AclGroup.Builder builder = AclGroup.newBuilder();
+      parser.merge(text, builder);
+      AclPrincipal group = builder.getPrincipal();
+      if (group.getScope() != AclPrincipal.SCOPE.GROUP) {
+        throw new IllegalArgumentException("AclGroup not well-formed: " + builder);
+      }
+      AclPrincipal[] members = new AclPrincipal[builder.getMembersCount()];
+      for (int i = 0; i < members.length; i++) {
+        members[i] = interner.intern(
+            MemberToGroupsResolverMap.normalizeMember(builder.getMembers(i)));
+      }
+      definitions.add(new Definition(interner.intern(group), members));
+    }
+    return definitions;
+  }
+
+  private static List<MemoryPoolMXBean> getHeapPools() {
+    List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        heapPools.add(pool);
+      }
+    }
+    return heapPools;
+  }
+
+  /** One group definition, with its members normalized. */
+  private static final class Definition {
+    final AclPrincipal group;
+    final AclPrincipal[] members;
+
+    Definition(AclPrincipal group, AclPrincipal[] members) {
+      this.group = group;
+      this.members = members;
+    }
+  }
+}
@@ -13,7 +13,10 @@
 // limitations under the License.
 package com.google.enterprise.secmgr.common;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.enterprise.policychecker.AclPrincipalComparator;
 import com.google.enterprise.policychecker.GroupMembersMap;
@@ -30,6 +33,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -46,10 +50,25 @@ public final class MemberToGroupsResolverMap extends AbstractMap<AclPrincipal, S
   private static final Normalizer2 NORMALIZER =
       Normalizer2.getInstance(null, "nfkc_cf", Normalizer2.Mode.COMPOSE);
 
+  private static final Function<AclPrincipal, AclPrincipal> CASE_INSENSITIVE_NORMALIZER =
+      new Function<AclPrincipal, AclPrincipal>() {
+        @Override
+        public AclPrincipal apply(AclPrincipal principal) {
+          return makeCaseInsensitiveNormalizedPrincipal(principal);
+        }
+      };
+
   private final Map<AclPrincipal, Set<AclPrincipal>> memberToGroupsMap;
+  @Nullable private final GroupClosureIndex closureIndex;
 
   protected MemberToGroupsResolverMap(Map<AclPrincipal, Set<AclPrincipal>> memberToGroupsMap) {
+    this(memberToGroupsMap, null);
+  }
+
+  private MemberToGroupsResolverMap(Map<AclPrincipal, Set<AclPrincipal>> memberToGroupsMap,
+      @Nullable GroupClosureIndex closureIndex) {
     this.memberToGroupsMap = memberToGroupsMap;
+    this.closureIndex = closureIndex;
   }
 
   /**
@@ -72,6 +91,26 @@ public final class MemberToGroupsResolverMap extends AbstractMap<AclPrincipal, S
     return principal.build();
   }
 
+  /**
+   * Returns the form of a member under which its groups are stored: normalized if it is case
+   * insensitive, as is.
+   */
+  static AclPrincipal normalizeMember(AclPrincipal member) {
+    return (member.getCaseSensitive() == AclPrincipal.CaseSensitivity.EVERYTHING_CASE_INSENSITIVE)
+        ? makeCaseInsensitiveNormalizedPrincipal(member)
+        : member;
+  }
+
+  /**
+   * Creates an indexed map from normalized members to their direct groups.  The given map must
+   * not change afterwards.
+   */
+  static MemberToGroupsResolverMap indexed(Map<AclPrincipal, Set<AclPrincipal>> memberToGroupsMap) {
+    return new MemberToGroupsResolverMap(
+        Collections.unmodifiableMap(memberToGroupsMap),
+        GroupClosureIndex.build(memberToGroupsMap, CASE_INSENSITIVE_NORMALIZER));
+  }
+
   /**
    * Creates a normalized domain principal from input.
    */
@@ -109,6 +148,20 @@ public final class MemberToGroupsResolverMap extends AbstractMap<AclPrincipal, S
       return new MemberToGroupsResolverMap(memberToGroupsMap);
     }
 
+    /**
+     * Builds an immutable snapshot of the current contents of the builder, with the transitive
+     * closure of every member's groups precomputed, so that {@link #getAllGroupsForUser} doesn't
+     * have to walk nested groups.  Unlike {@link #build}, later changes to the builder don't show
+     * up in the returned map.
+     */
+    public synchronized MemberToGroupsResolverMap buildIndexed() {
+      ImmutableMap.Builder<AclPrincipal, Set<AclPrincipal>> snapshot = ImmutableMap.builder();
+      for (Map.Entry<AclPrincipal, Set<AclPrincipal>> entry : memberToGroupsMap.entrySet()) {
+        snapshot.put(entry.getKey(), ImmutableSet.copyOf(entry.getValue()));
+      }
+      return indexed(snapshot.build());
+    }
+
     /**
      * Updates the contents of the map from merging this {@link GroupMembersMap}. 
      */
@@ -130,12 +183,7 @@ public final class MemberToGroupsResolverMap extends AbstractMap<AclPrincipal, S
       Preconditions.checkNotNull(group);
       Preconditions.checkArgument(group.getScope() == AclPrincipal.SCOPE.GROUP);
 
-      AclPrincipal member = principal;
-      if (principal.getCaseSensitive()
-          == AclPrincipal.CaseSensitivity.EVERYTHING_CASE_INSENSITIVE) {
-        member = makeCaseInsensitiveNormalizedPrincipal(principal);
-      }
-      return put(member, group);
+      return put(normalizeMember(principal), group);
     }
 
     /**
@@ -162,6 +210,16 @@ public final class MemberToGroupsResolverMap extends AbstractMap<AclPrincipal, S
    * Returns all groups which the user belongs to for both case sensitive and case insensitive.
    */
   public Set<AclPrincipal> getAllGroupsForUser(AclPrincipal user) {
+    if (closureIndex != null) {
+      // Looking up the case-insensitive forms of both principals covers the case-insensitive
+      // lookups that getGroupsForUser() makes for them.
+      AclPrincipal userNormalizedDomain = makeNormalizedDomainPrincipal(user);
+      return closureIndex.getGroups(
+          user,
+          makeCaseInsensitiveNormalizedPrincipal(user),
+          userNormalizedDomain,
+          makeCaseInsensitiveNormalizedPrincipal(userNormalizedDomain));
+    }
     Set<AclPrincipal> membership = new HashSet<>(getGroupsForUser(user));
     AclPrincipal userCaseInsensitive = makeCaseInsensitiveNormalizedPrincipal(user);
     Set<AclPrincipal> membershipCaseInsensitive = getGroupsForUser(userCaseInsensitive);
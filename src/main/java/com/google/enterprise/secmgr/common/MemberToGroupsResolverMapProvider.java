@@ -15,6 +15,7 @@ package com.google.enterprise.secmgr.common;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.policychecker.AclConfigurationStore;
+import java.io.IOException;
 
 /**
  * A simple provider for a MemberToGroupsResolverMap instance. Implements method for loading and
@@ -22,6 +23,8 @@ import com.google.enterprise.policychecker.AclConfigurationStore;
  */
 public class MemberToGroupsResolverMapProvider {
 
+  private static final GroupsFileLoader LOADER = new GroupsFileLoader();
+
   private volatile MemberToGroupsResolverMap memberGroupMap;
 
   public MemberToGroupsResolverMapProvider() {
@@ -33,12 +36,22 @@ public class MemberToGroupsResolverMapProvider {
   }
 
   /**
-   * Re-reads the groups from disk and generates the MemberToGroupsResolverMap.
+   * Re-reads the groups from disk and generates the MemberToGroupsResolverMap, with the nested
+   * group memberships resolved up front.
    */
   public void regenerateMemberToGroupsMap(AclConfigurationStore store) {
     Preconditions.checkNotNull(store);
     memberGroupMap = MemberToGroupsResolverMap.builder()
         .merge(store.readGroupsIntoMap())
-        .build();
+        .buildIndexed();
+  }
+
+  /**
+   * Re-reads the groups from a JSON groups file, streaming it, and generates the
+   * MemberToGroupsResolverMap.  The current map is kept if the file can't be loaded.
+   */
+  public void loadMemberToGroupsMap(String groupsFilename) throws IOException {
+    Preconditions.checkNotNull(groupsFilename);
+    memberGroupMap = LOADER.load(groupsFilename);
   }
 }
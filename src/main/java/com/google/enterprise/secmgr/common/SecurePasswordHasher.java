@@ -17,11 +17,17 @@ package com.google.enterprise.secmgr.common;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +67,13 @@ import javax.crypto.spec.PBEKeySpec;
  *
  * Please see the RFC for more information on password hashing
  * security: http://tools.ietf.org/html/rfc2898.
+ *
+ * The MAC and key-factory objects aren't thread-safe, so each thread gets its
+ * own; all the MACs share one key, so they agree with each other.  Successful
+ * fingerprint verifications can optionally be remembered, for up to
+ * gsa.fingerprintMemoSize fingerprints, so that repeating one costs a MAC
+ * rather than a full PBKDF2 run.  The memo holds MACs of the inputs, never
+ * the inputs themselves.
  */
 public class SecurePasswordHasher {
 
@@ -73,23 +86,61 @@ public class SecurePasswordHasher {
   private static final int kNumIterations = 1000;
   private static final int kNumOutputBits = 128;
   private static final String kHashAlgorithm = "PBKDF2WithHmacSHA1";
-  private static Mac mac;
+  private static final String kMacAlgorithm = "HmacSHA1";
+  private static final SecretKey macKey;
 
   static {
     // Initialize the MAC key.
+    SecretKey key;
     try {
-      KeyGenerator kg = KeyGenerator.getInstance("HmacSHA1");
-      mac = Mac.getInstance("HmacSHA1");
-      mac.init(kg.generateKey());
+      KeyGenerator kg = KeyGenerator.getInstance(kMacAlgorithm);
+      key = kg.generateKey();
+      // Check that a MAC can be made with the key.
+      Mac.getInstance(kMacAlgorithm).init(key);
     } catch (NoSuchAlgorithmException e) {
       logger.log(Level.SEVERE, "Could not initialize MAC", e);
-      mac = null;
+      key = null;
     } catch (InvalidKeyException e) {
       logger.log(Level.SEVERE, "Could not initialize MAC", e);
-      mac = null;
+      key = null;
     }
+    macKey = key;
   }
 
+  private static final ThreadLocal<Mac> macs =
+      new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+          if (macKey == null) {
+            return null;
+          }
+          try {
+            Mac mac = Mac.getInstance(kMacAlgorithm);
+            mac.init(macKey);
+            return mac;
+          } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            // The static initializer already made one of these.
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+
+  private static final ThreadLocal<SecretKeyFactory> keyFactories =
+      new ThreadLocal<SecretKeyFactory>() {
+        @Override
+        protected SecretKeyFactory initialValue() {
+          try {
+            return SecretKeyFactory.getInstance(kHashAlgorithm);
+          } catch (NoSuchAlgorithmException e) {
+            logger.log(Level.SEVERE, "Could not get key spec", e);
+            return null;
+          }
+        }
+      };
+
+  private static volatile Cache<String, byte[]> verifiedFingerprints =
+      makeMemo(Integer.getInteger("gsa.fingerprintMemoSize", 0));
+
   /**
    * We don't want this class to be instantiated.
    */
@@ -178,13 +229,11 @@ public class SecurePasswordHasher {
    * Produce a fingerprint from an input string.  This is non-deterministic
    * and will use safe defaults for the parameters (as of 05/2009).
    */
-  public static synchronized Fingerprint getFingerprint(String input) {
+  public static Fingerprint getFingerprint(String input) {
     byte[] seed = new byte[kNumSeedBytes];
 
-    // Randomly choose a seed.
-    synchronized (prng) {
-      prng.nextBytes(seed);
-    }
+    // Randomly choose a seed.  SecureRandom is thread-safe.
+    prng.nextBytes(seed);
 
     byte[] hash = hashString(input, kHashAlgorithm, kNumIterations, seed);
     return new Fingerprint(Base64.encode(hash), Base64.encode(seed),
@@ -197,6 +246,18 @@ public class SecurePasswordHasher {
    * @param fingerprint
    */
   public static boolean verifyFingerprint(String input, Fingerprint fingerprint) {
+    Cache<String, byte[]> memo = verifiedFingerprints;
+    String key = null;
+    byte[] inputMac = null;
+    if (memo != null && macKey != null) {
+      key = fingerprint.toString();
+      inputMac = macInput(key, input);
+      byte[] remembered = memo.getIfPresent(key);
+      if (remembered != null && MessageDigest.isEqual(remembered, inputMac)) {
+        return true;
+      }
+    }
+
     byte[] seedBytes;
     try {
       seedBytes = Base64.decode(fingerprint.seed());
@@ -212,8 +273,32 @@ public class SecurePasswordHasher {
       logger.warning("Could not base64 decode input string: " + fingerprint.hash());
       return false;
     }
-    return Arrays.equals(hashBytes, hashString(input, fingerprint.algorithm(),
+    boolean verified = Arrays.equals(hashBytes, hashString(input, fingerprint.algorithm(),
         fingerprint.iterations(), seedBytes));
+    if (verified && inputMac != null) {
+      memo.put(key, inputMac);
+    }
+    return verified;
+  }
+
+  /**
+   * Sets the number of successful verifications to remember.
+   *
+   * @param size The number of fingerprints; zero turns remembering off.
+   */
+  @VisibleForTesting
+  static void setFingerprintMemoSize(int size) {
+    verifiedFingerprints = makeMemo(size);
+  }
+
+  private static Cache<String, byte[]> makeMemo(int size) {
+    if (size <= 0) {
+      return null;
+    }
+    return CacheBuilder.newBuilder()
+        .maximumSize(size)
+        .expireAfterWrite(1, TimeUnit.HOURS)
+        .build();
   }
 
   /**
@@ -248,11 +333,18 @@ public class SecurePasswordHasher {
                                         iterations, kNumOutputBits);
 
     SecretKeyFactory factory;
-    try {
-      factory = SecretKeyFactory.getInstance(algorithm);
-    } catch (NoSuchAlgorithmException e) {
-      logger.log(Level.SEVERE, "Could not get key spec", e);
-      return new byte[kNumSeedBytes];  // Don't reveal information about the password.
+    if (kHashAlgorithm.equals(algorithm)) {
+      factory = keyFactories.get();
+      if (factory == null) {
+        return new byte[kNumSeedBytes];  // Don't reveal information about the password.
+      }
+    } else {
+      try {
+        factory = SecretKeyFactory.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        logger.log(Level.SEVERE, "Could not get key spec", e);
+        return new byte[kNumSeedBytes];  // Don't reveal information about the password.
+      }
     }
 
     SecretKey hash;
@@ -273,7 +365,8 @@ public class SecurePasswordHasher {
    *     have the same password by looking at the logs
    * @param password password to mac
    */
-  public static synchronized byte[] macInput(String username, String password) {
+  public static byte[] macInput(String username, String password) {
+    Mac mac = macs.get();
     if (mac == null) {
       logger.severe("tried to MAC message when mac object uninitialized");
       return new byte[0];
@@ -31,22 +31,25 @@ import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.Formatter;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -197,6 +200,10 @@ public class SecurityManagerUtil {
    *  -Dgsa.enablelogmanager={true|false}
    *  -Dgsa.recordusernames={true|false}
    *  -Dgsa.logmanagerserver={hostname:port}
+   *  -Dgsa.logmanagerfile={path of the local log file}
+   *
+   * A relative log file path, including the default one, is resolved against
+   * the common directory.
    */
   public static void initLogClientFlags() {
     String enabled = System.getProperty("gsa.enablelogmanager");
@@ -216,6 +223,13 @@ public class SecurityManagerUtil {
       LogClientParameters.recordUsernames = Boolean.parseBoolean(recordUsernames);;
       logger.info("LogManager recordUsernames is set to " + recordUsernames);
     }
+
+    String logFile = System.getProperty("gsa.logmanagerfile");
+    if (Strings.isNullOrEmpty(logFile)) {
+      logFile = LogClientParameters.DEFAULT_LOG_FILE;
+    }
+    LogClientParameters.logFile = FileUtil.getCommonFile(logFile).getPath();
+    logger.info("LogManager file is set to " + LogClientParameters.logFile);
   }
 
   public static String getLogManagerServer() {
@@ -227,27 +241,106 @@ public class SecurityManagerUtil {
 
   // TODO: make this configurable (preferably in sec mgr config).
   private static final int THREAD_POOL_SIZE = 40;
-  private static final ExecutorService THREAD_POOL = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+
+  /**
+   * The classes of work done by {@link #runInParallel}.  Each has its own
+   * {@link WorkerPool}, so that one kind of work backing up doesn't hold up
+   * the others, and work that waits on other work (authorization batches
+   * waiting for their per-URL requests, say) can't starve itself of threads.
+   */
+  public static enum Workload {
+    GENERAL("general"),
+    AUTHZ("authz"),
+    HTTP("http"),
+    CONNECTOR("connector"),
+    LDAP("ldap");
+
+    @Nonnull private final String poolName;
+
+    private Workload(String poolName) {
+      this.poolName = poolName;
+    }
+
+    /** @return The name of the workload's pool, as used in its properties. */
+    @Nonnull
+    public String getPoolName() {
+      return poolName;
+    }
+  }
+
+  @GuardedBy("itself")
+  private static final Map<Workload, WorkerPool> WORKER_POOLS =
+      new EnumMap<Workload, WorkerPool>(Workload.class);
 
   @VisibleForTesting
   static int getPrimaryThreadPoolSize() {
     return THREAD_POOL_SIZE;
   }
 
+  /**
+   * Gets the pool for a class of work, making it on first use; see
+   * {@link WorkerPool#fromProperties} for how pools are configured.
+   *
+   * @param workload The class of work.
+   * @return The pool for that work.
+   */
+  @Nonnull
+  public static WorkerPool getWorkerPool(Workload workload) {
+    synchronized (WORKER_POOLS) {
+      WorkerPool pool = WORKER_POOLS.get(workload);
+      if (pool == null) {
+        pool = WorkerPool.fromProperties(workload.getPoolName(), THREAD_POOL_SIZE);
+        WORKER_POOLS.put(workload, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Replaces the pool for a class of work.  The old pool isn't shut down.
+   *
+   * @param workload The class of work.
+   * @param pool The new pool.
+   * @return The old pool, or null if there wasn't one.
+   */
+  @Nullable
+  public static WorkerPool setWorkerPool(Workload workload, WorkerPool pool) {
+    Preconditions.checkNotNull(pool);
+    synchronized (WORKER_POOLS) {
+      return WORKER_POOLS.put(workload, pool);
+    }
+  }
+
+  /**
+   * Runs a bunch of tasks in parallel in the {@link Workload#GENERAL} pool.
+   *
+   * @see #runInParallel(Workload, Iterable, long, Decorator)
+   */
+  @Nonnull
+  public static <T> List<T> runInParallel(
+      Iterable<Callable<T>> callables,
+      @Nonnegative long timeoutMillis,
+      Decorator decorator) throws ExecutionException {
+    return runInParallel(Workload.GENERAL, callables, timeoutMillis, decorator);
+  }
+
   /**
    * Runs a bunch of tasks in parallel.
    *
+   * @param workload The class of work, which picks the pool the tasks run in.
    * @param callables The tasks to be run.
    * @param timeoutMillis The maximum amount of time allowed for processing all
    *     the tasks, in milliseconds.
    * @param decorator A decorator for log messages.
    * @return An immutable list of the computed values, in no particular order.
    *     The number of values is normally the same as the number of tasks, but
-   *     if the timeoutMillis is reached or if one or more of the tasks generates an
-   *     exception, there will be fewer values than tasks.
+   *     if the timeoutMillis is reached, if the pool rejects some of the tasks,
+   *     or if one or more of the tasks generates an exception, there will be
+   *     fewer values than tasks.
    */
   @Nonnull
   public static <T> List<T> runInParallel(
+      Workload workload,
       Iterable<Callable<T>> callables,
       @Nonnegative long timeoutMillis,
       Decorator decorator) throws ExecutionException {
@@ -255,14 +348,20 @@ public class SecurityManagerUtil {
     Preconditions.checkArgument(timeoutMillis >= 0);
     Preconditions.checkNotNull(decorator);
 
-    CompletionService<T> completionService = new ExecutorCompletionService<T>(THREAD_POOL);
+    WorkerPool pool = getWorkerPool(workload);
+    CompletionService<T> completionService = new ExecutorCompletionService<T>(pool);
     long endTimeMillis = DateTimeUtils.currentTimeMillis() + timeoutMillis;
     Set<Future<T>> futures = Sets.newHashSet();
     ImmutableList.Builder<T> resultsBuilder = ImmutableList.builder();
 
     try {
-      for (Callable<T> callable : callables) {
-        futures.add(completionService.submit(callable));
+      try {
+        for (Callable<T> callable : callables) {
+          futures.add(completionService.submit(callable));
+        }
+      } catch (RejectedExecutionException e) {
+        // Go ahead with the tasks that were accepted.
+        logger.warning(decorator.apply("Tasks rejected; " + pool));
       }
       while (!futures.isEmpty()) {
         Future<T> future
@@ -296,6 +395,10 @@ public class SecurityManagerUtil {
       for (Future<T> future : futures) {
         future.cancel(true);
       }
+      if (!futures.isEmpty()) {
+        pool.recordTimedOut(futures.size());
+        logger.info(decorator.apply("Abandoned " + futures.size() + " tasks; " + pool));
+      }
     }
     return resultsBuilder.build();
   }
@@ -0,0 +1,278 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * An executor for one class of blocking work, with a bounded backlog and
+ * counters that show how it's coping.
+ *
+ * <p>Tasks normally run on a fixed number of platform threads, behind a
+ * bounded queue; idle threads exit after a minute.  On Java 21 and later a
+ * pool can instead run each task on its own virtual thread, which suits work
+ * that spends its time waiting on sockets; the queue size then limits the
+ * number of tasks in flight.  When the backlog is full, a new task is rejected
+ * or run by the submitting thread, according to the pool's {@link Rejection}
+ * policy.
+ */
+@ThreadSafe
+public final class WorkerPool extends AbstractExecutorService {
+  private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+  private static final int DEFAULT_QUEUE_SIZE = 10000;
+
+  /** What to do with a task when the pool's backlog is full. */
+  public enum Rejection {
+    /**
+     * Run the task in the submitting thread, which slows the submitter down.
+     * Only suitable for callers that hold no locks and have no deadline of
+     * their own while submitting.
+     */
+    CALLER_RUNS,
+    /** Throw a {@link RejectedExecutionException}. */
+    ABORT
+  }
+
+  private final String name;
+  private final ExecutorService executor;
+  private final boolean virtual;
+  private final int maxPending;
+  private final Rejection rejection;
+  // Tasks accepted and not yet finished, whether queued or running.
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private WorkerPool(String name, ExecutorService executor, boolean virtual, int maxPending,
+      Rejection rejection) {
+    this.name = name;
+    this.executor = executor;
+    this.virtual = virtual;
+    this.maxPending = maxPending;
+    this.rejection = rejection;
+  }
+
+  /**
+   * Makes a pool of platform threads.
+   *
+   * @param name The pool's name, used for its threads and in log messages.
+   * @param threads The number of threads.
+   * @param queueSize The most tasks that can wait for a thread.
+   * @param rejection What to do with tasks when the queue is full.
+   * @return The new pool.
+   */
+  public static WorkerPool make(String name, int threads, int queueSize, Rejection rejection) {
+    Preconditions.checkArgument(threads > 0);
+    Preconditions.checkArgument(queueSize > 0);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+        60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize),
+        new ThreadFactoryBuilder()
+        .setNameFormat(name + "-worker-%d")
+        .setDaemon(true)
+        .build());
+    executor.allowCoreThreadTimeOut(true);
+    return new WorkerPool(name, executor, false, threads + queueSize, rejection);
+  }
+
+  /**
+   * Makes a pool that runs each task on a new virtual thread.
+   *
+   * @param name The pool's name, used in log messages.
+   * @param maxTasks The most tasks that can be in flight at once.
+   * @param rejection What to do with tasks beyond that.
+   * @return The new pool, or null if this JVM doesn't have virtual threads.
+   */
+  @Nullable
+  public static WorkerPool makeVirtual(String name, int maxTasks, Rejection rejection) {
+    Preconditions.checkArgument(maxTasks > 0);
+    ExecutorService executor;
+    try {
+      // Looked up reflectively, since the code is built for Java 8.
+      executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+    return new WorkerPool(name, executor, true, maxTasks, rejection);
+  }
+
+  /**
+   * Makes a pool configured by system properties, {@code gsa.workers.NAME.threads},
+   * {@code .queue}, {@code .rejection} ({@code abort}, the default, or
+   * {@code callerRuns}), and {@code .virtual}.
+   *
+   * @param name The pool's name.
+   * @param defaultThreads The number of threads, if not configured.
+   * @return The new pool.
+   */
+  public static WorkerPool fromProperties(String name, int defaultThreads) {
+    String prefix = "gsa.workers." + name + ".";
+    int threads = Integer.getInteger(prefix + "threads", defaultThreads);
+    int queueSize = Integer.getInteger(prefix + "queue", DEFAULT_QUEUE_SIZE);
+    Rejection rejection =
+        "callerruns".equals(System.getProperty(prefix + "rejection", "").toLowerCase(Locale.US))
+        ? Rejection.CALLER_RUNS
+        : Rejection.ABORT;
+    if (Boolean.getBoolean(prefix + "virtual")) {
+      WorkerPool pool = makeVirtual(name, threads + queueSize, rejection);
+      if (pool != null) {
+        return pool;
+      }
+      logger.warning("Virtual threads aren't available; " + name
+          + " will use platform threads");
+    }
+    return make(name, threads, queueSize, rejection);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    Preconditions.checkNotNull(command);
+    Runnable task =
+        new Runnable() {
+          @Override
+          public void run() {
+            active.incrementAndGet();
+            try {
+              command.run();
+            } finally {
+              active.decrementAndGet();
+              pending.decrementAndGet();
+              completed.incrementAndGet();
+            }
+          }
+        };
+    int nPending = pending.incrementAndGet();
+    try {
+      if (virtual && nPending > maxPending) {
+        throw new RejectedExecutionException(name + " has " + maxPending + " tasks in flight");
+      }
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      logger.log(Level.FINE, "Worker pool is full: " + this, e);
+      if (rejection == Rejection.ABORT || executor.isShutdown()) {
+        pending.decrementAndGet();
+        throw e;
+      }
+      task.run();
+    }
+  }
+
+  /**
+   * Notes that some tasks were abandoned because they took too long.
+   *
+   * @param count The number of tasks.
+   */
+  public void recordTimedOut(int count) {
+    timedOut.addAndGet(count);
+  }
+
+  /** @return The pool's name. */
+  public String getName() {
+    return name;
+  }
+
+  /** @return Whether the pool runs tasks on virtual threads. */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /** @return The number of tasks running. */
+  public int getActiveCount() {
+    return active.get();
+  }
+
+  /** @return The number of tasks waiting to run. */
+  public int getQueuedCount() {
+    return Math.max(0, pending.get() - active.get());
+  }
+
+  /** @return The number of tasks that have finished, normally or not. */
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  /** @return The number of tasks that arrived when the backlog was full. */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /** @return The number of tasks abandoned because they took too long. */
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  @VisibleForTesting
+  int getMaxPending() {
+    return maxPending;
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return executor.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return executor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return executor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String toString() {
+    return name + (virtual ? " (virtual)" : "")
+        + ": active " + getActiveCount()
+        + ", queued " + getQueuedCount()
+        + ", completed " + getCompletedCount()
+        + ", rejected " + getRejectedCount()
+        + ", timed out " + getTimedOutCount();
+  }
+}
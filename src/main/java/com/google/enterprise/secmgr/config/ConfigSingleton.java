@@ -17,6 +17,7 @@ package com.google.enterprise.secmgr.config;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.secmgr.common.FileUtil;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -32,6 +33,10 @@ import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +47,12 @@ import javax.inject.Inject;
 
 /**
  * A singleton class to access configured parameters.
+ *
+ * <p>The parsed configuration is published as an immutable snapshot, so
+ * readers never take a lock or stat the configuration file.  The first read
+ * loads the file; after that, a shared daemon thread polls the file's
+ * modification time and publishes a new snapshot, notifying the observers,
+ * when it changes.
  */
 @Singleton
 @ThreadSafe
@@ -49,11 +60,23 @@ public class ConfigSingleton {
   private static final Logger logger = Logger.getLogger(ConfigSingleton.class.getName());
 
   @Inject private static Injector injector;
-  @Inject private static ConfigSingleton instance;
-  @GuardedBy("ConfigSingleton.class") private static SecurityManagerConfig configOverride = null;
-  @GuardedBy("ConfigSingleton.class") private static Gson gson;
+  @Inject private static volatile ConfigSingleton instance;
+  private static volatile SecurityManagerConfig configOverride = null;
+  private static volatile Gson gson;
   private static final LocalObservable observable = new LocalObservable();
 
+  /** How often the configuration file is checked for changes. */
+  @VisibleForTesting
+  static final long POLL_INTERVAL_MILLIS = 1000;
+
+  private static final AtomicBoolean pollerStarted = new AtomicBoolean(false);
+  private static final ScheduledExecutorService poller =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("ConfigPoller-%d")
+          .setDaemon(true)
+          .build());
+
   private static final class LocalObservable extends Observable {
     @Override
     protected void setChanged() {
@@ -61,12 +84,21 @@ public class ConfigSingleton {
     }
   }
 
+  /** A parsed configuration file, with the file's modification time when read. */
+  private static final class Snapshot {
+    final SecurityManagerConfig config;
+    final long time;
+
+    Snapshot(SecurityManagerConfig config, long time) {
+      this.config = config;
+      this.time = time;
+    }
+  }
+
   private final ConfigCodec configCodec;
   private final String configFilename;
-  /** The modification time of the configuration file when last read. */
-  @GuardedBy("this") private long configTime;
-  /** The parsed configuration file. */
-  @GuardedBy("this") private SecurityManagerConfig config;
+  /** The current snapshot, or null if the file hasn't been read since the last reset. */
+  private volatile Snapshot snapshot;
 
   @Inject
   private ConfigSingleton(ConfigCodec configCodec, @Named("configFile") String configFilename) {
@@ -112,8 +144,7 @@ public class ConfigSingleton {
   }
 
   private synchronized void resetInternal() {
-    configTime = 0;
-    config = null;
+    snapshot = null;
   }
 
   /**
@@ -147,7 +178,7 @@ public class ConfigSingleton {
     public void register(GsonBuilder builder);
   }
 
-  public static synchronized Gson getGson() {
+  public static Gson getGson() {
     Preconditions.checkNotNull(gson);
     return gson;
   }
@@ -156,13 +187,14 @@ public class ConfigSingleton {
    * @return The current configuration.
    * @throws IOException if there are I/O errors reading the configuration.
    */
-  public static synchronized SecurityManagerConfig getConfig()
+  public static SecurityManagerConfig getConfig()
       throws IOException {
-    return (configOverride != null) ? configOverride : getConfigNoOverride();
+    SecurityManagerConfig override = configOverride;
+    return (override != null) ? override : getConfigNoOverride();
   }
 
   @VisibleForTesting
-  public static synchronized SecurityManagerConfig getConfigNoOverride()
+  public static SecurityManagerConfig getConfigNoOverride()
       throws IOException {
     return instance.getConfigInternal();
   }
@@ -173,40 +205,94 @@ public class ConfigSingleton {
     setChanged(config);
   }
 
-  private synchronized SecurityManagerConfig getConfigInternal()
+  private SecurityManagerConfig getConfigInternal()
+      throws IOException {
+    Snapshot current = snapshot;
+    if (current != null) {
+      return current.config;
+    }
+    synchronized (this) {
+      if (snapshot == null) {
+        refresh();
+      }
+      current = snapshot;
+    }
+    startPoller();
+    return current.config;
+  }
+
+  /**
+   * Checks the configuration file for changes, publishing a new snapshot if it
+   * has been modified since it was last read.  Files that haven't been read
+   * yet are left for the first reader to load.
+   */
+  @VisibleForTesting
+  static void pollConfigFile() {
+    ConfigSingleton current = instance;
+    if (current == null) {
+      return;
+    }
+    synchronized (current) {
+      if (current.snapshot == null) {
+        return;
+      }
+      try {
+        current.refresh();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to check config file; keeping previous config", e);
+      }
+    }
+  }
+
+  private static void startPoller() {
+    if (pollerStarted.compareAndSet(false, true)) {
+      poller.scheduleWithFixedDelay(
+          new Runnable() {
+            @Override
+            public void run() {
+              pollConfigFile();
+            }
+          },
+          POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @GuardedBy("this")
+  private void refresh()
       throws IOException {
     logger.fine("About to read config " + configFilename);
 
     File file = FileUtil.getContextFile(configFilename);
     // Check the config file's mod time; if it hasn't changed since the last
-    // successful read, use the cached value.  Otherwise, try reading the config
-    // file.  Go around the loop until the mod time before the read and the mod
-    // time after the read are the same.  This detects changes to the file
-    // during the read.
+    // successful read, keep the current snapshot.  Otherwise, try reading the
+    // config file.  Go around the loop until the mod time before the read and
+    // the mod time after the read are the same.  This detects changes to the
+    // file during the read.
+    Snapshot current = snapshot;
     boolean changed = false;
     while (true) {
       long time = file.lastModified();
       if (time == 0) {
         throw new IOException("No such file: " + file);
       }
-      if (time == configTime) {
+      if (current != null && time == current.time) {
         break;
       }
+      SecurityManagerConfig config;
       try {
         config = configCodec.readConfig(file);
       } catch (ConfigException e) {
         logger.log(Level.SEVERE, "Error parsing config file. Returning default config.", e);
         config = SecurityManagerConfig.makeDefault();
       }
-      configTime = time;
+      current = new Snapshot(config, time);
       changed = true;
     }
     if (changed) {
-      setChanged(config);
+      snapshot = current;
+      setChanged(current.config);
+      logger.fine("Read config");
     }
-
-    logger.fine("Read config");
-    return config;
   }
 
   /**
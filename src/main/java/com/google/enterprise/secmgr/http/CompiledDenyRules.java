@@ -0,0 +1,292 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.http;
+
+import com.google.common.primitives.Ints;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable, compiled set of deny rules.
+ *
+ * <p>Deny-rule patterns are Java regular expressions that are searched for in
+ * the URL, and the first pattern in file order that matches determines the
+ * rule.  Most patterns are plain URLs, though, so patterns are sorted into
+ * three indexes when compiled:
+ *
+ * <ul>
+ * <li>anchored literals, like {@code ^http://host/path$}, in a hash map;
+ * <li>anchored literal prefixes, like {@code ^http://host/}, in hash maps keyed
+ *     by prefix length;
+ * <li>everything else in file order.  Patterns using only literals, {@code .}
+ *     and escaped punctuation are matched directly; the rest fall back to
+ *     {@link Pattern#find}.
+ * </ul>
+ *
+ * A lookup takes the lowest-numbered rule found in any index, and stops
+ * scanning the ordered rules as soon as they can no longer beat it.
+ */
+@Immutable
+final class CompiledDenyRules {
+  static final CompiledDenyRules EMPTY =
+      compile(new ArrayList<String>(), new ArrayList<DenyRule>());
+
+  private final DenyRule[] rules;
+  private final Map<String, Integer> exact;
+  private final int[] prefixLengths;
+  private final Map<Integer, Map<String, Integer>> prefixes;
+  private final Matcher[] scanned;
+
+  private CompiledDenyRules(DenyRule[] rules, Map<String, Integer> exact, int[] prefixLengths,
+      Map<Integer, Map<String, Integer>> prefixes, Matcher[] scanned) {
+    this.rules = rules;
+    this.exact = exact;
+    this.prefixLengths = prefixLengths;
+    this.prefixes = prefixes;
+    this.scanned = scanned;
+  }
+
+  /**
+   * Compiles some deny rules.
+   *
+   * @param patterns The rules' URL patterns, in file order, without duplicates.
+   * @param rules The rules, in the same order as their patterns.
+   * @return The compiled rules.
+   * @throws java.util.regex.PatternSyntaxException if a pattern isn't a valid
+   *     regular expression.
+   */
+  static CompiledDenyRules compile(List<String> patterns, List<DenyRule> rules) {
+    Map<String, Integer> exact = new HashMap<>();
+    Map<Integer, Map<String, Integer>> prefixes = new HashMap<>();
+    TreeSet<Integer> prefixLengths = new TreeSet<>();
+    List<Matcher> scanned = new ArrayList<>();
+    for (int i = 0; i < patterns.size(); i++) {
+      String pattern = patterns.get(i);
+      // Compile every pattern, so that invalid ones are rejected as before.
+      Pattern regex = Pattern.compile(pattern);
+      SimplePattern simple = SimplePattern.parse(pattern);
+      if (simple != null && simple.isLiteral() && simple.anchoredStart) {
+        String literal = String.valueOf(simple.chars);
+        if (simple.anchoredEnd) {
+          putIfAbsent(exact, literal, i);
+        } else {
+          Map<String, Integer> byLength = prefixes.get(literal.length());
+          if (byLength == null) {
+            byLength = new HashMap<>();
+            prefixes.put(literal.length(), byLength);
+            prefixLengths.add(literal.length());
+          }
+          putIfAbsent(byLength, literal, i);
+        }
+      } else {
+        scanned.add(new Matcher(i, simple, (simple == null) ? regex : null));
+      }
+    }
+    return new CompiledDenyRules(
+        rules.toArray(new DenyRule[0]),
+        exact,
+        Ints.toArray(prefixLengths),
+        prefixes,
+        scanned.toArray(new Matcher[0]));
+  }
+
+  private static void putIfAbsent(Map<String, Integer> map, String key, int index) {
+    if (!map.containsKey(key)) {
+      map.put(key, index);
+    }
+  }
+
+  /** @return The number of rules. */
+  int size() {
+    return rules.length;
+  }
+
+  /**
+   * Gets the first rule whose pattern matches a URL.
+   *
+   * @param url The URL to match.
+   * @return The rule, or null if no pattern matches.
+   */
+  @Nullable
+  DenyRule getRule(String url) {
+    int best = Integer.MAX_VALUE;
+    Integer index = exact.get(url);
+    if (index != null) {
+      best = index;
+    }
+    for (int length : prefixLengths) {
+      if (length > url.length()) {
+        break;
+      }
+      index = prefixes.get(length).get(url.substring(0, length));
+      if (index != null && index < best) {
+        best = index;
+      }
+    }
+    for (Matcher matcher : scanned) {
+      if (matcher.index >= best) {
+        break;
+      }
+      if (matcher.matches(url)) {
+        best = matcher.index;
+        break;
+      }
+    }
+    return (best == Integer.MAX_VALUE) ? null : rules[best];
+  }
+
+  /** A rule that has to be tried against each URL. */
+  private static final class Matcher {
+    final int index;
+    @Nullable final SimplePattern simple;
+    @Nullable final Pattern regex;
+
+    Matcher(int index, @Nullable SimplePattern simple, @Nullable Pattern regex) {
+      this.index = index;
+      this.simple = simple;
+      this.regex = regex;
+    }
+
+    boolean matches(String url) {
+      return (simple != null) ? simple.find(url) : regex.matcher(url).find();
+    }
+  }
+
+  /**
+   * A regular expression made only of literal characters, {@code .}, escaped
+   * punctuation, and an optional leading {@code ^} and trailing {@code $}.
+   */
+  private static final class SimplePattern {
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+
+    final char[] chars;
+    /** Which of {@link #chars} are {@code .} wildcards. */
+    final boolean[] wild;
+    final boolean anchoredStart;
+    final boolean anchoredEnd;
+
+    private SimplePattern(char[] chars, boolean[] wild, boolean anchoredStart,
+        boolean anchoredEnd) {
+      this.chars = chars;
+      this.wild = wild;
+      this.anchoredStart = anchoredStart;
+      this.anchoredEnd = anchoredEnd;
+    }
+
+    /**
+     * Parses a regular expression.
+     *
+     * @return The simple pattern, or null if the expression isn't simple.
+     */
+    @Nullable
+    static SimplePattern parse(String pattern) {
+      int start = 0;
+      int end = pattern.length();
+      boolean anchoredStart = pattern.startsWith("^");
+      if (anchoredStart) {
+        start++;
+      }
+      boolean anchoredEnd = end > start && pattern.charAt(end - 1) == '$'
+          && !isEscaped(pattern, end - 1, start);
+      if (anchoredEnd) {
+        end--;
+      }
+      StringBuilder chars = new StringBuilder(end - start);
+      List<Boolean> wild = new ArrayList<>(end - start);
+      for (int i = start; i < end; i++) {
+        char c = pattern.charAt(i);
+        if (c == '\\') {
+          if (i + 1 >= end || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+            return null;
+          }
+          chars.append(pattern.charAt(++i));
+          wild.add(false);
+        } else if (c == '.') {
+          chars.append(c);
+          wild.add(true);
+        } else if (META_CHARS.indexOf(c) >= 0) {
+          return null;
+        } else {
+          chars.append(c);
+          wild.add(false);
+        }
+      }
+      boolean[] wildArray = new boolean[wild.size()];
+      for (int i = 0; i < wildArray.length; i++) {
+        wildArray[i] = wild.get(i);
+      }
+      return new SimplePattern(chars.toString().toCharArray(), wildArray, anchoredStart,
+          anchoredEnd);
+    }
+
+    private static boolean isEscaped(String pattern, int index, int start) {
+      int backslashes = 0;
+      for (int i = index - 1; i >= start && pattern.charAt(i) == '\\'; i--) {
+        backslashes++;
+      }
+      return (backslashes & 1) != 0;
+    }
+
+    boolean isLiteral() {
+      for (boolean w : wild) {
+        if (w) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Does the same as {@link java.util.regex.Matcher#find} for this pattern. */
+    boolean find(String url) {
+      int last = url.length() - chars.length;
+      if (last < 0) {
+        return false;
+      }
+      if (anchoredStart) {
+        return (!anchoredEnd || last == 0) && matchesAt(url, 0);
+      }
+      if (anchoredEnd) {
+        return matchesAt(url, last);
+      }
+      for (int i = 0; i <= last; i++) {
+        if (matchesAt(url, i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesAt(String url, int offset) {
+      for (int i = 0; i < chars.length; i++) {
+        char c = url.charAt(offset + i);
+        if (wild[i] ? isLineTerminator(c) : c != chars[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // The characters that an unflagged '.' doesn't match.
+    private static boolean isLineTerminator(char c) {
+      return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+  }
+}
@@ -18,9 +18,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
-import com.google.common.labs.matcher.MappingFromPatternMatcher;
-import com.google.common.labs.matcher.SequentialRegexPatternMatcher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.secmgr.common.Base64;
 import com.google.enterprise.secmgr.common.Base64DecoderException;
 import com.google.enterprise.secmgr.common.FileUtil;
@@ -33,10 +31,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -45,6 +53,12 @@ import javax.inject.Inject;
 /**
  * A facet to access deny rules.
  *
+ * <p>The rules are compiled into a {@link CompiledDenyRules} when the file is
+ * read, and swapped in whole, so lookups take no locks and never touch the
+ * file system.  The first lookup reads the file; after that, a shared daemon
+ * thread checks the file's modification time and recompiles the rules when it
+ * changes.
+ *
  */
 @ThreadSafe
 @Singleton
@@ -52,32 +66,36 @@ public class DenyRules implements DenyRulesInterface {
   private static final Logger logger =
       Logger.getLogger(DenyRules.class.getName());
 
-  @GuardedBy("this") private MappingFromPatternMatcher<Entry<String, DenyRule>> rulesMap;
+  /** How often the deny rules file is checked for changes. */
+  @VisibleForTesting
+  static final long RELOAD_INTERVAL_MILLIS = 1000;
+
+  /** One in this many lookups is timed. */
+  private static final int LATENCY_SAMPLE_RATE = 16;
+
+  /** The configuration time recorded while the file is missing. */
+  private static final long MISSING = -1;
+
+  private static final ScheduledExecutorService watcher =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("DenyRulesWatcher-%d")
+          .setDaemon(true)
+          .build());
+
+  /** The current rules, or null if they haven't been read yet. */
+  private volatile CompiledDenyRules rules;
+  private volatile long lastCompileMillis;
+  private final LatencyHistogram lookupLatency = new LatencyHistogram();
 
   @GuardedBy("this") private String confFilename = null;
   /** The modification time of the configuration file when last read. */
   @GuardedBy("this") private long configTime;
+  @GuardedBy("this") private boolean watching;
 
   @VisibleForTesting
   @Inject
   DenyRules() {
-    SequentialRegexPatternMatcher fm = new SequentialRegexPatternMatcher(new AtomicInteger(0));
-    rulesMap = new MappingFromPatternMatcher<Entry<String, DenyRule>>(fm);
-  }
-
-  private synchronized boolean changedConfig()
-      throws FileNotFoundException {
-    boolean changed = false;
-    File file = FileUtil.getContextFile(confFilename);
-    long time = file.lastModified();
-    if (time == 0) {
-      throw new FileNotFoundException("No such file: " + file);
-    }
-    if (time == configTime) {
-      return false;
-    }
-    configTime = time;
-    return true;
   }
 
   /**
@@ -87,36 +105,139 @@ public class DenyRules implements DenyRulesInterface {
    * @return The deny rule, or null if there is no match.
    */
   public DenyRule getRule(String urlString) {
-    try {
-      loadifChanged();
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, "Failed to load deny rules.", e);
-      e.printStackTrace();
+    CompiledDenyRules current = rules;
+    if (current == null) {
+      current = loadFirst();
     }
-    Entry<String, DenyRule> entry = rulesMap.getBestValue(urlString);
-    return (entry == null) ? null : entry.getValue();
+    if (ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE_RATE) != 0) {
+      return current.getRule(urlString);
+    }
+    long start = System.nanoTime();
+    DenyRule rule = current.getRule(urlString);
+    lookupLatency.record(System.nanoTime() - start);
+    return rule;
+  }
+
+  /** @return The number of rules currently loaded. */
+  public int getRuleCount() {
+    CompiledDenyRules current = rules;
+    return (current == null) ? 0 : current.size();
+  }
+
+  /** @return How long the last load of the rules took to read and compile. */
+  public long getLastCompileMillis() {
+    return lastCompileMillis;
   }
 
   /**
-   * Reads the deny rules from config file and populates the internal map.
+   * Gets a percentile of the sampled lookup latencies.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   * @return An upper bound on that percentile of lookup times, within a factor
+   *     of two, or zero if no lookups have been sampled.
    */
-  private void loadifChanged() throws IOException {
+  public long getLookupLatencyNanos(double percentile) {
+    return lookupLatency.getPercentile(percentile);
+  }
+
+  private synchronized CompiledDenyRules loadFirst() {
+    if (rules == null) {
+      try {
+        reloadIfChanged();
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Failed to load deny rules.", e);
+      }
+      if (rules == null) {
+        rules = CompiledDenyRules.EMPTY;
+      }
+      startWatching();
+    }
+    return rules;
+  }
+
+  @GuardedBy("this")
+  private void startWatching() {
+    if (watching) {
+      return;
+    }
+    watching = true;
+    Tick tick = new Tick(this);
+    tick.future = watcher.scheduleWithFixedDelay(tick, RELOAD_INTERVAL_MILLIS,
+        RELOAD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static final class Tick implements Runnable {
+    final WeakReference<DenyRules> denyRules;
+    volatile ScheduledFuture<?> future;
+
+    Tick(DenyRules denyRules) {
+      this.denyRules = new WeakReference<DenyRules>(denyRules);
+    }
+
+    @Override
+    public void run() {
+      DenyRules target = denyRules.get();
+      if (target == null) {
+        future.cancel(false);
+        return;
+      }
+      try {
+        target.reloadIfChanged();
+      } catch (IOException | RuntimeException e) {
+        // Keep the current rules, and try again on the next tick.
+        logger.log(Level.SEVERE, "Failed to load deny rules.", e);
+      }
+    }
+  }
+
+  /**
+   * Reads and compiles the deny rules if the config file has changed since it
+   * was last read.
+   */
+  @VisibleForTesting
+  synchronized void reloadIfChanged() throws IOException {
     if (confFilename == null) {
       confFilename = ConfigSingleton.getConfig().getDenyRulesFilename();
     }
-    try {
-      while (changedConfig()) {
-        reset();
-        load();
+    File file = FileUtil.getContextFile(confFilename);
+    // Go around the loop until the mod time before the read and the mod time
+    // after the read are the same.  This detects changes to the file during
+    // the read.
+    while (true) {
+      long time = file.lastModified();
+      if (time == 0) {
+        if (configTime != MISSING) {
+          logger.warning("Could not find deny rules conf file: " + confFilename);
+          configTime = MISSING;
+        }
+        return;
       }
-    } catch (FileNotFoundException e) {
-      logger.warning("Could not find deny rules conf file: " + confFilename);
+      if (time == configTime) {
+        return;
+      }
+      configTime = time;
+      long start = System.nanoTime();
+      CompiledDenyRules compiled = load(file);
+      lastCompileMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      rules = compiled;
+      logger.info("Deny rules loaded from: " + confFilename + "; " + compiled.size()
+          + " rules compiled in " + lastCompileMillis + " ms; sampled lookup latency p50 "
+          + lookupLatency.getPercentile(50) + " ns, p99 " + lookupLatency.getPercentile(99)
+          + " ns");
     }
   }
 
-  private void load() throws IOException {
-    File file = FileUtil.getContextFile(confFilename);
-    FileReader fileReader = new FileReader(file);
+  private CompiledDenyRules load(File file) throws IOException {
+    // A pattern that appears more than once keeps its first position, but takes
+    // the last rule given for it.
+    Map<String, DenyRule> parsed = new LinkedHashMap<>();
+    FileReader fileReader;
+    try {
+      fileReader = new FileReader(file);
+    } catch (FileNotFoundException e) {
+      logger.warning("Could not find deny rules conf file: " + confFilename);
+      return CompiledDenyRules.EMPTY;
+    }
     try {
       BufferedReader bufferedReader = new BufferedReader(fileReader);
       while (true) {
@@ -124,28 +245,23 @@ public class DenyRules implements DenyRulesInterface {
         if (line == null) {
           break;
         }
-        parse(line);
+        parse(line, parsed);
       }
-      logger.info("Deny rules loaded from: " + confFilename);
-    } catch (FileNotFoundException e) {
-      logger.warning("Could not find deny rules conf file: " + confFilename);
     } finally {
       fileReader.close();
     }
-  }
-
-  private synchronized void reset() {
-    SequentialRegexPatternMatcher fm = new SequentialRegexPatternMatcher(new AtomicInteger(0));
-    rulesMap = new MappingFromPatternMatcher<Entry<String, DenyRule>>(fm);
+    return CompiledDenyRules.compile(
+        new ArrayList<String>(parsed.keySet()), new ArrayList<DenyRule>(parsed.values()));
   }
 
   /**
    * Parses a deny rule entry.
    *
    * @param entry a deny rule config
+   * @param parsed the rules parsed so far, to which this rule is added
    * @return the deny rule object.
    */
-  private DenyRule parse(String entry) {
+  private DenyRule parse(String entry, Map<String, DenyRule> parsed) {
     if (CharMatcher.whitespace().trimFrom(entry).isEmpty()) {
       logger.info("Empty deny rule ");
       return null;
@@ -158,6 +274,12 @@ public class DenyRules implements DenyRulesInterface {
     }
 
     String urlPattern = tokens[0];
+    try {
+      Pattern.compile(urlPattern);
+    } catch (PatternSyntaxException e) {
+      logger.severe("Invalid deny rule pattern: " + urlPattern);
+      return null;
+    }
     DenyRule.Builder denyRuleBuilder = DenyRule.newBuilder();
 
     try {
@@ -169,13 +291,46 @@ public class DenyRules implements DenyRulesInterface {
 
     logger.info("Read deny rule " + urlPattern);
     DenyRule denyRule = denyRuleBuilder.build();
-    Entry<String, DenyRule> ruleEntry = Maps.immutableEntry(urlPattern, denyRule);
-    rulesMap.put(urlPattern, ruleEntry);
+    parsed.put(urlPattern, denyRule);
     return denyRule;
   }
 
   @VisibleForTesting
   synchronized void setConfFile(String filename) {
     confFilename = filename;
+    configTime = 0;
+    rules = null;
+  }
+
+  /**
+   * A lock-free histogram of latencies, in power-of-two buckets of
+   * nanoseconds.
+   */
+  private static final class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+    void record(long nanos) {
+      // Bucket i holds the latencies below 2^i that don't fit in bucket i - 1.
+      buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+    }
+
+    long getPercentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        total += buckets.get(i);
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= Math.max(rank, 1)) {
+          return 1L << i;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
   }
 }
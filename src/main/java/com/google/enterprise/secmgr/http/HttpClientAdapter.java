@@ -478,10 +478,8 @@ final class HttpClientAdapter implements HttpClientInterface {
 
       // Compute the set of cookies to be sent.
       CookieStore toSend = GCookie.makeStore();
-      for (GCookie cookie : getCookies()) {
-        if (cookie.isGoodFor(request.getURI())) {
-          toSend.add(cookie);
-        }
+      for (GCookie cookie : getCookies().getCookiesFor(request.getURI())) {
+        toSend.add(cookie);
       }
 
       // Convert those cookies to a header in the request.
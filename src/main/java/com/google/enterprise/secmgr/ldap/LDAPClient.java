@@ -15,8 +15,10 @@
 package com.google.enterprise.secmgr.ldap;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -32,15 +34,16 @@ import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.naming.AuthenticationException;
 import javax.naming.ConfigurationException;
 import javax.naming.Context;
@@ -53,8 +56,11 @@ import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.ldap.StartTlsRequest;
 import javax.naming.ldap.StartTlsResponse;
 import javax.net.ssl.SSLSocketFactory;
@@ -84,10 +90,32 @@ public class LDAPClient {
   // these should be empty if the server supports anonymous binding.
   private String anonBindDN = "";
   private String anonBindPassword = "";
-  private String configurationNamingContext;
-  private String dn;
-  private boolean isActiveDirectory;
-  private Map<String, String> nETBIOSCache = new HashMap<String, String>();
+  // Read from the root DSE whenever a search connection is made.
+  private volatile String configurationNamingContext;
+  private volatile String dn;
+  private volatile boolean isActiveDirectory;
+  private final Map<String, String> nETBIOSCache = new ConcurrentHashMap<String, String>();
+
+  /** The number of search results asked for at a time. */
+  private static final int SEARCH_PAGE_SIZE = 500;
+
+  /** The time allowed for group resolution when there's no timeout. */
+  private static final long GROUP_RESOLUTION_TIMEOUT_MILLIS = 60 * 1000;
+
+  private volatile boolean nestedGroupResolution = false;
+
+  /** The maximum number of entries in each of the lookup caches. */
+  private static final int LOOKUP_CACHE_SIZE = 10000;
+
+  // Both set by enablePooling and cleared by close; without a pool, every
+  // call makes its own connection.
+  private volatile LdapConnectionPool pool = null;
+  private volatile LdapLookupCache lookupCache = null;
+  // Whether enablePooling has been called; it stays set once the pool is
+  // closed, so that connections borrowed from a closed pool never go back to
+  // a new one.
+  private boolean poolingEnabled = false;
+  private LdapConnectionPool.ContextFactory contextFactoryForTesting = null;
   
   private SSLSupport sslSupport = SSLSupport.NO_SSL;
   private AuthMethod authMethod = AuthMethod.SIMPLE;
@@ -168,6 +196,68 @@ public class LDAPClient {
   public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
     this.sslSocketFactory = sslSocketFactory;
   }
+
+  /**
+   * Makes this client share a pool of search connections between calls, and
+   * optionally cache user DN, group and NetBIOS domain lookups.  Password
+   * checks always use a connection of their own, and are never cached.
+   * Must be called at most once, after the client is configured.
+   *
+   * @param maxConnections the maximum number of pooled search connections.
+   * @param maxIdleMillis how long an unused search connection is kept open.
+   * @param cacheTtlMillis how long lookup results are cached; 0 disables the
+   *     cache.
+   */
+  public synchronized void enablePooling(int maxConnections, long maxIdleMillis,
+      long cacheTtlMillis) {
+    Preconditions.checkState(!poolingEnabled, "Pooling is already enabled");
+    poolingEnabled = true;
+    pool = new LdapConnectionPool(
+        new LdapConnectionPool.ContextFactory() {
+          @Override
+          public DirContext newContext() throws NamingException {
+            return newSearchContext();
+          }
+        },
+        maxConnections, maxIdleMillis);
+    if (cacheTtlMillis > 0) {
+      lookupCache = new LdapLookupCache(cacheTtlMillis, LOOKUP_CACHE_SIZE,
+          Ticker.systemTicker());
+    }
+  }
+
+  /**
+   * Closes the pooled connections and drops the cached lookups.  The client
+   * can still be used afterwards, but each call makes its own connection.
+   */
+  public synchronized void close() {
+    LdapConnectionPool closing = pool;
+    if (closing != null) {
+      // Later calls make their own connections; calls still using the pool
+      // give their connections back to it, and it closes them.
+      pool = null;
+      closing.close();
+    }
+    if (lookupCache != null) {
+      lookupCache.invalidateAll();
+      lookupCache = null;
+    }
+  }
+
+  /** @return the search connection pool, or null if pooling isn't enabled. */
+  @Nullable
+  public LdapConnectionPool getConnectionPool() {
+    return pool;
+  }
+
+  /**
+   * Makes the client get its connections from a factory instead of the
+   * server, so that tests can use an in-process directory.
+   */
+  @VisibleForTesting
+  synchronized void setContextFactory(LdapConnectionPool.ContextFactory factory) {
+    contextFactoryForTesting = factory;
+  }
   
   /**
    * Attempts to automatically detect some configuration settings, by
@@ -328,30 +418,38 @@ public class LDAPClient {
       throw new ConfigurationException("Password empty");
     }
 
-    DirContext ctx = connect();  // using "anon" or search-only binding.
-
-    Set<NameAndDomain> distNames = findDNs(ctx, userSearchFilter, username);
-    for (NameAndDomain distName : distNames) {
-      String name = distName.getName();
-      if (!name.toLowerCase().contains(base.toLowerCase())) {
-        name = name + "," + base;
+    Set<NameAndDomain> distNames = findUserDNs(username);
+    // The user's bind changes the connection's identity, so it can't be done
+    // on a pooled search connection.
+    DirContext ctx = null;
+    try {
+      for (NameAndDomain distName : distNames) {
+        String name = distName.getName();
+        if (!name.toLowerCase().contains(base.toLowerCase())) {
+          name = name + "," + base;
+        }
+        if (ctx == null) {
+          ctx = newBindContext();
+        }
+        ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+        ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, name);
+        ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+        logger.fine("Trying to authenticate: " + username +
+                 " Using DN: " + name);
+
+        // we need to try an LDAP operation. we try an empty search.
+        try {
+          testContext(ctx);  // just to try something.
+          return name;  // success.
+        } catch (AuthenticationException e) {
+          // wrong password, may just be wrong user (different DN).
+        }
       }
-      ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
-      ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, name);
-      ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
-      logger.fine("Trying to authenticate: " + username +
-               " Using DN: " + name);
-
-      // we need to try an LDAP operation. we try an empty search.
-      try {
-        testContext(ctx);  // just to try something.
+    } finally {
+      if (ctx != null) {
         ctx.close();
-        return name;  // success.
-      } catch (AuthenticationException e) {
-        // wrong password, may just be wrong user (different DN).
       }
     }
-    ctx.close();
     logger.info("Failed to authenticate " + username);
     return null;  // authentication failed.
   }
@@ -379,20 +477,42 @@ public class LDAPClient {
       throw new ConfigurationException("Username empty");
     }
 
-    DirContext ctx = connect();  // using "anon" or search-only binding.
-    NameAndDomain distName = null;
-    Set<NameAndDomain> distNames = findDNs(ctx, userSearchFilter, username);
-    if (distNames != null && !distNames.isEmpty()) {
-      distName = Iterables.get(distNames, 0);
-      if (!distName.getName().toLowerCase().contains(base.toLowerCase())) {
-        distName.setName(distName.getName() + "," + base);
+    String name = null;
+    Set<NameAndDomain> distNames = findUserDNs(username);
+    if (!distNames.isEmpty()) {
+      name = Iterables.get(distNames, 0).getName();
+      if (!name.toLowerCase().contains(base.toLowerCase())) {
+        name = name + "," + base;
       }
-      logger.info("Found DN for user " + username + ": " + distName.getName());
+      logger.info("Found DN for user " + username + ": " + name);
     }
 
-    ctx.close();
-    logger.info("username " + username + " - getUserDN  - " + distName);
-    return (distName == null) ? null : distName.getName();  // return DN or null
+    logger.info("username " + username + " - getUserDN  - " + name);
+    return name;  // return DN or null
+  }
+
+  /**
+   * Finds the DNs of the entries matching the user search filter for a user,
+   * using the lookup cache if there is one.
+   */
+  private Set<NameAndDomain> findUserDNs(String username) throws NamingException {
+    LdapLookupCache cache = lookupCache;
+    Set<NameAndDomain> distNames = (cache == null) ? null : cache.getUserDns(username);
+    if (distNames != null) {
+      return distNames;
+    }
+    DirContext ctx = acquireSearchContext();  // using "anon" or search-only binding.
+    boolean healthy = false;
+    try {
+      distNames = findDNs(ctx, userSearchFilter, username);
+      healthy = true;
+    } finally {
+      releaseSearchContext(ctx, healthy);
+    }
+    if (cache != null) {
+      cache.putUserDns(username, distNames);
+    }
+    return distNames;
   }
 
   /**
@@ -422,24 +542,65 @@ public class LDAPClient {
       throw new ConfigurationException("Username empty");
     }
 
-    DirContext ctx = connect();
+    LdapLookupCache cache = lookupCache;
+    if (cache != null) {
+      Set<NameAndDomain> cached = cache.getGroups(username, dn);
+      if (cached != null) {
+        logger.fine("Groups - " + cached + " from cache");
+        return cached;
+      }
+    }
 
-    Set<NameAndDomain> distNames = null;
-    if (groupResFormat == GroupResolutionFormat.SAM_ACCOUNT_NAME) {
-      distNames = findDNs(ctx, groupSearchFilter, username, dn, true,
-          Lists.newArrayList(LDAPConstants.ATTRIBUTE_SAM_ACCOUNT_NAME), 
-          LDAPConstants.ATTRIBUTE_SAM_ACCOUNT_NAME);
-    } else {
-      distNames = findDNs(ctx, groupSearchFilter, username, dn, true);
+    LdapGroupResolver.Result resolution = resolveGroups(username, dn);
+    Set<NameAndDomain> distNames = Sets.newHashSet(resolution.getGroups());
+    if (groupResFormat == GroupResolutionFormat.CN) {
+      distNames = getCNfromDN(distNames);
     }
-    ctx.close();
-    if (groupResFormat != GroupResolutionFormat.CN) {
-      logger.fine("Groups - " + distNames);     
-      return distNames;
+    logger.fine("Groups - " + distNames);
+    if (cache != null && resolution.isComplete()) {
+      cache.putGroups(username, dn, distNames);
     }
-    Set<NameAndDomain> cnDistNames = getCNfromDN(distNames);
-    logger.fine    ("Groups - " + cnDistNames);
-    return cnDistNames;
+    return distNames;
+  }
+
+  /**
+   * Finds a user's groups, and with nested group resolution enabled, the
+   * groups containing those groups.  Each search borrows its own connection,
+   * so nesting levels are expanded in parallel when pooling is enabled.
+   */
+  @VisibleForTesting
+  LdapGroupResolver.Result resolveGroups(String username, String dn) throws NamingException {
+    final List<String> returnAttributes;
+    final String attributeName;
+    if (groupResFormat == GroupResolutionFormat.SAM_ACCOUNT_NAME) {
+      returnAttributes = Lists.newArrayList(LDAPConstants.ATTRIBUTE_SAM_ACCOUNT_NAME);
+      attributeName = LDAPConstants.ATTRIBUTE_SAM_ACCOUNT_NAME;
+    } else {
+      returnAttributes = Lists.newArrayList(
+          LDAPConstants.ATTRIBUTE_DN, LDAPConstants.ATTRIBUTE_AD_DN);
+      attributeName = LDAPConstants.ATTRIBUTE_AD_DN;
+    }
+    LdapGroupResolver.Searcher searcher = new LdapGroupResolver.Searcher() {
+      @Override
+      public Set<NameAndDomain> search(String name, String memberDn, boolean firstLevel)
+          throws NamingException {
+        DirContext ctx = acquireSearchContext();
+        boolean healthy = false;
+        try {
+          Set<NameAndDomain> distNames = findDNs(ctx, groupSearchFilter, name, memberDn,
+              firstLevel, returnAttributes, attributeName);
+          healthy = true;
+          return distNames;
+        } finally {
+          releaseSearchContext(ctx, healthy);
+        }
+      }
+    };
+    // Only a filter that matches on the member's DN can find a group's groups.
+    boolean expandNested = nestedGroupResolution && groupSearchFilter.contains("%dn");
+    return new LdapGroupResolver(searcher, expandNested,
+        (timeout > 0) ? timeout : GROUP_RESOLUTION_TIMEOUT_MILLIS)
+        .resolve(username, dn);
   }
 
   private Set<NameAndDomain> getCNfromDN(Set<NameAndDomain>distNames) {
@@ -493,7 +654,10 @@ public class LDAPClient {
     int hasDC = dn.toLowerCase().indexOf("dc=");
     if (hasDC > -1) {
       String domaindn = dn.substring(hasDC);
-      String nETBIOSName = nETBIOSCache.get(domaindn);
+      LdapLookupCache cache = lookupCache;
+      String nETBIOSName = (cache == null)
+          ? nETBIOSCache.get(domaindn)
+          : cache.getNetbiosName(domaindn);
       if (nETBIOSName != null) {
         logger.fine(domaindn + " -> " + nETBIOSName + " from cache");
         return nETBIOSName;
@@ -502,7 +666,11 @@ public class LDAPClient {
             getADProperty("(ncName=" + domaindn + ")", LDAPConstants.ATTRIBUTE_AD_NETBIOSNAME);
         if (nETBIOSName != null) {
           logger.fine("caching " + domaindn + " -> " + nETBIOSName);
-          nETBIOSCache.put(domaindn, nETBIOSName);
+          if (cache == null) {
+            nETBIOSCache.put(domaindn, nETBIOSName);
+          } else {
+            cache.putNetbiosName(domaindn, nETBIOSName);
+          }
           return nETBIOSName;
         }
       }
@@ -542,6 +710,20 @@ public class LDAPClient {
     return groupResFormat;
   }
 
+  /** @return whether the groups containing a user's groups are looked up. */
+  public boolean nestedGroupResolution() {
+    return nestedGroupResolution;
+  }
+
+  /**
+   * Sets whether {@link #getGroupsWithUser} also returns the groups that
+   * contain the user's groups, to any depth.  This needs a group search
+   * filter using {@code %dn}, such as {@code (member=%dn)}.
+   */
+  public void setNestedGroupResolution(boolean nestedGroupResolution) {
+    this.nestedGroupResolution = nestedGroupResolution;
+  }
+
   @VisibleForTesting
   public void setGroupResolutionFormat(GroupResolutionFormat format) {
     groupResFormat = format;
@@ -1014,6 +1196,15 @@ public class LDAPClient {
    * @throws javax.naming.NamingException
    */
   private DirContext connect() throws NamingException {
+    return connect(true);
+  }
+
+  /**
+   * Connects as {@link #connect()} does.
+   * @param readRootDse whether to read the server type and naming contexts
+   * from the root DSE.
+   */
+  private DirContext connect(boolean readRootDse) throws NamingException {
     Hashtable<String, String> env = new Hashtable<String, String>(11);
     env.put(Context.INITIAL_CONTEXT_FACTORY,
         "com.sun.jndi.ldap.LdapCtxFactory");
@@ -1060,7 +1251,10 @@ public class LDAPClient {
       ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, anonBindDN);
       ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, anonBindPassword);
     }
-    
+
+    if (!readRootDse) {
+      return ctx;
+    }
     Attributes attributes = ctx.getAttributes("");
     isActiveDirectory =
         attributes.get(LDAPConstants.ATTR_DSSERVICENAME) != null;
@@ -1073,6 +1267,49 @@ public class LDAPClient {
     return ctx;
   }
 
+  /** Makes a new connection bound with the search identity. */
+  private DirContext newSearchContext() throws NamingException {
+    LdapConnectionPool.ContextFactory factory;
+    synchronized (this) {
+      factory = contextFactoryForTesting;
+    }
+    return (factory == null) ? connect() : factory.newContext();
+  }
+
+  /** Makes a new connection for checking a user's password. */
+  private DirContext newBindContext() throws NamingException {
+    LdapConnectionPool.ContextFactory factory;
+    synchronized (this) {
+      factory = contextFactoryForTesting;
+    }
+    return (factory == null) ? connect(false) : factory.newContext();
+  }
+
+  /**
+   * Gets a connection for searching, from the pool if pooling is enabled.
+   * The connection must be passed to {@link #releaseSearchContext}.
+   */
+  private DirContext acquireSearchContext() throws NamingException {
+    LdapConnectionPool pool = this.pool;
+    return (pool == null) ? newSearchContext() : pool.borrow();
+  }
+
+  /**
+   * Gives back a connection from {@link #acquireSearchContext}.
+   * @param healthy false if the connection failed, and shouldn't be reused.
+   */
+  private void releaseSearchContext(DirContext ctx, boolean healthy)
+      throws NamingException {
+    LdapConnectionPool pool = this.pool;
+    if (pool == null) {
+      ctx.close();
+    } else if (healthy) {
+      pool.release(ctx);
+    } else {
+      pool.invalidate(ctx);
+    }
+  }
+
   /**
    * Find list of all DNs which share specified user ID (user name), through
    * a given filter.
@@ -1121,57 +1358,108 @@ public class LDAPClient {
     controls.setReturningAttributes(returnAttributes.toArray(strArry));
     controls.setReturningObjFlag(false);
 
-    NamingEnumeration<SearchResult> answer =
-        ctx.search(base, actualFilter, controls);
+    // Ask for the results a page at a time, so that large result sets don't
+    // hit the server's size limit.  Servers that don't support paging ignore
+    // the non-critical control and return everything at once.
+    LdapContext pagedCtx = (ctx instanceof LdapContext) ? (LdapContext) ctx : null;
+    byte[] cookie = null;
     try {
-      try {
-        String fullDN;
-        while (answer.hasMore()) {
-          SearchResult result = answer.next();
-          fullDN = result.getNameInNamespace();
-          logger.fine("DN - " + fullDN);
-          Attributes attrs = result.getAttributes();
-          if (attrs == null) {
-            continue;
+      do {
+        if (pagedCtx != null) {
+          setPagedResultsControl(pagedCtx, cookie);
+        }
+        NamingEnumeration<SearchResult> answer =
+            ctx.search(base, actualFilter, controls);
+        try {
+          try {
+            String fullDN;
+            while (answer.hasMore()) {
+              SearchResult result = answer.next();
+              fullDN = result.getNameInNamespace();
+              logger.fine("DN - " + fullDN);
+              Attributes attrs = result.getAttributes();
+              if (attrs == null) {
+                continue;
+              }
+              // Active directory results will contain an attribute with the
+              // full DN, so if possible we return that result.
+              Attribute adDn = result.getAttributes().get(attributeName);
+
+              String attributeValue = adDn == null ? result.getName() : adDn.get().toString();
+              logger.fine("Attribute value - " + attributeValue);
+              distNames.add(new NameAndDomain(attributeValue, fullDN));
+            }
+          } catch (PartialResultException e) {
+            // If AD is configured with root search base, hasMore() will throw
+            // exception since we do not follow referrals. Ignore and continue.
+          }
+          cookie = (pagedCtx == null) ? null : getPagedResultsCookie(pagedCtx);
+        } catch (NamingException e) {
+          // we ignore exceptions while collecting results. this may
+          // indicate partial results, just return what we have collected so
+          // far.
+          cookie = null;
+        } finally {
+          try {
+            answer.close();
+          } catch (NamingException e) {
+            logger.log(Level.WARNING, "Exception during clean up of ldap results.", e);
           }
-          // Active directory results will contain an attribute with the
-          // full DN, so if possible we return that result.
-          Attribute adDn = result.getAttributes().get(attributeName);
-
-          String attributeValue = adDn == null ? result.getName() : adDn.get().toString();
-          logger.fine("Attribute value - " + attributeValue);
-          distNames.add(new NameAndDomain(attributeValue, fullDN));
         }
-      } catch (PartialResultException e) {
-        // If AD is configured with root search base, hasMore() will throw
-        // exception since we do not follow referrals. Ignore and continue.
+      } while (cookie != null);
+    } finally {
+      if (pagedCtx != null) {
+        // Don't leave the control on what may be a pooled connection.
+        pagedCtx.setRequestControls(null);
       }
+    }
 
-      // In active directory, need to get primary group separately.
-      if (isActiveDirectory && ofGroups) {
-        NameAndDomain primaryGroup = 
+    // In active directory, need to get primary group separately.
+    if (isActiveDirectory && ofGroups) {
+      try {
+        NameAndDomain primaryGroup =
             getPrimaryGroup(ctx, dn, returnAttributes, attributeName);
         if (primaryGroup != null) {
           distNames.add(primaryGroup);
         }
-      }
-    } catch (NamingException e) {
-      // we ignore exceptions while collecting results. this may
-      // indicate partial results, just return what we have collected so
-      // far.
-    } finally {
-      try {
-        if (null != answer) {
-          answer.close();
-        }
       } catch (NamingException e) {
-        logger.log(Level.WARNING, "Exception during clean up of ldap results.", e);
+        // As above, just return what we have collected so far.
       }
     }
 
     return distNames;
   }
 
+  private static void setPagedResultsControl(LdapContext ctx, byte[] cookie)
+      throws NamingException {
+    try {
+      ctx.setRequestControls(new Control[] {
+          new PagedResultsControl(SEARCH_PAGE_SIZE, cookie, Control.NONCRITICAL) });
+    } catch (IOException e) {
+      NamingException ne = new NamingException("Failed to encode paged results control");
+      ne.setRootCause(e);
+      throw ne;
+    }
+  }
+
+  /**
+   * @return the cookie for the next page of results, or null if there are no
+   * more pages.
+   */
+  private static byte[] getPagedResultsCookie(LdapContext ctx) throws NamingException {
+    Control[] responseControls = ctx.getResponseControls();
+    if (responseControls == null) {
+      return null;
+    }
+    for (Control control : responseControls) {
+      if (control instanceof PagedResultsResponseControl) {
+        byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+        return (cookie == null || cookie.length == 0) ? null : cookie;
+      }
+    }
+    return null;
+  }
+
   /**
    * Find list of all DNs which share specified user ID (user name), through
    * a given filter.
@@ -1214,20 +1502,31 @@ public class LDAPClient {
     controls.setReturningObjFlag(false);
 
     // Use anonymous bindings.
-    DirContext ctx = connect();
-    int count = 0;
-    NamingEnumeration<SearchResult> answer =
-        ctx.search(base, searchFilter, controls);
-    while (answer.hasMore()) {
-      count++;
-      Attribute mailAttr = answer.next().getAttributes().get(LDAPConstants.ATTRIBUTE_MAIL);
-      if (mailAttr != null && mailAttr.get() != null) {
-        if (count > 1) {
-          logger.warning("LDAP returned more than 1 entry. [count=" + count
-                      + "] for the search filter=" + searchFilter);
+    DirContext ctx = acquireSearchContext();
+    boolean healthy = false;
+    try {
+      int count = 0;
+      NamingEnumeration<SearchResult> answer =
+          ctx.search(base, searchFilter, controls);
+      try {
+        while (answer.hasMore()) {
+          count++;
+          Attribute mailAttr = answer.next().getAttributes().get(LDAPConstants.ATTRIBUTE_MAIL);
+          if (mailAttr != null && mailAttr.get() != null) {
+            if (count > 1) {
+              logger.warning("LDAP returned more than 1 entry. [count=" + count
+                          + "] for the search filter=" + searchFilter);
+            }
+            healthy = true;
+            return mailAttr.get().toString();
+          }
         }
-        return mailAttr.get().toString();
+      } finally {
+        answer.close();
       }
+      healthy = true;
+    } finally {
+      releaseSearchContext(ctx, healthy);
     }
 
     return null;
@@ -1261,25 +1560,33 @@ public class LDAPClient {
     controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
     controls.setReturningAttributes(new String[] {attribute});
     controls.setReturningObjFlag(false);
-    DirContext ctx = connect();
-    if (!isActiveDirectory) {
-      return null;
-    }
+    DirContext ctx = acquireSearchContext();
+    boolean healthy = true;
     try {
-      NamingEnumeration<SearchResult> ldapResults =
-          ctx.search(configurationNamingContext, filter, controls);
-      if (!ldapResults.hasMore()) {
+      if (!isActiveDirectory) {
         return null;
       }
-      SearchResult sr = ldapResults.next();
-      Attributes attrs = sr.getAttributes();
-      Attribute at = attrs.get(attribute);
-      if (at != null) {
-        return (String) attrs.get(attribute).get(0);
+      NamingEnumeration<SearchResult> ldapResults =
+          ctx.search(configurationNamingContext, filter, controls);
+      try {
+        if (!ldapResults.hasMore()) {
+          return null;
+        }
+        SearchResult sr = ldapResults.next();
+        Attributes attrs = sr.getAttributes();
+        Attribute at = attrs.get(attribute);
+        if (at != null) {
+          return (String) attrs.get(attribute).get(0);
+        }
+      } finally {
+        ldapResults.close();
       }
     } catch (NamingException e) {
+        healthy = false;
         logger.log(Level.WARNING,
             "Failed retrieving " + filter + " from AD server", e);
+    } finally {
+      releaseSearchContext(ctx, healthy);
     }
     return null;
   }
@@ -0,0 +1,307 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.ref.WeakReference;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+
+/**
+ * A bounded pool of LDAP contexts bound with the search identity.
+ *
+ * <p>A context is borrowed for one operation and then either released back to
+ * the pool or, if the operation failed in a way that might have broken the
+ * connection, invalidated.  Contexts that have been idle for a while are
+ * checked with a root DSE read before being handed out again, and contexts
+ * idle for longer than the maximum idle time are closed in the background.
+ */
+@ThreadSafe
+public final class LdapConnectionPool {
+  private static final Logger logger = Logger.getLogger(LdapConnectionPool.class.getName());
+
+  /** Idle contexts unused for longer than this are checked before reuse. */
+  @VisibleForTesting
+  static final long VALIDATE_AFTER_MILLIS = 10 * 1000;
+
+  /** How long to wait for a context when all of them are in use. */
+  @VisibleForTesting
+  static final long BORROW_TIMEOUT_MILLIS = 30 * 1000;
+
+  private static final ScheduledExecutorService evictor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("LdapPoolEvictor-%d")
+          .setDaemon(true)
+          .build());
+
+  /** Makes new contexts for the pool. */
+  public interface ContextFactory {
+    /**
+     * @return A new context, bound with the search identity.
+     * @throws NamingException if the server can't be reached.
+     */
+    DirContext newContext() throws NamingException;
+  }
+
+  private final ContextFactory factory;
+  private final int maxSize;
+  private final long maxIdleNanos;
+  private final Ticker ticker;
+  private final Semaphore permits;
+  // Most recently used first, so the least recently used are evicted first.
+  private final Deque<IdleContext> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong reusedCount = new AtomicLong();
+  private final AtomicLong invalidatedCount = new AtomicLong();
+  private volatile boolean closed;
+
+  /**
+   * Makes a new pool.
+   *
+   * @param factory The factory for new contexts.
+   * @param maxSize The maximum number of contexts, in use or idle.
+   * @param maxIdleMillis How long a context may be idle before it's closed.
+   */
+  public LdapConnectionPool(ContextFactory factory, int maxSize, long maxIdleMillis) {
+    this(factory, maxSize, maxIdleMillis, Ticker.systemTicker());
+    Tick tick = new Tick(this);
+    long period = Math.max(1000, maxIdleMillis / 2);
+    tick.future = evictor.scheduleWithFixedDelay(tick, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @VisibleForTesting
+  LdapConnectionPool(ContextFactory factory, int maxSize, long maxIdleMillis, Ticker ticker) {
+    Preconditions.checkArgument(maxSize > 0);
+    Preconditions.checkArgument(maxIdleMillis > 0);
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+    this.ticker = ticker;
+    permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Gets a context from the pool, making a new one if no idle context is
+   * usable.  The caller must pass the context to exactly one of
+   * {@link #release} or {@link #invalidate} when done with it.
+   *
+   * @return A context bound with the search identity.
+   * @throws NamingException if a new context can't be made, or all the
+   *     contexts stay in use for too long.
+   */
+  public DirContext borrow() throws NamingException {
+    if (closed) {
+      throw new ServiceUnavailableException("LDAP connection pool is closed");
+    }
+    try {
+      if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new ServiceUnavailableException(
+            "Timed out waiting for one of " + maxSize + " LDAP connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceUnavailableException("Interrupted waiting for an LDAP connection");
+    }
+    boolean done = false;
+    try {
+      DirContext ctx = takeIdle();
+      if (ctx == null) {
+        ctx = factory.newContext();
+        createdCount.incrementAndGet();
+      } else {
+        reusedCount.incrementAndGet();
+      }
+      done = true;
+      return ctx;
+    } finally {
+      if (!done) {
+        permits.release();
+      }
+    }
+  }
+
+  /** Takes the most recently used idle context that's still healthy. */
+  private DirContext takeIdle() {
+    IdleContext entry;
+    while ((entry = idle.pollFirst()) != null) {
+      long idleNanos = ticker.read() - entry.lastUsedNanos;
+      if (idleNanos > maxIdleNanos) {
+        closeQuietly(entry.ctx);
+        continue;
+      }
+      if (idleNanos > TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER_MILLIS)
+          && !isHealthy(entry.ctx)) {
+        invalidatedCount.incrementAndGet();
+        closeQuietly(entry.ctx);
+        continue;
+      }
+      return entry.ctx;
+    }
+    return null;
+  }
+
+  private static boolean isHealthy(DirContext ctx) {
+    try {
+      // An empty attribute list asks for no attributes, just like testContext.
+      ctx.getAttributes("", new String[0]);
+      return true;
+    } catch (NamingException e) {
+      logger.log(Level.FINE, "Discarding broken LDAP connection", e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns a healthy context to the pool.
+   *
+   * @param ctx A context previously returned by {@link #borrow}.
+   */
+  public void release(DirContext ctx) {
+    try {
+      if (closed) {
+        closeQuietly(ctx);
+      } else {
+        idle.offerFirst(new IdleContext(ctx, ticker.read()));
+        if (closed) {
+          // The pool was closed while the context was being put back.
+          closeIdle();
+        }
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes a context that may be broken, instead of returning it to the pool.
+   *
+   * @param ctx A context previously returned by {@link #borrow}.
+   */
+  public void invalidate(DirContext ctx) {
+    try {
+      invalidatedCount.incrementAndGet();
+      closeQuietly(ctx);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Closes the idle contexts that have been unused for too long. */
+  @VisibleForTesting
+  void evictIdle() {
+    long now = ticker.read();
+    IdleContext entry;
+    // The oldest entries are at the end of the deque.
+    while ((entry = idle.peekLast()) != null && now - entry.lastUsedNanos > maxIdleNanos) {
+      if (idle.removeLastOccurrence(entry)) {
+        closeQuietly(entry.ctx);
+      }
+    }
+  }
+
+  /**
+   * Closes the idle contexts, and makes the pool close contexts as they're
+   * released.  Once closed, the pool can't be borrowed from.
+   */
+  public void close() {
+    closed = true;
+    closeIdle();
+  }
+
+  private void closeIdle() {
+    IdleContext entry;
+    while ((entry = idle.pollFirst()) != null) {
+      closeQuietly(entry.ctx);
+    }
+  }
+
+  /** @return The number of contexts the pool has made. */
+  public long getCreatedCount() {
+    return createdCount.get();
+  }
+
+  /** @return The number of times an idle context was reused. */
+  public long getReusedCount() {
+    return reusedCount.get();
+  }
+
+  /** @return The number of contexts that were closed because they broke. */
+  public long getInvalidatedCount() {
+    return invalidatedCount.get();
+  }
+
+  /** @return The number of idle contexts in the pool. */
+  public int getIdleCount() {
+    return idle.size();
+  }
+
+  /** @return The number of contexts currently borrowed. */
+  public int getActiveCount() {
+    return maxSize - permits.availablePermits();
+  }
+
+  private static void closeQuietly(DirContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException e) {
+      logger.log(Level.FINE, "Error closing LDAP connection", e);
+    }
+  }
+
+  private static final class IdleContext {
+    final DirContext ctx;
+    final long lastUsedNanos;
+
+    IdleContext(DirContext ctx, long lastUsedNanos) {
+      this.ctx = ctx;
+      this.lastUsedNanos = lastUsedNanos;
+    }
+  }
+
+  private static final class Tick implements Runnable {
+    final WeakReference<LdapConnectionPool> pool;
+    volatile ScheduledFuture<?> future;
+
+    Tick(LdapConnectionPool pool) {
+      this.pool = new WeakReference<LdapConnectionPool>(pool);
+    }
+
+    @Override
+    public void run() {
+      LdapConnectionPool target = pool.get();
+      if (target == null || target.closed) {
+        future.cancel(false);
+        return;
+      }
+      target.evictIdle();
+    }
+  }
+}
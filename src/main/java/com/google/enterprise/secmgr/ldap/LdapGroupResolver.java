@@ -0,0 +1,231 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.enterprise.secmgr.common.Decorator;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
+import com.google.enterprise.secmgr.ldap.LDAPClient.NameAndDomain;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.naming.NamingException;
+
+/**
+ * Resolves the groups a user belongs to, including the groups those groups
+ * belong to.
+ *
+ * <p>The user's direct groups are found with a single search.  Each further
+ * nesting level is then expanded by searching for the groups containing each
+ * group found in the previous level; those searches run in parallel, each on
+ * its own (pooled) connection.  Group DNs already seen are not searched for
+ * again, so membership cycles terminate.  Resolution stops early, with the
+ * groups found so far, when the deadline passes.
+ */
+final class LdapGroupResolver {
+  private static final Logger logger = Logger.getLogger(LdapGroupResolver.class.getName());
+
+  /** The deepest nesting level expanded, as a guard against runaway directories. */
+  @VisibleForTesting
+  static final int MAX_DEPTH = 32;
+
+  private static final Decorator LOG_DECORATOR =
+      new Decorator() {
+        @Override
+        public String apply(String input) {
+          return "LDAP group resolution: " + input;
+        }
+      };
+
+  /** Runs one group search. */
+  interface Searcher {
+    /**
+     * Finds the groups that directly contain a member.
+     *
+     * @param name The member's name; the user name for the first level.
+     * @param dn The member's DN.
+     * @param firstLevel Whether the member is the user rather than a group.
+     * @return The groups found, with each group's DN as its domain.
+     * @throws NamingException if the search fails.
+     */
+    Set<NameAndDomain> search(String name, @Nullable String dn, boolean firstLevel)
+        throws NamingException;
+  }
+
+  private final Searcher searcher;
+  private final boolean expandNested;
+  private final long timeoutMillis;
+
+  /**
+   * @param searcher The group searcher.
+   * @param expandNested Whether to look for groups containing the user's
+   *     groups.  This only makes sense for filters that match on the
+   *     member's DN.
+   * @param timeoutMillis The time allowed for the whole resolution.
+   */
+  LdapGroupResolver(Searcher searcher, boolean expandNested, long timeoutMillis) {
+    this.searcher = searcher;
+    this.expandNested = expandNested;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Resolves a user's groups.
+   *
+   * @param username The user's name.
+   * @param dn The user's DN, if known.
+   * @return The resolution.
+   * @throws NamingException if the search for the user's direct groups fails.
+   */
+  Result resolve(String username, @Nullable String dn) throws NamingException {
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    ImmutableList.Builder<Long> levelMillis = ImmutableList.builder();
+
+    Set<NameAndDomain> groups = Sets.newHashSet(searcher.search(username, dn, true));
+    levelMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    if (!expandNested) {
+      return new Result(groups, levelMillis.build(), true);
+    }
+
+    Set<String> visited = Sets.newHashSet();
+    if (dn != null) {
+      visited.add(normalize(dn));
+    }
+    List<NameAndDomain> frontier = unvisited(groups, visited);
+    boolean complete = true;
+    for (int depth = 1; !frontier.isEmpty(); depth++) {
+      long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+      if (depth > MAX_DEPTH || remainingMillis <= 0) {
+        complete = false;
+        break;
+      }
+      long levelStartNanos = System.nanoTime();
+      List<Set<NameAndDomain>> found = expand(frontier, remainingMillis);
+      levelMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - levelStartNanos));
+      if (found.size() < frontier.size()) {
+        // Some searches failed or ran out of time.
+        complete = false;
+      }
+      Set<NameAndDomain> next = Sets.newHashSet();
+      for (Set<NameAndDomain> parents : found) {
+        next.addAll(parents);
+      }
+      groups.addAll(next);
+      frontier = unvisited(next, visited);
+    }
+    Result result = new Result(groups, levelMillis.build(), complete);
+    if (!complete) {
+      logger.warning(LOG_DECORATOR.apply("stopped early for " + username + "; " + result));
+    } else if (logger.isLoggable(Level.FINE)) {
+      logger.fine(LOG_DECORATOR.apply(username + ": " + result));
+    }
+    return result;
+  }
+
+  private List<Set<NameAndDomain>> expand(List<NameAndDomain> frontier, long timeoutMillis) {
+    List<Callable<Set<NameAndDomain>>> callables = Lists.newArrayListWithCapacity(frontier.size());
+    for (final NameAndDomain group : frontier) {
+      callables.add(
+          new Callable<Set<NameAndDomain>>() {
+            @Override
+            public Set<NameAndDomain> call() {
+              try {
+                return searcher.search(group.getName(), group.getDomain(), false);
+              } catch (NamingException e) {
+                logger.log(Level.WARNING,
+                    LOG_DECORATOR.apply("failed to expand " + group.getDomain()), e);
+                // A null result is dropped, which marks the resolution incomplete.
+                return null;
+              }
+            }
+          });
+    }
+    try {
+      return SecurityManagerUtil.runInParallel(Workload.LDAP, callables, timeoutMillis,
+          LOG_DECORATOR);
+    } catch (ExecutionException e) {
+      logger.log(Level.WARNING, LOG_DECORATOR.apply("expansion failed"), e.getCause());
+      return ImmutableList.of();
+    }
+  }
+
+  /** Records and returns the groups whose DNs haven't been seen before. */
+  private static List<NameAndDomain> unvisited(Set<NameAndDomain> groups, Set<String> visited) {
+    List<NameAndDomain> result = Lists.newArrayList();
+    for (NameAndDomain group : groups) {
+      if (group.getDomain() != null && visited.add(normalize(group.getDomain()))) {
+        result.add(group);
+      }
+    }
+    return result;
+  }
+
+  // DNs are compared case-insensitively by LDAP servers.
+  private static String normalize(String dn) {
+    return dn.toLowerCase(Locale.ROOT);
+  }
+
+  /** The outcome of a group resolution. */
+  @Immutable
+  static final class Result {
+    private final ImmutableSet<NameAndDomain> groups;
+    private final ImmutableList<Long> levelMillis;
+    private final boolean complete;
+
+    Result(Set<NameAndDomain> groups, ImmutableList<Long> levelMillis, boolean complete) {
+      this.groups = ImmutableSet.copyOf(groups);
+      this.levelMillis = levelMillis;
+      this.complete = complete;
+    }
+
+    /** @return The groups found, with each group's DN as its domain. */
+    ImmutableSet<NameAndDomain> getGroups() {
+      return groups;
+    }
+
+    /**
+     * @return The time taken by each level of the resolution, in
+     *     milliseconds; the first entry is the search for the user's direct
+     *     groups.
+     */
+    ImmutableList<Long> getLevelMillis() {
+      return levelMillis;
+    }
+
+    /** @return Whether every level was fully expanded. */
+    boolean isComplete() {
+      return complete;
+    }
+
+    @Override
+    public String toString() {
+      return groups.size() + " groups in " + levelMillis.size() + " levels, level times "
+          + levelMillis + " ms" + (complete ? "" : " (incomplete)");
+    }
+  }
+}
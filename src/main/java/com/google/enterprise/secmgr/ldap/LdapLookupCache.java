@@ -0,0 +1,117 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.enterprise.secmgr.ldap.LDAPClient.NameAndDomain;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A time-limited cache of the directory lookups that don't depend on a
+ * user's password: user DNs, group memberships and NetBIOS domain names.
+ *
+ * <p>{@link NameAndDomain} is mutable, so the cache holds its own copies and
+ * hands out fresh ones.  Empty results aren't cached, since a failed search
+ * looks the same as an empty one.
+ */
+@ThreadSafe
+final class LdapLookupCache {
+  private final Cache<String, ImmutableSet<NameAndDomain>> userDns;
+  private final Cache<String, ImmutableSet<NameAndDomain>> groups;
+  private final Cache<String, String> netbiosNames;
+
+  LdapLookupCache(long ttlMillis, int maxEntries, Ticker ticker) {
+    userDns = newCache(ttlMillis, maxEntries, ticker);
+    groups = newCache(ttlMillis, maxEntries, ticker);
+    netbiosNames = newCache(ttlMillis, maxEntries, ticker);
+  }
+
+  private static <V> Cache<String, V> newCache(long ttlMillis, int maxEntries, Ticker ticker) {
+    return CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .maximumSize(maxEntries)
+        .ticker(ticker)
+        .build();
+  }
+
+  @Nullable
+  Set<NameAndDomain> getUserDns(String username) {
+    return copyOf(userDns.getIfPresent(username));
+  }
+
+  void putUserDns(String username, Set<NameAndDomain> distNames) {
+    if (!distNames.isEmpty()) {
+      userDns.put(username, immutableCopyOf(distNames));
+    }
+  }
+
+  @Nullable
+  Set<NameAndDomain> getGroups(String username, @Nullable String dn) {
+    return copyOf(groups.getIfPresent(groupsKey(username, dn)));
+  }
+
+  void putGroups(String username, @Nullable String dn, Set<NameAndDomain> distNames) {
+    if (!distNames.isEmpty()) {
+      groups.put(groupsKey(username, dn), immutableCopyOf(distNames));
+    }
+  }
+
+  @Nullable
+  String getNetbiosName(String domainDn) {
+    return netbiosNames.getIfPresent(domainDn);
+  }
+
+  void putNetbiosName(String domainDn, String netbiosName) {
+    netbiosNames.put(domainDn, netbiosName);
+  }
+
+  void invalidateAll() {
+    userDns.invalidateAll();
+    groups.invalidateAll();
+    netbiosNames.invalidateAll();
+  }
+
+  // A NUL can't appear in a username, so it separates the parts unambiguously.
+  private static String groupsKey(String username, @Nullable String dn) {
+    return username + '\0' + ((dn == null) ? "" : dn);
+  }
+
+  private static ImmutableSet<NameAndDomain> immutableCopyOf(Set<NameAndDomain> distNames) {
+    ImmutableSet.Builder<NameAndDomain> builder = ImmutableSet.builder();
+    for (NameAndDomain distName : distNames) {
+      builder.add(new NameAndDomain(distName.getName(), distName.getDomain()));
+    }
+    return builder.build();
+  }
+
+  @Nullable
+  private static Set<NameAndDomain> copyOf(@Nullable ImmutableSet<NameAndDomain> distNames) {
+    if (distNames == null) {
+      return null;
+    }
+    Set<NameAndDomain> copy = Sets.newHashSetWithExpectedSize(distNames.size());
+    for (NameAndDomain distName : distNames) {
+      copy.add(new NameAndDomain(distName.getName(), distName.getDomain()));
+    }
+    return copy;
+  }
+}
@@ -14,37 +14,91 @@
 
 package com.google.enterprise.secmgr.modules;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
 import com.google.enterprise.secmgr.common.AuthzStatus;
-import java.util.Objects;
-import java.util.concurrent.ConcurrentMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * The cache where we store the result of an authorization check.
  * Entries in this cache live for a limited amount of time.
- *
+ * <p>
+ * The cache is bounded both by number of entries and by (estimated) memory.
+ * It is split into shards by session ID, each with its own lock.  Within a
+ * shard, session IDs are interned to small integers and URLs are stored by
+ * 64-bit hash in an open-addressing table; the URL string is kept alongside
+ * the hash so that hash collisions are detected.  When a shard is full, an
+ * entry is chosen for eviction with the CLOCK (second chance) policy; expired
+ * entries are always chosen first.
+ * <p>
+ * The entries of each session are also threaded onto a doubly-linked list,
+ * so that all of a session's entries can be removed, when the session ends,
+ * in time proportional to the number of those entries.
  */
 @ThreadSafe
 class AuthzCache {
-  @GuardedBy("itself") private final ConcurrentMap<Key, AuthzStatus> map;
+  static final int DEFAULT_MAX_ENTRIES = 1000000;
+  static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private static final int SHARD_COUNT = 32;
+  private static final int INITIAL_TABLE_SIZE = 16;
+
+  // Rough per-entry cost: the table slots plus a String header.  The URL's
+  // characters are added separately.
+  private static final int ENTRY_OVERHEAD_BYTES = 72;
+
+  private static final AuthzStatus[] STATUSES = AuthzStatus.values();
+
+  private final Shard[] shards;
+  private final long ttlNanos;
+  private final Ticker ticker;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
 
   /**
    * @param cacheEntryTimeoutSecs how long in seconds each cache entry lives
    * @throws IllegalArgumentException when cacheEntryTimeoutSecs is negative
    */
   AuthzCache(int cacheEntryTimeoutSecs) {
+    this(cacheEntryTimeoutSecs, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, Ticker.systemTicker());
+  }
+
+  /**
+   * @param cacheEntryTimeoutSecs how long in seconds each cache entry lives
+   * @param maxEntries the maximum number of entries in the cache
+   * @param maxBytes the maximum estimated memory used by the cache entries
+   * @param ticker the time source for entry expiration
+   * @throws IllegalArgumentException when any of the limits are negative, or
+   *     the size limits are zero
+   */
+  @VisibleForTesting
+  AuthzCache(int cacheEntryTimeoutSecs, int maxEntries, long maxBytes, Ticker ticker) {
     Preconditions.checkArgument(cacheEntryTimeoutSecs >= 0,
         "cacheEntryTimeoutSecs must be non-negative: %s", cacheEntryTimeoutSecs);
-    map =
-        CacheBuilder.newBuilder()
-            .softValues()
-            .expireAfterWrite(cacheEntryTimeoutSecs, TimeUnit.SECONDS)
-            .<AuthzCache.Key, AuthzStatus>build()
-            .asMap();
+    Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+    Preconditions.checkNotNull(ticker);
+    ttlNanos = TimeUnit.SECONDS.toNanos(cacheEntryTimeoutSecs);
+    this.ticker = ticker;
+    int shardCount = Math.min(SHARD_COUNT, maxEntries);
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(
+          Math.max(1, maxEntries / shardCount),
+          Math.max(1, maxBytes / shardCount));
+    }
   }
 
   /**
@@ -55,14 +109,51 @@ class AuthzCache {
    * @param url the url in the user's search results
    * @param authorized whether the user is authorized to see this url
    */
-  @SuppressWarnings("GuardedByChecker")
   void addEntry(String id, String url, AuthzStatus authorized) {
-    map.put(new Key(id, url), authorized);
+    Preconditions.checkNotNull(id);
+    Preconditions.checkNotNull(url);
+    Preconditions.checkNotNull(authorized);
+    shardFor(id).put(id, url, hashUrl(url), authorized, ticker.read());
+  }
+
+  /**
+   * Adds a batch of entries for one user.  This is equivalent to calling
+   * {@link #addEntry} for each URL, but takes the shard lock and reads the
+   * clock only once.
+   *
+   * @param id the identity of the user
+   * @param urls the urls in the user's search results
+   * @param statuses the authorization statuses, parallel to {@code urls}
+   */
+  void addEntries(String id, List<String> urls, List<AuthzStatus> statuses) {
+    Preconditions.checkNotNull(id);
+    Preconditions.checkArgument(urls.size() == statuses.size(),
+        "urls and statuses must be the same size");
+    if (urls.isEmpty()) {
+      return;
+    }
+    long[] urlHashes = hashUrls(urls);
+    for (AuthzStatus status : statuses) {
+      Preconditions.checkNotNull(status);
+    }
+    shardFor(id).putAll(id, urls, urlHashes, statuses, ticker.read());
+  }
+
+  /**
+   * Removes all of the entries for a user.
+   *
+   * @param id the identity of the user
+   * @return the number of entries removed
+   */
+  int invalidateSession(String id) {
+    Preconditions.checkNotNull(id);
+    return shardFor(id).removeSession(id);
   }
 
-  @SuppressWarnings("GuardedByChecker")
   void clear() {
-    map.clear();
+    for (Shard shard : shards) {
+      shard.clear();
+    }
   }
 
   /**
@@ -72,32 +163,456 @@ class AuthzCache {
    * @param url the url the user is trying to access
    * @return which actions the user is authorized for; null on miss
    */
-  @SuppressWarnings("GuardedByChecker")
   AuthzStatus lookup(String id, String url) {
-    return map.get(new Key(id, url));
+    Preconditions.checkNotNull(id);
+    Preconditions.checkNotNull(url);
+    AuthzStatus status = shardFor(id).get(id, url, hashUrl(url), ticker.read());
+    if (status == null) {
+      missCount.increment();
+    } else {
+      hitCount.increment();
+    }
+    return status;
   }
 
-  static final class Key {
-    private final String id;
-    private final String url;
+  /**
+   * Looks up a batch of cache values for one user.  This is equivalent to
+   * calling {@link #lookup} for each URL, but takes the shard lock and reads
+   * the clock only once.
+   *
+   * @param id the identity of the user
+   * @param urls the urls the user is trying to access
+   * @return the cached statuses, parallel to {@code urls}; null for a miss
+   */
+  AuthzStatus[] lookupAll(String id, List<String> urls) {
+    Preconditions.checkNotNull(id);
+    AuthzStatus[] result = new AuthzStatus[urls.size()];
+    if (urls.isEmpty()) {
+      return result;
+    }
+    long[] urlHashes = hashUrls(urls);
+    int hits = shardFor(id).getAll(id, urls, urlHashes, ticker.read(), result);
+    hitCount.add(hits);
+    missCount.add(result.length - hits);
+    return result;
+  }
+
+  /**
+   * @return the number of entries in the cache, including any expired entries
+   *     that haven't been removed yet
+   */
+  long size() {
+    long size = 0;
+    for (Shard shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return a snapshot of the cache statistics; expired entries that are
+   *     removed are counted as evictions
+   */
+  CacheStats stats() {
+    return new CacheStats(hitCount.sum(), missCount.sum(), 0, 0, 0, evictionCount.sum());
+  }
+
+  private Shard shardFor(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return shards[(h & Integer.MAX_VALUE) % shards.length];
+  }
+
+  // 64-bit FNV-1a over the URL's chars, followed by a finalizing mix so that
+  // the low bits are usable as a table index.
+  @VisibleForTesting
+  static long hashUrl(String url) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < url.length(); i++) {
+      h ^= url.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
 
-    Key(String id, String url) {
+  private static long[] hashUrls(List<String> urls) {
+    long[] urlHashes = new long[urls.size()];
+    for (int i = 0; i < urlHashes.length; i++) {
+      urlHashes[i] = hashUrl(Preconditions.checkNotNull(urls.get(i)));
+    }
+    return urlHashes;
+  }
+
+  private static long mix(long h) {
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+
+  private static long entryBytes(String url) {
+    return ENTRY_OVERHEAD_BYTES + 2L * url.length();
+  }
+
+  /**
+   * An interned session ID, with a count of the entries that refer to it and
+   * the slot at the head of its list of entries.
+   */
+  private static final class Session {
+    final String id;
+    final int number;
+    int entryCount;
+    int firstSlot = -1;
+
+    Session(String id, int number) {
       this.id = id;
-      this.url = url;
+      this.number = number;
+    }
+  }
+
+  /**
+   * One shard of the cache.  The entries are kept in parallel arrays that form
+   * a linear-probing hash table; a slot is in use iff its URL is non-null.
+   */
+  @ThreadSafe
+  private final class Shard {
+    private final int maxEntries;
+    private final long maxBytes;
+
+    @GuardedBy("this") private final Map<String, Session> sessions = new HashMap<>();
+    @GuardedBy("this") private final List<Session> sessionsByNumber = new ArrayList<>();
+    @GuardedBy("this") private int[] freeNumbers = new int[8];
+    @GuardedBy("this") private int freeNumberCount;
+
+    @GuardedBy("this") private long[] urlHashes;
+    @GuardedBy("this") private int[] sessionNumbers;
+    @GuardedBy("this") private String[] urls;
+    @GuardedBy("this") private byte[] statuses;
+    @GuardedBy("this") private long[] writeTimes;
+    @GuardedBy("this") private boolean[] referenced;
+    @GuardedBy("this") private int[] nextInSession;
+    @GuardedBy("this") private int[] previousInSession;
+    @GuardedBy("this") private int size;
+    @GuardedBy("this") private long bytes;
+    @GuardedBy("this") private int clockHand;
+
+    Shard(int maxEntries, long maxBytes) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+      allocate(INITIAL_TABLE_SIZE);
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized AuthzStatus get(String id, String url, long urlHash, long now) {
+      Session session = sessions.get(id);
+      return (session == null) ? null : getLocked(session, url, urlHash, now);
+    }
+
+    synchronized int getAll(String id, List<String> urls, long[] urlHashes, long now,
+        AuthzStatus[] result) {
+      Session session = sessions.get(id);
+      if (session == null) {
+        return 0;
+      }
+      int hits = 0;
+      for (int i = 0; i < result.length; i++) {
+        // Expiring the session's last entry releases it.
+        if (session.entryCount == 0) {
+          break;
+        }
+        result[i] = getLocked(session, urls.get(i), urlHashes[i], now);
+        if (result[i] != null) {
+          hits++;
+        }
+      }
+      return hits;
+    }
+
+    synchronized void put(String id, String url, long urlHash, AuthzStatus status, long now) {
+      putLocked(id, url, urlHash, status, now);
+    }
+
+    synchronized void putAll(String id, List<String> urls, long[] urlHashes,
+        List<AuthzStatus> statuses, long now) {
+      for (int i = 0; i < urlHashes.length; i++) {
+        putLocked(id, urls.get(i), urlHashes[i], statuses.get(i), now);
+      }
+    }
+
+    @GuardedBy("this")
+    private AuthzStatus getLocked(Session session, String url, long urlHash, long now) {
+      int slot = find(session.number, url, urlHash);
+      if (slot < 0) {
+        return null;
+      }
+      if (isExpired(slot, now)) {
+        removeAt(slot);
+        evictionCount.increment();
+        return null;
+      }
+      referenced[slot] = true;
+      return STATUSES[statuses[slot]];
+    }
+
+    @GuardedBy("this")
+    private void putLocked(String id, String url, long urlHash, AuthzStatus status, long now) {
+      Session session = sessions.get(id);
+      if (session != null) {
+        int slot = find(session.number, url, urlHash);
+        if (slot >= 0) {
+          statuses[slot] = (byte) status.ordinal();
+          writeTimes[slot] = now;
+          referenced[slot] = true;
+          return;
+        }
+      }
+      long cost = entryBytes(url);
+      while (size > 0 && (size >= maxEntries || bytes + cost > maxBytes)) {
+        evictOne(now);
+      }
+      // Eviction may have released this session's interned number.
+      session = sessions.get(id);
+      if (session == null) {
+        session = intern(id);
+      }
+      if ((size + 1) * 4 > urls.length * 3) {
+        resize(urls.length * 2);
+      }
+      int slot = freeSlotFor(urlHash, session.number);
+      urlHashes[slot] = urlHash;
+      sessionNumbers[slot] = session.number;
+      urls[slot] = url;
+      statuses[slot] = (byte) status.ordinal();
+      writeTimes[slot] = now;
+      referenced[slot] = false;
+      link(session, slot);
+      session.entryCount++;
+      size++;
+      bytes += cost;
+    }
+
+    synchronized int removeSession(String id) {
+      Session session = sessions.get(id);
+      if (session == null) {
+        return 0;
+      }
+      int count = session.entryCount;
+      // Removing the last entry releases the session and empties its list.
+      while (session.firstSlot >= 0) {
+        removeAt(session.firstSlot);
+      }
+      return count;
+    }
+
+    synchronized void clear() {
+      sessions.clear();
+      sessionsByNumber.clear();
+      freeNumberCount = 0;
+      size = 0;
+      bytes = 0;
+      clockHand = 0;
+      allocate(INITIAL_TABLE_SIZE);
+    }
+
+    @GuardedBy("this")
+    private int find(int sessionNumber, String url, long urlHash) {
+      int mask = urls.length - 1;
+      for (int slot = indexFor(urlHash, sessionNumber); urls[slot] != null;
+           slot = (slot + 1) & mask) {
+        if (urlHashes[slot] == urlHash
+            && sessionNumbers[slot] == sessionNumber
+            && urls[slot].equals(url)) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    @GuardedBy("this")
+    private int freeSlotFor(long urlHash, int sessionNumber) {
+      int slot = indexFor(urlHash, sessionNumber);
+      while (urls[slot] != null) {
+        slot = (slot + 1) & (urls.length - 1);
+      }
+      return slot;
+    }
+
+    @GuardedBy("this")
+    private int indexFor(long urlHash, int sessionNumber) {
+      return (int) mix(urlHash + sessionNumber * 0x9e3779b97f4a7c15L) & (urls.length - 1);
+    }
+
+    @GuardedBy("this")
+    private boolean isExpired(int slot, long now) {
+      return now - writeTimes[slot] >= ttlNanos;
+    }
+
+    // Advances the clock hand until it finds an entry to evict: one that has
+    // expired, or one that hasn't been referenced since the hand last passed.
+    @GuardedBy("this")
+    private void evictOne(long now) {
+      int mask = urls.length - 1;
+      while (true) {
+        int slot = clockHand;
+        if (urls[slot] != null) {
+          if (referenced[slot] && !isExpired(slot, now)) {
+            referenced[slot] = false;
+          } else {
+            // Removal may shift another entry into this slot, so the hand
+            // stays put.
+            removeAt(slot);
+            evictionCount.increment();
+            return;
+          }
+        }
+        clockHand = (slot + 1) & mask;
+      }
+    }
+
+    // Removes the entry at a slot, shifting later entries of the same probe
+    // run back so that lookups never need tombstones.
+    @GuardedBy("this")
+    private void removeAt(int slot) {
+      unlink(slot);
+      release(sessionNumbers[slot]);
+      bytes -= entryBytes(urls[slot]);
+      size--;
+      int mask = urls.length - 1;
+      int hole = slot;
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        if (urls[next] == null) {
+          break;
+        }
+        int home = indexFor(urlHashes[next], sessionNumbers[next]);
+        boolean stays = (hole <= next)
+            ? (hole < home && home <= next)
+            : (hole < home || home <= next);
+        if (!stays) {
+          move(next, hole);
+          hole = next;
+        }
+      }
+      urls[hole] = null;
+    }
+
+    @GuardedBy("this")
+    private void move(int from, int to) {
+      urlHashes[to] = urlHashes[from];
+      sessionNumbers[to] = sessionNumbers[from];
+      urls[to] = urls[from];
+      statuses[to] = statuses[from];
+      writeTimes[to] = writeTimes[from];
+      referenced[to] = referenced[from];
+      int previous = previousInSession[from];
+      int next = nextInSession[from];
+      previousInSession[to] = previous;
+      nextInSession[to] = next;
+      if (previous >= 0) {
+        nextInSession[previous] = to;
+      } else {
+        sessionsByNumber.get(sessionNumbers[to]).firstSlot = to;
+      }
+      if (next >= 0) {
+        previousInSession[next] = to;
+      }
+    }
+
+    @GuardedBy("this")
+    private void link(Session session, int slot) {
+      previousInSession[slot] = -1;
+      nextInSession[slot] = session.firstSlot;
+      if (session.firstSlot >= 0) {
+        previousInSession[session.firstSlot] = slot;
+      }
+      session.firstSlot = slot;
+    }
+
+    @GuardedBy("this")
+    private void unlink(int slot) {
+      int previous = previousInSession[slot];
+      int next = nextInSession[slot];
+      if (previous >= 0) {
+        nextInSession[previous] = next;
+      } else {
+        sessionsByNumber.get(sessionNumbers[slot]).firstSlot = next;
+      }
+      if (next >= 0) {
+        previousInSession[next] = previous;
+      }
+    }
+
+    @GuardedBy("this")
+    private Session intern(String id) {
+      int number;
+      if (freeNumberCount > 0) {
+        number = freeNumbers[--freeNumberCount];
+      } else {
+        number = sessionsByNumber.size();
+        sessionsByNumber.add(null);
+      }
+      Session session = new Session(id, number);
+      sessionsByNumber.set(number, session);
+      sessions.put(id, session);
+      return session;
+    }
+
+    @GuardedBy("this")
+    private void release(int sessionNumber) {
+      Session session = sessionsByNumber.get(sessionNumber);
+      if (--session.entryCount == 0) {
+        sessions.remove(session.id);
+        sessionsByNumber.set(sessionNumber, null);
+        if (freeNumberCount == freeNumbers.length) {
+          freeNumbers = Arrays.copyOf(freeNumbers, freeNumberCount * 2);
+        }
+        freeNumbers[freeNumberCount++] = sessionNumber;
+      }
     }
 
-    @Override
-    public int hashCode() {
-      return Objects.hash(id, url);
+    @GuardedBy("this")
+    private void allocate(int tableSize) {
+      urlHashes = new long[tableSize];
+      sessionNumbers = new int[tableSize];
+      urls = new String[tableSize];
+      statuses = new byte[tableSize];
+      writeTimes = new long[tableSize];
+      referenced = new boolean[tableSize];
+      nextInSession = new int[tableSize];
+      previousInSession = new int[tableSize];
     }
 
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) { return true; }
-      if (!(o instanceof Key)) { return false; }
-      Key k = (Key) o;
-      return Objects.equals(id, k.id)
-          && Objects.equals(url, k.url);
+    @GuardedBy("this")
+    private void resize(int tableSize) {
+      long[] oldUrlHashes = urlHashes;
+      int[] oldSessionNumbers = sessionNumbers;
+      String[] oldUrls = urls;
+      byte[] oldStatuses = statuses;
+      long[] oldWriteTimes = writeTimes;
+      boolean[] oldReferenced = referenced;
+      allocate(tableSize);
+      for (Session session : sessions.values()) {
+        session.firstSlot = -1;
+      }
+      for (int i = 0; i < oldUrls.length; i++) {
+        if (oldUrls[i] != null) {
+          int slot = freeSlotFor(oldUrlHashes[i], oldSessionNumbers[i]);
+          link(sessionsByNumber.get(oldSessionNumbers[i]), slot);
+          urlHashes[slot] = oldUrlHashes[i];
+          sessionNumbers[slot] = oldSessionNumbers[i];
+          urls[slot] = oldUrls[i];
+          statuses[slot] = oldStatuses[i];
+          writeTimes[slot] = oldWriteTimes[i];
+          referenced[slot] = oldReferenced[i];
+        }
+      }
+      clockHand = 0;
     }
   }
 }
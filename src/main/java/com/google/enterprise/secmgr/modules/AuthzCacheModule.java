@@ -14,6 +14,11 @@
 package com.google.enterprise.secmgr.modules;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.secmgr.authncontroller.AuthnSessionListener;
+import com.google.enterprise.secmgr.authncontroller.AuthnSessionManager;
 import com.google.enterprise.secmgr.authncontroller.SessionView;
 import com.google.enterprise.secmgr.common.AuthzStatus;
 import com.google.enterprise.secmgr.common.Resource;
@@ -21,7 +26,10 @@ import com.google.enterprise.secmgr.config.FlexAuthzRule;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
@@ -36,25 +44,76 @@ public final class AuthzCacheModule implements AuthzModule {
   private final AuthzCache cache;
 
   @VisibleForTesting
+  AuthzCacheModule(Integer cacheExpirySeconds) {
+    this(cacheExpirySeconds, AuthzCache.DEFAULT_MAX_ENTRIES, AuthzCache.DEFAULT_MAX_BYTES);
+  }
+
   @Inject
-  AuthzCacheModule(@Named("UserCacheConnector.cacheExpirySeconds") Integer cacheExpirySeconds) {
-    cache = new AuthzCache(cacheExpirySeconds);
-    logger.info("UserCache constructed; entries expire after " + cacheExpirySeconds + " seconds");
+  AuthzCacheModule(@Named("UserCacheConnector.cacheExpirySeconds") Integer cacheExpirySeconds,
+      @Named("UserCacheConnector.maxEntries") Integer maxEntries,
+      @Named("UserCacheConnector.maxBytes") Long maxBytes,
+      AuthnSessionManager sessionManager) {
+    this(cacheExpirySeconds, maxEntries, maxBytes);
+    sessionManager.addSessionListener(
+        new AuthnSessionListener() {
+          @Override
+          public void sessionRemoved(String sessionId) {
+            invalidateSession(sessionId);
+          }
+        });
+  }
+
+  private AuthzCacheModule(Integer cacheExpirySeconds, Integer maxEntries, Long maxBytes) {
+    cache = new AuthzCache(cacheExpirySeconds, maxEntries, maxBytes, Ticker.systemTicker());
+    logger.info("UserCache constructed; entries expire after " + cacheExpirySeconds
+        + " seconds; at most " + maxEntries + " entries and " + maxBytes + " bytes");
   }
 
   @Override
   public AuthzResult authorize(Collection<Resource> resources, SessionView view,
       FlexAuthzRule rule) {
-    String sessionId = view.getSessionId();
-    Collection<String> urls = Resource.resourcesToUrls(resources);
-    AuthzResult.Builder builder = AuthzResult.builder(urls);
-    for (String url : urls) {
-      AuthzStatus status = cache.lookup(sessionId, url);
-      builder.putStatusFromCache(url, (status != null) ? status : AuthzStatus.INDETERMINATE);
+    return lookupAll(view.getSessionId(), Resource.resourcesToUrls(resources));
+  }
+
+  /**
+   * Looks up the cached decisions for a page of resources in one operation.
+   *
+   * @param sessionId The session the decisions were made for.
+   * @param urls The URLs of the resources.
+   * @return A result with a status for every URL; PERMIT and DENY statuses are
+   *     marked as determined by the cache, misses are INDETERMINATE.
+   */
+  public AuthzResult lookupAll(String sessionId, Collection<String> urls) {
+    List<String> urlList = ImmutableList.copyOf(urls);
+    AuthzStatus[] statuses = cache.lookupAll(sessionId, urlList);
+    AuthzResult.Builder builder = AuthzResult.builder(urlList);
+    for (int i = 0; i < statuses.length; i++) {
+      builder.putStatusFromCache(urlList.get(i),
+          (statuses[i] != null) ? statuses[i] : AuthzStatus.INDETERMINATE);
     }
     return builder.build();
   }
 
+  /**
+   * Remembers all the PERMIT and DENY decisions in a result in one operation.
+   * Decisions that came from the cache, and INDETERMINATE ones, are skipped.
+   *
+   * @param sessionId The session the decisions were made for.
+   * @param results The decisions to remember.
+   */
+  public void rememberAll(String sessionId, AuthzResult results) {
+    List<String> urls = new ArrayList<>(results.size());
+    List<AuthzStatus> statuses = new ArrayList<>(results.size());
+    for (Map.Entry<String, AuthzStatus> entry : results.entrySet()) {
+      if (entry.getValue() != AuthzStatus.INDETERMINATE
+          && !results.wasDeterminedByCache(entry.getKey())) {
+        urls.add(entry.getKey());
+        statuses.add(entry.getValue());
+      }
+    }
+    cache.addEntries(sessionId, urls, statuses);
+  }
+
   public void rememberPermit(String resourceUrl, String sessionId) {
     cache.addEntry(sessionId, resourceUrl, AuthzStatus.PERMIT);
   }
@@ -66,4 +125,23 @@ public final class AuthzCacheModule implements AuthzModule {
   public void clearCache() {
     cache.clear();
   }
+
+  /**
+   * Forgets all of the decisions made for a session.
+   *
+   * @param sessionId The ID of the session.
+   */
+  public void invalidateSession(String sessionId) {
+    int count = cache.invalidateSession(sessionId);
+    if (count > 0) {
+      logger.fine("Removed " + count + " cached decisions for session " + sessionId);
+    }
+  }
+
+  /**
+   * @return A snapshot of the hit, miss and eviction counts of the cache.
+   */
+  public CacheStats getCacheStats() {
+    return cache.stats();
+  }
 }
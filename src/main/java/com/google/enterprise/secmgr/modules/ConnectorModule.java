@@ -42,6 +42,7 @@ import com.google.enterprise.secmgr.common.AuthzStatus;
 import com.google.enterprise.secmgr.common.IdentityUtil;
 import com.google.enterprise.secmgr.common.Resource;
 import com.google.enterprise.secmgr.common.SecurityManagerUtil;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
 import com.google.enterprise.secmgr.common.Stringify;
 import com.google.enterprise.secmgr.common.XmlUtil;
 import com.google.enterprise.secmgr.config.AuthnMechConnector;
@@ -272,6 +273,7 @@ public final class ConnectorModule implements AuthnModule, AuthzModule {
     }
     try {
       Collection<Document> documents =  SecurityManagerUtil.runInParallel(
+          Workload.CONNECTOR,
           makeCallables(urls, view, rule),
           rule.hasTimeout() ? rule.getTimeout()
           : AuthnMechConnector.getDefaultTrustDuration() + 1000,
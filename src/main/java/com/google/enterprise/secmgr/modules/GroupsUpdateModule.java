@@ -23,6 +23,8 @@ import com.google.enterprise.logmanager.LogClientParameters;
 import com.google.enterprise.policychecker.AclConfigurationStore;
 import com.google.enterprise.policychecker.AclUtil;
 import com.google.enterprise.policychecker.CompactUrlAclMap;
+import com.google.enterprise.policychecker.JsonPrincipalMapSerializer;
+import com.google.enterprise.policychecker.PrincipalMapSerializerFactory;
 import com.google.enterprise.secmgr.authncontroller.AuthnController;
 import com.google.enterprise.secmgr.authncontroller.AuthnModule;
 import com.google.enterprise.secmgr.authncontroller.AuthnModuleException;
@@ -67,6 +69,9 @@ public final class GroupsUpdateModule implements AuthnModule {
   private static final LogClient gsaLogger =
       new LogClient("Security Manager", SecurityManagerUtil.getLogManagerServer());
   private static final Logger logger = Logger.getLogger(GroupsUpdateModule.class.getName());
+  // JSON groups files are streamed straight into the resolver map.
+  private static final boolean IS_JSON_GROUPS_FORMAT =
+      PrincipalMapSerializerFactory.create() instanceof JsonPrincipalMapSerializer;
 
   private final ScheduledExecutorService executorService;
   private final List<String> groupSources;  // filenames with group definitions
@@ -129,11 +134,20 @@ public final class GroupsUpdateModule implements AuthnModule {
   }
 
   private static void readInto(MemberToGroupsResolverMapProvider def, String dataFilename) {
-    AclConfigurationStore store =
-        new AclConfigurationStore(new CompactUrlAclMap(), "", dataFilename);
     long beforeGenerateMapTimestamp = DateTimeUtils.currentTimeMillis();
     long timeToGenerateMap;
-    def.regenerateMemberToGroupsMap(store);
+    if (IS_JSON_GROUPS_FORMAT) {
+      try {
+        def.loadMemberToGroupsMap(dataFilename);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Problem parsing groups DB: " + dataFilename, e);
+        return;
+      }
+    } else {
+      AclConfigurationStore store =
+          new AclConfigurationStore(new CompactUrlAclMap(), "", dataFilename);
+      def.regenerateMemberToGroupsMap(store);
+    }
     timeToGenerateMap = DateTimeUtils.currentTimeMillis() - beforeGenerateMapTimestamp;
     logger.log(Level.INFO, MessageFormat.format(
         "User to groups map from {0} was generated using {1} milli seconds",
@@ -223,7 +237,7 @@ public final class GroupsUpdateModule implements AuthnModule {
         ? principal.getName() : LogClientParameters.ID_NOT_LOGGED;
     gsaLogger.info(
         view.getRequestId(),
-        "GroupsUpdateModule Auth: Looking up groups for user: " + idToLog);
+        "GroupsUpdateModule Auth: Looking up groups for user: %s", idToLog);
     long expirationTime = view.getCredentialExpirationTime(principal);
     ImmutableSet.Builder<AclPrincipal> membersBuilder = ImmutableSet.builder();
     AclPrincipal user = AclUtil.authnPrincipalToAclPrincipal(principal);
@@ -242,13 +256,13 @@ public final class GroupsUpdateModule implements AuthnModule {
       builder.add(view.extendGroupMemberships(groups));
       gsaLogger.info(
           view.getRequestId(),
-          "GroupsUpdateModule Authn: " + groups.size() + " groups found.");
+          "GroupsUpdateModule Authn: %d groups found.", groups.size());
     } else {
       idToLog = LogClientParameters.recordUsernames
           ? user.toString() : LogClientParameters.ID_NOT_LOGGED;
       gsaLogger.info(
           view.getRequestId(),
-          "GroupsUpdateModule did not find groups for: " + idToLog);
+          "GroupsUpdateModule did not find groups for: %s", idToLog);
     }
     return AuthnSessionState.of(
         view.getAuthority(), Verification.verified(expirationTime, builder.build()));
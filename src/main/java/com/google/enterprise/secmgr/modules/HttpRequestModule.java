@@ -21,6 +21,7 @@ import com.google.enterprise.secmgr.authncontroller.SessionView;
 import com.google.enterprise.secmgr.common.AuthzStatus;
 import com.google.enterprise.secmgr.common.Resource;
 import com.google.enterprise.secmgr.common.SecurityManagerUtil;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
 import com.google.enterprise.secmgr.config.FlexAuthzRule;
 import com.google.enterprise.secmgr.http.BasicHttpAuthenticator;
 import com.google.enterprise.secmgr.http.HttpAuthenticatorException;
@@ -72,7 +73,8 @@ public final class HttpRequestModule implements AuthzModule {
     long timeoutMillis = rule.hasTimeout() ? rule.getTimeout() : REQUEST_TIMEOUT;
     try {
       List<Map.Entry<String, AuthzStatus>> entries
-          = SecurityManagerUtil.runInParallel(callables, timeoutMillis, view.getLogDecorator());
+          = SecurityManagerUtil.runInParallel(Workload.HTTP, callables, timeoutMillis,
+              view.getLogDecorator());
 
       AuthzResult.Builder resultsBuilder = AuthzResult.builder(urls);
       for (Map.Entry<String, AuthzStatus> entry : entries) {
@@ -15,6 +15,11 @@
 package com.google.enterprise.secmgr.modules;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.ldap.LDAPConstants;
 import com.google.enterprise.ldap.LDAPConstants.AuthMethod;
@@ -39,11 +44,12 @@ import com.google.enterprise.secmgr.ldap.LDAPClient.NameAndDomain;
 import com.google.inject.Singleton;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.concurrent.GuardedBy;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import javax.naming.NamingException;
 
@@ -51,7 +57,7 @@ import javax.naming.NamingException;
  * LDAP Connector.
  */
 @Singleton
-@Immutable
+@ThreadSafe
 public final class LdapModule implements AuthnModule {
   /**
    * Implicit group "Everyone" in Active Directory.
@@ -62,9 +68,51 @@ public final class LdapModule implements AuthnModule {
   private static final LogClient gsaLogger = new LogClient("Security Manager",
       SecurityManagerUtil.getLogManagerServer());
 
+  /** The maximum number of pooled connections to each LDAP server. */
+  private static final int POOL_SIZE = Integer.getInteger("gsa.ldapPoolSize", 8);
+
+  /** How long an unused pooled connection is kept open. */
+  private static final long POOL_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /** How long user DN, group and domain lookups are cached; 0 disables caching. */
+  private static final long LOOKUP_CACHE_TTL_MILLIS =
+      TimeUnit.SECONDS.toMillis(Long.getLong("gsa.ldapLookupCacheSeconds", 60));
+
+  /** Whether the groups containing a user's LDAP groups are looked up too. */
+  private static final boolean NESTED_GROUPS = Boolean.getBoolean("gsa.ldapNestedGroups");
+
+  /**
+   * The maximum number of mechanisms with a client.  Changing a mechanism's
+   * configuration makes a new mechanism, so clients for old configurations
+   * are dropped once they go unused.
+   */
+  private static final int MAX_CLIENTS = 64;
+
   @GuardedBy("this")
   private LDAPClient ldapClientForTesting;
 
+  private final LoadingCache<AuthnMechLdap, LDAPClient> clients =
+      CacheBuilder.newBuilder()
+      .maximumSize(MAX_CLIENTS)
+      .expireAfterAccess(2 * POOL_MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS)
+      .removalListener(
+          new RemovalListener<AuthnMechLdap, LDAPClient>() {
+            @Override
+            public void onRemoval(RemovalNotification<AuthnMechLdap, LDAPClient> notification) {
+              notification.getValue().close();
+            }
+          })
+      .build(
+          new CacheLoader<AuthnMechLdap, LDAPClient>() {
+            @Override
+            public LDAPClient load(AuthnMechLdap mech) {
+              LDAPClient ldapClient = makeLDAPClient(mech);
+              ldapClient.enablePooling(POOL_SIZE, POOL_MAX_IDLE_MILLIS,
+                  LOOKUP_CACHE_TTL_MILLIS);
+              return ldapClient;
+            }
+          });
+
   @SuppressWarnings("unused")
   @VisibleForTesting
   @Inject
@@ -105,7 +153,7 @@ public final class LdapModule implements AuthnModule {
         ? principal.getName() : LogClientParameters.ID_NOT_LOGGED;
     if (mech.isEnableAuthn()) {
       gsaLogger.info(view.getRequestId(),
-          "LDAP Auth: authenticating user " + idToLog);
+          "LDAP Auth: authenticating user %s", idToLog);
       CredPassword password = view.getPasswordCredential();
       if (password != null) {
         String dn;
@@ -119,15 +167,15 @@ public final class LdapModule implements AuthnModule {
           logger.log(Level.WARNING, view.logMessage("Error authenticating %s: ",
               idToLog), e);
           gsaLogger.info(view.getRequestId(),
-              "LDAP Auth: authentication error for user " + idToLog);
-          gsaLogger.info(view.getRequestId(), "LDAP Auth: " + e.getMessage());
+              "LDAP Auth: authentication error for user %s", idToLog);
+          gsaLogger.info(view.getRequestId(), "LDAP Auth: %s", e.getMessage());
           return AuthnSessionState.empty();
         }
         if (dn == null) {
           builder.add(principal);
           builder.add(password);
           gsaLogger.info(view.getRequestId(),
-            "LDAP Auth: authentication failed for user " + idToLog);
+            "LDAP Auth: authentication failed for user %s", idToLog);
           return AuthnSessionState.of(view.getAuthority(), Verification.refuted(builder.build()));
         }
         builder.add(newPrincipal);
@@ -142,8 +190,8 @@ public final class LdapModule implements AuthnModule {
               "(&(dnsRoot=" + principal.getDomain() + ")(nETBIOSName=*))",
               LDAPConstants.ATTRIBUTE_AD_NETBIOSNAME);
           if (nETBIOSName != null) {
-            gsaLogger.info(view.getRequestId(), "Rewriting dnsRoot [" + principal.getDomain()
-                + "] to nETBIOSName " + nETBIOSName);
+            gsaLogger.info(view.getRequestId(), "Rewriting dnsRoot [%s] to nETBIOSName %s",
+                principal.getDomain(), nETBIOSName);
             newPrincipal = AuthnPrincipal.make(principal.getName(), namespace, nETBIOSName);
             builder.add(newPrincipal);
           }
@@ -164,8 +212,8 @@ public final class LdapModule implements AuthnModule {
             + " groups without a verified user identity.");
         throw new AuthnModuleException("No verified principal while looking up groups.");
       }
-      gsaLogger.info(view.getRequestId(), "LDAP Auth: Looking up groups for user "
-          + idToLog);
+      gsaLogger.info(view.getRequestId(), "LDAP Auth: Looking up groups for user %s",
+          idToLog);
       lookupGroups(ldapClient, principal.getName(), groupsBuilder, view);
     }
     if (mech.isEnableImplicitEveryone()) {
@@ -201,8 +249,8 @@ public final class LdapModule implements AuthnModule {
             break;
         }
       }
-      gsaLogger.info(view.getRequestId(), "LDAP Auth: " + ldapGroups.size()
-          + " groups found.");
+      gsaLogger.info(view.getRequestId(), "LDAP Auth: %d groups found.",
+          ldapGroups.size());
     } catch (NamingException e) {
       logger.log(
           Level.WARNING, view.logMessage("Error getting groups for %s: ", username), e);
@@ -210,6 +258,11 @@ public final class LdapModule implements AuthnModule {
     }
   }
 
+  /**
+   * Gets the client for a mechanism.  Clients are shared by all requests
+   * using the same mechanism configuration, so that they can reuse their
+   * connections and cached lookups.
+   */
   @VisibleForTesting
   LDAPClient getLDAPClient(AuthnMechLdap mech) {
     synchronized (this) {
@@ -217,6 +270,10 @@ public final class LdapModule implements AuthnModule {
         return ldapClientForTesting;
       }
     }
+    return clients.getUnchecked(mech);
+  }
+
+  private static LDAPClient makeLDAPClient(AuthnMechLdap mech) {
     LDAPClient ldapClient = new LDAPClient();
     ldapClient.setHostPort(mech.getHostport());
     ldapClient.setAnonBindIdentity(mech.getBindDn(), mech.getPassword());
@@ -231,6 +288,7 @@ public final class LdapModule implements AuthnModule {
     ldapClient.setSSLSupportType(SSLSupport.fromInt(mech.getSslSupport()));
     ldapClient.setSupportedAuthMethods(AuthMethod.fromInt(mech.getSupportedAuthMethods()));
     ldapClient.setTimeout(mech.getTimeout());
+    ldapClient.setNestedGroupResolution(NESTED_GROUPS);
     return ldapClient;
   }
 }
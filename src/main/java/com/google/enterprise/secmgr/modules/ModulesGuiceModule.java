@@ -48,5 +48,11 @@ public final class ModulesGuiceModule extends AbstractModule {
     bind(Integer.class)
         .annotatedWith(Names.named("UserCacheConnector.cacheExpirySeconds"))
         .toInstance(Integer.valueOf(60 * 60));  // one hour
+    bind(Integer.class)
+        .annotatedWith(Names.named("UserCacheConnector.maxEntries"))
+        .toInstance(Integer.valueOf(1000 * 1000));
+    bind(Long.class)
+        .annotatedWith(Names.named("UserCacheConnector.maxBytes"))
+        .toInstance(Long.valueOf(256L * 1024 * 1024));  // 256 MiB
   }
 }
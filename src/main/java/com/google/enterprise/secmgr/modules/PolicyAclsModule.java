@@ -16,12 +16,16 @@ package com.google.enterprise.secmgr.modules;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.policychecker.Acl;
 import com.google.enterprise.policychecker.AclConfigurationStore;
+import com.google.enterprise.policychecker.AclPrincipalIds;
 import com.google.enterprise.policychecker.AclUtil;
 import com.google.enterprise.policychecker.Authorizer;
 import com.google.enterprise.policychecker.CompactUrlAclMap;
+import com.google.enterprise.policychecker.PolicyAclSnapshot;
+import com.google.enterprise.policychecker.UrlAclMap;
 import com.google.enterprise.secmgr.authncontroller.SessionView;
 import com.google.enterprise.secmgr.common.AuthzStatus;
 import com.google.enterprise.secmgr.common.FileUtil;
@@ -41,7 +45,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
@@ -55,6 +58,10 @@ import javax.inject.Inject;
  * Adapter of com.google.enterprise.policychecker for security manager use.
  * Uses same data files authzchecker does.  Creates a Timer thread which
  * checks data-files' modified times and reloads on changes.
+ * <p>
+ * The URL ACLs file may also be a {@link PolicyAclSnapshot}, which is mapped
+ * and queried in place rather than parsed.  A snapshot is checked against its
+ * checksum when it is loaded, and a corrupt one is not used.
  */
 @Singleton
 @ThreadSafe
@@ -118,6 +125,14 @@ public final class PolicyAclsModule implements AuthzModule {
    * @return An Authorizer or null when there are no URL ACLs.
    */
   private synchronized Authorizer readAuthorizer(File aclUrls) {
+    try {
+      if (aclUrls.exists() && PolicyAclSnapshot.isSnapshot(aclUrls)) {
+        return readSnapshot(aclUrls);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not read ACLs: " + aclUrls, e);
+      return null;
+    }
     AclConfigurationStore acs = new AclConfigurationStore(
         new CompactUrlAclMap(), aclUrls.getPath(), "");
     logger.info("Start loading");
@@ -132,6 +147,20 @@ public final class PolicyAclsModule implements AuthzModule {
     return acs.getAclMap();
   }
 
+  private Authorizer readSnapshot(File aclUrls) throws IOException {
+    logger.info("Start mapping snapshot");
+    long beforeTimestamp = DateTimeUtils.currentTimeMillis();
+    PolicyAclSnapshot snapshot = PolicyAclSnapshot.open(aclUrls);
+    // A snapshot that doesn't match its checksum is never served; the ACLs
+    // already loaded, if any, are kept.
+    if (!snapshot.verify()) {
+      throw new IOException("Policy ACL snapshot does not match its checksum: " + aclUrls);
+    }
+    long time = DateTimeUtils.currentTimeMillis() - beforeTimestamp;
+    logger.info("Mapped and verified " + snapshot + " in " + time + " milli seconds");
+    return snapshot;
+  }
+
   /** Composes File class with a modification timestamp. */
   private static class ChangingFile {
     final File file;
@@ -236,29 +265,43 @@ public final class PolicyAclsModule implements AuthzModule {
     aclPrincipalsBuilder.add(AclUtil.authnPrincipalToAclPrincipal(dumbedDownPrincipal));
     aclPrincipalsBuilder.add(
         AclUtil.authnPrincipalToAclPrincipalCaseInsensitive(dumbedDownPrincipal));
-    ImmutableSet<AclPrincipal> aclPrincipals = aclPrincipalsBuilder.build();
+    ImmutableList<AclPrincipal> aclPrincipalList = aclPrincipalsBuilder.build().asList();
     AuthzResult.Builder builder = AuthzResult.builder(urls);
+    // Call getAuthorizer() to make sure Thread sees current value.
+    Authorizer localAuthorizer = getAuthorizer();
+    if (localAuthorizer instanceof PolicyAclSnapshot) {
+      PolicyAclSnapshot snapshot = (PolicyAclSnapshot) localAuthorizer;
+      PolicyAclSnapshot.ResolvedPrincipals aclPrincipals = snapshot.resolve(aclPrincipalList);
+      for (String url : urls) {
+        builder.put(url, applyLateBinding(snapshot.authorize(url, aclPrincipals), lateBinding));
+      }
+      return builder.build();
+    }
+    AclPrincipalIds aclPrincipals = (localAuthorizer instanceof UrlAclMap)
+        ? ((UrlAclMap) localAuthorizer).resolvePrincipals(aclPrincipalList)
+        : AclPrincipalIds.resolve(aclPrincipalList);
     for (String url : urls) {
-      builder.put(url, authorize(url, view, aclPrincipals.asList(), lateBinding));
+      builder.put(url, authorize(localAuthorizer, url, view, aclPrincipals, lateBinding));
     }
     return builder.build();
   }
 
-  private AuthzStatus authorize(String url, SessionView view, List<AclPrincipal> aclPrincipals,
-      boolean lateBinding) throws IOException {
-    // Call getAuthorizer() to make sure Thread sees current value.
-    Authorizer localAuthorizer = getAuthorizer();
+  private AuthzStatus authorize(Authorizer localAuthorizer, String url, SessionView view,
+      AclPrincipalIds aclPrincipals, boolean lateBinding) throws IOException {
     if (localAuthorizer == null) {
       return AuthzStatus.INDETERMINATE;
     }
     Acl acl = localAuthorizer.get(url);
     if (acl != null) {
-      AuthzStatus status = AclUtil.authorize(acl, aclPrincipals);
-      return (lateBinding && AuthzStatus.PERMIT == status) ? AuthzStatus.INDETERMINATE : status;
+      return applyLateBinding(AclUtil.authorize(acl, aclPrincipals), lateBinding);
     }
     if (acl != null) {
       logger.warning(view.logMessage("Unknown Acl type: %s", acl.getClass()));
     }
     return AuthzStatus.INDETERMINATE;
   }
+
+  private static AuthzStatus applyLateBinding(AuthzStatus status, boolean lateBinding) {
+    return (lateBinding && AuthzStatus.PERMIT == status) ? AuthzStatus.INDETERMINATE : status;
+  }
 }
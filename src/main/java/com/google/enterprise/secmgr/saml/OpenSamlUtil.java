@@ -103,6 +103,7 @@ import org.opensaml.xml.XMLObjectBuilderFactory;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.SecurityHelper;
@@ -139,6 +140,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnegative;
@@ -147,6 +149,7 @@ import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.Immutable;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
 
 /**
  * A collection of utilities to support OpenSAML programming.  The majority of the
@@ -1197,16 +1200,52 @@ public final class OpenSamlUtil {
     return getBasicParserPoolInternal(ACCEPT_DTD);
   }
 
+  /*
+   * The parser pools are shared by every SAML codec, so that each message
+   * reuses a document builder rather than setting up a new builder factory.
+   * BasicParserPool is thread safe; callers must not reconfigure these.
+   */
   @VisibleForTesting
   static BasicParserPool getBasicParserPoolInternal(boolean acceptDTD) {
-    BasicParserPool parserPool = new BasicParserPool();
-    Map<String, Boolean> newBuilderFeatures = new HashMap<String, Boolean>(
-        parserPool.getBuilderFeatures());
-    if (acceptDTD) {
-      newBuilderFeatures.put("http://apache.org/xml/features/disallow-doctype-decl", false);
+    return acceptDTD ? ParserPools.DTD_ACCEPTING : ParserPools.DTD_REJECTING;
+  }
+
+  private static final class ParserPools {
+    /** The most idle document builders kept by each pool. */
+    static final int MAX_POOL_SIZE = Integer.getInteger("gsa.samlParserPoolSize",
+        Math.max(5, 2 * Runtime.getRuntime().availableProcessors()));
+
+    static final BasicParserPool DTD_ACCEPTING = makeParserPool(true);
+    static final BasicParserPool DTD_REJECTING = makeParserPool(false);
+
+    private static BasicParserPool makeParserPool(boolean acceptDTD) {
+      BasicParserPool parserPool = new BasicParserPool();
+      Map<String, Boolean> newBuilderFeatures = new HashMap<String, Boolean>(
+          parserPool.getBuilderFeatures());
+      if (acceptDTD) {
+        newBuilderFeatures.put("http://apache.org/xml/features/disallow-doctype-decl", false);
+      }
+      parserPool.setBuilderFeatures(newBuilderFeatures);
+      parserPool.setMaxPoolSize(MAX_POOL_SIZE);
+      warm(parserPool);
+      return parserPool;
+    }
+
+    // Fills the pool, so that the first requests don't pay for building parsers.
+    private static void warm(BasicParserPool parserPool) {
+      List<DocumentBuilder> builders = new ArrayList<DocumentBuilder>(MAX_POOL_SIZE);
+      try {
+        for (int i = 0; i < MAX_POOL_SIZE; i++) {
+          builders.add(parserPool.getBuilder());
+        }
+      } catch (XMLParserException e) {
+        logger.log(Level.WARNING, "Unable to pre-warm SAML parser pool", e);
+      } finally {
+        for (DocumentBuilder builder : builders) {
+          parserPool.returnBuilder(builder);
+        }
+      }
     }
-    parserPool.setBuilderFeatures(newBuilderFeatures);
-    return parserPool;
   }
 
   private static IOException logCodecMessage(Throwable e, String verbPhrase, Decorator decorator,
@@ -1232,13 +1271,10 @@ public final class OpenSamlUtil {
    * @return The corresponding string.
    */
   public static String samlDateString(DateTime date) {
-    synchronized (samlDateStringLock) {
-      return Configuration.getSAMLDateFormatter().print(date);
-    }
+    // Joda formatters are immutable and thread safe.
+    return Configuration.getSAMLDateFormatter().print(date);
   }
 
-  private static final Object samlDateStringLock = new Object();
-
   /**
    * Get a SAML metadata provider that reads from a specified file.  The provider adjusts
    * its output as the file is changed.
@@ -1250,7 +1286,7 @@ public final class OpenSamlUtil {
   public static FilesystemMetadataProvider getMetadataFromFile(File file)
       throws MetadataProviderException {
     FilesystemMetadataProvider provider = new FilesystemMetadataProvider(file);
-    provider.setParserPool(new BasicParserPool());
+    provider.setParserPool(getBasicParserPoolInternal(false));
     // Causes null-pointer errors in OpenSAML code:
     //provider.setRequireValidMetadata(true);
     return provider;
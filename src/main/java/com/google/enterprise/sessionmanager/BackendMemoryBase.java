@@ -0,0 +1,342 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * This class provides an implementation of the BackendInterface that keeps
+ * sessions in memory, with the same semantics as BackendFilesBase: a session
+ * is a map from key to contents, and its last-access time is the last time any
+ * key within it was read or written.
+ *
+ * Reads and writes don't lock when the backend has no journal.  If a journal
+ * file is configured, every change is also appended to a memory-mapped
+ * SessionJournal, and the sessions in the journal are restored when the
+ * backend is created.  Changes are then serialized on the journal.  The
+ * last-access times are not journaled; restored sessions count as accessed
+ * at restore time.
+ */
+class BackendMemoryBase implements BackendInterfaceBase {
+
+  // -------------------------------------------------
+  // INTERNAL STATE
+
+  private static final Logger logger =
+    Logger.getLogger(BackendMemoryBase.class.getName());
+
+  private final ConcurrentMap<String, Session> sessions;
+  private final SessionJournal journal;   // null if not journaling
+
+  /**
+   * A session's keys and the last time any of them was read or written.
+   */
+  private static final class Session {
+    final ConcurrentMap<String, byte[]> keys = new ConcurrentHashMap<String, byte[]>();
+    volatile long lastAccess;
+
+    Session(long lastAccess) {
+      this.lastAccess = lastAccess;
+    }
+  }
+
+
+  // -------------------------------------------------
+  // Constructor
+
+  /**
+   * Creates a backend, journaled if the settings name a journal file.
+   *
+   * @throws        RuntimeException if the journal can't be opened
+   */
+  BackendMemoryBase(Settings settings) {
+    this(settings.getJournalFile());
+  }
+
+  /**
+   * @param journalFile the journal to restore from and append to, or null to
+   *                    keep sessions in memory only
+   * @throws            RuntimeException if the journal can't be opened
+   */
+  BackendMemoryBase(String journalFile) {
+    sessions = new ConcurrentHashMap<String, Session>();
+    if (journalFile == null) {
+      journal = null;
+      return;
+    }
+    Map<String, Map<String, byte[]>> restored = new LinkedHashMap<String, Map<String, byte[]>>();
+    try {
+      journal = SessionJournal.open(new File(journalFile), restored);
+    } catch (IOException e) {
+      String message = "unable to open session journal " + journalFile;
+      logger.warning(message);
+      throw new RuntimeException(message, e);
+    }
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Map<String, byte[]>> entry : restored.entrySet()) {
+      Session session = new Session(now);
+      session.keys.putAll(entry.getValue());
+      sessions.put(entry.getKey(), session);
+    }
+  }
+
+
+  // -------------------------------------------------
+  // Internal helpers
+
+  /**
+   * find a session
+   *
+   * @throws            IndexOutOfBoundsException if the session does not exist
+   */
+  private Session findSession(String sessionId, String action) {
+    Session session = sessions.get(sessionId);
+    if (session == null) {
+      String message = "Attempt to " + action + " non existent session " + sessionId;
+      logger.warning(message);
+      throw new IndexOutOfBoundsException(message);
+    }
+    return session;
+  }
+
+  /**
+   * store a key's contents, updating the session's last-accessed time
+   */
+  private void put(String sessionId, String key, byte[] contents) {
+    Session session = findSession(sessionId, "write key " + key + " to");
+    session.keys.put(key, contents);
+    session.lastAccess = System.currentTimeMillis();
+  }
+
+  private void journalFailed(IOException e) {
+    String message = "error writing to session journal";
+    logger.warning(message + ": " + e);
+    throw new RuntimeException(message, e);
+  }
+
+  // Called with the journal locked.
+  private void compactJournalIfNeeded() throws IOException {
+    if (!journal.needsCompaction()) {
+      return;
+    }
+    Map<String, Map<String, byte[]>> live = new HashMap<String, Map<String, byte[]>>();
+    for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+      live.put(entry.getKey(), entry.getValue().keys);
+    }
+    journal.rewrite(live);
+  }
+
+
+  // -------------------------------------------------
+  // Public interface methods
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#sessionExists
+   */
+  public boolean sessionExists(String sessionId) {
+    return sessions.containsKey(sessionId);
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#keyExists
+   */
+  public boolean keyExists(String sessionId, String key) {
+    Session session = sessions.get(sessionId);
+    return session != null && session.keys.containsKey(key);
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#sessionAge
+   */
+  public long sessionAge(String sessionId)
+      throws IndexOutOfBoundsException {
+    Session session = sessions.get(sessionId);
+    if (session == null) {
+      String message = "tried to find age of non-existent session " + sessionId;
+      logger.warning(message);
+      throw new IndexOutOfBoundsException(message);
+    }
+    long deltaMils = System.currentTimeMillis() - session.lastAccess;
+    return deltaMils / 1000;
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#createSession
+   */
+  public void createSession(String sessionId) {
+    if (journal == null) {
+      putNewSession(sessionId);
+      return;
+    }
+    synchronized (journal) {
+      putNewSession(sessionId);
+      try {
+        journal.logCreate(sessionId);
+        compactJournalIfNeeded();
+      } catch (IOException e) {
+        journalFailed(e);
+      }
+    }
+  }
+
+  private void putNewSession(String sessionId) {
+    if (sessions.putIfAbsent(sessionId, new Session(System.currentTimeMillis())) != null) {
+      String message = "unable to create session " + sessionId + " (already exists)";
+      logger.warning(message);
+      throw new RuntimeException(message);
+    }
+  }
+
+  /** @see com.google.enterprise.sessionmanager.BackendInterface#deleteSession */
+  @Override
+  public void deleteSession(String sessionId) throws IndexOutOfBoundsException {
+    if (journal == null) {
+      removeSession(sessionId);
+      return;
+    }
+    synchronized (journal) {
+      removeSession(sessionId);
+      try {
+        journal.logDelete(sessionId);
+        compactJournalIfNeeded();
+      } catch (IOException e) {
+        journalFailed(e);
+      }
+    }
+  }
+
+  private void removeSession(String sessionId) {
+    if (sessions.remove(sessionId) == null) {
+      throw new IndexOutOfBoundsException("no such session");
+    }
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#readKey
+   */
+  public byte[] readKey(String sessionId, String key)
+      throws IndexOutOfBoundsException {
+    Session session = findSession(sessionId, "read key " + key + " from");
+    byte[] contents = session.keys.get(key);
+    if (contents == null) {
+      // the session exists; it's only the key that's missing
+      return null;
+    }
+    session.lastAccess = System.currentTimeMillis();
+    return contents.clone();
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#writeData
+   */
+  public void writeData(String sessionId, String key, String contents)
+      throws IndexOutOfBoundsException {
+    writeData(sessionId, key, Utils.toBytesUtf8(contents));
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#writeCompressedData
+   */
+  public void writeCompressedData(String sessionId, String key, byte[] contents)
+      throws IndexOutOfBoundsException {
+    writeData(sessionId, key, contents);
+  }
+
+  public void writeData(String sessionId, String key, byte[] value)
+      throws IndexOutOfBoundsException {
+    byte[] copy = value.clone();
+    if (journal == null) {
+      put(sessionId, key, copy);
+      return;
+    }
+    synchronized (journal) {
+      put(sessionId, key, copy);
+      try {
+        journal.logWrite(sessionId, key, copy);
+        compactJournalIfNeeded();
+      } catch (IOException e) {
+        journalFailed(e);
+      }
+    }
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#listSessions
+   */
+  public List<String> listSessions() {
+    return new ArrayList<String>(sessions.keySet());
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#listKeys
+   */
+  public List<String> listKeys(String sessionId) {
+    Session session = sessions.get(sessionId);
+    return (session != null)
+        ? new ArrayList<String>(session.keys.keySet())
+        : new ArrayList<String>();
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#storeKrb5Identity
+   */
+  public KerberosId storeKrb5Identity(String sessionId, String spnegoBlob) {
+    throw new RuntimeException("Method not implemented yet");
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#getKrb5TokenForServer
+   */
+  public KeyMaterial getKrb5TokenForServer(String sessionId, String server) {
+    throw new RuntimeException("Method not implemented yet");
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#krb5CredentialsAreInitialized
+   */
+  public String getKrb5Identity(String sessionId) {
+    throw new RuntimeException("Method not implemented yet");
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#getKrb5Ccache
+   */
+  public String getKrb5CcacheFilename(String sessionId) throws IndexOutOfBoundsException {
+    throw new RuntimeException("Method not implemented yet");
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#parseKrb5Keytab
+   */
+  public String parseKrb5Keytab(String filepath) {
+    throw new RuntimeException("Method not implemented yet");
+  }
+
+  /**
+   * @see com.google.enterprise.sessionmanager.BackendInterface#getKrb5ServerNameIfEnabled
+   */
+  public String getKrb5ServerNameIfEnabled() {
+    return null;  // Kerberos not enabled for this back end.
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Garbage-collects expired sessions in the background.
+ *
+ * A collection pass lists the sessions once and then checks them a batch at
+ * a time, one batch per tick of a shared daemon thread, deleting those that
+ * have been idle longer than the session timeout.  Request threads never do
+ * any of this work.
+ *
+ * The scheduled task only holds a weak reference to its collector, so a
+ * collector (and its session manager) that is no longer used stops being
+ * scheduled once it is garbage-collected.
+ */
+public class SessionCollector {
+
+  private static final Logger logger =
+      Logger.getLogger(SessionCollector.class.getName());
+
+  private static final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+          .setNameFormat("SessionCollector-%d")
+          .setDaemon(true)
+          .build());
+
+  private final BackendInterfaceBase backend;
+  private final int timeoutSecs;
+  private final int batchSize;
+
+  // the sessions still to be checked in the current pass, or null
+  private Iterator<String> pass;
+  private long passStartMillis;
+
+  private final AtomicLong sessionsScanned = new AtomicLong();
+  private final AtomicLong sessionsReaped = new AtomicLong();
+  private final AtomicLong passesCompleted = new AtomicLong();
+  private volatile long lastPassMillis;
+
+  SessionCollector(BackendInterfaceBase backend, int timeoutSecs, int batchSize) {
+    this.backend = backend;
+    this.timeoutSecs = timeoutSecs;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * create a collector and schedule it on the shared collector thread
+   *
+   * @param backend     the back-end whose sessions are collected
+   * @param settings    supplies the session timeout, batch size and tick
+   * @return            the running collector
+   */
+  static SessionCollector start(BackendInterfaceBase backend, Settings settings) {
+    SessionCollector collector = new SessionCollector(
+        backend, settings.getSessionTimeout(), settings.getGcBatchSize());
+    Tick tick = new Tick(collector);
+    long interval = settings.getGcIntervalMillis();
+    tick.future = scheduler.scheduleWithFixedDelay(tick, interval, interval,
+        TimeUnit.MILLISECONDS);
+    return collector;
+  }
+
+  private static final class Tick implements Runnable {
+    final WeakReference<SessionCollector> collector;
+    volatile ScheduledFuture<?> future;
+
+    Tick(SessionCollector collector) {
+      this.collector = new WeakReference<SessionCollector>(collector);
+    }
+
+    @Override
+    public void run() {
+      SessionCollector target = collector.get();
+      if (target == null) {
+        future.cancel(false);
+        return;
+      }
+      try {
+        target.collectBatch();
+      } catch (RuntimeException e) {
+        // don't let one failure stop all future collection
+        logger.log(Level.WARNING, "session garbage collection failed", e);
+      }
+    }
+  }
+
+  /**
+   * check the next batch of sessions, starting a new pass if needed
+   *
+   * @return    true if this batch finished a pass
+   */
+  synchronized boolean collectBatch() {
+    return collect(batchSize);
+  }
+
+  /**
+   * run a whole new pass on the calling thread, abandoning any current one
+   */
+  synchronized void collectAll() {
+    pass = null;
+    collect(Integer.MAX_VALUE);
+  }
+
+  private boolean collect(int budget) {
+    if (pass == null) {
+      List<String> sessions;
+      try {
+        sessions = backend.listSessions();
+      } catch (Exception e) {
+        // RPC server thows exception for this method, we don't need to do
+        // garbage collection as the server code itself does it.
+        return false;
+      }
+      if (sessions == null) {
+        return false;
+      }
+      pass = sessions.iterator();
+      passStartMillis = System.currentTimeMillis();
+    }
+
+    for (int i = 0; i < budget && pass.hasNext(); i++) {
+      String session = pass.next();
+      sessionsScanned.incrementAndGet();
+      // a listed session may have been deleted since the listing, so
+      // sessionAge and deleteSession may find it gone
+      try {
+        if (backend.sessionAge(session) > timeoutSecs) {
+          backend.deleteSession(session);
+          sessionsReaped.incrementAndGet();
+        }
+      } catch (IndexOutOfBoundsException e) {
+        // no need to take any action - if the session has ceased to exist,
+        // we don't need to garbage collect it.
+      }
+    }
+    if (pass.hasNext()) {
+      return false;
+    }
+    pass = null;
+    lastPassMillis = System.currentTimeMillis() - passStartMillis;
+    passesCompleted.incrementAndGet();
+    logger.fine("session GC pass took " + lastPassMillis + "ms; "
+        + sessionsScanned.get() + " sessions scanned and "
+        + sessionsReaped.get() + " reaped so far");
+    return true;
+  }
+
+  /** @return   the number of sessions checked, over all passes */
+  public long getSessionsScanned() {
+    return sessionsScanned.get();
+  }
+
+  /** @return   the number of expired sessions deleted, over all passes */
+  public long getSessionsReaped() {
+    return sessionsReaped.get();
+  }
+
+  /** @return   the number of completed passes */
+  public long getPassesCompleted() {
+    return passesCompleted.get();
+  }
+
+  /** @return   the wall-clock duration of the last completed pass, in ms */
+  public long getLastPassMillis() {
+    return lastPassMillis;
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates random session IDs without any shared lock.
+ *
+ * Each thread has its own SecureRandom, from which it draws random bytes a
+ * batch at a time, and its own buffer into which IDs are hex-encoded.
+ */
+final class SessionIdGenerator {
+
+  /** The number of random bytes in a session ID. */
+  static final int ID_BYTES = 16;
+
+  // The number of IDs' worth of random bytes fetched per SecureRandom call.
+  private static final int IDS_PER_BATCH = 32;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<SessionIdGenerator> generators =
+      new ThreadLocal<SessionIdGenerator>() {
+        @Override
+        protected SessionIdGenerator initialValue() {
+          return new SessionIdGenerator(new SecureRandom());
+        }
+      };
+
+  private final SecureRandom random;
+  private final byte[] randomBytes;
+  private final char[] idChars;
+  private int next;
+
+  private SessionIdGenerator(SecureRandom random) {
+    this.random = random;
+    randomBytes = new byte[ID_BYTES * IDS_PER_BATCH];
+    idChars = new char[ID_BYTES * 2];
+    next = randomBytes.length;
+  }
+
+  /**
+   * Generates a new session ID on the calling thread.
+   *
+   * @return a string of {@link #ID_BYTES} random bytes as lower-case hex
+   */
+  static String newId() {
+    return generators.get().generate();
+  }
+
+  private String generate() {
+    if (next == randomBytes.length) {
+      random.nextBytes(randomBytes);
+      next = 0;
+    }
+    for (int i = 0; i < ID_BYTES; i++) {
+      int b = randomBytes[next];
+      // Don't leave used entropy lying around.
+      randomBytes[next++] = 0;
+      idChars[2 * i] = HEX_DIGITS[(b >> 4) & 0xf];
+      idChars[2 * i + 1] = HEX_DIGITS[b & 0xf];
+    }
+    return new String(idChars);
+  }
+}
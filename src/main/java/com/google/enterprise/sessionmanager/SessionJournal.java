@@ -0,0 +1,307 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * An append-only, memory-mapped journal of session-manager operations, used
+ * by BackendMemoryBase to survive a restart of the process.
+ *
+ * Each record is a 4-byte length followed by an operation code and its
+ * arguments.  The length is written last, and the unused part of the mapped
+ * region is zero, so a record that was only partly written is never replayed.
+ * Records go to the page cache; they are not forced to the disk.
+ *
+ * The journal is rewritten from the live sessions when it is opened and
+ * whenever it grows to twice its size after the last rewrite.  It holds the
+ * sessions' contents, credentials included, so only its owner may read it.
+ *
+ * This class is not thread-safe; callers synchronize on the journal.
+ */
+class SessionJournal {
+
+  private static final Logger logger =
+      Logger.getLogger(SessionJournal.class.getName());
+
+  private static final byte OP_CREATE = 1;
+  private static final byte OP_DELETE = 2;
+  private static final byte OP_WRITE = 3;
+
+  private static final int REGION_BYTES = 16 * 1024 * 1024;
+
+  private static final Set<PosixFilePermission> FILE_PERMISSIONS =
+      PosixFilePermissions.fromString("rw-------");
+  private static final boolean POSIX =
+      FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+  private final File file;
+  private FileChannel channel;
+  private MappedByteBuffer region;
+  private long regionStart;
+  private long position;
+  private long compactedSize;
+
+  private SessionJournal(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens a journal, replaying its records.
+   *
+   * @param file        the journal file; created if it doesn't exist
+   * @param sessions    filled with the sessions in the journal, each a map
+   *                    from key to contents
+   * @return            the opened journal, rewritten to hold just the
+   *                    replayed sessions
+   * @throws            IOException if the file can't be read or written
+   */
+  static SessionJournal open(File file, Map<String, Map<String, byte[]>> sessions)
+      throws IOException {
+    if (file.exists()) {
+      replay(file, sessions);
+    }
+    SessionJournal journal = new SessionJournal(file);
+    journal.rewrite(sessions);
+    logger.info("Replayed " + sessions.size() + " sessions from " + file);
+    return journal;
+  }
+
+  private static void replay(File file, Map<String, Map<String, byte[]>> sessions)
+      throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      while (buffer.remaining() >= 4) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+          break;
+        }
+        ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+        try {
+          apply(record, sessions);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+          logger.warning("Ignoring malformed record in session journal " + file);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void apply(ByteBuffer record, Map<String, Map<String, byte[]>> sessions) {
+    byte op = record.get();
+    String sessionId = getString(record);
+    switch (op) {
+      case OP_CREATE:
+        sessions.put(sessionId, new HashMap<String, byte[]>());
+        break;
+      case OP_DELETE:
+        sessions.remove(sessionId);
+        break;
+      case OP_WRITE:
+        String key = getString(record);
+        byte[] contents = new byte[record.getInt()];
+        record.get(contents);
+        Map<String, byte[]> keys = sessions.get(sessionId);
+        if (keys != null) {
+          keys.put(key, contents);
+        }
+        break;
+      default:
+        logger.warning("Ignoring unknown session journal operation " + op);
+    }
+  }
+
+  /** Records the creation of a session. */
+  void logCreate(String sessionId) throws IOException {
+    append(OP_CREATE, sessionId, null, null);
+  }
+
+  /** Records the deletion of a session. */
+  void logDelete(String sessionId) throws IOException {
+    append(OP_DELETE, sessionId, null, null);
+  }
+
+  /** Records a write of a key's contents. */
+  void logWrite(String sessionId, String key, byte[] contents) throws IOException {
+    append(OP_WRITE, sessionId, key, contents);
+  }
+
+  /**
+   * @return    true if the journal has grown enough since it was last
+   *            rewritten that it should be rewritten again
+   */
+  boolean needsCompaction() {
+    return position > Math.max(2 * compactedSize, REGION_BYTES);
+  }
+
+  /**
+   * Replaces the contents of the journal with records that recreate the given
+   * sessions.  The new journal is written next to the old one and renamed
+   * over it, so a crash while rewriting leaves the old journal in place.  If
+   * the rewrite fails, the old journal stays open and keeps being appended
+   * to.
+   *
+   * @param sessions    the live sessions, each a map from key to contents
+   * @throws            IOException if the journal can't be written
+   */
+  void rewrite(Map<String, Map<String, byte[]>> sessions) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    Files.deleteIfExists(tmp.toPath());
+    FileChannel oldChannel = channel;
+    MappedByteBuffer oldRegion = region;
+    long oldRegionStart = regionStart;
+    long oldPosition = position;
+    boolean done = false;
+    try {
+      openFile(tmp);
+      for (Map.Entry<String, Map<String, byte[]>> session : sessions.entrySet()) {
+        logCreate(session.getKey());
+        for (Map.Entry<String, byte[]> key : new LinkedHashMap<>(session.getValue()).entrySet()) {
+          logWrite(session.getKey(), key.getKey(), key.getValue());
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      done = true;
+    } finally {
+      if (done) {
+        if (oldChannel != null) {
+          oldChannel.close();
+        }
+      } else {
+        if (channel != oldChannel) {
+          region = null;
+          channel.close();
+        }
+        tmp.delete();
+        channel = oldChannel;
+        region = oldRegion;
+        regionStart = oldRegionStart;
+        position = oldPosition;
+      }
+    }
+    compactedSize = position;
+  }
+
+  /** Closes the journal file. */
+  void close() throws IOException {
+    region = null;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Creates a new journal file that only its owner can read or write, and
+   * maps its first region.
+   */
+  private void openFile(File target) throws IOException {
+    Path path = target.toPath();
+    Set<OpenOption> options = new HashSet<OpenOption>();
+    options.add(StandardOpenOption.CREATE_NEW);
+    options.add(StandardOpenOption.READ);
+    options.add(StandardOpenOption.WRITE);
+    options.add(LinkOption.NOFOLLOW_LINKS);
+    FileAttribute<?>[] attributes = POSIX
+        ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS)}
+        : new FileAttribute<?>[0];
+    FileChannel opened = FileChannel.open(path, options, attributes);
+    if (POSIX) {
+      // The umask may have taken away some of the owner's access.
+      try {
+        Files.setPosixFilePermissions(path, FILE_PERMISSIONS);
+      } catch (IOException e) {
+        opened.close();
+        throw new IOException("Unable to restrict access to session journal: " + target, e);
+      }
+    }
+    channel = opened;
+    position = 0;
+    mapRegion(REGION_BYTES);
+  }
+
+  private void mapRegion(int minBytes) throws IOException {
+    regionStart = position;
+    region = channel.map(
+        FileChannel.MapMode.READ_WRITE, regionStart, Math.max(minBytes, REGION_BYTES));
+  }
+
+  private void append(byte op, String sessionId, String key, byte[] contents)
+      throws IOException {
+    byte[] sessionBytes = sessionId.getBytes(UTF_8);
+    byte[] keyBytes = (key != null) ? key.getBytes(UTF_8) : null;
+    int length = 1 + 4 + sessionBytes.length;
+    if (keyBytes != null) {
+      length += 4 + keyBytes.length + 4 + contents.length;
+    }
+    int offset = (int) (position - regionStart);
+    if (region.capacity() - offset < 4 + length) {
+      mapRegion(4 + length);
+      offset = 0;
+    }
+    ByteBuffer record = region.duplicate();
+    record.position(offset + 4);
+    record.put(op);
+    putBytes(record, sessionBytes);
+    if (keyBytes != null) {
+      putBytes(record, keyBytes);
+      putBytes(record, contents);
+    }
+    // Publish the record only once it is complete.
+    region.putInt(offset, length);
+    position += 4 + length;
+  }
+
+  private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -15,9 +15,7 @@
 package com.google.enterprise.sessionmanager;
 
 import com.google.common.annotations.VisibleForTesting;
-import java.util.Formatter;
 import java.util.List;
-import java.util.Random;
 import java.util.logging.Logger;
 
 /**
@@ -42,18 +40,10 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
   private static final Logger logger =
       Logger.getLogger(SessionManagerBase.class.getName());
 
-  // for secure session name creation
-  private static final Random random = new Random();
-
   protected BackendInterfaceBase backend;
 
-  // Temp var that will be filled with random bytes.
-  // Declared static just to avoid GC overhead.
-  private static final byte[] randomBytes = new byte[16];
-  // Another tmp var that declare here so as to only
-  // create once.
-  private static final StringBuilder sidBuilder =
-        new StringBuilder(randomBytes.length * 2);
+  // expires idle sessions in the background
+  protected SessionCollector collector;
 
   //-------------------------------------------------
   // INTERNAL HELPER ROUTINES
@@ -65,28 +55,7 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    *            enough to be unguessable and secure enough to be unpredictable
    */
   protected String genSessionId() {
-    // We generate some random bytes and then convert to ASCII.
-    //
-    // We synchronize on randomBytes so as to singlethread access
-    // to 'randomBytes', and 'sidBuilder'.
-    synchronized (randomBytes) {
-      random.nextBytes(randomBytes);
-      sidBuilder.setLength(0);
-      Formatter f = new Formatter(sidBuilder);
-      for (byte b : randomBytes) {
-        f.format("%02x", b);
-      }
-      return f.toString();
-    }
-  }
-
-  /**
-   * Run session garbage stochastically (i.e. ~1% chance upon call to this func).
-   */
-  protected void garbageCollectIfNeeded() {
-    if (random.nextDouble() < 0.01) {
-      garbageCollectNow();
-    }
+    return SessionIdGenerator.newId();
   }
 
   /**
@@ -105,7 +74,11 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
   }
 
   protected void setupDefaultBackend() {
-    this.backend = new BackendFilesBase(settings);
+    if (Settings.BACKEND_MEMORY.equals(settings.getBackend())) {
+      this.backend = new BackendMemoryBase(settings);
+    } else {
+      this.backend = new BackendFilesBase(settings);
+    }
   }
 
   @VisibleForTesting
@@ -113,6 +86,14 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
     return backend;
   }
 
+  /**
+   * @return    the background garbage collector, which exports metrics about
+   *            its passes
+   */
+  public SessionCollector getCollector() {
+    return collector;
+  }
+
   //-------------------------------------------------
   // CONSTRUCTOR
 
@@ -128,6 +109,7 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
   public SessionManagerBase(BackendInterfaceBase backend) {
     settings = new Settings();
     setupBackendBase(backend);
+    collector = SessionCollector.start(this.backend, settings);
   }
 
   // -------------------------------------------------
@@ -161,8 +143,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    * @see com.google.enterprise.sessionmanager.SessionManagerInterface#createSession
    */
   public String createSession() {
-    garbageCollectIfNeeded();
-
     String sessionId = genSessionId();
     backend.createSession(sessionId);
     return sessionId;
@@ -173,8 +153,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public void setValue(String sessionId, String key, String newValue)
       throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     if (newValue == null) {
       newValue = new String("");
     }
@@ -188,8 +166,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public String getValue(String sessionId, String key)
       throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     if (key == null)
         return null;
     byte[] data = backend.readKey(sessionId, key);
@@ -205,8 +181,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
 
   public void setValueBin(String sessionId, String key, byte[] newValue)
       throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     if (newValue == null) {
       newValue = new byte[0];
     }
@@ -219,8 +193,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
 
   public void setValueCompressed(String sessionId, String key, byte[] value)
       throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     if (value == null) {
       value = new byte[0];
     }
@@ -234,8 +206,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
 
   public byte[] getValueBin(String sessionId, String key)
       throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     if (key == null) return null;
 
     byte[] result = backend.readKey(sessionId, key);
@@ -250,8 +220,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public KerberosId storeKrb5Identity(String sessionId, String spnegoBlob)
     throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     logger.finer("session:" + sessionId + " blob length:" + spnegoBlob.length());
     return backend.storeKrb5Identity(sessionId, spnegoBlob);
   }
@@ -261,8 +229,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public KeyMaterial getKrb5TokenForServer(String sessionId, String server)
     throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     logger.finer("session:" + sessionId + " server" + server);
     return backend.getKrb5TokenForServer(sessionId, server);
   }
@@ -272,8 +238,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public String getKrb5Identity(String sessionId)
     throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
-
     logger.finer("session:" + sessionId + " user credentials are initialized?");
     return backend.getKrb5Identity(sessionId);
   }
@@ -284,7 +248,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    */
   public void deleteSession(String sessionId) throws IndexOutOfBoundsException {
     backend.deleteSession(sessionId);
-    garbageCollectIfNeeded();
   }
 
 
@@ -292,7 +255,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    * @see com.google.enterprise.sessionmanager.SessionManagerInterface#getKrb5CcacheFilename
    */
   public String getKrb5CcacheFilename(String sessionId) throws IndexOutOfBoundsException {
-    garbageCollectIfNeeded();
     return backend.getKrb5CcacheFilename(sessionId);
   }
 
@@ -300,7 +262,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    * @see com.google.enterprise.sessionmanager.SessionManagerInterface#parseKrb5Keytab
    */
   public String parseKrb5Keytab(String filepath) {
-    garbageCollectIfNeeded();
     return backend.parseKrb5Keytab(filepath);
   }
 
@@ -308,7 +269,6 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
    * @see com.google.enterprise.sessionmanager.SessionManagerInterface#getKrb5ServerNameIfEnabled
    */
   public String getKrb5ServerNameIfEnabled() {
-    garbageCollectIfNeeded();
     return backend.getKrb5ServerNameIfEnabled();
   }
 
@@ -329,33 +289,10 @@ public class SessionManagerBase implements SessionManagerInterfaceBase {
     }
   }
 
+  /**
+   * Run a full garbage collection pass on the calling thread.
+   */
   protected void garbageCollectNow() {
-    List<String> sessions = null;
-    try {
-        sessions = backend.listSessions();
-    } catch (Exception e){
-
-      // RPC server thows exception for this method, we don't need to do
-      // garbage collection as the server code itself does it.
-      return;
-    }
-    if (sessions == null)
-      return;
-    for (String session : sessions) {
-
-      // I've received reports that sometimes the call below to sessionAge
-      // throws the session not found exception.  I'm not sure how listSessions
-      // would return a sessionId that doesn't actually exist, perhaps some
-      // funky race condition.  regardless, it's obviously best to wrap the
-      // call to sessionAge in a try..catch ...  - ken2
-      try {
-        if (backend.sessionAge(session) > settings.getSessionTimeout()) {
-          backend.deleteSession(session);
-        }
-      } catch (IndexOutOfBoundsException e) {
-        // no need to take any action - if the session has ceased to exist,
-        // we don't need to garbage collect it.
-      }
-    }
+    collector.collectAll();
   }
 }
@@ -37,11 +37,20 @@ class Settings {
   // Internal data storage (protected to facilitate overrides by testing)
   protected String prefix;
   protected int timeoutSecs;
+  protected String backend;
+  protected String journalFile;
+  protected int gcBatchSize;
+  protected long gcIntervalMillis;
 
   private static final String PREFIX1 = "/mnt/rtcache/";
   private static final String PREFIX2 = "/tmp/";
   static final String BASEDIR = "session_manager/";
 
+  /** Keeps each session key in its own file (see BackendFilesBase). */
+  static final String BACKEND_FILES = "files";
+  /** Keeps sessions in memory (see BackendMemoryBase). */
+  static final String BACKEND_MEMORY = "memory";
+
   // Temporary constructor - set the settings here for now
   Settings () {
     /* prefix directory: session data contains user passwords etc, so from a
@@ -66,6 +75,12 @@ class Settings {
     prefix = prefixToUse + BASEDIR;
 
     timeoutSecs = 30 * 60;                    // 30 minutes
+
+    backend = System.getProperty("gsa.sessionmanager.backend", BACKEND_FILES);
+    journalFile = System.getProperty("gsa.sessionmanager.journal");
+
+    gcBatchSize = Integer.getInteger("gsa.sessionmanager.gcbatchsize", 1000);
+    gcIntervalMillis = Long.getLong("gsa.sessionmanager.gcintervalmillis", 1000);
   }
 
 
@@ -89,4 +104,39 @@ class Settings {
     return timeoutSecs;
   }
 
+  /**
+   * retrieve the type of back-end storage to use
+   *
+   * @return    {@link #BACKEND_FILES} or {@link #BACKEND_MEMORY}
+   */
+  public String getBackend() {
+    return backend;
+  }
+
+  /**
+   * retrieve the journal file for the in-memory back-end
+   *
+   * @return    the journal filename, or null if sessions are not journaled
+   */
+  public String getJournalFile() {
+    return journalFile;
+  }
+
+  /**
+   * retrieve the number of sessions the garbage collector checks per tick
+   *
+   * @return    the maximum number of sessions checked per tick
+   */
+  public int getGcBatchSize() {
+    return gcBatchSize;
+  }
+
+  /**
+   * retrieve the interval between garbage collector ticks
+   *
+   * @return    number of milliseconds between ticks
+   */
+  public long getGcIntervalMillis() {
+    return gcIntervalMillis;
+  }
 }
@@ -0,0 +1,229 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.logmanager;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LogClient} and its {@link LogPipeline}.
+ */
+public class LogClientTest extends TestCase {
+
+  private boolean savedEnableLogManager;
+  private boolean savedRecordUsernames;
+  private CollectingSink sink;
+  private LogPipeline pipeline;
+  private LogClient client;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    savedEnableLogManager = LogClientParameters.enableLogManager;
+    savedRecordUsernames = LogClientParameters.recordUsernames;
+    LogClientParameters.enableLogManager = true;
+    LogClientParameters.recordUsernames = true;
+    sink = new CollectingSink();
+    pipeline = new LogPipeline(sink, 1024);
+    client = new LogClient("Test", LogClientParameters.LOG_MANAGER_SERVER, pipeline);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    pipeline.close();
+    LogClientParameters.enableLogManager = savedEnableLogManager;
+    LogClientParameters.recordUsernames = savedRecordUsernames;
+    super.tearDown();
+  }
+
+  public void testWritesRecordsInOrder() throws Exception {
+    client.info("req1", "first");
+    client.critical("req2", "second %d", 2);
+    client.debug("req3", ImmutableList.of("third", "line"));
+    List<String> lines = drain();
+    assertEquals(3, lines.size());
+    assertTrue(lines.get(0), lines.get(0).endsWith(" INFO Test [req1] first"));
+    assertTrue(lines.get(1), lines.get(1).endsWith(" CRITICAL Test [req2] second 2"));
+    assertTrue(lines.get(2), lines.get(2).endsWith(" DEBUG Test [req3] third\nline"));
+    assertEquals(3, pipeline.getWrittenCount());
+  }
+
+  public void testPlainMessagesAreNotFormatted() throws Exception {
+    client.info("req", "100% done");
+    assertTrue(drain().get(0).endsWith("100% done"));
+  }
+
+  public void testFormattingIsDeferred() throws Exception {
+    final List<String> formattingThreads = Collections.synchronizedList(new ArrayList<String>());
+    Object argument = new Object() {
+      @Override
+      public String toString() {
+        formattingThreads.add(Thread.currentThread().getName());
+        return "argument";
+      }
+    };
+    client.info("req", "value: %s", argument);
+    assertTrue(drain().get(0).endsWith("value: argument"));
+    assertEquals(ImmutableList.of("LogPipeline-drainer"), formattingThreads);
+  }
+
+  public void testNotLogged() throws Exception {
+    client.info(LogClientParameters.DO_NOT_LOG, "hidden");
+    LogClientParameters.enableLogManager = false;
+    client.info("req", "hidden");
+    LogClientParameters.enableLogManager = true;
+    client.info("req", "shown");
+    assertEquals(ImmutableList.of("shown"), messages(drain()));
+  }
+
+  public void testRecordUsernames() throws Exception {
+    client.logUsername("req", "alice");
+    LogClientParameters.recordUsernames = false;
+    client.logUsername("req", "alice");
+    assertEquals(
+        ImmutableList.of("Username: alice", "Username: " + LogClientParameters.ID_NOT_LOGGED),
+        messages(drain()));
+  }
+
+  public void testBatchLogger() throws Exception {
+    LogClient.BatchLogger batchLogger = client.getBatchLogger();
+    batchLogger.log("req", "%s by %s", "PERMIT", "policy");
+    batchLogger.info("req", "plain");
+    assertTrue(drain().isEmpty());
+    batchLogger.send();
+    assertEquals(ImmutableList.of("PERMIT by policy", "plain"), messages(drain()));
+  }
+
+  public void testDropsWhenFull() throws Exception {
+    pipeline.close();
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    pipeline = new LogPipeline(
+        new LogSink() {
+          @Override
+          public void write(List<String> lines) throws IOException {
+            blocked.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+        },
+        4);
+    client = new LogClient("Test", LogClientParameters.LOG_MANAGER_SERVER, pipeline);
+    client.info("req", "first");
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      client.info("req", "record %d", i);
+    }
+    assertEquals(6, pipeline.getDroppedCount());
+    release.countDown();
+    assertTrue(pipeline.awaitDrained(10, TimeUnit.SECONDS));
+    assertEquals(5, pipeline.getWrittenCount());
+  }
+
+  public void testSinkFailures() throws Exception {
+    pipeline.close();
+    pipeline = new LogPipeline(
+        new LogSink() {
+          @Override
+          public void write(List<String> lines) throws IOException {
+            throw new IOException("disk full");
+          }
+        },
+        16);
+    client = new LogClient("Test", LogClientParameters.LOG_MANAGER_SERVER, pipeline);
+    client.info("req", "lost");
+    assertTrue(pipeline.awaitDrained(10, TimeUnit.SECONDS));
+    assertEquals(1, pipeline.getFailedCount());
+    assertEquals(0, pipeline.getWrittenCount());
+  }
+
+  public void testRotatingFileLogSink() throws Exception {
+    File dir = Files.createTempDir();
+    File file = new File(dir, "log");
+    RotatingFileLogSink fileSink = new RotatingFileLogSink(file, 5, 2);
+    for (int i = 0; i < 4; i++) {
+      fileSink.write(ImmutableList.of("record " + i));
+    }
+    assertEquals("record 3\n", read(new File(dir, "log.1")));
+    assertEquals("record 2\n", read(new File(dir, "log.2")));
+    assertFalse(new File(dir, "log.3").exists());
+    assertEquals(0, file.length());
+  }
+
+  public void testRotatingFileLogSinkIsOwnerOnly() throws Exception {
+    File dir = new File(Files.createTempDir(), "logs");
+    File file = new File(dir, "log");
+    new RotatingFileLogSink(file, 1024, 2).write(ImmutableList.of("alice"));
+    assertEquals("rwx------", PosixFilePermissions.toString(
+        java.nio.file.Files.getPosixFilePermissions(dir.toPath())));
+    assertEquals("rw-------", PosixFilePermissions.toString(
+        java.nio.file.Files.getPosixFilePermissions(file.toPath())));
+
+    // A symbolic link planted at the log file's path isn't followed.
+    File target = new File(dir, "target");
+    File link = new File(dir, "link");
+    java.nio.file.Files.createSymbolicLink(link.toPath(), target.toPath());
+    try {
+      new RotatingFileLogSink(link, 1024, 2).write(ImmutableList.of("alice"));
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertFalse(target.exists());
+  }
+
+  private static String read(File file) throws IOException {
+    return Files.asCharSource(file, StandardCharsets.UTF_8).read();
+  }
+
+  private List<String> drain() throws InterruptedException {
+    assertTrue(pipeline.awaitDrained(10, TimeUnit.SECONDS));
+    return sink.getLines();
+  }
+
+  private static List<String> messages(List<String> lines) {
+    List<String> messages = new ArrayList<>();
+    for (String line : lines) {
+      messages.add(line.substring(line.indexOf("] ") + 2));
+    }
+    return messages;
+  }
+
+  private static final class CollectingSink implements LogSink {
+    private final List<String> lines = new ArrayList<>();
+
+    @Override
+    public synchronized void write(List<String> batch) {
+      lines.addAll(batch);
+    }
+
+    synchronized List<String> getLines() {
+      return new ArrayList<>(lines);
+    }
+  }
+}
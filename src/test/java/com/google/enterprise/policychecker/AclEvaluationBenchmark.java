@@ -0,0 +1,112 @@
+// Copyright 2007 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.Lists;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares checking 1,000 50-entry Acls for a user in 500 groups, as
+ * {@code PolicyAclsModule} does for a request with 1,000 URLs, using the
+ * Ace-by-Ace loops and using the compiled Acls.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(1)
+public class AclEvaluationBenchmark {
+  private static final int GROUPS = 5000;
+  private static final int USER_GROUPS = 500;
+  private static final int ACLS = 1000;
+  private static final int ACES = 50;
+
+  @State(Scope.Benchmark)
+  public static class Acls {
+    final List<Acl> acls = Lists.newArrayList();
+    final List<AclPrincipal> principals = Lists.newArrayList();
+    final AclPrincipalIds.Table table = new AclPrincipalIds.Table();
+
+    @Setup
+    public void setUp() {
+      Random random = new Random(42);
+      for (int i = 0; i < ACLS; i++) {
+        List<Ace> aces = Lists.newArrayList();
+        for (int j = 0; j < ACES; j++) {
+          String name = "group" + random.nextInt(GROUPS);
+          Principal principal = (j % 10 == 0)
+              ? new User(AclUtil.userNameToAclPrincipal("user" + random.nextInt(GROUPS)))
+              : new Group(AclUtil.groupToAclPrincipal(name));
+          aces.add(new Ace(principal, (j % 25 == 0) ? Right.NONE : Right.READ));
+        }
+        Acl acl = new Acl(aces);
+        acl.compile(table);
+        acls.add(acl);
+      }
+      for (int i = 0; i < USER_GROUPS; i++) {
+        String name = "group" + random.nextInt(GROUPS);
+        principals.add(AclUtil.groupToAclPrincipal(name));
+        principals.add(AclUtil.groupToAclPrincipalCaseInsensitive(name));
+      }
+      principals.add(AclUtil.userNameToAclPrincipal("user1"));
+      principals.add(AclUtil.userNameToAclPrincipalCaseInsensitive("user1"));
+    }
+  }
+
+  /** The loops that {@code AclUtil.authorize} used before Acls were compiled. */
+  @Benchmark
+  public void loops(Acls state, Blackhole blackhole) {
+    for (Acl acl : state.acls) {
+      blackhole.consume(acl.allowsReadToAnyAclPrincipal(state.principals)
+          && !acl.forbidsReadToAnyAclPrincipal(state.principals));
+    }
+  }
+
+  /** Resolving the principals once and checking the compiled Acls. */
+  @Benchmark
+  public void compiled(Acls state, Blackhole blackhole) {
+    AclPrincipalIds principalIds = state.table.resolve(state.principals);
+    for (Acl acl : state.acls) {
+      blackhole.consume(AclUtil.authorize(acl, principalIds));
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(AclEvaluationBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
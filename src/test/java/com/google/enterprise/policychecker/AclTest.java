@@ -0,0 +1,128 @@
+// Copyright 2007 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for evaluating {@link Acl}s against {@link AclPrincipalIds}.
+ */
+public class AclTest extends TestCase {
+
+  private static final AclPrincipal ALICE = AclUtil.userNameToAclPrincipal("alice");
+  private static final AclPrincipal BOB = AclUtil.userNameToAclPrincipal("bob");
+  private static final AclPrincipal ENG = AclUtil.groupToAclPrincipal("eng");
+  private static final AclPrincipal ENG_CI = AclUtil.groupToAclPrincipalCaseInsensitive("eng");
+
+  public void testPermit() {
+    Acl acl = new Acl(ImmutableList.of(
+        new Ace(new User(ALICE), Right.READ),
+        new Ace(new Group(ENG), Right.READ)));
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(acl, ImmutableList.of(ALICE)));
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(acl, ImmutableList.of(BOB, ENG)));
+    assertEquals(AuthzStatus.DENY, AclUtil.authorize(acl, ImmutableList.of(BOB, ENG_CI)));
+    assertEquals(AuthzStatus.DENY, AclUtil.authorize(acl, ImmutableList.<AclPrincipal>of()));
+  }
+
+  public void testDenyTrumpsPermit() {
+    Acl acl = new Acl(ImmutableList.of(
+        new Ace(new Group(ENG), Right.READ),
+        new Ace(new User(BOB), Right.NONE)));
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(acl, ImmutableList.of(ALICE, ENG)));
+    assertEquals(AuthzStatus.DENY, AclUtil.authorize(acl, ImmutableList.of(BOB, ENG)));
+  }
+
+  /** A group grants its right to members added after the Acl was built. */
+  public void testGroupMembers() {
+    Group eng = new Group(ENG);
+    Acl acl = new Acl(ImmutableList.of(new Ace(eng, Right.READ)));
+    AclPrincipalIds.Table table = new AclPrincipalIds.Table();
+    acl.compile(table);
+    AclPrincipalIds alice = table.resolve(ImmutableList.of(ALICE));
+    assertFalse(acl.allowsReadToAny(alice));
+    eng.addUser(ALICE);
+    assertTrue(acl.allowsReadToAny(alice));
+    assertTrue(acl.allowsReadToAnyAclPrincipal(ImmutableList.of(ALICE)));
+  }
+
+  /** An Acl compiled in another table than the user's principals were resolved in. */
+  public void testOtherTable() {
+    AclPrincipal carol = AclUtil.userNameToAclPrincipal("carol");
+    Acl acl = new Acl(ImmutableList.of(
+        new Ace(new User(ALICE), Right.READ),
+        new Ace(new User(carol), Right.READ)));
+    AclPrincipalIds.Table old = new AclPrincipalIds.Table();
+    acl.compile(old);
+    AclPrincipalIds principalIds = old.resolve(ImmutableList.of(carol));
+    // Carol has another id in the new table.
+    AclPrincipalIds.Table table = new AclPrincipalIds.Table();
+    table.intern(BOB);
+    acl.compile(table);
+    assertTrue(acl.allowsReadToAny(principalIds));
+    assertFalse(acl.forbidsReadToAny(principalIds));
+    assertTrue(acl.allowsReadToAny(AclPrincipalIds.resolve(ImmutableList.of(carol))));
+  }
+
+  /** The compiled Acls agree with the Ace-by-Ace loops. */
+  public void testAgreesWithLoops() {
+    Random random = new Random(42);
+    List<AclPrincipal> universe = Lists.newArrayList();
+    for (int i = 0; i < 40; i++) {
+      universe.add(AclUtil.userNameToAclPrincipal("user" + i));
+      universe.add(AclUtil.groupToAclPrincipal("group" + i));
+      universe.add(AclUtil.groupToAclPrincipalCaseInsensitive("group" + i));
+    }
+    List<Acl> acls = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      List<Ace> aces = Lists.newArrayList();
+      int size = random.nextInt(20);
+      for (int j = 0; j < size; j++) {
+        AclPrincipal principal = universe.get(random.nextInt(universe.size()));
+        Principal p = (principal.getScope() == AclPrincipal.SCOPE.USER)
+            ? new User(principal)
+            : new Group(principal);
+        aces.add(new Ace(p, random.nextInt(4) == 0 ? Right.NONE : Right.READ));
+      }
+      acls.add(new Acl(aces));
+    }
+    AclPrincipalIds.Table table = new AclPrincipalIds.Table();
+    for (Acl acl : acls) {
+      acl.compile(table);
+    }
+    for (int i = 0; i < 50; i++) {
+      List<AclPrincipal> principals = Lists.newArrayList();
+      int size = random.nextInt(universe.size());
+      for (int j = 0; j < size; j++) {
+        principals.add(universe.get(random.nextInt(universe.size())));
+      }
+      AclPrincipalIds principalIds = table.resolve(principals);
+      for (Acl acl : acls) {
+        assertEquals(acl.allowsReadToAnyAclPrincipal(principals),
+            acl.allowsReadToAny(principalIds));
+        assertEquals(acl.forbidsReadToAnyAclPrincipal(principals),
+            acl.forbidsReadToAny(principalIds));
+      }
+    }
+  }
+}
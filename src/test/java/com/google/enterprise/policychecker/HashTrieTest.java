@@ -0,0 +1,94 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link HashTrie}.
+ */
+public class HashTrieTest extends TestCase {
+
+  /** A key whose hash is chosen, so that keys can be made to collide. */
+  private static final class Key {
+    final int hash;
+    final int id;
+
+    Key(int hash, int id) {
+      this.hash = hash;
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && ((Key) obj).hash == hash && ((Key) obj).id == id;
+    }
+  }
+
+  public void testPlusAndMinus() {
+    HashTrie<String, Integer> empty = HashTrie.of();
+    HashTrie<String, Integer> one = empty.plus("a", 1);
+    assertEquals(0, empty.size());
+    assertNull(empty.get("a"));
+    assertEquals(1, one.size());
+    assertEquals(Integer.valueOf(1), one.get("a"));
+    assertSame(one, one.plus("a", one.get("a")));
+    assertSame(one, one.minus("b"));
+    assertEquals(0, one.minus("a").size());
+    assertEquals(Integer.valueOf(1), one.get("a"));
+  }
+
+  /** Random changes, with many colliding hashes, agree with a HashMap. */
+  public void testMatchesHashMap() {
+    Random random = new Random(42);
+    Map<Key, Integer> expected = new HashMap<Key, Integer>();
+    HashTrie<Key, Integer> trie = HashTrie.of();
+    for (int i = 0; i < 20000; i++) {
+      // Few distinct hashes, some differing only in their high bits.
+      int hash = random.nextInt(64) << ((random.nextInt(2) == 0) ? 0 : 26);
+      Key key = new Key(hash, random.nextInt(8));
+      if (random.nextInt(3) == 0) {
+        expected.remove(key);
+        trie = trie.minus(key);
+      } else {
+        expected.put(key, i);
+        trie = trie.plus(key, i);
+      }
+      assertEquals(expected.size(), trie.size());
+    }
+    for (Map.Entry<Key, Integer> e : expected.entrySet()) {
+      assertEquals(e.getValue(), trie.get(e.getKey()));
+    }
+    Map<Key, Integer> actual = new HashMap<Key, Integer>();
+    for (Map.Entry<Key, Integer> e : trie.entries()) {
+      actual.put(e.getKey(), e.getValue());
+    }
+    assertEquals(expected, actual);
+    for (Key key : expected.keySet()) {
+      trie = trie.minus(key);
+    }
+    assertEquals(0, trie.size());
+    assertTrue(trie.entries().isEmpty());
+  }
+}
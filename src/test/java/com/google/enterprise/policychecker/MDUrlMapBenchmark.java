@@ -0,0 +1,131 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link MDUrlMap} on a corpus of 5,000,000 URLs with each kind of
+ * key hash: the time to look up a URL that is or isn't mapped, and the time
+ * to load the whole corpus.  The heap retained by a loaded map, including any
+ * URLs it keeps, is printed during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MDUrlMapBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Corpus {
+    @Param({"5000000"})
+    int urls;
+
+    @Param({"MURMUR3", "MURMUR3_VERIFIED", "DIGEST"})
+    MDUrlMap.KeyHash keyHash;
+
+    String[] corpus;
+    String[] misses;
+    MDUrlMap<Boolean> map;
+
+    @Setup
+    public void setUp() {
+      // Load from URLs that nothing else keeps, so that the heap counts the
+      // URLs only if the map keeps them.
+      long before = usedHeap();
+      map = new MDUrlMap<Boolean>(keyHash);
+      for (int i = 0; i < urls; i++) {
+        map.put(url(i, "html"), Boolean.TRUE);
+      }
+      long after = usedHeap();
+      System.out.printf("%n%s: %d URLs, %.1f bytes per URL retained%n",
+          keyHash, map.size(), (after - before) / (double) urls);
+
+      corpus = new String[urls];
+      misses = new String[1 << 16];
+      for (int i = 0; i < urls; i++) {
+        corpus[i] = url(i, "html");
+      }
+      for (int i = 0; i < misses.length; i++) {
+        misses[i] = url(i, "pdf");
+      }
+    }
+  }
+
+  @Benchmark
+  public Boolean getHit(Corpus state) {
+    return state.map.get(state.corpus[ThreadLocalRandom.current().nextInt(state.urls)]);
+  }
+
+  @Benchmark
+  public Boolean getMiss(Corpus state) {
+    return state.map.get(
+        state.misses[ThreadLocalRandom.current().nextInt(state.misses.length)]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 1)
+  @Measurement(iterations = 3)
+  public MDUrlMap<Boolean> load(Corpus state) {
+    return load(state.corpus, state.keyHash);
+  }
+
+  private static MDUrlMap<Boolean> load(String[] corpus, MDUrlMap.KeyHash keyHash) {
+    MDUrlMap<Boolean> map = new MDUrlMap<Boolean>(keyHash);
+    for (String url : corpus) {
+      map.put(url, Boolean.TRUE);
+    }
+    return map;
+  }
+
+  private static String url(int i, String type) {
+    return "http://host" + (i % 1000) + ".example.com/dir" + (i / 1000) + "/doc" + i + "." + type;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(MDUrlMapBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
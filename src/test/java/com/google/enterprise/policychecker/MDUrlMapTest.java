@@ -0,0 +1,118 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link MDUrlMap}.
+ */
+public class MDUrlMapTest extends TestCase {
+
+  public void testPutGetRemove() {
+    for (MDUrlMap.KeyHash keyHash : MDUrlMap.KeyHash.values()) {
+      MDUrlMap<Integer> map = new MDUrlMap<Integer>(keyHash);
+      for (int i = 0; i < 1000; i++) {
+        assertNull(map.put(url(i), i));
+      }
+      assertEquals(1000, map.size());
+      assertEquals(Integer.valueOf(7), map.put(url(7), 70));
+      assertEquals(1000, map.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(keyHash.toString(), Integer.valueOf(i == 7 ? 70 : i), map.get(url(i)));
+      }
+      assertNull(map.get(url(1000)));
+      assertFalse(map.containsKey(url(1000)));
+      for (int i = 0; i < 1000; i += 2) {
+        assertEquals(Integer.valueOf(i), map.remove(url(i)));
+      }
+      assertNull(map.remove(url(0)));
+      assertEquals(500, map.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(i % 2 == 1, map.containsKey(url(i)));
+      }
+      assertTrue(map.containsValue(1));
+      assertFalse(map.containsValue(2));
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertNull(map.get(url(1)));
+    }
+  }
+
+  /** Removed entries' slots are reused, and don't make the table grow. */
+  public void testChurn() {
+    MDUrlMap<Integer> map = new MDUrlMap<Integer>(MDUrlMap.KeyHash.MURMUR3);
+    for (int i = 0; i < 100000; i++) {
+      map.put(url(i), i);
+      if (i >= 10) {
+        assertEquals(Integer.valueOf(i - 10), map.remove(url(i - 10)));
+      }
+    }
+    assertEquals(10, map.size());
+    assertEquals(ImmutableSet.of(99990, 99991, 99992, 99993, 99994, 99995, 99996, 99997,
+            99998, 99999),
+        ImmutableSet.copyOf(map.values()));
+  }
+
+  public void testMurmur3MatchesGuava() {
+    for (String s : Arrays.asList("", "a", "abcd", "abcde", "abcdefg", "abcdefgh",
+            "http://example.com/été/index.html", url(12345))) {
+      HashCode expected = Hashing.murmur3_128().hashString(s, UTF_16LE);
+      byte[] bytes = expected.asBytes();
+      MDUrlMap.Key key = MDUrlMap.murmur3(s);
+      assertEquals(s, littleEndian(bytes, 0), key.hi);
+      assertEquals(s, littleEndian(bytes, 8), key.lo);
+    }
+  }
+
+  /** Unless told otherwise, a map compares the URLs as well as their hashes. */
+  public void testDefaultKeyHashIsVerified() {
+    if (System.getProperty("gsa.urlMapKeyHash") == null) {
+      assertEquals(MDUrlMap.KeyHash.MURMUR3_VERIFIED, new MDUrlMap<String>().getKeyHash());
+    }
+  }
+
+  public void testDigestKeys() {
+    MDUrlMap<String> map = new MDUrlMap<String>("SHA-256");
+    assertEquals(MDUrlMap.KeyHash.DIGEST, map.getKeyHash());
+    map.put("http://example.com/", "x");
+    assertEquals("x", map.get("http://example.com/"));
+    try {
+      new MDUrlMap<String>("no-such-digest");
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private static long littleEndian(byte[] bytes, int offset) {
+    return Longs.fromBytes(bytes[offset + 7], bytes[offset + 6], bytes[offset + 5],
+        bytes[offset + 4], bytes[offset + 3], bytes[offset + 2], bytes[offset + 1],
+        bytes[offset]);
+  }
+
+  private static String url(int i) {
+    return "http://host" + (i % 97) + ".example.com/dir" + (i / 97) + "/doc" + i + ".html";
+  }
+}
@@ -0,0 +1,176 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares starting up from the JSON policy ACLs file, which is parsed into
+ * a {@link UrlAclMap}, with starting up from a {@link PolicyAclSnapshot} of
+ * the same ACLs, which is mapped: the time until the first URL is
+ * authorized, and then the time to authorize a URL.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Threads(1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class PolicyAclSnapshotBenchmark {
+
+  private static final int HOSTS = 1000;
+  private static final int ACLS = 10000;
+  private static final int USERS = 50000;
+  private static final int GROUPS = 5000;
+
+  @State(Scope.Benchmark)
+  public static class AclFiles {
+    @Param({"250000"})
+    int patterns;
+
+    File json;
+    File snapshot;
+    String[] urls;
+    List<AclPrincipal> principals;
+
+    @Setup
+    public void setUp() throws IOException {
+      Map<String, Acl> patternAcls = new LinkedHashMap<String, Acl>();
+      Acl[] acls = new Acl[ACLS];
+      for (int i = 0; i < ACLS; i++) {
+        acls[i] = new Acl(ImmutableList.of(
+            new Ace(new User(user(i * 7)), Right.READ),
+            new Ace(new User(user(i * 7 + 1)), Right.READ),
+            new Ace(new User(user(i * 7 + 2)), Right.NONE),
+            new Ace(new Group(group(i)), Right.READ)));
+      }
+      urls = new String[patterns];
+      for (int i = 0; i < patterns; i++) {
+        String dir = "http://host" + (i % HOSTS) + ".example.com/dir" + (i / HOSTS) + "/";
+        // One pattern in ten is a directory prefix; the rest are documents.
+        String pattern = (i % 10 == 0) ? dir : dir + "doc" + i + ".html$";
+        patternAcls.put(pattern, acls[i % ACLS]);
+        urls[i] = dir + "doc" + i + ".html";
+      }
+      UrlAclMap map = new UrlAclMap();
+      map.putAll(patternAcls);
+      principals = ImmutableList.of(user(0), user(7), AclUtil.groupToAclPrincipal("group1"));
+      json = File.createTempFile("policy_acls", ".json");
+      snapshot = File.createTempFile("policy_acls", ".snapshot");
+      new JsonUrlAclMapSerializer().writeToFile(map, json.getPath());
+      PolicyAclSnapshotWriter.write(map, snapshot);
+      System.out.printf("%n%d patterns: JSON %d bytes, snapshot %d bytes%n",
+          patterns, json.length(), snapshot.length());
+    }
+
+    @TearDown
+    public void tearDown() {
+      json.delete();
+      snapshot.delete();
+    }
+
+    String randomUrl() {
+      return urls[ThreadLocalRandom.current().nextInt(urls.length)];
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Loaded {
+    UrlAclMap map;
+    AclPrincipalIds principalIds;
+    PolicyAclSnapshot snapshot;
+    PolicyAclSnapshot.ResolvedPrincipals resolved;
+
+    @Setup
+    public void setUp(AclFiles files) throws IOException {
+      map = new JsonUrlAclMapSerializer().parseFromFile(files.json.getPath());
+      principalIds = AclPrincipalIds.resolve(files.principals);
+      snapshot = PolicyAclSnapshot.open(files.snapshot);
+      resolved = snapshot.resolve(files.principals);
+    }
+  }
+
+  @Benchmark
+  public AuthzStatus startupJson(AclFiles files) throws IOException {
+    UrlAclMap map = new JsonUrlAclMapSerializer().parseFromFile(files.json.getPath());
+    return AclUtil.authorize(map.get(files.randomUrl()), files.principals);
+  }
+
+  @Benchmark
+  public AuthzStatus startupSnapshot(AclFiles files) throws IOException {
+    PolicyAclSnapshot snapshot = PolicyAclSnapshot.open(files.snapshot);
+    return snapshot.authorize(files.randomUrl(), snapshot.resolve(files.principals));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Warmup(iterations = 3, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  public AuthzStatus authorizeJson(AclFiles files, Loaded loaded) {
+    return AclUtil.authorize(loaded.map.get(files.randomUrl()), loaded.principalIds);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Warmup(iterations = 3, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  public AuthzStatus authorizeSnapshot(AclFiles files, Loaded loaded) {
+    return loaded.snapshot.authorize(files.randomUrl(), loaded.resolved);
+  }
+
+  private static AclPrincipal user(int i) {
+    return AclUtil.userNameToAclPrincipal("user" + (i % USERS));
+  }
+
+  private static AclPrincipal group(int i) {
+    return AclUtil.groupToAclPrincipal("group" + (i % GROUPS));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(PolicyAclSnapshotBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,256 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.policychecker.PolicyAclSnapshot.Section;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Unit tests for {@link PolicyAclSnapshot} and {@link PolicyAclSnapshotWriter}.
+ */
+public class PolicyAclSnapshotTest extends TestCase {
+
+  private static final AclPrincipal ALICE = AclUtil.userNameToAclPrincipal("alice");
+  private static final AclPrincipal BOB = AclUtil.userNameToAclPrincipal("bob");
+  private static final AclPrincipal CAROL = AclUtil.userNameToAclPrincipal("carol");
+  private static final AclPrincipal ENG = AclUtil.groupToAclPrincipal("eng");
+
+  private static final Acl ALICE_ONLY = new Acl(ImmutableList.of(
+      new Ace(new User(ALICE), Right.READ)));
+  private static final Acl ENG_NOT_BOB = new Acl(ImmutableList.of(
+      new Ace(new Group(ENG), Right.READ),
+      new Ace(new User(BOB), Right.NONE)));
+  private static final Acl BOB_ONLY = new Acl(ImmutableList.of(
+      new Ace(new User(BOB), Right.READ)));
+  private static final Acl ENG_NOT_ALICE = new Acl(ImmutableList.of(
+      new Ace(new Group(ENG), Right.READ),
+      new Ace(new User(ALICE), Right.NONE)));
+
+  private static final ImmutableList<String> URLS = ImmutableList.of(
+      "http://example.com/",
+      "http://example.com/a/",
+      "http://example.com/a/b",
+      "http://example.com/a/bc",
+      "http://example.com/a/bcd/e",
+      "http://example.com/a/b/c",
+      "http://example.com:8080/a/b",
+      "http://example.com:8080/x",
+      "http://www.example.com/docs/guide.html",
+      "http://example.com/docs/report.pdf",
+      "http://example.com/private/notes",
+      "http://example.net/secret/plans",
+      "https://www.example.org/",
+      "https://example.org/index.html",
+      "FTP://files.example.net/pub",
+      "http://other.com/",
+      "http://unmatched.net/page");
+
+  private File file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile(getClass().getName(), ".snapshot");
+    file.deleteOnExit();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  private static UrlAclMap makeMap() {
+    UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/a/", ALICE_ONLY);
+    map.put("http://example.com/a/b$", BOB_ONLY);
+    map.put("http://example.com/a/bc", ENG_NOT_BOB);
+    map.put("http://example.com:8080/", ENG_NOT_ALICE);
+    map.put("example.com/docs/", ENG_NOT_BOB);
+    map.put("/private/", BOB_ONLY);
+    map.put(".pdf$", ENG_NOT_ALICE);
+    map.put("contains:secret", ALICE_ONLY);
+    map.put("regexp:^https://.*\\.example\\.org/", BOB_ONLY);
+    map.put("regexpIgnoreCase:ftp://", ENG_NOT_BOB);
+    map.put("https://example.org/", ALICE_ONLY);
+    map.put("http://other.com/", Acl.emptyAcl());
+    return map;
+  }
+
+  /** A snapshot gives the same answers as the map it was written from. */
+  public void testMatchesUrlAclMap() throws IOException {
+    UrlAclMap map = makeMap();
+    PolicyAclSnapshotWriter.write(map, file);
+    PolicyAclSnapshot snapshot = PolicyAclSnapshot.open(file);
+    assertTrue(snapshot.verify());
+    assertEquals(12, snapshot.getPatternCount());
+    List<List<AclPrincipal>> users = ImmutableList.<List<AclPrincipal>>of(
+        ImmutableList.of(ALICE),
+        ImmutableList.of(BOB, ENG),
+        ImmutableList.of(ENG),
+        ImmutableList.of(CAROL),
+        ImmutableList.<AclPrincipal>of());
+    for (String url : URLS) {
+      Acl acl = map.get(url);
+      assertEquals(url, acl, snapshot.get(url));
+      for (List<AclPrincipal> principals : users) {
+        AuthzStatus expected = (acl == null)
+            ? AuthzStatus.INDETERMINATE
+            : AclUtil.authorize(acl, principals);
+        assertEquals(url + " " + principals,
+            expected, snapshot.authorize(url, snapshot.resolve(principals)));
+      }
+    }
+    assertNull(snapshot.get("http://unmatched.net/page"));
+    assertEquals(BOB_ONLY, snapshot.get("http://example.com/a/b"));
+  }
+
+  public void testConvertsJsonAndPlainText() throws IOException {
+    UrlAclMap map = makeMap();
+    // Neither format can read back an empty ACL.
+    map.removePattern("http://other.com/");
+    File source = File.createTempFile(getClass().getName(), ".acls");
+    source.deleteOnExit();
+    try {
+      new JsonUrlAclMapSerializer().writeToFile(map, source.getPath());
+      PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(source), file);
+      PolicyAclSnapshot snapshot = PolicyAclSnapshot.open(file);
+      assertEquals(ENG_NOT_BOB, snapshot.get("http://example.com/a/bcd/e"));
+
+      new PlainTextUrlAclMapSerializer().writeToFile(map, source.getPath());
+      PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(source), file);
+      snapshot = PolicyAclSnapshot.open(file);
+      assertEquals(ENG_NOT_BOB, snapshot.get("http://example.com/a/bcd/e"));
+    } finally {
+      source.delete();
+    }
+  }
+
+  public void testIsSnapshot() throws IOException {
+    PolicyAclSnapshotWriter.write(makeMap(), file);
+    assertTrue(PolicyAclSnapshot.isSnapshot(file));
+    Files.write(new byte[] {'{'}, file);
+    assertFalse(PolicyAclSnapshot.isSnapshot(file));
+  }
+
+  public void testRejectsBadHeaders() throws IOException {
+    PolicyAclSnapshotWriter.write(makeMap(), file);
+    byte[] good = Files.toByteArray(file);
+
+    // A byte of the magic number, the version and the file length.
+    for (int offset : new int[] {1, PolicyAclSnapshot.VERSION_OFFSET,
+        PolicyAclSnapshot.FILE_LENGTH_OFFSET}) {
+      byte[] bad = good.clone();
+      bad[offset]++;
+      Files.write(bad, file);
+      assertNotOpened();
+    }
+
+    Files.write(good, file);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(good.length - 1);
+    } finally {
+      raf.close();
+    }
+    assertNotOpened();
+
+    Files.write(new byte[PolicyAclSnapshot.HEADER_LENGTH - 1], file);
+    assertNotOpened();
+  }
+
+  public void testVerifyFindsCorruptBody() throws IOException {
+    PolicyAclSnapshotWriter.write(makeMap(), file);
+    byte[] bytes = Files.toByteArray(file);
+    // The first byte of the strings.
+    bytes[PolicyAclSnapshot.HEADER_LENGTH]++;
+    Files.write(bytes, file);
+    assertFalse(PolicyAclSnapshot.open(file).verify());
+  }
+
+  /** A reference out of its section's range is caught when opening. */
+  public void testRejectsBadReferences() throws IOException {
+    PolicyAclSnapshotWriter.write(makeMap(), file);
+    byte[] good = Files.toByteArray(file);
+    // The first record's string offset, ACL id start, id, regex start and ACL
+    // index, and the first path slot's ACL index.
+    Object[][] fields = {
+        {Section.PRINCIPALS, 0}, {Section.ACLS, 0}, {Section.ACL_IDS, 0},
+        {Section.DOMAINS, 16}, {Section.PATHS, 24}, {Section.REGEXES, 8}};
+    for (Object[] field : fields) {
+      ByteBuffer bad = ByteBuffer.wrap(good.clone()).order(ByteOrder.LITTLE_ENDIAN);
+      bad.putInt((int) sectionOffset(bad, (Section) field[0]) + (Integer) field[1],
+          Integer.MAX_VALUE);
+      Files.write(bad.array(), file);
+      assertNotOpened();
+    }
+  }
+
+  /** A path whose key matches isn't a match unless the path does too. */
+  public void testComparesPaths() throws IOException {
+    UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/a/b$", ALICE_ONLY);
+    PolicyAclSnapshotWriter.write(map, file);
+    assertEquals(ALICE_ONLY, PolicyAclSnapshot.open(file).get("http://example.com/a/b"));
+
+    // Change the stored path, as if another path's key collided with it.
+    ByteBuffer bytes = ByteBuffer.wrap(Files.toByteArray(file)).order(ByteOrder.LITTLE_ENDIAN);
+    String contents = new String(bytes.array(), ISO_8859_1);
+    int path = contents.indexOf("/a/b", (int) sectionOffset(bytes, Section.STRINGS));
+    assertTrue(path > 0);
+    bytes.put(path + 3, (byte) 'c');
+    Files.write(bytes.array(), file);
+    assertNull(PolicyAclSnapshot.open(file).get("http://example.com/a/b"));
+  }
+
+  public void testRejectsGroupMemberships() throws IOException {
+    Group eng = new Group(ENG);
+    eng.addPrincipal(new User(ALICE));
+    UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/", new Acl(ImmutableList.of(new Ace(eng, Right.READ))));
+    try {
+      PolicyAclSnapshotWriter.write(map, file);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static long sectionOffset(ByteBuffer header, Section section) {
+    return header.getLong(PolicyAclSnapshot.SECTIONS_OFFSET + section.ordinal() * 16);
+  }
+
+  private void assertNotOpened() {
+    try {
+      PolicyAclSnapshot.open(file);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
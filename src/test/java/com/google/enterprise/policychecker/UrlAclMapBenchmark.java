@@ -0,0 +1,124 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.enterprise.policychecker.Ace.Right;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link UrlAclMap#get} from 32 threads over 10,000 patterns on 100
+ * hosts, while another thread reloads 100 of the patterns every 100 ms.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class UrlAclMapBenchmark {
+  private static final int HOSTS = 100;
+  private static final int PATHS = 100;
+  private static final int RELOAD_SIZE = 100;
+  private static final long RELOAD_MILLIS = 100;
+
+  @State(Scope.Benchmark)
+  public static class Acls {
+    final UrlAclMap map = new UrlAclMap();
+    final Acl[] acls = new Acl[2];
+    Thread reloader;
+    volatile boolean stopped;
+
+    @Setup
+    public void setUp() {
+      for (int i = 0; i < acls.length; i++) {
+        acls[i] = new Acl(ImmutableList.of(
+            new Ace(new User(AclUtil.userNameToAclPrincipal("user" + i)), Right.READ)));
+      }
+      Map<String, Acl> patterns = Maps.newLinkedHashMap();
+      for (int host = 0; host < HOSTS; host++) {
+        for (int path = 0; path < PATHS; path++) {
+          patterns.put(pattern(host, path), acls[0]);
+        }
+      }
+      map.putAll(patterns);
+      reloader = new Thread("reloader") {
+        @Override
+        public void run() {
+          int round = 0;
+          while (!stopped) {
+            Map<String, Acl> batch = Maps.newLinkedHashMap();
+            int host = round % HOSTS;
+            for (int path = 0; path < RELOAD_SIZE; path++) {
+              batch.put(pattern(host, path % PATHS), acls[round % acls.length]);
+            }
+            map.putAll(batch);
+            round++;
+            try {
+              Thread.sleep(RELOAD_MILLIS);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      };
+      reloader.setDaemon(true);
+      reloader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+      stopped = true;
+      reloader.join();
+    }
+  }
+
+  @Benchmark
+  public Acl get(Acls state) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return state.map.get(
+        "http://host" + random.nextInt(HOSTS) + ".example.com/dir" + random.nextInt(PATHS)
+        + "/doc.html");
+  }
+
+  private static String pattern(int host, int path) {
+    return "http://host" + host + ".example.com/dir" + path + "/";
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(UrlAclMapBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
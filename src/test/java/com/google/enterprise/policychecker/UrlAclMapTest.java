@@ -0,0 +1,236 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.policychecker;
+
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.enterprise.policychecker.Ace.Right;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link UrlAclMap}.
+ */
+public class UrlAclMapTest extends TestCase {
+
+  private static final Acl ALICE = makeAcl("alice");
+  private static final Acl BOB = makeAcl("bob");
+
+  public void testPutAndGet() {
+    UrlAclMap map = new UrlAclMap();
+    assertNull(map.get("http://example.com/a/b"));
+    map.put("http://example.com/a/", ALICE);
+    assertEquals(ALICE, map.get("http://example.com/a/b"));
+    assertEquals(ALICE, map.getAclForPattern("http://example.com/a/"));
+    map.put("http://example.com/a/b", BOB);
+    assertEquals(BOB, map.get("http://example.com/a/b"));
+    assertEquals(ImmutableMap.of("http://example.com/a/b", BOB, "http://example.com/a/", ALICE),
+        map.getAllMatches("http://example.com/a/b"));
+    assertEquals(ImmutableList.of("http://example.com/a/", "http://example.com/a/b"),
+        ImmutableList.copyOf(map.getPatterns().keySet()));
+    assertTrue(map.removePattern("http://example.com/a/b"));
+    assertFalse(map.removePattern("http://example.com/a/b"));
+    assertEquals(ALICE, map.get("http://example.com/a/b"));
+  }
+
+  /** A compact map finds exact paths by their hashes, and can't list its patterns. */
+  public void testCompactPutAndGet() {
+    UrlAclMap map = new CompactUrlAclMap();
+    map.put("http://example.com/a/", ALICE);
+    map.put("http://example.com/a/b$", BOB);
+    assertEquals(ALICE, map.get("http://example.com/a/c"));
+    assertEquals(BOB, map.get("http://example.com/a/b"));
+    assertEquals(BOB, map.getAclForPattern("http://example.com/a/b$"));
+    assertEquals(ImmutableMap.of("", BOB, "http://example.com/a/", ALICE),
+        map.getAllMatches("http://example.com/a/b"));
+    try {
+      map.getAllMappingsByMetapattern("");
+      fail("Expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertTrue(map.removePattern("http://example.com/a/b$"));
+    assertTrue(map.removePattern("http://example.com/a/b$"));
+    assertNull(map.getAclForPattern("http://example.com/a/b$"));
+    assertEquals(ALICE, map.get("http://example.com/a/b"));
+  }
+
+  /** The best match follows the order in which patterns were added. */
+  public void testBestMatchOrder() {
+    UrlAclMap map = new UrlAclMap();
+    map.put("regexp:example\\.org/a", ALICE);
+    map.put("regexp:example\\.org/", BOB);
+    map.put("http://example.com/a/b/", BOB);
+    map.put("http://example.com/a/", ALICE);
+    map.put("http://example.com/a/b/c", ALICE);
+    assertEquals(ALICE, map.get("http://example.com/a/b/c"));
+    assertEquals(BOB, map.get("http://example.com/a/b/d"));
+    assertEquals(ALICE, map.get("http://example.com/a/x"));
+    assertEquals(ALICE, map.get("http://example.org/a/x"));
+    // A pattern that is mapped again keeps its place.
+    map.put("regexp:example\\.org/a", BOB);
+    assertEquals(BOB, map.get("http://example.org/a/x"));
+    map.removePattern("regexp:example\\.org/a");
+    map.put("regexp:example\\.org/a", ALICE);
+    assertEquals(BOB, map.get("http://example.org/a/x"));
+    map.removePattern("http://example.com/a/b/");
+    assertEquals(ALICE, map.get("http://example.com/a/b/d"));
+  }
+
+  public void testBadRegex() {
+    UrlAclMap map = new UrlAclMap();
+    try {
+      map.put("regexp:http://example.com/[", ALICE);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertFalse(map.containsMapping("regexp:http://example.com/["));
+  }
+
+  public void testHasChanged() {
+    UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/", ALICE);
+    map.resetHasChanged();
+    map.addPattern("http://example.com/", ALICE);
+    assertFalse(map.hasChanged());
+    map.addPattern("http://example.com/", BOB);
+    assertTrue(map.hasChanged());
+  }
+
+  /** Lookups during a putAll see all of it or none of it. */
+  public void testPutAllIsAtomic() throws Exception {
+    final UrlAclMap map = new UrlAclMap();
+    final Map<String, Acl> batch = Maps.newLinkedHashMap();
+    for (int i = 0; i < 1000; i++) {
+      batch.put("http://example.com/" + i + "/", ALICE);
+    }
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        started.countDown();
+        for (int i = 0; i < 10000; i++) {
+          boolean first = map.get("http://example.com/0/x") != null;
+          boolean last = map.get("http://example.com/999/x") != null;
+          if (first && !last) {
+            failure.set("Saw part of a putAll");
+          }
+        }
+      }
+    };
+    reader.start();
+    started.await();
+    map.putAll(batch);
+    reader.join();
+    assertNull(failure.get(), failure.get());
+    assertEquals(ALICE, map.get("http://example.com/999/x"));
+  }
+
+  /** Lookups are answered from the published mappings while a putAll runs. */
+  public void testGetDoesNotWaitForPutAll() throws Exception {
+    final UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/a/", ALICE);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    // Holds the writer inside putAll until released.
+    final Map<String, Acl> batch = new ForwardingMap<String, Acl>() {
+      @Override
+      protected Map<String, Acl> delegate() {
+        return ImmutableMap.of("http://example.com/b/", BOB);
+      }
+
+      @Override
+      public Set<Map.Entry<String, Acl>> entrySet() {
+        writing.countDown();
+        Uninterruptibles.awaitUninterruptibly(release);
+        return super.entrySet();
+      }
+    };
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        map.putAll(batch);
+      }
+    };
+    writer.start();
+    try {
+      writing.await();
+      ExecutorService reader = Executors.newSingleThreadExecutor();
+      try {
+        Future<Acl> acl = reader.submit(new Callable<Acl>() {
+          @Override
+          public Acl call() {
+            return map.get("http://example.com/a/x");
+          }
+        });
+        assertEquals(ALICE, acl.get(10, TimeUnit.SECONDS));
+      } finally {
+        reader.shutdownNow();
+      }
+      assertNull(map.get("http://example.com/b/x"));
+    } finally {
+      release.countDown();
+      writer.join();
+    }
+    assertEquals(BOB, map.get("http://example.com/b/x"));
+  }
+
+  /**
+   * Acls added after a user's principals were resolved are still checked
+   * correctly against them, and ids stay valid when the mappings change.
+   */
+  public void testPrincipalIdsAreScopedToTheMap() {
+    UrlAclMap map = new UrlAclMap();
+    map.put("http://example.com/a/", ALICE);
+    AclPrincipalIds bob =
+        map.resolvePrincipals(ImmutableList.of(AclUtil.userNameToAclPrincipal("bob")));
+    map.put("http://example.com/b/", BOB);
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(map.get("http://example.com/b/x"), bob));
+    Acl denyBob = new Acl(ImmutableList.of(
+        new Ace(new User(AclUtil.userNameToAclPrincipal("alice")), Right.READ),
+        new Ace(new User(AclUtil.userNameToAclPrincipal("bob")), Right.NONE)));
+    map.put("http://example.com/c/", denyBob);
+    assertEquals(AuthzStatus.DENY, AclUtil.authorize(map.get("http://example.com/c/x"), bob));
+
+    AclPrincipalIds alice =
+        map.resolvePrincipals(ImmutableList.of(AclUtil.userNameToAclPrincipal("alice")));
+    map.removePattern("http://example.com/b/");
+    assertEquals(2, map.getPrincipalIdTable().size());
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(map.get("http://example.com/a/x"), alice));
+    assertEquals(AuthzStatus.PERMIT, AclUtil.authorize(map.get("http://example.com/c/x"), alice));
+    assertNotSame(map.getPrincipalIdTable(), new UrlAclMap().getPrincipalIdTable());
+  }
+
+  private static Acl makeAcl(String user) {
+    return new Acl(ImmutableList.of(
+        new Ace(new User(AclUtil.userNameToAclPrincipal(user)), Right.READ)));
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.authncontroller;
+
+import com.google.enterprise.secmgr.common.FileUtil;
+import com.google.enterprise.secmgr.config.ConfigSingleton;
+import com.google.enterprise.secmgr.config.SecurityManagerConfig;
+import com.google.enterprise.secmgr.servlets.SecurityManagerServletConfig;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link AuthnSessionManagerImpl} throughput with 100,000 live
+ * sessions and 64 threads, for pure lookups and for lookups mixed with one
+ * new session per hundred requests.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class AuthnSessionManagerBenchmark {
+
+  private static final int SESSION_COUNT = 100000;
+
+  private AuthnSessionManager manager;
+  private SecurityManagerConfig config;
+  private String[] sessionIds;
+
+  @Setup
+  public void setUp() throws IOException {
+    FileUtil.initializeTestDirectories();
+    SecurityManagerServletConfig.makeTestingInjector("AuthSites.json");
+    // Registration logs every session at INFO.
+    Logger.getLogger(AuthnSessionManagerImpl.class.getName()).setLevel(Level.WARNING);
+    manager = ConfigSingleton.getInstance(AuthnSessionManager.class);
+    config = SecurityManagerConfig.makeDefault();
+    sessionIds = new String[SESSION_COUNT];
+    for (int i = 0; i < SESSION_COUNT; i++) {
+      sessionIds[i] = AuthnSession.getInstance(config).getSessionId();
+    }
+  }
+
+  @Benchmark
+  public AuthnSession getSession() {
+    return manager.getSession(sessionIds[ThreadLocalRandom.current().nextInt(SESSION_COUNT)]);
+  }
+
+  @Benchmark
+  public AuthnSession getOrRegisterSession() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (random.nextInt(100) == 0) {
+      AuthnSession session = AuthnSession.getInstance(config);
+      manager.removeSession(session.getSessionId());
+      return session;
+    }
+    return manager.getSession(sessionIds[random.nextInt(SESSION_COUNT)]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(AuthnSessionManagerBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -14,10 +14,13 @@
 
 package com.google.enterprise.secmgr.authncontroller;
 
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.secmgr.common.SecurityManagerUtil;
 import com.google.enterprise.secmgr.config.ConfigSingleton;
 import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.joda.time.DateTimeUtils;
 
 /**
@@ -75,6 +78,77 @@ public final class AuthnSessionManagerImplTest extends SecurityManagerTestCase {
     }
   }
 
+  public void testRemoveSessionNotifiesListeners()
+      throws IOException {
+    RecordingListener listener = new RecordingListener();
+    manager.addSessionListener(listener);
+    AuthnSession session = AuthnSession.newInstance();
+    String sessionId = session.getSessionId();
+    manager.removeSession(sessionId);
+    tryGetSession(false, sessionId, session);
+    assertEquals(ImmutableList.of(sessionId), listener.removed);
+    manager.removeSession(sessionId);
+    assertEquals(ImmutableList.of(sessionId), listener.removed);
+  }
+
+  public void testExpirationNotifiesListeners()
+      throws IOException {
+    RecordingListener listener = new RecordingListener();
+    manager.addSessionListener(listener);
+    manager.setSessionIdleMillis(ONE_MINUTE);
+    AuthnSession session = AuthnSession.newInstance();
+    String sessionId = session.getSessionId();
+    DateTimeUtils.setCurrentMillisOffset(ONE_MINUTE + 1);
+    tryGetSession(false, sessionId, session);
+    assertEquals(ImmutableList.of(sessionId), listener.removed);
+  }
+
+  public void testSweepDeletesIdleSessions()
+      throws IOException {
+    RecordingListener listener = new RecordingListener();
+    manager.addSessionListener(listener);
+    manager.setSessionIdleMillis(ONE_MINUTE);
+    AuthnSession idle = AuthnSession.newInstance();
+    AuthnSession active = AuthnSession.newInstance();
+    DateTimeUtils.setCurrentMillisOffset(ONE_MINUTE - EPSILON);
+    tryGetSession(true, active.getSessionId(), active);
+    DateTimeUtils.setCurrentMillisOffset(ONE_MINUTE + 2 * AuthnSessionManagerImpl.TICK_MILLIS);
+    manager.sweep(DateTimeUtils.currentTimeMillis());
+    assertNull(manager.getSessionRef(idle));
+    assertNotNull(manager.getSessionRef(active));
+    assertEquals(ImmutableList.of(idle.getSessionId()), listener.removed);
+    DateTimeUtils.setCurrentMillisOffset(3 * ONE_MINUTE);
+    manager.sweep(DateTimeUtils.currentTimeMillis());
+    assertNull(manager.getSessionRef(active));
+    assertEquals(ImmutableList.of(idle.getSessionId(), active.getSessionId()), listener.removed);
+    assertEquals(0, manager.getScheduledTickCount());
+  }
+
+  public void testSweepRefilesSessionDueInCurrentTick()
+      throws IOException {
+    manager.setSessionIdleMillis(ONE_MINUTE);
+    DateTimeUtils.setCurrentMillisFixed(10 * AuthnSessionManagerImpl.TICK_MILLIS);
+    AuthnSession session = AuthnSession.newInstance();
+    // Exactly at its deadline, the session is due but not yet expired.
+    DateTimeUtils.setCurrentMillisFixed(10 * AuthnSessionManagerImpl.TICK_MILLIS + ONE_MINUTE);
+    manager.sweep(DateTimeUtils.currentTimeMillis());
+    assertNotNull(manager.getSessionRef(session));
+    assertEquals(1, manager.getScheduledTickCount());
+    DateTimeUtils.setCurrentMillisFixed(11 * AuthnSessionManagerImpl.TICK_MILLIS + ONE_MINUTE);
+    manager.sweep(DateTimeUtils.currentTimeMillis());
+    assertNull(manager.getSessionRef(session));
+    assertEquals(0, manager.getScheduledTickCount());
+  }
+
+  private static final class RecordingListener implements AuthnSessionListener {
+    final List<String> removed = new ArrayList<>();
+
+    @Override
+    public void sessionRemoved(String sessionId) {
+      removed.add(sessionId);
+    }
+  }
+
   public void testGetIdleMillisFromFlag() {
     System.setProperty("gsa.sessionidletime", "864000");
     AuthnSessionManagerImpl testManager = new AuthnSessionManagerImpl();
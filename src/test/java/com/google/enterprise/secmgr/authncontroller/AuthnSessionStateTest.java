@@ -414,6 +414,75 @@ public final class AuthnSessionStateTest extends TestCase {
     } 
   }
   
+  public void testSummaryIsMemoized() {
+    AuthnSessionState state = AuthnSessionState.empty()
+        .addCookie(AUTHORITY1, COOKIE1)
+        .addCredential(AUTHORITY2, CREDENTIAL1);
+    AuthnSessionState.Summary summary = state.computeSummary(CGS);
+    assertSame(summary, state.computeSummary(CGS));
+    assertSame(summary, state.computeSummary(ImmutableList.copyOf(CGS)));
+  }
+
+  public void testIncrementalSummary() {
+    ImmutableList<CredentialGroup> cgs = makeCredentialGroups();
+    AuthnSessionState state = AuthnSessionState.empty()
+        .addVerification(mech21.getAuthority(), VERIFICATION2)
+        .addCookie(AUTHORITY1, COOKIE1);
+    state.computeSummary(cgs);
+    state = state
+        .addVerification(mech22.getAuthority(), VERIFICATION3)
+        .removeCookie(AUTHORITY1, COOKIE1)
+        .addCookie(AUTHORITY2, COOKIE2);
+    state.computeSummary(cgs);
+    state = state.add(AuthnSessionState.empty()
+        .addVerification(mech11.getAuthority(), VERIFICATION1)
+        .addVerification(mech12.getAuthority(), VERIFICATION4));
+    assertSummariesEqual(
+        AuthnSessionState.of(state.getInstructions()).computeSummary(cgs),
+        state.computeSummary(cgs));
+  }
+
+  public void testCompact() {
+    ImmutableList<CredentialGroup> cgs = makeCredentialGroups();
+    AuthnSessionState state = AuthnSessionState.empty();
+    for (int i = 0; i < 10; i++) {
+      state = state
+          .addCookie(AUTHORITY1, COOKIE1)
+          .addCookie(AUTHORITY1, COOKIE2)
+          .removeCookie(AUTHORITY1, COOKIE1)
+          .addVerification(mech21.getAuthority(), VERIFICATION2)
+          .addVerification(mech22.getAuthority(), VERIFICATION3)
+          .addVerification(mech11.getAuthority(), VERIFICATION1)
+          .addVerification(mech12.getAuthority(), VERIFICATION4);
+    }
+    AuthnSessionState compacted = state.compact(cgs);
+    assertTrue(compacted.size() < state.size());
+    assertSummariesEqual(
+        AuthnSessionState.of(state.getInstructions()).computeSummary(cgs),
+        AuthnSessionState.of(compacted.getInstructions()).computeSummary(cgs));
+  }
+
+  public void testCompactKeepsShortState() {
+    AuthnSessionState state = AuthnSessionState.empty().addCookie(AUTHORITY1, COOKIE1);
+    assertSame(state, state.compact(CGS));
+  }
+
+  private ImmutableList<CredentialGroup> makeCredentialGroups() {
+    return ImmutableList.of(
+        CredentialGroup.builder("cg3", "cg3", true, true, false)
+            .addMechanism(mech11).addMechanism(mech12).build(),
+        CredentialGroup.builder("cg4", "cg4", true, true, false)
+            .addMechanism(mech21).addMechanism(mech22).build());
+  }
+
+  private static void assertSummariesEqual(AuthnSessionState.Summary expected,
+      AuthnSessionState.Summary actual) {
+    assertEquals(expected.getCookies(Predicates.<AuthnAuthority>alwaysTrue()),
+        actual.getCookies(Predicates.<AuthnAuthority>alwaysTrue()));
+    assertEquals(expected.getCredentialsMap(), actual.getCredentialsMap());
+    assertEquals(expected.getVerificationsMap(), actual.getVerificationsMap());
+  }
+
   private <T> void runSingleTests(Tester<T> tester) {
     Gson gson = ConfigSingleton.getGson();
     List<TestInstruction<T>> instructions = enumerateInstructions(tester);
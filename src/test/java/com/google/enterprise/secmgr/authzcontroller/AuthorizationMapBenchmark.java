@@ -0,0 +1,116 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.authzcontroller;
+
+import com.google.enterprise.secmgr.common.Resource;
+import com.google.enterprise.secmgr.mock.MockAuthorizationMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the linear scan of {@link AuthorizationMap} rules with the compiled
+ * rule index, mapping a page of 1,000 URLs against 10, 100 and 1,000 rules.
+ * The rules are a mix of the pattern kinds found in flex authz routing tables.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationMapBenchmark {
+
+  private static final int URL_COUNT = 1000;
+
+  @Param({"10", "100", "1000"})
+  public int ruleCount;
+
+  private AuthorizationMap map;
+  private List<Resource> resources;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(ruleCount);
+    AuthorizationMap.Builder builder = AuthorizationMap.builder();
+    for (int i = 0; i < ruleCount; i++) {
+      MockAuthorizationMethod method = MockAuthorizationMethod.forName("method" + (i % 8));
+      switch (i % 10) {
+        case 0:
+          builder.addRule("regexp:^https?://host" + i + "\\.example\\.com/", method);
+          break;
+        case 1:
+        case 2:
+          builder.addRule("^http://host" + i + ".example.com/doc" + i + "$", method);
+          break;
+        case 3:
+        case 4:
+        case 5:
+          builder.addRule("host" + i + ".example.com/", method);
+          break;
+        default:
+          builder.addRule("^http://host" + i + ".example.com/dir" + i + "/", method);
+          break;
+      }
+    }
+    map = builder.build();
+    resources = new ArrayList<>();
+    for (int i = 0; i < URL_COUNT; i++) {
+      int host = random.nextInt(ruleCount * 2);
+      resources.add(new Resource(
+          "http://host" + host + ".example.com/dir" + host + "/doc" + i, null));
+    }
+  }
+
+  @Benchmark
+  public void linearScan(Blackhole blackhole) {
+    for (Resource resource : resources) {
+      blackhole.consume(map.scanMatchingMethods(resource));
+    }
+  }
+
+  @Benchmark
+  public void compiledIndex(Blackhole blackhole) {
+    for (Resource resource : resources) {
+      blackhole.consume(map.getMatchingMethods(resource));
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(AuthorizationMapBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -39,6 +39,7 @@ import static com.google.enterprise.secmgr.testing.AuthorizationTestUtils.standa
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.secmgr.common.Resource;
+import com.google.enterprise.secmgr.mock.MockAuthorizationMethod;
 import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
 
 import java.util.Collection;
@@ -80,4 +81,48 @@ public class AuthorizationMapTest extends SecurityManagerTestCase {
     Collection<AuthorizationQuery> actual = map.mapResources(resources);
     assertComparableCollectionsEqual(expected, actual);
   }
+
+  private static final ImmutableList<String> INDEXED_PATTERNS = ImmutableList.of(
+      "^http://www.example.com/",
+      "^http://www.example.com/docs/",
+      "http://www.example.com/docs/",
+      "www.example.com/private/",
+      "www.example.com:8080/",
+      "www.example.com:*/",
+      "^http://www.example.com/docs/index.html$",
+      "http://other.example.com/a$",
+      ".pdf$",
+      "/",
+      "/docs/",
+      "contains:secret",
+      "regexp:^https?://[^/]*example\\.com/docs/",
+      "regexpCase:Docs|PRIVATE",
+      "regexpIgnoreCase:SECRET",
+      "</>docs/",
+      "",
+      "^http://www.example.com/docs/");
+
+  private static final ImmutableList<String> INDEXED_URLS = ImmutableList.of(
+      "http://www.example.com/",
+      "http://www.example.com/docs/index.html",
+      "http://www.example.com/docs/index.html\n",
+      "http://www.example.com:8080/docs/",
+      "https://www.example.com/private/x.pdf",
+      "http://other.example.com/a",
+      "http://other.example.com/ab",
+      "http://unrelated.org/?u=http://www.example.com/docs/",
+      "googleconnector://x.localhost/doc?docid=SECRET",
+      "smb://host/share/Docs/x.pdf");
+
+  public void testIndexMatchesLinearScan() {
+    AuthorizationMap.Builder builder = AuthorizationMap.builder();
+    for (String pattern : INDEXED_PATTERNS) {
+      builder.addRule(pattern, MockAuthorizationMethod.forName(pattern));
+    }
+    AuthorizationMap map = builder.build();
+    for (String url : INDEXED_URLS) {
+      Resource resource = new Resource(url, null);
+      assertEquals(url, map.scanMatchingMethods(resource), map.getMatchingMethods(resource));
+    }
+  }
 }
@@ -0,0 +1,185 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.authzcontroller;
+
+import static com.google.enterprise.secmgr.common.AuthzStatus.DENY;
+import static com.google.enterprise.secmgr.common.AuthzStatus.INDETERMINATE;
+import static com.google.enterprise.secmgr.common.AuthzStatus.PERMIT;
+import static com.google.enterprise.secmgr.testing.AuthorizationTestUtils.simpleSnapshot;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.secmgr.authncontroller.SessionSnapshot;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import com.google.enterprise.secmgr.common.Resource;
+import com.google.enterprise.secmgr.config.ConfigSingleton;
+import com.google.enterprise.secmgr.modules.AuthzResult;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link ParallelAuthorizationDispatcher}.
+ */
+public class ParallelAuthorizationDispatcherTest extends SecurityManagerTestCase {
+  private static final String URL1 = "http://example.com/slow";
+  private static final String URL2 = "http://example.com/fast";
+  private static final String URL3 = "http://example.com/failing";
+
+  private AuthorizationDispatcher dispatcher;
+  private SessionSnapshot snapshot;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    dispatcher = ConfigSingleton.getInstance(AuthorizationDispatcher.class);
+    snapshot = simpleSnapshot("joe");
+  }
+
+  /**
+   * A query that falls through to its next method doesn't wait for a slow
+   * batch in the same round.
+   */
+  public void testFallbackDoesNotWaitForSlowBatch() {
+    final CountDownLatch fallbackCalled = new CountDownLatch(1);
+    final AtomicInteger slowSawFallback = new AtomicInteger();
+    AuthorizationMethod slow = new TestMethod("slow") {
+      @Override
+      AuthzStatus decide(String url) throws InterruptedException {
+        if (fallbackCalled.await(4, TimeUnit.SECONDS)) {
+          slowSawFallback.incrementAndGet();
+        }
+        return PERMIT;
+      }
+    };
+    AuthorizationMethod fast = new TestMethod("fast") {
+      @Override
+      AuthzStatus decide(String url) {
+        return INDETERMINATE;
+      }
+    };
+    AuthorizationMethod fallback = new TestMethod("fallback") {
+      @Override
+      AuthzStatus decide(String url) {
+        fallbackCalled.countDown();
+        return DENY;
+      }
+    };
+    AuthzResult result = dispatcher.dispatchAll(
+        AuthzControllerState.makeInitial(ImmutableList.of(
+            makeQuery(URL1, slow),
+            makeQuery(URL2, fast, fallback))),
+        snapshot);
+    assertEquals(AuthzResult.of(URL1, PERMIT, URL2, DENY), result);
+    assertEquals(1, slowSawFallback.get());
+  }
+
+  /**
+   * A method that fails leaves its queries indeterminate, as the round-based
+   * controller does.
+   */
+  public void testFailingMethod() {
+    AuthorizationMethod failing = new TestMethod("failing") {
+      @Override
+      AuthzStatus decide(String url) {
+        throw new IllegalStateException("failed");
+      }
+    };
+    AuthorizationMethod fallback = new TestMethod("fallback") {
+      @Override
+      AuthzStatus decide(String url) {
+        return PERMIT;
+      }
+    };
+    AuthzResult result = dispatcher.dispatchAll(
+        AuthzControllerState.makeInitial(ImmutableList.of(
+            makeQuery(URL2, fallback),
+            makeQuery(URL3, failing, fallback))),
+        snapshot);
+    assertEquals(AuthzResult.of(URL2, PERMIT, URL3, INDETERMINATE), result);
+  }
+
+  /**
+   * Queries that fall through from the same batch are batched together for
+   * their next method.
+   */
+  public void testFallThroughIsBatched() {
+    final AtomicInteger batches = new AtomicInteger();
+    AuthorizationMethod fast = new TestMethod("fast") {
+      @Override
+      AuthzStatus decide(String url) {
+        return INDETERMINATE;
+      }
+    };
+    AuthorizationMethod fallback = new TestMethod("fallback") {
+      @Override
+      public AuthzResult authorize(Collection<Resource> resources, SessionSnapshot snapshot) {
+        batches.incrementAndGet();
+        return super.authorize(resources, snapshot);
+      }
+
+      @Override
+      AuthzStatus decide(String url) {
+        return PERMIT;
+      }
+    };
+    AuthzResult result = dispatcher.dispatchAll(
+        AuthzControllerState.makeInitial(ImmutableList.of(
+            makeQuery(URL1, fast, fallback),
+            makeQuery(URL2, fast, fallback))),
+        snapshot);
+    assertEquals(AuthzResult.of(URL1, PERMIT, URL2, PERMIT), result);
+    assertEquals(1, batches.get());
+  }
+
+  private static AuthorizationQuery makeQuery(String url, AuthorizationMethod... methods) {
+    return AuthorizationQuery.make(new Resource(url, null), ImmutableList.copyOf(methods));
+  }
+
+  private abstract static class TestMethod implements AuthorizationMethod {
+    private final String name;
+
+    TestMethod(String name) {
+      this.name = name;
+    }
+
+    abstract AuthzStatus decide(String url) throws InterruptedException;
+
+    @Override
+    public AuthzResult authorize(Collection<Resource> resources, SessionSnapshot snapshot) {
+      AuthzResult.Builder builder = AuthzResult.builder();
+      try {
+        for (Resource resource : resources) {
+          builder.put(resource.getUrl(), decide(resource.getUrl()));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return builder.build();
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getTimeout() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares selecting the cookies to send for a URI by testing every cookie
+ * with {@link GCookie#isGoodFor} against the indexed
+ * {@link CookieStore#getCookiesFor}, and times adding and looking up cookies,
+ * for a store of 200 cookies across 20 domains.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(1)
+public class CookieStoreBenchmark {
+  private static final int DOMAINS = 20;
+  private static final int COOKIES_PER_DOMAIN = 10;
+
+  @State(Scope.Thread)
+  public static class Cookies {
+    final List<GCookie> cookies = new ArrayList<>();
+    final List<URI> uris = new ArrayList<>();
+    CookieStore store;
+    int next;
+
+    @Setup
+    public void setUp() {
+      for (int d = 0; d < DOMAINS; d++) {
+        String domain = "sso" + d + ".example.com";
+        for (int c = 0; c < COOKIES_PER_DOMAIN; c++) {
+          cookies.add(GCookie.builder("cookie" + c)
+              .setValue("value" + d + "-" + c)
+              .setDomain(domain)
+              .setPath((c % 2 == 0) ? "/" : "/app" + c)
+              .build());
+        }
+        uris.add(URI.create("https://www." + domain + "/app3/doc" + d));
+      }
+      store = GCookie.makeStore(cookies);
+    }
+
+    URI nextUri() {
+      next = (next + 1) % uris.size();
+      return uris.get(next);
+    }
+  }
+
+  @Benchmark
+  public void scanWithIsGoodFor(Cookies state, Blackhole blackhole) {
+    URI uri = state.nextUri();
+    CookieStore toSend = GCookie.makeStore();
+    for (GCookie cookie : state.store) {
+      if (cookie.isGoodFor(uri)) {
+        toSend.add(cookie);
+      }
+    }
+    blackhole.consume(toSend);
+  }
+
+  @Benchmark
+  public void indexedGetCookiesFor(Cookies state, Blackhole blackhole) {
+    URI uri = state.nextUri();
+    CookieStore toSend = GCookie.makeStore();
+    for (GCookie cookie : state.store.getCookiesFor(uri)) {
+      toSend.add(cookie);
+    }
+    blackhole.consume(toSend);
+  }
+
+  @Benchmark
+  public void getByName(Cookies state, Blackhole blackhole) {
+    blackhole.consume(state.store.get("COOKIE" + (state.next++ % COOKIES_PER_DOMAIN)));
+  }
+
+  @Benchmark
+  public CookieStore buildStore(Cookies state) {
+    return GCookie.makeStore(state.cookies);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(CookieStoreBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Tests for the indexes in {@link CookieStoreImpl}.
+ */
+public class CookieStoreImplTest extends SecurityManagerTestCase {
+
+  private static final ImmutableList<String> DOMAINS =
+      ImmutableList.of("", "example.com", "www.example.com", "a.b.example.com", "example.org");
+  private static final ImmutableList<String> PATHS =
+      ImmutableList.of("", "/", "/a", "/a/", "/a/b", "/ab", "/a/b/c");
+  private static final ImmutableList<String> URIS =
+      ImmutableList.of(
+          "http://example.com/",
+          "https://www.example.com/a",
+          "http://www.example.com/a/b/c",
+          "https://a.b.example.com/a/",
+          "http://a.b.example.com/ab/c",
+          "http://EXAMPLE.org/a/b",
+          "http://example.org",
+          "http://other.net/a");
+
+  public void testGetCookiesForMatchesIsGoodFor() {
+    Random random = new Random(17);
+    CookieStore store = GCookie.makeStore();
+    for (int i = 0; i < 300; i++) {
+      String domain = DOMAINS.get(random.nextInt(DOMAINS.size()));
+      String path = PATHS.get(random.nextInt(PATHS.size()));
+      store.add(GCookie.builder("c" + random.nextInt(40))
+          .setValue("v" + i)
+          .setDomain(domain)
+          .setPath(path)
+          .setHostOnly(!domain.isEmpty() && random.nextBoolean())
+          .setSecureOnly(random.nextInt(4) == 0)
+          .build());
+    }
+    for (String uri : URIS) {
+      URI target = URI.create(uri);
+      assertEquals(uri,
+          ImmutableSet.copyOf(Iterables.filter(store, GCookie.isGoodForPredicate(target))),
+          ImmutableSet.copyOf(store.getCookiesFor(target)));
+    }
+  }
+
+  public void testGetByName() {
+    CookieStore store = GCookie.makeStore();
+    GCookie cookie = GCookie.builder("SessionId").setValue("1")
+        .setDomain("example.com").setPath("/").build();
+    store.add(cookie);
+    assertEquals(cookie, store.get("sessionid"));
+    assertTrue(store.contains("SESSIONID"));
+    assertNull(store.get("other"));
+  }
+
+  public void testPartialKeyReplacesFullKeys() {
+    CookieStore store = GCookie.makeStore();
+    store.add(GCookie.builder("id").setValue("1").setDomain("example.com").setPath("/").build());
+    store.add(GCookie.builder("id").setValue("2").setDomain("example.org").setPath("/").build());
+    assertEquals(2, store.size());
+
+    GCookie partial = GCookie.make("id", "3");
+    store.add(partial);
+    assertEquals(ImmutableSet.of(partial), ImmutableSet.copyOf(store));
+
+    GCookie full = GCookie.builder("id").setValue("4").setDomain("example.com").setPath("/")
+        .build();
+    store.add(full);
+    assertEquals(ImmutableSet.of(full), ImmutableSet.copyOf(store));
+    assertEquals(full, store.get("id"));
+    assertEquals(ImmutableList.of(full),
+        ImmutableList.copyOf(store.getCookiesFor(URI.create("http://example.com/"))));
+  }
+
+  public void testRemovalUpdatesIndexes() {
+    CookieStore store = GCookie.makeStore();
+    GCookie expired = GCookie.builder("old").setValue("1").setDomain("example.com")
+        .setPath("/").setExpires(1).build();
+    GCookie current = GCookie.builder("new").setValue("2").setDomain("example.com")
+        .setPath("/").build();
+    store.add(expired);
+    store.add(current);
+    store.expireCookies();
+    assertNull(store.get("old"));
+    assertEquals(ImmutableList.of(current),
+        ImmutableList.copyOf(store.getCookiesFor(URI.create("http://example.com/"))));
+
+    store.remove(current);
+    assertNull(store.get("new"));
+    assertTrue(store.getCookiesFor(URI.create("http://example.com/")).isEmpty());
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.enterprise.secmgr.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.enterprise.policychecker.AclUtil;
+import com.google.enterprise.policychecker.JsonPrincipalMapSerializer;
+import com.google.enterprise.supergsa.security.AclPrincipal;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit tests for {@link GroupsFileLoader}.
+ */
+@RunWith(JUnit4.class)
+public class GroupsFileLoaderTest {
+
+  private static final AclPrincipal ALICE = AclUtil.userNameToAclPrincipal("alice");
+  private static final AclPrincipal BOB = AclUtil.userNameToAclPrincipal("bob");
+  private static final AclPrincipal ENG = AclUtil.groupToAclPrincipal("eng");
+  private static final AclPrincipal HR = AclUtil.groupToAclPrincipal("hr");
+
+  private ForkJoinPool pool;
+  private GroupsFileLoader loader;
+
+  @Before
+  public void setUp() {
+    FileUtil.initializeTestDirectories();
+    pool = new ForkJoinPool(2);
+    loader = new GroupsFileLoader(pool);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Verifies that a streamed load resolves the same groups as parsing the whole file.
+   */
+  @Test
+  public void loadMatchesParsedGroups() throws IOException {
+    String filename = FileUtil.getContextDirectory() + "/acl_groups_large.enterprise";
+    MemberToGroupsResolverMap expected = MemberToGroupsResolverMap.builder()
+        .merge(new JsonPrincipalMapSerializer().parseFromFile(filename))
+        .build();
+    MemberToGroupsResolverMap loaded = loader.load(filename);
+
+    assertThat(loaded).isEqualTo(expected);
+    for (Map.Entry<AclPrincipal, Set<AclPrincipal>> entry : expected.entrySet()) {
+      assertThat(loaded.getAllGroupsForUser(entry.getKey()))
+          .isEqualTo(expected.getAllGroupsForUser(entry.getKey()));
+    }
+  }
+
+  /**
+   * Verifies that a later definition of a group replaces an earlier one, and that an empty one
+   * removes it.
+   */
+  @Test
+  public void laterDefinitionsWin() throws IOException {
+    String json = "{\"membership\":["
+        + group("eng", "alice") + ","
+        + group("hr", "bob") + ","
+        + group("eng", "bob") + ","
+        + "{\"principal\":" + principal("GROUP", "hr") + "}"
+        + "]}";
+    MemberToGroupsResolverMap loaded = loader.load(new StringReader(json));
+    assertThat(loaded.getAllGroupsForUser(ALICE)).isEmpty();
+    assertThat(loaded.getAllGroupsForUser(BOB)).containsExactly(ENG);
+    assertThat(loaded.getAllGroupsForUser(HR)).isEmpty();
+  }
+
+  /**
+   * Verifies that a definition whose principal is not a group is rejected.
+   */
+  @Test
+  public void rejectsUserDefinitions() throws IOException {
+    String json = "{\"membership\":[{\"principal\":" + principal("USER", "alice")
+        + ",\"members\":[" + principal("USER", "bob") + "]}]}";
+    try {
+      loader.load(new StringReader(json));
+      Assert.fail("A user's definition should be rejected.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static String group(String name, String member) {
+    return "{\"principal\":" + principal("GROUP", name)
+        + ",\"members\":[" + principal("USER", member) + "]}";
+  }
+
+  private static String principal(String scope, String name) {
+    return "{\"scope\":\"" + scope + "\",\"name\":\"" + name + "\",\"nameSpace\":\"Default\","
+        + "\"caseSensitive\":\"EVERYTHING_CASE_SENSITIVE\"}";
+  }
+}
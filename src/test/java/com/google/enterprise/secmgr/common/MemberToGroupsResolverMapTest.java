@@ -21,6 +21,9 @@ import com.google.enterprise.secmgr.identity.AuthnPrincipal;
 import com.google.enterprise.supergsa.security.AclGroup;
 import com.google.enterprise.supergsa.security.AclPrincipal;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -444,4 +447,66 @@ public class MemberToGroupsResolverMapTest {
     assertThat(map.getAllGroupsForUser(AclUtil.authnPrincipalToAclPrincipal(authnUser)))
         .containsExactly(ENG);
   }
+
+  /**
+   * Verifies that the precomputed closure index gives the same groups as walking the nested
+   * groups, on a random graph with cycles and case-insensitive members.
+   */
+  @Test
+  public void indexedMatchesBreadthFirstSearch() {
+    Random random = new Random(42);
+    List<AclPrincipal> groupPrincipals = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      groupPrincipals.add((i % 3 == 0)
+          ? AclUtil.groupToAclPrincipalCaseInsensitive("Group" + i)
+          : AclUtil.groupToAclPrincipal("group" + i));
+    }
+    List<AclPrincipal> users = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      users.add((i % 2 == 0)
+          ? AclUtil.userNameToAclPrincipalCaseInsensitive("User" + i)
+          : AclUtil.userNameToAclPrincipal("user" + i));
+    }
+    MemberToGroupsResolverMap.Builder builder = MemberToGroupsResolverMap.builder();
+    for (int i = 0; i < 200; i++) {
+      AclPrincipal group = AclUtil.groupToAclPrincipal("group" + random.nextInt(60));
+      AclPrincipal member = (random.nextInt(3) == 0)
+          ? groupPrincipals.get(random.nextInt(groupPrincipals.size()))
+          : users.get(random.nextInt(users.size()));
+      builder.normalizeAndPut(member, group);
+    }
+    MemberToGroupsResolverMap walked = builder.build();
+    MemberToGroupsResolverMap indexed = builder.buildIndexed();
+    assertThat(indexed).isEqualTo(walked);
+
+    List<AclPrincipal> lookups = new ArrayList<>(users);
+    lookups.addAll(groupPrincipals);
+    for (int i = 0; i < 40; i++) {
+      lookups.add(AclUtil.userNameToAclPrincipalCaseInsensitive("USER" + i));
+      lookups.add(AclUtil.userNameToAclPrincipal("User" + i));
+    }
+    for (AclPrincipal user : lookups) {
+      assertThat(indexed.getAllGroupsForUser(user))
+          .named(user.toString())
+          .isEqualTo(walked.getAllGroupsForUser(user));
+    }
+  }
+
+  /**
+   * Verifies that an indexed map resolves cyclic groups and is not changed by later additions to
+   * its builder.
+   */
+  @Test
+  public void buildIndexedSnapshot() {
+    MemberToGroupsResolverMap.Builder builder = MemberToGroupsResolverMap.builder()
+        .normalizeAndPut(ENG, HR)
+        .normalizeAndPut(HR, ENG)
+        .normalizeAndPut(BOB, ENG);
+    MemberToGroupsResolverMap map = builder.buildIndexed();
+    assertThat(map.getAllGroupsForUser(BOB)).containsExactly(ENG, HR);
+
+    builder.normalizeAndPut(BOB, FINANCE);
+    assertThat(map.getAllGroupsForUser(BOB)).containsExactly(ENG, HR);
+    assertThat(builder.buildIndexed().getAllGroupsForUser(BOB)).containsExactly(ENG, HR, FINANCE);
+  }
 }
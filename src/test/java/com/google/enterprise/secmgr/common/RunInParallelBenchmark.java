@@ -0,0 +1,111 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * A load test for per-URL HTTP authorization: authorizes 10,000 URLs through
+ * {@link SecurityManagerUtil#runInParallel} in the {@link Workload#HTTP}
+ * pool, with each request simulated by a 2 ms blocking wait, on platform
+ * threads and on virtual threads.  On a JVM without virtual threads the
+ * {@code virtual} mode falls back to platform threads, so both modes report
+ * the same.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(1)
+public class RunInParallelBenchmark {
+  private static final int URLS = 10000;
+  private static final long REQUEST_MILLIS = 2;
+
+  @State(Scope.Benchmark)
+  public static class Pools {
+    @Param({"platform", "virtual"})
+    String mode;
+
+    final List<Callable<Boolean>> requests = new ArrayList<>();
+    WorkerPool pool;
+    WorkerPool old;
+
+    @Setup
+    public void setUp() {
+      for (int i = 0; i < URLS; i++) {
+        requests.add(
+            new Callable<Boolean>() {
+              @Override
+              public Boolean call() throws InterruptedException {
+                Thread.sleep(REQUEST_MILLIS);
+                return true;
+              }
+            });
+      }
+      pool = "virtual".equals(mode)
+          ? WorkerPool.makeVirtual("http", URLS, WorkerPool.Rejection.CALLER_RUNS)
+          : null;
+      if (pool == null) {
+        pool = WorkerPool.make("http", SecurityManagerUtil.getPrimaryThreadPoolSize(), URLS,
+            WorkerPool.Rejection.CALLER_RUNS);
+      }
+      old = SecurityManagerUtil.getWorkerPool(Workload.HTTP);
+      SecurityManagerUtil.setWorkerPool(Workload.HTTP, pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+      SecurityManagerUtil.setWorkerPool(Workload.HTTP, old);
+      pool.shutdownNow();
+    }
+  }
+
+  /** One operation is a whole 10,000-URL request. */
+  @Benchmark
+  public void authorize10000Urls(Pools state, Blackhole blackhole) throws ExecutionException {
+    blackhole.consume(SecurityManagerUtil.runInParallel(Workload.HTTP, state.requests,
+        60 * 1000, SessionUtil.getLogDecorator()));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(RunInParallelBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2009 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link SecurePasswordHasher} throughput with 1, 8 and 32 threads:
+ * the MACs that {@link GCookie} logs for obfuscated cookie values, and
+ * fingerprint verification.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurePasswordHasherBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Passwords {
+    SecurePasswordHasher.Fingerprint fingerprint;
+
+    @Setup
+    public void setUp() {
+      fingerprint = SecurePasswordHasher.getFingerprint("password12345");
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] mac1() {
+    return SecurePasswordHasher.macInput("SMSESSION", "a-cookie-value");
+  }
+
+  @Benchmark
+  @Threads(8)
+  public byte[] mac8() {
+    return SecurePasswordHasher.macInput("SMSESSION", "a-cookie-value");
+  }
+
+  @Benchmark
+  @Threads(32)
+  public byte[] mac32() {
+    return SecurePasswordHasher.macInput("SMSESSION", "a-cookie-value");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean verify1(Passwords passwords) {
+    return SecurePasswordHasher.verifyFingerprint("password12345", passwords.fingerprint);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public boolean verify8(Passwords passwords) {
+    return SecurePasswordHasher.verifyFingerprint("password12345", passwords.fingerprint);
+  }
+
+  @Benchmark
+  @Threads(32)
+  public boolean verify32(Passwords passwords) {
+    return SecurePasswordHasher.verifyFingerprint("password12345", passwords.fingerprint);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(SecurePasswordHasherBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
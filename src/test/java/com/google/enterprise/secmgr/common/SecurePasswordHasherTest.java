@@ -16,6 +16,7 @@ package com.google.enterprise.secmgr.common;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.TestCase;
 
 /**
@@ -123,4 +124,46 @@ public class SecurePasswordHasherTest extends TestCase {
       hashThreads.get(i).join();
     }
   }
+
+  /**
+   * Ensures that every thread's MAC uses the same key.
+   */
+  public void testMacIsSameInEveryThread() throws Exception {
+    final String expected = SecurePasswordHasher.getMac(kUsername, kPassword);
+    final AtomicInteger matches = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread t = new Thread() {
+        @Override public void run() {
+          if (expected.equals(SecurePasswordHasher.getMac(kUsername, kPassword))) {
+            matches.incrementAndGet();
+          }
+        }
+      };
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(4, matches.get());
+  }
+
+  public void testFingerprintMemo() {
+    SecurePasswordHasher.setFingerprintMemoSize(10);
+    try {
+      SecurePasswordHasher.Fingerprint fingerprint =
+          SecurePasswordHasher.getFingerprint(kPassword);
+      assertTrue(SecurePasswordHasher.verifyFingerprint(kPassword, fingerprint));
+      // Remembered this time.
+      assertTrue(SecurePasswordHasher.verifyFingerprint(kPassword, fingerprint));
+      assertFalse(SecurePasswordHasher.verifyFingerprint(kBadPassword, fingerprint));
+      // The memo is keyed by the whole fingerprint.
+      SecurePasswordHasher.Fingerprint other = new SecurePasswordHasher.Fingerprint(
+          kGoodHash, fingerprint.seed(), fingerprint.algorithm(), fingerprint.iterations());
+      assertFalse(SecurePasswordHasher.verifyFingerprint(kPassword, other));
+    } finally {
+      SecurePasswordHasher.setFingerprintMemoSize(0);
+    }
+  }
 }
@@ -0,0 +1,178 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.common;
+
+import com.google.common.collect.Lists;
+import com.google.enterprise.secmgr.common.SecurityManagerUtil.Workload;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link WorkerPool}.
+ */
+public class WorkerPoolTest extends TestCase {
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final List<WorkerPool> pools = Lists.newArrayList();
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    for (WorkerPool pool : pools) {
+      pool.shutdownNow();
+    }
+    super.tearDown();
+  }
+
+  public void testCounts() throws Exception {
+    WorkerPool pool = track(WorkerPool.make("test", 1, 10, WorkerPool.Rejection.ABORT));
+    Future<?> blocked = pool.submit(blocker());
+    Future<?> waiting = pool.submit(blocker());
+    waitForActive(pool, 1);
+    assertEquals(1, pool.getActiveCount());
+    assertEquals(1, pool.getQueuedCount());
+    release.countDown();
+    blocked.get(5, TimeUnit.SECONDS);
+    waiting.get(5, TimeUnit.SECONDS);
+    waitForCompleted(pool, 2);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(0, pool.getQueuedCount());
+    assertEquals(0, pool.getRejectedCount());
+  }
+
+  public void testAbort() throws Exception {
+    WorkerPool pool = track(WorkerPool.make("test", 1, 1, WorkerPool.Rejection.ABORT));
+    pool.submit(blocker());
+    pool.submit(blocker());
+    try {
+      pool.submit(blocker());
+      fail("Expected the task to be rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(1, pool.getRejectedCount());
+    assertEquals(2, pool.getActiveCount() + pool.getQueuedCount());
+  }
+
+  public void testCallerRuns() throws Exception {
+    WorkerPool pool = track(WorkerPool.make("test", 1, 1, WorkerPool.Rejection.CALLER_RUNS));
+    pool.submit(blocker());
+    pool.submit(blocker());
+    final Thread caller = Thread.currentThread();
+    Future<Boolean> ranHere = pool.submit(
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return Thread.currentThread() == caller;
+          }
+        });
+    assertTrue(ranHere.get(0, TimeUnit.SECONDS));
+    assertEquals(1, pool.getRejectedCount());
+  }
+
+  public void testFromPropertiesAbortsByDefault() throws Exception {
+    System.setProperty("gsa.workers.defaults.queue", "1");
+    WorkerPool pool;
+    try {
+      pool = track(WorkerPool.fromProperties("defaults", 1));
+    } finally {
+      System.clearProperty("gsa.workers.defaults.queue");
+    }
+    pool.submit(blocker());
+    pool.submit(blocker());
+    try {
+      pool.submit(blocker());
+      fail("Expected the task to be rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  public void testVirtual() throws Exception {
+    WorkerPool pool = WorkerPool.makeVirtual("test", 10, WorkerPool.Rejection.ABORT);
+    if (pool == null) {
+      // This JVM doesn't have virtual threads.
+      return;
+    }
+    track(pool);
+    assertTrue(pool.isVirtual());
+    assertEquals(Integer.valueOf(42), pool.submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return 42;
+          }
+        }).get(5, TimeUnit.SECONDS));
+  }
+
+  public void testRunInParallelCountsTimeouts() throws Exception {
+    WorkerPool pool = track(WorkerPool.make("test", 2, 10, WorkerPool.Rejection.ABORT));
+    WorkerPool old = SecurityManagerUtil.getWorkerPool(Workload.LDAP);
+    SecurityManagerUtil.setWorkerPool(Workload.LDAP, pool);
+    try {
+      List<Callable<Object>> callables = Lists.newArrayList();
+      for (int i = 0; i < 4; i++) {
+        callables.add(
+            new Callable<Object>() {
+              @Override
+              public Object call() throws InterruptedException {
+                release.await();
+                return "done";
+              }
+            });
+      }
+      List<Object> results = SecurityManagerUtil.runInParallel(Workload.LDAP, callables, 50,
+          SessionUtil.getLogDecorator());
+      assertTrue(results.isEmpty());
+      assertEquals(4, pool.getTimedOutCount());
+    } finally {
+      SecurityManagerUtil.setWorkerPool(Workload.LDAP, old);
+    }
+  }
+
+  private WorkerPool track(WorkerPool pool) {
+    pools.add(pool);
+    return pool;
+  }
+
+  private Runnable blocker() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private static void waitForActive(WorkerPool pool, int count) throws InterruptedException {
+    for (int i = 0; i < 500 && pool.getActiveCount() < count; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void waitForCompleted(WorkerPool pool, long count) throws InterruptedException {
+    for (int i = 0; i < 500 && pool.getCompletedCount() < count; i++) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.config;
+
+import com.google.enterprise.secmgr.common.FileUtil;
+import com.google.enterprise.secmgr.servlets.SecurityManagerServletConfig;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures configuration reads from 32 threads, as made per request by the
+ * authorization modules.  {@code lockedStat} reproduces the old read path, a
+ * class-wide lock plus a stat of the configuration file, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class ConfigSingletonBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Config {
+    File file;
+
+    @Setup
+    public void setUp() throws IOException {
+      FileUtil.initializeTestDirectories();
+      SecurityManagerServletConfig.initializeGson();
+      SecurityManagerServletConfig.makeTestingInjector("AuthSites.json");
+      file = FileUtil.getContextFile("AuthSites.json");
+      ConfigSingleton.getConfig();
+    }
+  }
+
+  private static final Object LOCK = new Object();
+
+  @Benchmark
+  public SecurityManagerConfig getConfig(Config config) throws IOException {
+    return ConfigSingleton.getConfig();
+  }
+
+  @Benchmark
+  public boolean getLateBindingAcl(Config config) throws IOException {
+    return ConfigSingleton.getLateBindingAcl();
+  }
+
+  @Benchmark
+  public SecurityManagerConfig lockedStat(Config config) throws IOException {
+    synchronized (LOCK) {
+      if (config.file.lastModified() == 0) {
+        throw new IOException("No such file: " + config.file);
+      }
+      return ConfigSingleton.getConfig();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(ConfigSingletonBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
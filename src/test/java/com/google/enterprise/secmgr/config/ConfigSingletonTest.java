@@ -0,0 +1,89 @@
+// Copyright 2008 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.config;
+
+import com.google.enterprise.secmgr.common.FileUtil;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import com.google.enterprise.secmgr.testing.TearDown;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Unit tests for {@link ConfigSingleton}'s configuration snapshots.
+ */
+public class ConfigSingletonTest extends SecurityManagerTestCase {
+
+  private static final String CONFIG_FILENAME = "AuthSites.json";
+
+  private final List<Object> notifications = new ArrayList<>();
+  private final Observer observer =
+      new Observer() {
+        @Override
+        public void update(Observable observable, Object arg) {
+          notifications.add(arg);
+        }
+      };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ConfigSingleton.addObserver(observer);
+    addTearDown(new TearDown() {
+      @Override
+      public void tearDown() {
+        ConfigSingleton.deleteObserver(observer);
+      }
+    });
+  }
+
+  public void testReadsShareSnapshot() throws Exception {
+    SecurityManagerConfig config = ConfigSingleton.getConfigNoOverride();
+    assertSame(config, ConfigSingleton.getConfigNoOverride());
+    assertEquals(1, notifications.size());
+
+    ConfigSingleton.pollConfigFile();
+    assertSame(config, ConfigSingleton.getConfigNoOverride());
+    assertEquals(1, notifications.size());
+  }
+
+  public void testPollPublishesModifiedFile() throws Exception {
+    File file = FileUtil.getContextFile(CONFIG_FILENAME);
+    long modified = file.lastModified();
+    SecurityManagerConfig config = ConfigSingleton.getConfigNoOverride();
+    try {
+      assertTrue(file.setLastModified(modified + 10000));
+      // Readers keep the old snapshot until the poller sees the change.
+      assertSame(config, ConfigSingleton.getConfigNoOverride());
+
+      ConfigSingleton.pollConfigFile();
+      SecurityManagerConfig updated = ConfigSingleton.getConfigNoOverride();
+      assertNotSame(config, updated);
+      assertEquals(2, notifications.size());
+      assertSame(updated, notifications.get(1));
+    } finally {
+      file.setLastModified(modified);
+    }
+  }
+
+  public void testOverrideTakesPrecedence() throws Exception {
+    SecurityManagerConfig override = SecurityManagerConfig.makeDefault();
+    ConfigSingleton.setConfig(override);
+    assertSame(override, ConfigSingleton.getConfig());
+    assertNotSame(override, ConfigSingleton.getConfigNoOverride());
+  }
+}
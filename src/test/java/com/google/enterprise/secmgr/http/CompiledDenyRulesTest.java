@@ -0,0 +1,95 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.http;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.labs.matcher.SequentialRegexPatternMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the {@link CompiledDenyRules} class.
+ */
+public class CompiledDenyRulesTest extends TestCase {
+
+  private static final ImmutableList<String> PATTERNS = ImmutableList.of(
+      "^http://exact.example.com/page$",
+      "^http://prefix.example.com/",
+      "^http://prefix.example.com/longer/",
+      "http://contains.example.com/",
+      "\\.pdf$",
+      "^https?://regex[0-9]+\\.example\\.com/",
+      "^http://escaped\\.example\\.com/a\\?b",
+      "secret",
+      "^http://",
+      "^http://never.example.com/$");
+
+  private static final ImmutableList<String> URLS = ImmutableList.of(
+      "http://exact.example.com/page",
+      "http://exact.example.com/page2",
+      "http://prefix.example.com/",
+      "http://prefix.example.com/longer/doc",
+      "http://other.example.com/http://contains.example.com/",
+      "http://containsXexampleYcom/",
+      "https://files.example.com/report.pdf",
+      "https://files.example.com/reportXpdf",
+      "https://regex42.example.com/doc",
+      "http://escaped.example.com/a?b",
+      "http://escapedXexample.com/a?b",
+      "https://www.example.com/secret/doc",
+      "ftp://www.example.com/doc",
+      "");
+
+  public void testMatchesRegexMatcher() {
+    List<DenyRule> rules = new ArrayList<>();
+    for (int i = 0; i < PATTERNS.size(); i++) {
+      rules.add(DenyRule.newBuilder()
+          .setRequestType(DenyRule.TYPE.HEAD)
+          .addStatusCode(400 + i)
+          .build());
+    }
+    // Try every rotation of the patterns, so that each index wins somewhere.
+    for (int rotation = 0; rotation < PATTERNS.size(); rotation++) {
+      List<String> patterns = rotate(PATTERNS, rotation);
+      List<DenyRule> rotatedRules = rotate(rules, rotation);
+      SequentialRegexPatternMatcher expected = new SequentialRegexPatternMatcher();
+      expected.addAll(patterns);
+      CompiledDenyRules compiled = CompiledDenyRules.compile(patterns, rotatedRules);
+
+      assertEquals(patterns.size(), compiled.size());
+      for (String url : URLS) {
+        String bestPattern = expected.getBestMatch(url);
+        DenyRule expectedRule =
+            (bestPattern == null) ? null : rotatedRules.get(patterns.indexOf(bestPattern));
+        assertEquals("rotation " + rotation + ", url " + url, expectedRule,
+            compiled.getRule(url));
+      }
+    }
+  }
+
+  public void testEmpty() {
+    assertEquals(0, CompiledDenyRules.EMPTY.size());
+    assertNull(CompiledDenyRules.EMPTY.getRule("http://www.example.com/"));
+  }
+
+  private static <T> List<T> rotate(List<T> list, int distance) {
+    List<T> rotated = new ArrayList<>(list.size());
+    for (int i = 0; i < list.size(); i++) {
+      rotated.add(list.get((i + distance) % list.size()));
+    }
+    return rotated;
+  }
+}
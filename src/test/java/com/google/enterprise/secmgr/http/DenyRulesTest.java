@@ -14,7 +14,11 @@
 
 package com.google.enterprise.secmgr.http;
 
+import com.google.common.io.Files;
+import com.google.enterprise.secmgr.common.FileUtil;
 import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Tests for the {@link DenyRules} class.
@@ -54,4 +58,35 @@ public class DenyRulesTest extends SecurityManagerTestCase {
     denyRule = denyRules.getRule("http://notcovered.com/");
     assertNull(denyRule);
   }
+
+  public void testReloadIfChanged() throws Exception {
+    File source = FileUtil.getContextFile("deny_rules.enterprise");
+    File file = File.createTempFile("deny_rules", ".enterprise");
+    file.deleteOnExit();
+    Files.copy(source, file);
+    denyRules.setConfFile(file.getAbsolutePath());
+    assertNotNull(denyRules.getRule("http://www.teststatus.com/"));
+    assertNull(denyRules.getRule("http://notcovered.com/"));
+    assertEquals(4, denyRules.getRuleCount());
+
+    Files.asCharSink(file, StandardCharsets.UTF_8).write("http://notcovered.com/ CAAQABiSAw==\n");
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    // Lookups don't see the change until the rules are reloaded.
+    assertNotNull(denyRules.getRule("http://www.teststatus.com/"));
+
+    denyRules.reloadIfChanged();
+    assertNull(denyRules.getRule("http://www.teststatus.com/"));
+    assertNotNull(denyRules.getRule("http://notcovered.com/"));
+    assertEquals(1, denyRules.getRuleCount());
+  }
+
+  public void testLookupLatency() throws Exception {
+    assertEquals(0, denyRules.getLookupLatencyNanos(50));
+    for (int i = 0; i < 1000; i++) {
+      denyRules.getRule("http://localhost:" + i + "/");
+    }
+    long median = denyRules.getLookupLatencyNanos(50);
+    assertTrue(median > 0);
+    assertTrue(median <= denyRules.getLookupLatencyNanos(99));
+  }
 }
@@ -0,0 +1,133 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.ldap.LDAPConstants.GroupResolutionFormat;
+import com.google.enterprise.secmgr.ldap.LDAPClient.NameAndDomain;
+import com.google.enterprise.secmgr.mock.MockLdapDirectory;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import com.google.enterprise.secmgr.testing.TearDown;
+import java.util.Set;
+import javax.naming.CommunicationException;
+
+/**
+ * Tests the pooled connections and lookup cache of {@link LDAPClient} against
+ * an in-process directory.
+ */
+public final class LDAPClientPoolingTest extends SecurityManagerTestCase {
+  private static final String BASE = "dc=example,dc=com";
+  private static final String ALICE = "alice";
+  private static final String ALICE_DN = "uid=alice,ou=people," + BASE;
+  private static final String ALICE_PASSWORD = "secret";
+  private static final String BOB = "bob";
+  private static final String BOB_DN = "uid=bob,ou=people," + BASE;
+  private static final String ENG_DN = "cn=eng,ou=groups," + BASE;
+  private static final String OPS_DN = "cn=ops,ou=groups," + BASE;
+
+  private MockLdapDirectory directory;
+  private LDAPClient client;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    directory = new MockLdapDirectory();
+    directory.addUser(ALICE, ALICE_DN, ALICE_PASSWORD);
+    directory.addUser(BOB, BOB_DN, "password");
+    directory.addMember(ALICE, ENG_DN);
+    directory.addMember(ALICE, OPS_DN);
+    client = new LDAPClient();
+    client.setBase(BASE);
+    client.setUserSearchFilter("(uid=%s)");
+    client.setGroupSearchFilter("(memberUid=%s)");
+    client.setGroupResolutionFormat(GroupResolutionFormat.CN);
+    client.setContextFactory(directory);
+    addTearDown(new TearDown() {
+      @Override
+      public void tearDown() {
+        client.close();
+      }
+    });
+  }
+
+  public void testAuthenticate() throws Exception {
+    client.enablePooling(2, 60 * 1000, 60 * 1000);
+    assertEquals(ALICE_DN, client.authenticate(ALICE, ALICE_PASSWORD));
+    assertNull(client.authenticate(ALICE, "wrong"));
+    assertNull(client.authenticate("nobody", ALICE_PASSWORD));
+
+    // One pooled search connection, plus a connection for each password check.
+    assertEquals(1, client.getConnectionPool().getCreatedCount());
+    assertEquals(3, directory.getOpenedCount());
+    assertEquals(2, directory.getClosedCount());
+  }
+
+  public void testLookupsAreCached() throws Exception {
+    client.enablePooling(2, 60 * 1000, 60 * 1000);
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    assertEquals(1, directory.getSearchCount());
+
+    Set<NameAndDomain> expected = ImmutableSet.of(
+        new NameAndDomain("eng", ENG_DN), new NameAndDomain("ops", OPS_DN));
+    Set<NameAndDomain> groups = client.getGroupsWithUser(ALICE, ALICE_DN);
+    assertEquals(expected, groups);
+    // Callers can't change the cached copy.
+    Iterables.get(groups, 0).setName("changed");
+    assertEquals(expected, client.getGroupsWithUser(ALICE, ALICE_DN));
+    assertEquals(2, directory.getSearchCount());
+    assertEquals(1, client.getConnectionPool().getCreatedCount());
+  }
+
+  public void testBrokenConnectionIsReplaced() throws Exception {
+    client.enablePooling(2, 60 * 1000, 60 * 1000);
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    directory.dropConnections();
+    try {
+      client.getUserDN(BOB);
+      fail("Expected CommunicationException");
+    } catch (CommunicationException e) {
+      // expected
+    }
+    assertEquals(1, client.getConnectionPool().getInvalidatedCount());
+    assertEquals(BOB_DN, client.getUserDN(BOB));
+    assertEquals(2, client.getConnectionPool().getCreatedCount());
+  }
+
+  public void testUseAfterClose() throws Exception {
+    client.enablePooling(2, 60 * 1000, 60 * 1000);
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    client.close();
+    assertNull(client.getConnectionPool());
+    assertEquals(1, directory.getClosedCount());
+
+    // Each call now makes its own connection, and nothing is cached.
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    assertEquals(ALICE_DN, client.authenticate(ALICE, ALICE_PASSWORD));
+    assertEquals(3, directory.getSearchCount());
+    assertEquals(directory.getOpenedCount(), directory.getClosedCount());
+  }
+
+  public void testWithoutPooling() throws Exception {
+    assertNull(client.getConnectionPool());
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    assertEquals(ALICE_DN, client.getUserDN(ALICE));
+    assertEquals(2, client.getGroupsWithUser(ALICE, ALICE_DN).size());
+    assertEquals(3, directory.getSearchCount());
+    assertEquals(3, directory.getOpenedCount());
+    assertEquals(3, directory.getClosedCount());
+  }
+}
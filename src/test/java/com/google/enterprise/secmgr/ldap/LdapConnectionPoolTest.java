@@ -0,0 +1,118 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.base.Ticker;
+import com.google.enterprise.secmgr.mock.MockLdapDirectory;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * Tests for the {@link LdapConnectionPool} class.
+ */
+public final class LdapConnectionPoolTest extends SecurityManagerTestCase {
+  private static final long MAX_IDLE_MILLIS = 60 * 1000;
+
+  private final MockLdapDirectory directory = new MockLdapDirectory();
+  private final TestTicker ticker = new TestTicker();
+  private final LdapConnectionPool pool =
+      new LdapConnectionPool(directory, 2, MAX_IDLE_MILLIS, ticker);
+
+  public void testReusesReleasedContexts() throws NamingException {
+    DirContext ctx = pool.borrow();
+    assertEquals(1, pool.getActiveCount());
+    pool.release(ctx);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+
+    assertSame(ctx, pool.borrow());
+    assertEquals(1, pool.getCreatedCount());
+    assertEquals(1, pool.getReusedCount());
+    assertEquals(0, directory.getClosedCount());
+  }
+
+  public void testInvalidateClosesContext() throws NamingException {
+    DirContext ctx = pool.borrow();
+    pool.invalidate(ctx);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getInvalidatedCount());
+    assertEquals(1, directory.getClosedCount());
+
+    assertNotSame(ctx, pool.borrow());
+    assertEquals(2, pool.getCreatedCount());
+  }
+
+  public void testValidatesIdleContexts() throws NamingException {
+    DirContext ctx = pool.borrow();
+    pool.release(ctx);
+    directory.dropConnections();
+
+    // A recently used context is handed out without a check.
+    assertSame(ctx, pool.borrow());
+    pool.release(ctx);
+
+    ticker.advance(LdapConnectionPool.VALIDATE_AFTER_MILLIS + 1);
+    assertNotSame(ctx, pool.borrow());
+    assertEquals(1, pool.getInvalidatedCount());
+    assertEquals(1, directory.getClosedCount());
+  }
+
+  public void testEvictsIdleContexts() throws NamingException {
+    DirContext ctx1 = pool.borrow();
+    DirContext ctx2 = pool.borrow();
+    pool.release(ctx1);
+    ticker.advance(MAX_IDLE_MILLIS / 2);
+    pool.release(ctx2);
+    ticker.advance(MAX_IDLE_MILLIS / 2 + 1);
+
+    pool.evictIdle();
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(1, directory.getClosedCount());
+    assertSame(ctx2, pool.borrow());
+  }
+
+  public void testClose() throws NamingException {
+    DirContext ctx1 = pool.borrow();
+    DirContext ctx2 = pool.borrow();
+    pool.release(ctx1);
+    pool.close();
+    assertEquals(1, directory.getClosedCount());
+    pool.release(ctx2);
+    assertEquals(2, directory.getClosedCount());
+    assertEquals(0, pool.getIdleCount());
+    try {
+      pool.borrow();
+      fail("Expected NamingException");
+    } catch (NamingException e) {
+      // expected
+    }
+  }
+
+  private static final class TestTicker extends Ticker {
+    long value;
+
+    void advance(long millis) {
+      value += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.ldap;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.ldap.LDAPConstants.GroupResolutionFormat;
+import com.google.enterprise.secmgr.ldap.LDAPClient.NameAndDomain;
+import com.google.enterprise.secmgr.mock.MockLdapDirectory;
+import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
+import com.google.enterprise.secmgr.testing.TearDown;
+import java.util.Set;
+import javax.naming.NamingException;
+
+/**
+ * Tests for paged and nested group resolution, through {@link LDAPClient}
+ * and directly with {@link LdapGroupResolver}.
+ */
+public final class LdapGroupResolverTest extends SecurityManagerTestCase {
+  private static final String BASE = "dc=example,dc=com";
+  private static final String ALICE = "alice";
+  private static final String ALICE_DN = "uid=alice,ou=people," + BASE;
+  private static final String G1 = "cn=g1,ou=groups," + BASE;
+  private static final String G2 = "cn=g2,ou=groups," + BASE;
+  private static final String G3 = "cn=g3,ou=groups," + BASE;
+
+  private MockLdapDirectory directory;
+  private LDAPClient client;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    directory = new MockLdapDirectory();
+    directory.addUser(ALICE, ALICE_DN, "secret");
+    directory.addMember(ALICE_DN, G1);
+    directory.addMember(ALICE_DN, G2);
+    directory.addMember(G1, G3);
+    directory.addMember(G2, G3);
+    // A membership cycle.
+    directory.addMember(G3, G1);
+    client = new LDAPClient();
+    client.setBase(BASE);
+    client.setUserSearchFilter("(uid=%s)");
+    client.setGroupSearchFilter("(member=%dn)");
+    client.setGroupResolutionFormat(GroupResolutionFormat.DN);
+    client.setContextFactory(directory);
+    client.enablePooling(4, 60 * 1000, 0);
+    addTearDown(new TearDown() {
+      @Override
+      public void tearDown() {
+        client.close();
+      }
+    });
+  }
+
+  public void testDirectGroupsOnly() throws NamingException {
+    LdapGroupResolver.Result result = client.resolveGroups(ALICE, ALICE_DN);
+    assertEquals(ImmutableSet.of(G1, G2), domains(result.getGroups()));
+    assertEquals(1, result.getLevelMillis().size());
+    assertTrue(result.isComplete());
+    assertEquals(1, directory.getSearchCount());
+  }
+
+  public void testNestedGroups() throws NamingException {
+    client.setNestedGroupResolution(true);
+    LdapGroupResolver.Result result = client.resolveGroups(ALICE, ALICE_DN);
+    assertEquals(ImmutableSet.of(G1, G2, G3), domains(result.getGroups()));
+    assertTrue(result.isComplete());
+    // The user's groups, then their groups, then g3's groups.
+    assertEquals(3, result.getLevelMillis().size());
+    // Each group is searched for once, despite the cycle.
+    assertEquals(4, directory.getSearchCount());
+    assertEquals(3, client.getGroupsWithUser(ALICE, ALICE_DN).size());
+  }
+
+  public void testPagedSearch() throws NamingException {
+    for (int i = 0; i < 5; i++) {
+      directory.addMember(ALICE_DN, "cn=extra" + i + ",ou=groups," + BASE);
+    }
+    directory.setSizeLimit(2);
+    Set<NameAndDomain> groups = client.getGroupsWithUser(ALICE, ALICE_DN);
+    assertEquals(7, groups.size());
+    assertEquals(4, directory.getPagedSearchCount());
+  }
+
+  public void testStopsAtDeadline() throws NamingException {
+    LdapGroupResolver.Searcher searcher = new LdapGroupResolver.Searcher() {
+      @Override
+      public Set<NameAndDomain> search(String name, String dn, boolean firstLevel) {
+        if (firstLevel) {
+          return ImmutableSet.of(new NameAndDomain("g1", G1));
+        }
+        try {
+          Thread.sleep(10 * 1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return ImmutableSet.of(new NameAndDomain("g2", G2));
+      }
+    };
+    long start = System.currentTimeMillis();
+    LdapGroupResolver.Result result =
+        new LdapGroupResolver(searcher, true, 200).resolve(ALICE, ALICE_DN);
+    assertTrue(System.currentTimeMillis() - start < 5 * 1000);
+    assertFalse(result.isComplete());
+    assertEquals(ImmutableSet.of(G1), domains(result.getGroups()));
+    assertEquals(2, result.getLevelMillis().size());
+  }
+
+  private static Set<String> domains(Set<NameAndDomain> groups) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (NameAndDomain group : groups) {
+      builder.add(group.getDomain());
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,314 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.mock;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.enterprise.ldap.LDAPConstants;
+import com.google.enterprise.secmgr.ldap.LdapConnectionPool;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * An in-process stand-in for an LDAP server, good enough to test the
+ * {@link com.google.enterprise.secmgr.ldap.LDAPClient} user and group
+ * lookups without the network.  Search filters must be of the form
+ * {@code (attribute=value)}; {@code uid} looks up users, and {@code memberUid}
+ * or {@code member} look up the groups a user or group is a member of.  The
+ * simple paged results control is supported.
+ */
+public class MockLdapDirectory implements LdapConnectionPool.ContextFactory {
+  private final Map<String, String> userDns = Maps.newConcurrentMap();
+  private final Map<String, String> passwords = Maps.newConcurrentMap();
+  private final SetMultimap<String, String> groupDns = HashMultimap.create();
+  private final AtomicInteger openedCount = new AtomicInteger();
+  private final AtomicInteger closedCount = new AtomicInteger();
+  private final AtomicInteger searchCount = new AtomicInteger();
+  private final AtomicInteger pagedSearchCount = new AtomicInteger();
+  private volatile int sizeLimit = Integer.MAX_VALUE;
+  private volatile int generation = 0;
+
+  /**
+   * Adds a user.
+   * @param uid the user's name.
+   * @param dn the user's full DN.
+   * @param password the user's password.
+   */
+  public void addUser(String uid, String dn, String password) {
+    userDns.put(uid, dn);
+    passwords.put(dn, password);
+  }
+
+  /**
+   * Adds a member to a group.
+   * @param member the user's name or the member's full DN.
+   * @param groupDn the group's full DN.
+   */
+  public synchronized void addMember(String member, String groupDn) {
+    groupDns.put(member, groupDn);
+  }
+
+  /**
+   * Sets the most results an unpaged search can return; beyond that, the
+   * search fails with a {@link SizeLimitExceededException}.  Paged searches
+   * get at most this many results per page.
+   */
+  public void setSizeLimit(int sizeLimit) {
+    this.sizeLimit = sizeLimit;
+  }
+
+  /** @return the number of paged searches run. */
+  public int getPagedSearchCount() {
+    return pagedSearchCount.get();
+  }
+
+  /**
+   * Simulates a server restart: every context opened so far fails with a
+   * {@link CommunicationException}.
+   */
+  public void dropConnections() {
+    generation++;
+  }
+
+  /** @return the number of contexts opened. */
+  public int getOpenedCount() {
+    return openedCount.get();
+  }
+
+  /** @return the number of contexts closed. */
+  public int getClosedCount() {
+    return closedCount.get();
+  }
+
+  /** @return the number of searches run. */
+  public int getSearchCount() {
+    return searchCount.get();
+  }
+
+  @Override
+  public DirContext newContext() {
+    openedCount.incrementAndGet();
+    return (DirContext) Proxy.newProxyInstance(
+        LdapContext.class.getClassLoader(),
+        new Class<?>[] { LdapContext.class },
+        new Connection(generation));
+  }
+
+  private synchronized List<String> getGroupDns(String member) {
+    return Lists.newArrayList(groupDns.get(member));
+  }
+
+  private final class Connection implements InvocationHandler {
+    final int connectionGeneration;
+    final Hashtable<String, Object> env = new Hashtable<>();
+    Control[] requestControls;
+    Control[] responseControls;
+    boolean closed;
+
+    Connection(int connectionGeneration) {
+      this.connectionGeneration = connectionGeneration;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws NamingException {
+      String name = method.getName();
+      if (name.equals("close")) {
+        if (!closed) {
+          closed = true;
+          closedCount.incrementAndGet();
+        }
+        return null;
+      }
+      if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      }
+      if (name.equals("equals")) {
+        return proxy == args[0];
+      }
+      if (name.equals("toString")) {
+        return "MockLdapDirectory connection";
+      }
+      if (closed || connectionGeneration != generation) {
+        throw new CommunicationException("connection closed");
+      }
+      if (name.equals("addToEnvironment")) {
+        return env.put((String) args[0], args[1]);
+      }
+      if (name.equals("setRequestControls")) {
+        requestControls = (Control[]) args[0];
+        return null;
+      }
+      if (name.equals("getResponseControls")) {
+        return responseControls;
+      }
+      if (name.equals("getAttributes")) {
+        checkCredentials();
+        return new BasicAttributes(true);
+      }
+      if (name.equals("search") && args.length == 3 && args[1] instanceof String) {
+        checkCredentials();
+        searchCount.incrementAndGet();
+        return search((String) args[1]);
+      }
+      throw new OperationNotSupportedException(name);
+    }
+
+    private void checkCredentials() throws AuthenticationException {
+      Object principal = env.get(Context.SECURITY_PRINCIPAL);
+      if (principal != null
+          && !env.get(Context.SECURITY_CREDENTIALS).equals(passwords.get(principal))) {
+        throw new AuthenticationException("Invalid credentials");
+      }
+    }
+
+    private NamingEnumeration<SearchResult> search(String filter) {
+      responseControls = null;
+      int equals = filter.indexOf('=');
+      String attribute = filter.substring(1, equals);
+      String value = filter.substring(equals + 1, filter.length() - 1);
+      List<String> dns = Lists.newArrayList();
+      if (attribute.equals("uid")) {
+        String dn = userDns.get(value);
+        if (dn != null) {
+          dns.add(dn);
+        }
+      } else if (attribute.equals("memberUid") || attribute.equals("member")) {
+        dns.addAll(getGroupDns(value));
+      }
+      PagedResultsControl paging = getPagedResultsControl();
+      int limit = sizeLimit;
+      if (paging != null) {
+        pagedSearchCount.incrementAndGet();
+        byte[] request = paging.getEncodedValue();
+        // SEQUENCE { INTEGER size, OCTET STRING cookie }, with short lengths.
+        int sizeLength = request[3];
+        int pageSize = new BigInteger(Arrays.copyOfRange(request, 4, 4 + sizeLength)).intValue();
+        int cookieStart = 4 + sizeLength + 2;
+        byte[] cookie = Arrays.copyOfRange(request, cookieStart, request.length);
+        int offset = (cookie.length == 0)
+            ? 0
+            : Integer.parseInt(new String(cookie, StandardCharsets.US_ASCII));
+        int end = Math.min(dns.size(), offset + Math.min(pageSize, sizeLimit));
+        byte[] next = (end < dns.size())
+            ? String.valueOf(end).getBytes(StandardCharsets.US_ASCII)
+            : new byte[0];
+        dns = dns.subList(offset, end);
+        responseControls = new Control[] { makeResponseControl(next) };
+        limit = Integer.MAX_VALUE;
+      }
+      List<SearchResult> results = Lists.newArrayList();
+      for (String dn : dns) {
+        BasicAttributes attributes = new BasicAttributes(true);
+        attributes.put(LDAPConstants.ATTRIBUTE_AD_DN, dn);
+        SearchResult result = new SearchResult(dn, null, attributes, false);
+        result.setNameInNamespace(dn);
+        results.add(result);
+      }
+      return new ResultEnumeration(results.iterator(), limit);
+    }
+
+    private PagedResultsControl getPagedResultsControl() {
+      if (requestControls != null) {
+        for (Control control : requestControls) {
+          if (control instanceof PagedResultsControl) {
+            return (PagedResultsControl) control;
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  private static Control makeResponseControl(byte[] cookie) {
+    byte[] value = new byte[7 + cookie.length];
+    value[0] = 0x30;  // SEQUENCE
+    value[1] = (byte) (5 + cookie.length);
+    value[2] = 0x02;  // INTEGER 0, the unknown result size
+    value[3] = 1;
+    value[4] = 0;
+    value[5] = 0x04;  // OCTET STRING
+    value[6] = (byte) cookie.length;
+    System.arraycopy(cookie, 0, value, 7, cookie.length);
+    try {
+      return new PagedResultsResponseControl(PagedResultsControl.OID, false, value);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class ResultEnumeration implements NamingEnumeration<SearchResult> {
+    final Iterator<SearchResult> iterator;
+    int remaining;
+
+    ResultEnumeration(Iterator<SearchResult> iterator, int limit) {
+      this.iterator = iterator;
+      this.remaining = limit;
+    }
+
+    @Override
+    public boolean hasMore() throws SizeLimitExceededException {
+      if (remaining == 0 && iterator.hasNext()) {
+        throw new SizeLimitExceededException();
+      }
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult next() {
+      remaining--;
+      return iterator.next();
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return iterator.hasNext();
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      return next();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
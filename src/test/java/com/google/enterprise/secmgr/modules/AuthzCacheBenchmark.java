@@ -0,0 +1,114 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.modules;
+
+import com.google.common.base.Ticker;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares per-URL and batch operations on {@link AuthzCache} for results
+ * pages of 100, 1,000 and 10,000 URLs.  Each benchmark thread has its own
+ * session; the sessions share the cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AuthzCacheBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class SharedCache {
+    final AuthzCache cache =
+        new AuthzCache(3600, AuthzCache.DEFAULT_MAX_ENTRIES, AuthzCache.DEFAULT_MAX_BYTES,
+            Ticker.systemTicker());
+    final AtomicInteger sessionCounter = new AtomicInteger();
+  }
+
+  @State(Scope.Thread)
+  public static class Page {
+    @Param({"100", "1000", "10000"})
+    public int pageSize;
+
+    String sessionId;
+    List<String> urls;
+    List<AuthzStatus> statuses;
+
+    @Setup
+    public void setUp(SharedCache shared) {
+      sessionId = "session" + shared.sessionCounter.incrementAndGet();
+      urls = new ArrayList<>(pageSize);
+      for (int i = 0; i < pageSize; i++) {
+        urls.add("http://docs.example.com/" + sessionId + "/folder" + (i % 37) + "/doc" + i);
+      }
+      statuses = Collections.nCopies(pageSize, AuthzStatus.PERMIT);
+      shared.cache.addEntries(sessionId, urls, statuses);
+    }
+  }
+
+  @Benchmark
+  public void lookupEach(SharedCache shared, Page page, Blackhole blackhole) {
+    for (String url : page.urls) {
+      blackhole.consume(shared.cache.lookup(page.sessionId, url));
+    }
+  }
+
+  @Benchmark
+  public void lookupAll(SharedCache shared, Page page, Blackhole blackhole) {
+    blackhole.consume(shared.cache.lookupAll(page.sessionId, page.urls));
+  }
+
+  @Benchmark
+  public void addEach(SharedCache shared, Page page) {
+    for (int i = 0; i < page.pageSize; i++) {
+      shared.cache.addEntry(page.sessionId, page.urls.get(i), page.statuses.get(i));
+    }
+  }
+
+  @Benchmark
+  public void addAll(SharedCache shared, Page page) {
+    shared.cache.addEntries(page.sessionId, page.urls, page.statuses);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(AuthzCacheBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
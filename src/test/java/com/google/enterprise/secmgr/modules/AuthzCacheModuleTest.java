@@ -96,6 +96,40 @@ public class AuthzCacheModuleTest extends SecurityManagerTestCase {
     assertEquals(AuthzStatus.INDETERMINATE, result.get(key));
   }
 
+  public void testRememberAllAndLookupAll() {
+    AuthzCacheModule module = new AuthzCacheModule(6000);
+    SessionSnapshot snapshot = makeSessionSnapshot();
+    String permitUrl = "http://blue-sky.com/permit.html";
+    String denyUrl = "http://blue-sky.com/deny.html";
+    String indeterminateUrl = "http://blue-sky.com/indeterminate.html";
+    module.rememberAll(snapshot.getSessionId(),
+        AuthzResult.builder()
+            .put(permitUrl, AuthzStatus.PERMIT)
+            .put(denyUrl, AuthzStatus.DENY)
+            .put(indeterminateUrl, AuthzStatus.INDETERMINATE)
+            .build());
+    AuthzResult result = module.lookupAll(snapshot.getSessionId(),
+        ImmutableList.of(permitUrl, denyUrl, indeterminateUrl, RESOURCE.getUrl()));
+    assertEquals(4, result.size());
+    assertEquals(AuthzStatus.PERMIT, result.get(permitUrl));
+    assertEquals(AuthzStatus.DENY, result.get(denyUrl));
+    assertEquals(AuthzStatus.INDETERMINATE, result.get(indeterminateUrl));
+    assertEquals(AuthzStatus.INDETERMINATE, result.get(RESOURCE.getUrl()));
+    assertTrue(result.wasDeterminedByCache(permitUrl));
+    assertTrue(result.wasDeterminedByCache(denyUrl));
+    assertFalse(result.wasDeterminedByCache(indeterminateUrl));
+  }
+
+  public void testRememberAllSkipsCachedResults() {
+    AuthzCacheModule module = new AuthzCacheModule(6000);
+    SessionSnapshot snapshot = makeSessionSnapshot();
+    module.rememberAll(snapshot.getSessionId(),
+        AuthzResult.builder()
+            .putStatusFromCache(RESOURCE.getUrl(), AuthzStatus.PERMIT)
+            .build());
+    assertEquals(AuthzStatus.INDETERMINATE, authorize(module, snapshot).get(RESOURCE.getUrl()));
+  }
+
   private static SessionSnapshot makeSessionSnapshot() {
     return AuthorizationTestUtils.simpleSnapshot(AuthnPrincipal.make(
         USERNAME, AuthorizationTestUtils.CG, DOMAIN));
@@ -0,0 +1,182 @@
+// Copyright 2010 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.modules;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.secmgr.common.AuthzStatus;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AuthzCache}.
+ */
+public class AuthzCacheTest extends TestCase {
+  private static final String SESSION1 = "session1";
+  private static final String SESSION2 = "session2";
+  private static final String URL_PREFIX = "http://example.com/doc";
+
+  private FakeTicker ticker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ticker = new FakeTicker();
+  }
+
+  public void testSessionsAreSeparate() {
+    AuthzCache cache = new AuthzCache(60, 100, Long.MAX_VALUE, ticker);
+    cache.addEntry(SESSION1, URL_PREFIX, AuthzStatus.PERMIT);
+    cache.addEntry(SESSION2, URL_PREFIX, AuthzStatus.DENY);
+    assertEquals(AuthzStatus.PERMIT, cache.lookup(SESSION1, URL_PREFIX));
+    assertEquals(AuthzStatus.DENY, cache.lookup(SESSION2, URL_PREFIX));
+    assertNull(cache.lookup("session3", URL_PREFIX));
+    assertEquals(2, cache.size());
+  }
+
+  public void testExpiry() {
+    AuthzCache cache = new AuthzCache(60, 100, Long.MAX_VALUE, ticker);
+    cache.addEntry(SESSION1, URL_PREFIX, AuthzStatus.PERMIT);
+    ticker.advance(59, TimeUnit.SECONDS);
+    assertEquals(AuthzStatus.PERMIT, cache.lookup(SESSION1, URL_PREFIX));
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertNull(cache.lookup(SESSION1, URL_PREFIX));
+    assertEquals(0, cache.size());
+  }
+
+  public void testBoundedByEntryCount() {
+    AuthzCache cache = new AuthzCache(60, 1, Long.MAX_VALUE, ticker);
+    for (int i = 0; i < 1000; i++) {
+      cache.addEntry(SESSION1, URL_PREFIX + i, AuthzStatus.PERMIT);
+    }
+    assertEquals(1, cache.size());
+    assertEquals(AuthzStatus.PERMIT, cache.lookup(SESSION1, URL_PREFIX + 999));
+    assertEquals(999, cache.stats().evictionCount());
+  }
+
+  public void testBoundedByMemory() {
+    AuthzCache cache = new AuthzCache(60, 1000, 1, ticker);
+    cache.addEntry(SESSION1, URL_PREFIX + 1, AuthzStatus.PERMIT);
+    cache.addEntry(SESSION1, URL_PREFIX + 2, AuthzStatus.PERMIT);
+    assertEquals(1, cache.size());
+    assertNull(cache.lookup(SESSION1, URL_PREFIX + 1));
+  }
+
+  public void testClockKeepsReferencedEntries() {
+    AuthzCache cache = new AuthzCache(60, 1000, Long.MAX_VALUE, ticker);
+    // All entries of one session land in the same shard, which holds
+    // 1000 / 32 = 31 entries.
+    for (int i = 0; i < 31; i++) {
+      cache.addEntry(SESSION1, URL_PREFIX + i, AuthzStatus.PERMIT);
+    }
+    cache.lookup(SESSION1, URL_PREFIX + 0);
+    for (int i = 31; i < 40; i++) {
+      cache.addEntry(SESSION1, URL_PREFIX + i, AuthzStatus.PERMIT);
+    }
+    assertEquals(AuthzStatus.PERMIT, cache.lookup(SESSION1, URL_PREFIX + 0));
+  }
+
+  public void testStats() {
+    AuthzCache cache = new AuthzCache(60, 100, Long.MAX_VALUE, ticker);
+    cache.addEntry(SESSION1, URL_PREFIX, AuthzStatus.PERMIT);
+    cache.lookup(SESSION1, URL_PREFIX);
+    cache.lookup(SESSION1, URL_PREFIX + 1);
+    cache.lookup(SESSION2, URL_PREFIX);
+    CacheStats stats = cache.stats();
+    assertEquals(1, stats.hitCount());
+    assertEquals(2, stats.missCount());
+    assertEquals(0, stats.evictionCount());
+  }
+
+  public void testManyEntriesSurviveResizeAndRemoval() {
+    AuthzCache cache = new AuthzCache(60, 100000, Long.MAX_VALUE, ticker);
+    for (int i = 0; i < 5000; i++) {
+      cache.addEntry("session" + (i % 7), URL_PREFIX + i,
+          (i % 2 == 0) ? AuthzStatus.PERMIT : AuthzStatus.DENY);
+    }
+    ticker.advance(30, TimeUnit.SECONDS);
+    for (int i = 0; i < 5000; i += 3) {
+      cache.addEntry("session" + (i % 7), URL_PREFIX + i, AuthzStatus.DENY);
+    }
+    ticker.advance(30, TimeUnit.SECONDS);
+    // Expire the entries that weren't rewritten, removing them one by one.
+    for (int i = 0; i < 5000; i++) {
+      AuthzStatus status = cache.lookup("session" + (i % 7), URL_PREFIX + i);
+      assertEquals(URL_PREFIX + i, (i % 3 == 0) ? AuthzStatus.DENY : null, status);
+    }
+    assertEquals(1667, cache.size());
+  }
+
+  public void testBatchOperations() {
+    AuthzCache cache = new AuthzCache(60, 100, Long.MAX_VALUE, ticker);
+    cache.addEntries(SESSION1,
+        ImmutableList.of(URL_PREFIX + 1, URL_PREFIX + 2),
+        ImmutableList.of(AuthzStatus.PERMIT, AuthzStatus.DENY));
+    ticker.advance(30, TimeUnit.SECONDS);
+    cache.addEntry(SESSION1, URL_PREFIX + 3, AuthzStatus.PERMIT);
+    ticker.advance(30, TimeUnit.SECONDS);
+    AuthzStatus[] statuses = cache.lookupAll(SESSION1,
+        ImmutableList.of(URL_PREFIX + 1, URL_PREFIX + 2, URL_PREFIX + 3, URL_PREFIX + 4));
+    assertEquals(
+        Arrays.asList(null, null, AuthzStatus.PERMIT, null),
+        Arrays.asList(statuses));
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(3, cache.stats().missCount());
+    ticker.advance(30, TimeUnit.SECONDS);
+    statuses = cache.lookupAll(SESSION1, ImmutableList.of(URL_PREFIX + 3, URL_PREFIX + 1));
+    assertEquals(Arrays.asList(null, null), Arrays.asList(statuses));
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidateSession() {
+    AuthzCache cache = new AuthzCache(60, 100000, Long.MAX_VALUE, ticker);
+    for (int i = 0; i < 3000; i++) {
+      cache.addEntry("session" + (i % 3), URL_PREFIX + i, AuthzStatus.PERMIT);
+    }
+    assertEquals(1000, cache.invalidateSession("session1"));
+    assertEquals(0, cache.invalidateSession("session1"));
+    assertEquals(2000, cache.size());
+    for (int i = 0; i < 3000; i++) {
+      assertEquals(URL_PREFIX + i, (i % 3 == 1) ? null : AuthzStatus.PERMIT,
+          cache.lookup("session" + (i % 3), URL_PREFIX + i));
+    }
+    cache.addEntry("session1", URL_PREFIX, AuthzStatus.DENY);
+    assertEquals(AuthzStatus.DENY, cache.lookup("session1", URL_PREFIX));
+    assertEquals(1, cache.invalidateSession("session1"));
+  }
+
+  public void testClear() {
+    AuthzCache cache = new AuthzCache(60, 100, Long.MAX_VALUE, ticker);
+    cache.addEntry(SESSION1, URL_PREFIX, AuthzStatus.PERMIT);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.lookup(SESSION1, URL_PREFIX));
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
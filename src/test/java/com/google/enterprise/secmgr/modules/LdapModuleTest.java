@@ -35,6 +35,7 @@ import com.google.enterprise.secmgr.identity.Group;
 import com.google.enterprise.secmgr.identity.GroupMemberships;
 import com.google.enterprise.secmgr.identity.Verification;
 import com.google.enterprise.secmgr.identity.VerificationStatus;
+import com.google.enterprise.secmgr.ldap.LDAPClient;
 import com.google.enterprise.secmgr.mock.MockLDAPClient;
 import com.google.enterprise.secmgr.testing.SecurityManagerTestCase;
 import java.util.Set;
@@ -202,6 +203,14 @@ public class LdapModuleTest extends SecurityManagerTestCase {
     assertEquals(2000, module.getLDAPClient(state.getMech()).timeout());
   }
 
+  public void testClientsAreShared() {
+    TestState state = new TestState("Shared", false, false, 2000);
+    LdapModule module = new LdapModule();
+    LDAPClient client = module.getLDAPClient(state.getMech());
+    assertSame(client, module.getLDAPClient(state.getMech()));
+    assertNotNull(client.getConnectionPool());
+  }
+
   public void testRewriteDomain() {
     TestState state;
     state = new TestState("DomainRewrite", false, false);
@@ -24,6 +24,7 @@ import com.google.enterprise.policychecker.AclUtil;
 import com.google.enterprise.policychecker.Authorizer;
 import com.google.enterprise.policychecker.JsonUrlAclMapSerializer;
 import com.google.enterprise.policychecker.PlainTextAclSerializer;
+import com.google.enterprise.policychecker.PolicyAclSnapshotWriter;
 import com.google.enterprise.policychecker.Serializer;
 import com.google.enterprise.policychecker.UrlAclMap;
 import com.google.enterprise.secmgr.authncontroller.SessionView;
@@ -183,6 +184,64 @@ public class PolicyAclsModuleTest extends SecurityManagerTestCase {
     runAuthorize(urlsFilename, urls2Filename, 1000);
   }
 
+  public void testSnapshotReloading() throws Exception {
+    File snapshot = File.createTempFile("acl_urls_", ".snapshot");
+    snapshot.deleteOnExit();
+    File snapshot2 = File.createTempFile("acl_urls_2_", ".snapshot");
+    snapshot2.deleteOnExit();
+    PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(new File(
+        FileUtil.getContextDirectory() + "/" + "acl_urls.enterprise")), snapshot);
+    PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(new File(
+        FileUtil.getContextDirectory() + "/" + "acl_urls_2.enterprise")), snapshot2);
+    // A mapped snapshot must be replaced rather than rewritten.
+    runAuthorize(snapshot.getPath(), snapshot2.getPath(), 1000, true);
+  }
+
+  /** A corrupt snapshot is not loaded, and the ACLs already loaded are kept. */
+  public void testCorruptSnapshotIsNotLoaded() throws Exception {
+    File snapshot = File.createTempFile("acl_urls_", ".snapshot");
+    snapshot.deleteOnExit();
+    PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(new File(
+        FileUtil.getContextDirectory() + "/" + "acl_urls.enterprise")), snapshot);
+    byte[] good = Files.toByteArray(snapshot);
+    File corrupt = File.createTempFile("acl_urls_2_", ".snapshot");
+    corrupt.deleteOnExit();
+    PolicyAclSnapshotWriter.write(PolicyAclSnapshotWriter.readAcls(new File(
+        FileUtil.getContextDirectory() + "/" + "acl_urls_2.enterprise")), corrupt);
+    byte[] bad = Files.toByteArray(corrupt);
+    bad[bad.length - 1]++;
+
+    Files.write(bad, snapshot);
+    List<String> urls = Arrays.asList(BOWL_URL, GOLF_URL);
+    SessionView golfer = AuthorizationTestUtils.simpleView(AuthnPrincipal.make("golfer",
+        AclUtil.DEFAULT_NAMESPACE));
+    PolicyAclsModule decider = new PolicyAclsModule(snapshot.getPath(), 12);
+    AuthzResult decisions = decider.authorize(
+        Resource.urlsToResourcesNoAcls(urls), golfer, AuthorizationTestUtils.DUMMY_RULE);
+    assertEquals(AuthzStatus.INDETERMINATE, decisions.get(GOLF_URL));
+
+    Thread.sleep(1000);
+    replace(snapshot, good);
+    Thread.sleep(1000);
+    decisions = decider.authorize(
+        Resource.urlsToResourcesNoAcls(urls), golfer, AuthorizationTestUtils.DUMMY_RULE);
+    assertEquals(AuthzStatus.PERMIT, decisions.get(GOLF_URL));
+
+    Thread.sleep(1000);
+    replace(snapshot, bad);
+    Thread.sleep(1000);
+    decisions = decider.authorize(
+        Resource.urlsToResourcesNoAcls(urls), golfer, AuthorizationTestUtils.DUMMY_RULE);
+    assertEquals(AuthzStatus.PERMIT, decisions.get(GOLF_URL));
+  }
+
+  // A mapped snapshot must be replaced rather than rewritten.
+  private static void replace(File file, byte[] contents) throws IOException {
+    File newFile = new File(file.getPath() + ".new");
+    Files.write(contents, newFile);
+    Files.move(newFile, file);
+  }
+
   public void testLoadLargeFiles() throws Exception {
     String urlsFilename = FileUtil.getContextDirectory()
         + "/" + "acl_urls_large.enterprise";
@@ -195,6 +254,12 @@ public class PolicyAclsModuleTest extends SecurityManagerTestCase {
   private void runAuthorize(String urlsFilename, String urls2Filename,
       long waitForFileRead)
       throws Exception {
+    runAuthorize(urlsFilename, urls2Filename, waitForFileRead, false);
+  }
+
+  private void runAuthorize(String urlsFilename, String urls2Filename,
+      long waitForFileRead, boolean replaceByRename)
+      throws Exception {
     final long fileTimestampPrecisionMillis = 1000;
     final long checkForNewFileMillis = 12;
 
@@ -237,7 +302,13 @@ public class PolicyAclsModuleTest extends SecurityManagerTestCase {
     assertEquals(AuthzStatus.DENY, decisions.get(GOLF_URL));
 
     Thread.sleep(fileTimestampPrecisionMillis);
-    Files.write(Files.toByteArray(new File(urls2Filename)), dupOfOriginalRules);
+    if (replaceByRename) {
+      File newRules = new File(dupOfOriginalRules.getPath() + ".new");
+      Files.copy(new File(urls2Filename), newRules);
+      Files.move(newRules, dupOfOriginalRules);
+    } else {
+      Files.write(Files.toByteArray(new File(urls2Filename)), dupOfOriginalRules);
+    }
     Thread.sleep(waitForFileRead);  // Give enough time for re-read to complete.
 
     // Check newly loaded data.
@@ -70,4 +70,16 @@ public class OpenSamlUtilTest extends SecurityManagerTestCase {
     samlWithoutDoctype.close();
     samlWithDoctype.close();
   }
+
+  /**
+   * Test that each DTD variant of the parser pool is shared, and that the two are distinct.
+   */
+  public void testParserPoolsAreShared() {
+    assertSame(OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/true),
+        OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/true));
+    assertSame(OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/false),
+        OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/false));
+    assertNotSame(OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/true),
+        OpenSamlUtil.getBasicParserPoolInternal(/*acceptDTD=*/false));
+  }
 }
@@ -0,0 +1,111 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.secmgr.saml;
+
+import com.google.common.collect.ImmutableList;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import org.opensaml.saml2.core.Action;
+import org.opensaml.saml2.core.AuthzDecisionQuery;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.util.XMLHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+
+/**
+ * Decodes a BATCH_V2 {@link AuthzDecisionQuery} for 500 resources, as the
+ * policy decision point does for each batch request.  {@code freshPool}
+ * builds a parser pool per message, as every codec used to; {@code sharedPool}
+ * uses the shared, pre-warmed pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SamlDecodeBenchmark {
+
+  private static final int RESOURCES = 500;
+
+  @State(Scope.Benchmark)
+  public static class Query {
+    String xml;
+
+    @Setup
+    public void setUp() throws Exception {
+      AuthzDecisionQuery query = OpenSamlUtil.makeAuthzDecisionQuery(
+          "http://google.com/enterprise/gsa/testing", new DateTime(),
+          OpenSamlUtil.makeSubject("alice"), "",
+          OpenSamlUtil.makeAction(Action.HTTP_GET_ACTION, Action.GHPP_NS_URI));
+      List<XMLObject> extensions = new ArrayList<>();
+      extensions.add(OpenSamlUtil.makeGsaAuthz(GsaAuthz.CURRENT_VERSION, null));
+      for (int i = 0; i < RESOURCES; i++) {
+        extensions.add(OpenSamlUtil.makeResource(
+            URI.create("http://docs.example.com/folder" + (i % 37) + "/doc" + i), null, null));
+      }
+      extensions.add(OpenSamlUtil.makeSecmgrCredential(
+          "alice", "Default", null, null, ImmutableList.<Group>of()));
+      query.setExtensions(OpenSamlUtil.makeExtensions(extensions));
+      xml = XMLHelper.nodeToString(OpenSamlUtil.marshallXmlObject(query));
+    }
+  }
+
+  @Benchmark
+  public XMLObject sharedPool(Query query) throws Exception {
+    return decode(OpenSamlUtil.getBasicParserPool(), query.xml);
+  }
+
+  @Benchmark
+  public XMLObject freshPool(Query query) throws Exception {
+    BasicParserPool parserPool = new BasicParserPool();
+    Map<String, Boolean> features = new HashMap<String, Boolean>(parserPool.getBuilderFeatures());
+    parserPool.setBuilderFeatures(features);
+    return decode(parserPool, query.xml);
+  }
+
+  private static XMLObject decode(BasicParserPool parserPool, String xml) throws Exception {
+    Document document = parserPool.parse(new StringReader(xml));
+    return OpenSamlUtil.unmarshallXmlObject(document.getDocumentElement());
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(SamlDecodeBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link BackendMemoryBase}.
+ */
+public class BackendMemoryBaseTest extends TestCase {
+
+  private static final String SESSION = "0123456789abcdef0123456789abcdef";
+  private static final String KEY = "key";
+
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tmpDir = Files.createTempDirectory("sessionmanager").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File file : tmpDir.listFiles()) {
+      file.delete();
+    }
+    tmpDir.delete();
+    super.tearDown();
+  }
+
+  public void testMatchesFilesBackend() {
+    String oldTmpDir = System.getProperty("TEST_TMPDIR");
+    System.setProperty("TEST_TMPDIR", tmpDir.getPath());
+    try {
+      checkSemantics(new BackendFilesBase(new Settings()));
+    } finally {
+      if (oldTmpDir == null) {
+        System.clearProperty("TEST_TMPDIR");
+      } else {
+        System.setProperty("TEST_TMPDIR", oldTmpDir);
+      }
+    }
+    checkSemantics(new BackendMemoryBase((String) null));
+  }
+
+  private void checkSemantics(BackendInterfaceBase backend) {
+    String name = backend.getClass().getSimpleName();
+    assertFalse(name, backend.sessionExists(SESSION));
+    try {
+      backend.sessionAge(SESSION);
+      fail(name);
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      backend.readKey(SESSION, KEY);
+      fail(name);
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      backend.writeData(SESSION, KEY, "value");
+      fail(name);
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      backend.deleteSession(SESSION);
+      fail(name);
+    } catch (IndexOutOfBoundsException expected) {
+    }
+
+    backend.createSession(SESSION);
+    try {
+      backend.createSession(SESSION);
+      fail(name);
+    } catch (RuntimeException expected) {
+    }
+    assertTrue(name, backend.sessionExists(SESSION));
+    assertEquals(name, Arrays.asList(SESSION), backend.listSessions());
+    assertEquals(name, 0, backend.sessionAge(SESSION));
+    assertFalse(name, backend.keyExists(SESSION, KEY));
+    assertNull(name, backend.readKey(SESSION, KEY));
+
+    backend.writeData(SESSION, KEY, "value");
+    assertTrue(name, backend.keyExists(SESSION, KEY));
+    assertEquals(name, "value", new String(backend.readKey(SESSION, KEY), UTF_8));
+    backend.writeCompressedData(SESSION, KEY, new byte[] { 1, 2 });
+    assertTrue(name, Arrays.equals(new byte[] { 1, 2 }, backend.readKey(SESSION, KEY)));
+    backend.writeData(SESSION, KEY, new byte[0]);
+    assertEquals(name, 0, backend.readKey(SESSION, KEY).length);
+
+    backend.deleteSession(SESSION);
+    assertFalse(name, backend.sessionExists(SESSION));
+    assertFalse(name, backend.keyExists(SESSION, KEY));
+    assertEquals(name, 0, backend.listSessions().size());
+  }
+
+  public void testReadsAreCopies() {
+    BackendMemoryBase backend = new BackendMemoryBase((String) null);
+    backend.createSession(SESSION);
+    byte[] value = new byte[] { 1 };
+    backend.writeData(SESSION, KEY, value);
+    value[0] = 2;
+    backend.readKey(SESSION, KEY)[0] = 3;
+    assertEquals(1, backend.readKey(SESSION, KEY)[0]);
+  }
+
+  public void testJournalRestoresSessions() {
+    String journal = new File(tmpDir, "journal").getPath();
+    BackendMemoryBase backend = new BackendMemoryBase(journal);
+    backend.createSession(SESSION);
+    backend.writeData(SESSION, KEY, "first");
+    backend.writeData(SESSION, KEY, "second");
+    backend.writeData(SESSION, "other", "value");
+    backend.createSession("deleted");
+    backend.writeData("deleted", KEY, "value");
+    backend.deleteSession("deleted");
+
+    BackendMemoryBase restored = new BackendMemoryBase(journal);
+    assertEquals(Arrays.asList(SESSION), restored.listSessions());
+    assertEquals("second", new String(restored.readKey(SESSION, KEY), UTF_8));
+    assertEquals("value", new String(restored.readKey(SESSION, "other"), UTF_8));
+
+    // The restored journal keeps recording changes.
+    restored.deleteSession(SESSION);
+    assertEquals(0, new BackendMemoryBase(journal).listSessions().size());
+  }
+
+  public void testJournalIsOwnerOnly() throws IOException {
+    if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      return;
+    }
+    File file = new File(tmpDir, "journal");
+    SessionJournal journal =
+        SessionJournal.open(file, new HashMap<String, Map<String, byte[]>>());
+    journal.logCreate(SESSION);
+    journal.close();
+    assertEquals("rw-------",
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+  }
+
+  public void testJournalSurvivesFailedRewrite() throws IOException {
+    File file = new File(tmpDir, "journal");
+    Map<String, Map<String, byte[]>> sessions = new HashMap<String, Map<String, byte[]>>();
+    SessionJournal journal = SessionJournal.open(file, sessions);
+    journal.logCreate(SESSION);
+    // Something in the way of the new journal makes the rewrite fail.
+    File tmp = new File(file.getPath() + ".tmp");
+    File blocker = new File(tmp, "blocker");
+    assertTrue(tmp.mkdir());
+    assertTrue(blocker.createNewFile());
+    try {
+      journal.rewrite(sessions);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      blocker.delete();
+      tmp.delete();
+    }
+    // The old journal is still open.
+    journal.logCreate("other");
+    journal.close();
+
+    Map<String, Map<String, byte[]>> restored = new HashMap<String, Map<String, byte[]>>();
+    SessionJournal.open(file, restored).close();
+    assertEquals(2, restored.size());
+  }
+
+  public void testSessionManagerSelectsBackend() {
+    String oldBackend = System.getProperty("gsa.sessionmanager.backend");
+    System.setProperty("gsa.sessionmanager.backend", Settings.BACKEND_MEMORY);
+    try {
+      SessionManagerBase manager = new SessionManagerBase();
+      assertTrue(manager.getBackend() instanceof BackendMemoryBase);
+      String sessionId = manager.createSession();
+      manager.setValue(sessionId, KEY, "value");
+      assertEquals("value", manager.getValue(sessionId, KEY));
+    } finally {
+      if (oldBackend == null) {
+        System.clearProperty("gsa.sessionmanager.backend");
+      } else {
+        System.setProperty("gsa.sessionmanager.backend", oldBackend);
+      }
+    }
+  }
+}
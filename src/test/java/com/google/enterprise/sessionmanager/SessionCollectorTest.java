@@ -0,0 +1,94 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SessionCollector}.
+ */
+public class SessionCollectorTest extends TestCase {
+
+  private static final int TIMEOUT_SECS = 60;
+
+  private AgedBackend backend;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    backend = new AgedBackend();
+    for (int i = 0; i < 10; i++) {
+      backend.createSession("session" + i);
+      backend.ages.put("session" + i, (i % 2 == 0) ? TIMEOUT_SECS + 1L : TIMEOUT_SECS);
+    }
+  }
+
+  public void testCollectsInBatches() {
+    SessionCollector collector = new SessionCollector(backend, TIMEOUT_SECS, 4);
+    assertFalse(collector.collectBatch());
+    assertEquals(4, collector.getSessionsScanned());
+    assertFalse(collector.collectBatch());
+    assertEquals(8, collector.getSessionsScanned());
+    assertTrue(collector.collectBatch());
+    assertEquals(10, collector.getSessionsScanned());
+    assertEquals(5, collector.getSessionsReaped());
+    assertEquals(1, collector.getPassesCompleted());
+    assertEquals(5, backend.listSessions().size());
+    for (String session : backend.listSessions()) {
+      assertEquals(TIMEOUT_SECS, backend.sessionAge(session));
+    }
+  }
+
+  public void testCollectAll() {
+    SessionCollector collector = new SessionCollector(backend, TIMEOUT_SECS, 4);
+    collector.collectAll();
+    assertEquals(10, collector.getSessionsScanned());
+    assertEquals(5, collector.getSessionsReaped());
+    collector.collectAll();
+    assertEquals(15, collector.getSessionsScanned());
+    assertEquals(5, collector.getSessionsReaped());
+    assertEquals(2, collector.getPassesCompleted());
+  }
+
+  public void testSessionsDeletedDuringPass() {
+    SessionCollector collector = new SessionCollector(backend, TIMEOUT_SECS, 4);
+    collector.collectBatch();
+    long reaped = collector.getSessionsReaped();
+    for (String session : backend.listSessions()) {
+      backend.deleteSession(session);
+    }
+    assertFalse(collector.collectBatch());
+    assertTrue(collector.collectBatch());
+    assertEquals(10, collector.getSessionsScanned());
+    assertEquals(reaped, collector.getSessionsReaped());
+  }
+
+  /** An in-memory backend whose session ages are set by the test. */
+  private static final class AgedBackend extends BackendMemoryBase {
+    final Map<String, Long> ages = new HashMap<String, Long>();
+
+    AgedBackend() {
+      super((String) null);
+    }
+
+    @Override
+    public long sessionAge(String sessionId) {
+      super.sessionAge(sessionId);
+      return ages.get(sessionId);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import java.util.Formatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link SessionIdGenerator} with the session-ID generation it
+ * replaced (one shared Random and Formatter behind a lock), with 32 threads
+ * creating sessions at once.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class SessionIdGeneratorBenchmark {
+
+  private static final Random random = new Random();
+  private static final byte[] randomBytes = new byte[SessionIdGenerator.ID_BYTES];
+  private static final StringBuilder sidBuilder = new StringBuilder(randomBytes.length * 2);
+
+  @Benchmark
+  public String lockedFormatter() {
+    synchronized (randomBytes) {
+      random.nextBytes(randomBytes);
+      sidBuilder.setLength(0);
+      Formatter f = new Formatter(sidBuilder);
+      for (byte b : randomBytes) {
+        f.format("%02x", b);
+      }
+      return f.toString();
+    }
+  }
+
+  @Benchmark
+  public String threadLocalGenerator() {
+    return SessionIdGenerator.newId();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+        new OptionsBuilder()
+        .include(SessionIdGeneratorBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2018 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.sessionmanager;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SessionIdGenerator}.
+ */
+public class SessionIdGeneratorTest extends TestCase {
+
+  private static final int THREADS = 8;
+  private static final int IDS_PER_THREAD = 1000;
+
+  public void testFormat() {
+    for (int i = 0; i < 100; i++) {
+      String id = SessionIdGenerator.newId();
+      assertTrue(id, id.matches("[0-9a-f]{32}"));
+    }
+  }
+
+  public void testUniqueAcrossThreads() throws InterruptedException {
+    final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < IDS_PER_THREAD; j++) {
+            ids.add(SessionIdGenerator.newId());
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+  }
+}